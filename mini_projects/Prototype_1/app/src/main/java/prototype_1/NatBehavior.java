@@ -0,0 +1,95 @@
+package prototype_1;
+
+/**
+ * The NAT mapping and filtering behavior observed for the local host (RFC 5780),
+ * together with the traversal strategy it implies.
+ */
+public class NatBehavior {
+
+    public enum Mapping {
+        NO_NAT("none"),
+        ENDPOINT_INDEPENDENT("endpoint-independent"),
+        ADDRESS_DEPENDENT("address-dependent"),
+        ADDRESS_AND_PORT_DEPENDENT("address-and-port-dependent");
+
+        private final String label;
+
+        Mapping(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Filtering {
+        ENDPOINT_INDEPENDENT("endpoint-independent"),
+        ADDRESS_DEPENDENT("address-dependent"),
+        ADDRESS_AND_PORT_DEPENDENT("address-and-port-dependent");
+
+        private final String label;
+
+        Filtering(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum TraversalStrategy {
+        /** Peers can reach the mapped address without any coordination. */
+        DIRECT,
+        /** Both peers must send to each other first to open their filters. */
+        HOLE_PUNCH,
+        /** The mapped port changes per destination; go through a relay. */
+        RELAY
+    }
+
+    private final StunClient.TransportAddress mappedAddress;
+    private final Mapping mapping;
+    private final Filtering filtering;
+    private final long discoveredAt;
+
+    public NatBehavior(StunClient.TransportAddress mappedAddress, Mapping mapping, Filtering filtering) {
+        this.mappedAddress = mappedAddress;
+        this.mapping = mapping;
+        this.filtering = filtering;
+        this.discoveredAt = System.currentTimeMillis();
+    }
+
+    public StunClient.TransportAddress getMappedAddress() {
+        return mappedAddress;
+    }
+
+    public Mapping getMapping() {
+        return mapping;
+    }
+
+    public Filtering getFiltering() {
+        return filtering;
+    }
+
+    public long getDiscoveredAt() {
+        return discoveredAt;
+    }
+
+    public TraversalStrategy getTraversalStrategy() {
+        if (mapping == Mapping.ADDRESS_DEPENDENT || mapping == Mapping.ADDRESS_AND_PORT_DEPENDENT) {
+            return TraversalStrategy.RELAY;
+        }
+        if (filtering == Filtering.ENDPOINT_INDEPENDENT) {
+            return TraversalStrategy.DIRECT;
+        }
+        return TraversalStrategy.HOLE_PUNCH;
+    }
+
+    /**
+     * @return a compact form suitable for publishing alongside the address in the registry
+     */
+    public String toRegistryValue() {
+        return "address=" + mappedAddress
+                + ";mapping=" + mapping.label
+                + ";filtering=" + filtering.label
+                + ";strategy=" + getTraversalStrategy().name().toLowerCase().replace('_', '-');
+    }
+
+    @Override
+    public String toString() {
+        return toRegistryValue();
+    }
+}
@@ -0,0 +1,242 @@
+package prototype_1;
+
+import java.io.IOException;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Classifies the local NAT using the RFC 5780 behavior discovery tests.
+ * <p>
+ * The mapping tests and the filtering tests run at the same time on two separate sockets:
+ * the filtering socket must only ever talk to the server's primary address, otherwise the
+ * mapping probes would open its filter and every filtering test would pass. Within each
+ * socket the follow-up tests are sent together once the first response has named the
+ * server's OTHER-ADDRESS, so a full classification costs two round trips plus at most one
+ * timeout rather than a timeout per failed test.
+ * <p>
+ * A mapping test that gets no answer from the server's alternate address leaves the mapping
+ * unknown, so discovery fails with an {@link IOException} rather than guess the strictest
+ * behavior. Results are cached per server, as servers can disagree about what they see.
+ */
+public class NatBehaviorDiscovery {
+    private static final Logger logger = Logger.getLogger(NatBehaviorDiscovery.class.getName());
+
+    private static final long CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4, r -> {
+        Thread thread = new Thread(r, "nat-discovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final StunCredentials credentials;
+    private final PathStatistics pathStatistics;
+    private final Map<StunClient.TransportAddress, NatBehavior> cached = new ConcurrentHashMap<>();
+
+    public NatBehaviorDiscovery() {
+        this(null);
+    }
+
+    /**
+     * @param credentials short-term credential to sign every test request with, or null
+     */
+    public NatBehaviorDiscovery(StunCredentials credentials) {
+        this(credentials, new PathStatistics(16));
+    }
+
+    /**
+     * @param credentials short-term credential to sign every test request with, or null
+     * @param pathStatistics timers for, and samples from, the test transactions
+     */
+    public NatBehaviorDiscovery(StunCredentials credentials, PathStatistics pathStatistics) {
+        this.credentials = credentials;
+        this.pathStatistics = pathStatistics;
+    }
+
+    public static void main(String[] args) {
+        try {
+            String host = args.length > 0 ? args[0] : "127.0.0.1";
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 3478;
+
+            NatBehaviorDiscovery discovery = new NatBehaviorDiscovery();
+            long started = System.nanoTime();
+            NatBehavior behavior = discovery.discover(new StunClient.TransportAddress(host, port));
+
+            System.out.println("NAT behavior: " + behavior + " ("
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms)");
+        } catch (Exception e) {
+            logger.severe("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    public PathStatistics getPathStatistics() {
+        return pathStatistics;
+    }
+
+    /**
+     * @param server the primary address of the STUN server
+     * @return the last classification against that server if it is still fresh, otherwise null
+     */
+    public NatBehavior getCachedBehavior(StunClient.TransportAddress server) {
+        NatBehavior behavior = cached.get(server);
+        if (behavior != null && System.currentTimeMillis() - behavior.getDiscoveredAt() < CACHE_TTL_MILLIS) {
+            return behavior;
+        }
+        return null;
+    }
+
+    /**
+     * Classifies the local NAT against an RFC 5780 capable STUN server, reusing a
+     * fresh cached result from the same server if there is one
+     *
+     * @param server the primary address of the STUN server
+     * @return the observed NAT behavior
+     * @throws IOException if there is a network error, or the server or its alternate
+     *                     address does not respond
+     * @throws StunException if the server does not support RFC 5780
+     */
+    public NatBehavior discover(StunClient.TransportAddress server) throws IOException, StunException {
+        NatBehavior behavior = getCachedBehavior(server);
+        if (behavior != null) {
+            return behavior;
+        }
+
+        try (TransactionSocket mappingSocket = newSocket();
+             TransactionSocket filteringSocket = newSocket()) {
+            CompletableFuture<MappingResult> mapping = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return testMapping(mappingSocket, server);
+                } catch (IOException | StunException e) {
+                    throw new RuntimeException(e);
+                }
+            }, scheduler);
+            NatBehavior.Filtering filtering = testFiltering(filteringSocket, server);
+
+            MappingResult result = mapping.get();
+            behavior = new NatBehavior(result.mappedAddress, result.mapping, filtering);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during NAT discovery");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof RuntimeException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof StunException) {
+                throw (StunException) cause;
+            }
+            throw new IOException("NAT discovery failed: " + cause.getMessage(), cause);
+        }
+
+        logger.info("Discovered NAT behavior: " + behavior);
+        cached.put(server, behavior);
+        return behavior;
+    }
+
+    private MappingResult testMapping(TransactionSocket socket, StunClient.TransportAddress server)
+            throws IOException, StunException {
+        StunClient.Response first = await(socket.request(server, 0));
+        StunClient.TransportAddress mapped = mappedAddress(first);
+        if (mapped == null) {
+            throw new IOException("No response from STUN server " + server);
+        }
+        if (first.otherAddress == null) {
+            throw new StunException("STUN server does not support RFC 5780 (no OTHER-ADDRESS)");
+        }
+        if (isLocalAddress(mapped)) {
+            return new MappingResult(mapped, NatBehavior.Mapping.NO_NAT);
+        }
+
+        StunClient.TransportAddress alternateIp =
+                new StunClient.TransportAddress(first.otherAddress.getInetAddress(), server.getPort());
+        CompletableFuture<StunClient.Response> second = socket.request(alternateIp, 0);
+        CompletableFuture<StunClient.Response> third = socket.request(first.otherAddress, 0);
+
+        StunClient.TransportAddress mappedSecond = mappedAddress(await(second));
+        if (mappedSecond == null) {
+            third.cancel(false);
+            throw new IOException("No response from STUN server alternate address " + alternateIp);
+        }
+        if (mapped.equals(mappedSecond)) {
+            third.cancel(false);
+            return new MappingResult(mapped, NatBehavior.Mapping.ENDPOINT_INDEPENDENT);
+        }
+
+        StunClient.TransportAddress mappedThird = mappedAddress(await(third));
+        if (mappedThird == null) {
+            throw new IOException("No response from STUN server alternate address " + first.otherAddress);
+        }
+        if (mappedSecond.equals(mappedThird)) {
+            return new MappingResult(mapped, NatBehavior.Mapping.ADDRESS_DEPENDENT);
+        }
+        return new MappingResult(mapped, NatBehavior.Mapping.ADDRESS_AND_PORT_DEPENDENT);
+    }
+
+    private NatBehavior.Filtering testFiltering(TransactionSocket socket, StunClient.TransportAddress server)
+            throws IOException, StunException {
+        if (await(socket.request(server, 0)) == null) {
+            throw new IOException("No response from STUN server " + server);
+        }
+
+        CompletableFuture<StunClient.Response> changeBoth =
+                socket.request(server, StunClient.CHANGE_IP | StunClient.CHANGE_PORT);
+        CompletableFuture<StunClient.Response> changePort = socket.request(server, StunClient.CHANGE_PORT);
+
+        if (await(changeBoth) != null) {
+            changePort.cancel(false);
+            return NatBehavior.Filtering.ENDPOINT_INDEPENDENT;
+        }
+        if (await(changePort) != null) {
+            return NatBehavior.Filtering.ADDRESS_DEPENDENT;
+        }
+        return NatBehavior.Filtering.ADDRESS_AND_PORT_DEPENDENT;
+    }
+
+    private TransactionSocket newSocket() throws SocketException {
+        return new TransactionSocket(scheduler, credentials, pathStatistics);
+    }
+
+    private static StunClient.Response await(CompletableFuture<StunClient.Response> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for STUN response");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                return null;
+            }
+            throw new IOException("STUN transaction failed", e.getCause());
+        }
+    }
+
+    private static StunClient.TransportAddress mappedAddress(StunClient.Response response) throws StunException {
+        return response != null ? StunClient.handleStunResponse(response) : null;
+    }
+
+    private static boolean isLocalAddress(StunClient.TransportAddress address) {
+        try {
+            return NetworkInterface.getByInetAddress(address.getInetAddress()) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    private static class MappingResult {
+        final StunClient.TransportAddress mappedAddress;
+        final NatBehavior.Mapping mapping;
+
+        MappingResult(StunClient.TransportAddress mappedAddress, NatBehavior.Mapping mapping) {
+            this.mappedAddress = mappedAddress;
+            this.mapping = mapping;
+        }
+    }
+}
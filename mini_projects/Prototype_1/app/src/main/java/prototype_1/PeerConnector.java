@@ -0,0 +1,242 @@
+package prototype_1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Picks the address to reach a peer on by racing its candidates Happy Eyeballs style
+ * (RFC 8305).
+ * <p>
+ * Candidates are ordered IPv6 first, alternating families, and probed with a STUN Binding
+ * request; our peers answer STUN on the same port they serve HTTP/3 on, so an answer
+ * means the path works. A new attempt starts every {@link #CONNECTION_ATTEMPT_DELAY_MILLIS}
+ * or as soon as the previous one fails, whichever comes first, and the first answer wins.
+ * On an IPv4-only host an IPv6 send fails at once, so the race costs nothing there.
+ * <p>
+ * The winner is cached per peer, so later connects to the same peer skip the race until
+ * the entry expires or {@link #forget(String)} is called after a failure. While cached, the
+ * path is kept warm with a Binding request every
+ * {@link PathStatistics#keepaliveIntervalMillis keepalive interval}, which refreshes the
+ * NAT binding, keeps the path statistics current and forgets the winner once it stops
+ * answering.
+ */
+public class PeerConnector implements Closeable {
+    private static final Logger logger = Logger.getLogger(PeerConnector.class.getName());
+
+    static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250;
+    private static final long CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "peer-connector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final TransactionSocket socket;
+    private final PathStatistics pathStatistics;
+    private final Map<String, Winner> winners = new ConcurrentHashMap<>();
+
+    public PeerConnector() throws SocketException {
+        this(null, new PathStatistics(1024));
+    }
+
+    /**
+     * @param credentials short-term credential to sign the probes with, or null
+     * @param pathStatistics timers for, and samples from, the probes and keepalives
+     */
+    public PeerConnector(StunCredentials credentials, PathStatistics pathStatistics) throws SocketException {
+        this.pathStatistics = pathStatistics;
+        this.socket = new TransactionSocket(scheduler, credentials, pathStatistics);
+    }
+
+    public PathStatistics getPathStatistics() {
+        return pathStatistics;
+    }
+
+    public static void main(String[] args) {
+        try (PeerConnector connector = new PeerConnector()) {
+            String peerId = args.length > 0 ? args[0] : "localhost";
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 3478;
+
+            List<StunClient.TransportAddress> candidates = new ArrayList<>();
+            for (InetAddress address : InetAddress.getAllByName(peerId)) {
+                candidates.add(new StunClient.TransportAddress(address, port));
+            }
+
+            for (int i = 0; i < 2; i++) {
+                long started = System.nanoTime();
+                StunClient.TransportAddress address = connector.connect(peerId, candidates);
+                System.out.println("Reached " + peerId + " at " + address + " ("
+                        + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started) + " us)");
+            }
+            for (PathStatistics.Path path : connector.getPathStatistics().snapshot()) {
+                System.out.println(path);
+            }
+        } catch (Exception e) {
+            logger.severe("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the address to use for a peer, racing its candidates unless a fresh winner
+     * is cached
+     *
+     * @param peerId the peer's subscriber id, the cache key
+     * @param candidates every address the peer advertises, in any order
+     * @return the candidate that answered first
+     * @throws IOException if no candidate answered
+     */
+    public StunClient.TransportAddress connect(String peerId, List<StunClient.TransportAddress> candidates)
+            throws IOException {
+        Winner cached = winners.get(peerId);
+        if (cached != null && System.currentTimeMillis() - cached.chosenAt < CACHE_TTL_MILLIS
+                && candidates.contains(cached.address)) {
+            return cached.address;
+        }
+
+        List<StunClient.TransportAddress> ordered = interleave(candidates);
+        if (ordered.isEmpty()) {
+            throw new IOException("No candidates for peer " + peerId);
+        }
+
+        Race race = new Race(ordered);
+        race.start(0);
+        StunClient.TransportAddress address;
+        try {
+            address = race.winner.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted connecting to peer " + peerId);
+        } catch (ExecutionException e) {
+            throw new IOException("No candidate of peer " + peerId + " answered", e.getCause());
+        }
+
+        logger.fine("Peer " + peerId + " reachable at " + address);
+        Winner winner = new Winner(address);
+        winners.put(peerId, winner);
+        scheduleKeepalive(peerId, winner);
+        return address;
+    }
+
+    private void scheduleKeepalive(String peerId, Winner winner) {
+        long interval = pathStatistics.keepaliveIntervalMillis(winner.address.getInetAddress());
+        scheduler.schedule(() -> {
+            if (winners.get(peerId) != winner || System.currentTimeMillis() - winner.chosenAt >= CACHE_TTL_MILLIS) {
+                return;
+            }
+            socket.request(winner.address, 0).whenComplete((response, error) -> {
+                if (error == null) {
+                    scheduleKeepalive(peerId, winner);
+                } else if (winners.remove(peerId, winner)) {
+                    logger.fine("Peer " + peerId + " stopped answering at " + winner.address);
+                }
+            });
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops the cached winner for a peer, e.g. after the connection on it failed
+     */
+    public void forget(String peerId) {
+        winners.remove(peerId);
+    }
+
+    /**
+     * Orders candidates IPv6 first, then alternating address families (RFC 8305 section 4),
+     * keeping the given order within each family
+     */
+    static List<StunClient.TransportAddress> interleave(List<StunClient.TransportAddress> candidates) {
+        List<StunClient.TransportAddress> v6 = new ArrayList<>();
+        List<StunClient.TransportAddress> v4 = new ArrayList<>();
+        for (StunClient.TransportAddress candidate : candidates) {
+            (candidate.getInetAddress() instanceof Inet6Address ? v6 : v4).add(candidate);
+        }
+
+        List<StunClient.TransportAddress> ordered = new ArrayList<>(candidates.size());
+        for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+            if (i < v6.size()) {
+                ordered.add(v6.get(i));
+            }
+            if (i < v4.size()) {
+                ordered.add(v4.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * One connection race. Attempt {@code i + 1} starts either when attempt {@code i}'s
+     * delay runs out or when it fails; the compare-and-set on {@link #started} makes sure
+     * only the first of those two starts it.
+     */
+    private final class Race {
+        final List<StunClient.TransportAddress> candidates;
+        final CompletableFuture<StunClient.TransportAddress> winner = new CompletableFuture<>();
+        final List<CompletableFuture<StunClient.Response>> attempts = new CopyOnWriteArrayList<>();
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        Race(List<StunClient.TransportAddress> candidates) {
+            this.candidates = candidates;
+            winner.whenComplete((address, error) -> {
+                for (CompletableFuture<StunClient.Response> attempt : attempts) {
+                    attempt.cancel(false);
+                }
+            });
+        }
+
+        void start(int index) {
+            if (index >= candidates.size() || winner.isDone() || !started.compareAndSet(index, index + 1)) {
+                return;
+            }
+
+            StunClient.TransportAddress candidate = candidates.get(index);
+            CompletableFuture<StunClient.Response> attempt = socket.request(candidate, 0);
+            attempts.add(attempt);
+            attempt.whenComplete((response, error) -> {
+                if (error == null) {
+                    winner.complete(candidate);
+                } else if (failed.incrementAndGet() == candidates.size()) {
+                    winner.completeExceptionally(error);
+                } else {
+                    start(index + 1);
+                }
+            });
+            if (index + 1 < candidates.size()) {
+                scheduler.schedule(() -> start(index + 1), CONNECTION_ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static final class Winner {
+        final StunClient.TransportAddress address;
+        final long chosenAt;
+
+        Winner(StunClient.TransportAddress address) {
+            this.address = address;
+            this.chosenAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -2,6 +2,10 @@ package prototype_1;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class StunClient {
@@ -11,13 +15,54 @@ public class StunClient {
     private static final char BINDING_RESPONSE = 0x0101;
     
     private static final char MAPPED_ADDRESS = 0x0001;
+    private static final char CHANGE_REQUEST = 0x0003;
+    private static final char USERNAME = 0x0006;
     private static final char XOR_MAPPED_ADDRESS = 0x0020;
+    private static final char RESPONSE_ORIGIN = 0x802B;
+    private static final char OTHER_ADDRESS = 0x802C;
+    
+    static final int CHANGE_IP = 0x04;
+    static final int CHANGE_PORT = 0x02;
     
     private static final int MAGIC_COOKIE = 0x2112A442;
     
+    private static final int FAMILY_IPV4 = 0x01;
+    private static final int FAMILY_IPV6 = 0x02;
+    
     private static final String DEFAULT_STUN_SERVER = "stun.l.google.com";
     private static final int DEFAULT_STUN_PORT = 19302;
     
+    private static final SecureRandom random = new SecureRandom();
+    
+    private final StunCredentials credentials;
+    private final PathStatistics pathStatistics;
+    
+    public StunClient() {
+        this(null);
+    }
+    
+    /**
+     * @param credentials short-term credentials to sign requests with and to verify
+     *                    responses against, or null for unauthenticated requests
+     */
+    public StunClient(StunCredentials credentials) {
+        this(credentials, new PathStatistics(16));
+    }
+    
+    /**
+     * @param credentials short-term credentials to sign requests with and to verify
+     *                    responses against, or null for unauthenticated requests
+     * @param pathStatistics timers for, and samples from, this client's transactions
+     */
+    public StunClient(StunCredentials credentials, PathStatistics pathStatistics) {
+        this.credentials = credentials;
+        this.pathStatistics = pathStatistics;
+    }
+    
+    public PathStatistics getPathStatistics() {
+        return pathStatistics;
+    }
+    
     public static void main(String[] args) {
         try {
             TransportAddress serverAddress = new TransportAddress(DEFAULT_STUN_SERVER, DEFAULT_STUN_PORT);
@@ -45,6 +90,7 @@ public class StunClient {
      */
     public TransportAddress discoverPublicAddress(TransportAddress stunServer) 
             throws IOException, StunException {
+        InetAddress peer = stunServer.getInetAddress();
         DatagramSocket socket = new DatagramSocket();
         try {
             byte[] bindingRequest = createBindingRequest();
@@ -52,18 +98,41 @@ public class StunClient {
             DatagramPacket request = new DatagramPacket(
                     bindingRequest, 
                     bindingRequest.length,
-                    stunServer.getInetAddress(),
+                    peer,
                     stunServer.getPort());
             
-            socket.send(request);
-            
             byte[] responseBuffer = new byte[512];
             DatagramPacket response = new DatagramPacket(responseBuffer, responseBuffer.length);
             
-            socket.setSoTimeout(5000); 
-            socket.receive(response);
+            // RFC 5389 7.2.1: retransmit with a doubling RTO, both taken from this server's path
+            long rto = pathStatistics.retransmissionTimeoutMillis(peer);
+            long startedAt = System.nanoTime();
+            long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(pathStatistics.transactionTimeoutMillis(peer));
+            int transmissions = 0;
+            while (true) {
+                socket.send(request);
+                transmissions++;
+                
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                socket.setSoTimeout((int) Math.max(1, Math.min(rto, remaining)));
+                try {
+                    socket.receive(response);
+                    break;
+                } catch (SocketTimeoutException e) {
+                    pathStatistics.recordTransmissions(peer, 1, 1);
+                    if (System.nanoTime() - deadline >= 0) {
+                        throw e;
+                    }
+                    rto *= 2;
+                }
+            }
+            
+            pathStatistics.recordTransmissions(peer, 1, 0);
+            if (transmissions == 1) {
+                pathStatistics.recordRtt(peer, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt));
+            }
             
-            Response stunResponse = parseStunResponse(responseBuffer, response.getLength());
+            Response stunResponse = parseStunResponse(responseBuffer, response.getLength(), credentials);
             
             return handleStunResponse(stunResponse);
         } finally {
@@ -77,21 +146,69 @@ public class StunClient {
      * @return the STUN Binding Request as byte array
      */
     private byte[] createBindingRequest() {
-        byte[] request = new byte[20]; 
+        return createBindingRequest(0, credentials);
+    }
+    
+    /**
+     * Creates a STUN Binding Request, optionally carrying an RFC 5780 CHANGE-REQUEST
+     * 
+     * @param changeFlags a combination of {@link #CHANGE_IP} and {@link #CHANGE_PORT}, or 0
+     * @return the STUN Binding Request as byte array
+     */
+    static byte[] createBindingRequest(int changeFlags) {
+        return createBindingRequest(changeFlags, null);
+    }
+    
+    /**
+     * Creates a STUN Binding Request, optionally carrying an RFC 5780 CHANGE-REQUEST and
+     * signed with USERNAME, MESSAGE-INTEGRITY and FINGERPRINT
+     * 
+     * @param changeFlags a combination of {@link #CHANGE_IP} and {@link #CHANGE_PORT}, or 0
+     * @param credentials the credentials to sign with, or null
+     * @return the STUN Binding Request as byte array
+     */
+    static byte[] createBindingRequest(int changeFlags, StunCredentials credentials) {
+        byte[] username = credentials != null ? credentials.usernameBytes() : null;
+        int capacity = 20 + (changeFlags != 0 ? 8 : 0);
+        if (username != null) {
+            capacity += 4 + ((username.length + 3) & ~3)
+                    + StunIntegrity.INTEGRITY_ATTRIBUTE_LENGTH + StunIntegrity.FINGERPRINT_ATTRIBUTE_LENGTH;
+        }
+        byte[] request = new byte[capacity]; 
+        int length = changeFlags != 0 ? 28 : 20;
         
         request[0] = 0x00;
         request[1] = 0x01;
         
         request[2] = 0x00;
-        request[3] = 0x00;
+        request[3] = (byte) (length - 20);
         
         request[4] = (byte) (MAGIC_COOKIE >> 24);
         request[5] = (byte) ((MAGIC_COOKIE >> 16) & 0xFF);
         request[6] = (byte) ((MAGIC_COOKIE >> 8) & 0xFF);
         request[7] = (byte) (MAGIC_COOKIE & 0xFF);
         
-        for (int i = 0; i < 12; i++) {
-            request[i + 8] = (byte) (Math.random() * 256);
+        byte[] transactionId = new byte[12];
+        random.nextBytes(transactionId);
+        System.arraycopy(transactionId, 0, request, 8, 12);
+        
+        if (changeFlags != 0) {
+            request[20] = (byte) (CHANGE_REQUEST >> 8);
+            request[21] = (byte) CHANGE_REQUEST;
+            request[23] = 4;
+            request[27] = (byte) changeFlags;
+        }
+        
+        if (username != null) {
+            request[length] = (byte) (USERNAME >> 8);
+            request[length + 1] = (byte) USERNAME;
+            request[length + 2] = (byte) (username.length >> 8);
+            request[length + 3] = (byte) username.length;
+            System.arraycopy(username, 0, request, length + 4, username.length);
+            length += 4 + ((username.length + 3) & ~3);
+            
+            length = StunIntegrity.appendIntegrity(request, length, credentials.mac());
+            length = StunIntegrity.appendFingerprint(request, length);
         }
         
         return request;
@@ -105,7 +222,22 @@ public class StunClient {
      * @return the parsed STUN response
      * @throws StunException if the response is invalid
      */
-    private Response parseStunResponse(byte[] data, int length) throws StunException {
+    static Response parseStunResponse(byte[] data, int length) throws StunException {
+        return parseStunResponse(data, length, null);
+    }
+    
+    /**
+     * Parses a STUN response, checking FINGERPRINT when present and MESSAGE-INTEGRITY
+     * when credentials are given
+     * 
+     * @param data the response data
+     * @param length the response length
+     * @param credentials the credentials the request was signed with, or null
+     * @return the parsed STUN response
+     * @throws StunException if the response is invalid or fails an integrity check
+     */
+    static Response parseStunResponse(byte[] data, int length, StunCredentials credentials)
+            throws StunException {
         if (length < 20) {
             throw new StunException("Response too short");
         }
@@ -118,18 +250,43 @@ public class StunClient {
         int messageLength = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
         
         Response response = new Response();
+        response.transactionId = ByteBuffer.wrap(Arrays.copyOfRange(data, 8, 20));
+        
+        int integrityOffset = -1;
+        int fingerprintOffset = -1;
         
         int pos = 20;
         while (pos + 4 <= length && pos + 4 <= 20 + messageLength) {
             int attributeType = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
             int attributeLength = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
             
+            if (attributeType == StunIntegrity.FINGERPRINT && attributeLength == 4 && pos + 8 <= length) {
+                fingerprintOffset = pos;
+                break;
+            }
+            if (integrityOffset >= 0) {
+                // only FINGERPRINT may follow MESSAGE-INTEGRITY
+                pos += 4 + ((attributeLength + 3) & ~3);
+                continue;
+            }
+            if (attributeType == StunIntegrity.MESSAGE_INTEGRITY && attributeLength == 20
+                    && pos + StunIntegrity.INTEGRITY_ATTRIBUTE_LENGTH <= length) {
+                integrityOffset = pos;
+            }
+            
             pos += 4; 
+            if (pos + attributeLength > length) {
+                throw new StunException("Attribute exceeds message");
+            }
             
             if (attributeType == MAPPED_ADDRESS && attributeLength >= 8) {
-                response.mappedAddress = parseMappedAddress(data, pos);
+                response.mappedAddress = parseMappedAddress(data, pos, attributeLength);
             } else if (attributeType == XOR_MAPPED_ADDRESS && attributeLength >= 8) {
-                response.xorMappedAddress = parseXorMappedAddress(data, pos);
+                response.xorMappedAddress = parseXorMappedAddress(data, pos, attributeLength);
+            } else if (attributeType == RESPONSE_ORIGIN && attributeLength >= 8) {
+                response.responseOrigin = parseMappedAddress(data, pos, attributeLength);
+            } else if (attributeType == OTHER_ADDRESS && attributeLength >= 8) {
+                response.otherAddress = parseMappedAddress(data, pos, attributeLength);
             }
             
             pos += attributeLength;
@@ -138,6 +295,18 @@ public class StunClient {
             }
         }
         
+        if (fingerprintOffset >= 0 && !StunIntegrity.verifyFingerprint(data, fingerprintOffset)) {
+            throw new StunException("FINGERPRINT mismatch");
+        }
+        if (credentials != null) {
+            if (integrityOffset < 0) {
+                throw new StunException("Response lacks MESSAGE-INTEGRITY");
+            }
+            if (!StunIntegrity.verifyIntegrity(data, integrityOffset, credentials.mac())) {
+                throw new StunException("MESSAGE-INTEGRITY mismatch");
+            }
+        }
+        
         return response;
     }
     
@@ -146,53 +315,60 @@ public class StunClient {
      * 
      * @param data the response data
      * @param offset the offset to the attribute value
+     * @param attributeLength the length of the attribute value
      * @return the mapped address
      * @throws StunException if the attribute is invalid
      */
-    private TransportAddress parseMappedAddress(byte[] data, int offset) throws StunException {
-        int family = data[offset + 1] & 0xFF;
-        if (family != 1) {
-            throw new StunException("Only IPv4 is supported");
-        }
-        
+    private static TransportAddress parseMappedAddress(byte[] data, int offset, int attributeLength)
+            throws StunException {
         int port = ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
         
-        byte[] addressBytes = new byte[4];
-        System.arraycopy(data, offset + 4, addressBytes, 0, 4);
+        byte[] addressBytes = new byte[addressLength(data[offset + 1] & 0xFF, attributeLength)];
+        System.arraycopy(data, offset + 4, addressBytes, 0, addressBytes.length);
         
-        try {
-            InetAddress inetAddress = InetAddress.getByAddress(addressBytes);
-            return new TransportAddress(inetAddress, port);
-        } catch (UnknownHostException e) {
-            throw new StunException("Invalid IP address");
-        }
+        return toTransportAddress(addressBytes, port);
     }
     
     /**
-     * Parses an XOR-MAPPED-ADDRESS attribute
+     * Parses an XOR-MAPPED-ADDRESS attribute. IPv4 addresses are XORed with the magic
+     * cookie, IPv6 addresses with the magic cookie followed by the transaction id.
      * 
      * @param data the response data
      * @param offset the offset to the attribute value
+     * @param attributeLength the length of the attribute value
      * @return the mapped address
      * @throws StunException if the attribute is invalid
      */
-    private TransportAddress parseXorMappedAddress(byte[] data, int offset) throws StunException {
-        int family = data[offset + 1] & 0xFF;
-        if (family != 1) {
-            throw new StunException("Only IPv4 is supported");
-        }
-        
+    private static TransportAddress parseXorMappedAddress(byte[] data, int offset, int attributeLength)
+            throws StunException {
         int xorPort = ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
-        int port = xorPort ^ (MAGIC_COOKIE >> 16);
-        
-        byte[] xorAddressBytes = new byte[4];
-        System.arraycopy(data, offset + 4, xorAddressBytes, 0, 4);
+        int port = xorPort ^ (MAGIC_COOKIE >>> 16);
         
-        byte[] addressBytes = new byte[4];
-        for (int i = 0; i < 4; i++) {
-            addressBytes[i] = (byte) (xorAddressBytes[i] ^ ((MAGIC_COOKIE >> (24 - 8 * i)) & 0xFF));
+        byte[] addressBytes = new byte[addressLength(data[offset + 1] & 0xFF, attributeLength)];
+        for (int i = 0; i < addressBytes.length; i++) {
+            // bytes 4..19 of the header are the magic cookie followed by the transaction id
+            addressBytes[i] = (byte) (data[offset + 4 + i] ^ data[4 + i]);
         }
         
+        return toTransportAddress(addressBytes, port);
+    }
+    
+    private static int addressLength(int family, int attributeLength) throws StunException {
+        int length;
+        if (family == FAMILY_IPV4) {
+            length = 4;
+        } else if (family == FAMILY_IPV6) {
+            length = 16;
+        } else {
+            throw new StunException("Unknown address family: " + family);
+        }
+        if (attributeLength < 4 + length) {
+            throw new StunException("Address attribute too short for family " + family);
+        }
+        return length;
+    }
+    
+    private static TransportAddress toTransportAddress(byte[] addressBytes, int port) throws StunException {
         try {
             InetAddress inetAddress = InetAddress.getByAddress(addressBytes);
             return new TransportAddress(inetAddress, port);
@@ -208,7 +384,7 @@ public class StunClient {
      * @return the mapped address
      * @throws StunException if there is no mapped address
      */
-    private static TransportAddress handleStunResponse(Response response) throws StunException {
+    static TransportAddress handleStunResponse(Response response) throws StunException {
         if (response.xorMappedAddress != null) {
             return response.xorMappedAddress;
         } else if (response.mappedAddress != null) {
@@ -219,9 +395,12 @@ public class StunClient {
         }
     }
     
-    private static class Response {
+    static class Response {
+        ByteBuffer transactionId;
         TransportAddress mappedAddress;
         TransportAddress xorMappedAddress;
+        TransportAddress responseOrigin;
+        TransportAddress otherAddress;
     }
     
    
@@ -248,18 +427,32 @@ public class StunClient {
         }
         
         public String getAddress() {
+            if (address instanceof Inet6Address) {
+                return "[" + address.getHostAddress() + "]:" + port;
+            }
             return address.getHostAddress() + ":" + port;
         }
         
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TransportAddress)) {
+                return false;
+            }
+            TransportAddress other = (TransportAddress) o;
+            return port == other.port && address.equals(other.address);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * address.hashCode() + port;
+        }
+        
         @Override
         public String toString() {
             return getAddress();
         }
     }
 }
-
-class StunException extends Exception {
-    public StunException(String message) {
-        super(message);
-    }
-}
\ No newline at end of file
@@ -0,0 +1,51 @@
+package prototype_1;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * A STUN short-term credential. The HMAC-SHA1 instance is keyed once per thread and
+ * reused for every message, so no {@code Mac.getInstance} happens per packet.
+ */
+public class StunCredentials {
+    private final String username;
+    private final byte[] usernameBytes;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> mac;
+
+    public StunCredentials(String username, String password) {
+        this.username = username;
+        this.usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        this.key = new SecretKeySpec(password.getBytes(StandardCharsets.UTF_8), "HmacSHA1");
+        this.mac = ThreadLocal.withInitial(this::newMac);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac instance = Mac.getInstance("HmacSHA1");
+            instance.init(key);
+            return instance;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA1 unavailable", e);
+        }
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    byte[] usernameBytes() {
+        return usernameBytes;
+    }
+
+    /**
+     * @return this thread's keyed Mac, reset and ready for a new message
+     */
+    Mac mac() {
+        Mac instance = mac.get();
+        instance.reset();
+        return instance;
+    }
+}
@@ -0,0 +1,10 @@
+package prototype_1;
+
+/**
+ * A STUN message that is malformed, unexpected or fails an integrity check.
+ */
+public class StunException extends Exception {
+    public StunException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,116 @@
+package prototype_1;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import java.util.zip.CRC32;
+
+/**
+ * MESSAGE-INTEGRITY and FINGERPRINT (RFC 5389 15.4, 15.5) over STUN messages held in
+ * byte arrays. Lengths passed in are whole-message lengths including the 20 byte header.
+ */
+final class StunIntegrity {
+    static final char MESSAGE_INTEGRITY = 0x0008;
+    static final char FINGERPRINT = 0x8028;
+
+    static final int INTEGRITY_ATTRIBUTE_LENGTH = 24;
+    static final int FINGERPRINT_ATTRIBUTE_LENGTH = 8;
+
+    private static final int HEADER_LENGTH = 20;
+    private static final int HMAC_LENGTH = 20;
+    private static final int FINGERPRINT_XOR = 0x5354554E;
+
+    private static final ThreadLocal<CRC32> crc = ThreadLocal.withInitial(CRC32::new);
+    private static final ThreadLocal<byte[]> hmacOut = ThreadLocal.withInitial(() -> new byte[HMAC_LENGTH]);
+
+    private StunIntegrity() {
+    }
+
+    /**
+     * Appends MESSAGE-INTEGRITY at {@code length} and updates the header length
+     *
+     * @return the new message length
+     */
+    static int appendIntegrity(byte[] message, int length, Mac mac) {
+        setLength(message, length + INTEGRITY_ATTRIBUTE_LENGTH);
+        byte[] hmac = hmac(message, length, mac);
+        writeAttributeHeader(message, length, MESSAGE_INTEGRITY, HMAC_LENGTH);
+        System.arraycopy(hmac, 0, message, length + 4, HMAC_LENGTH);
+        return length + INTEGRITY_ATTRIBUTE_LENGTH;
+    }
+
+    /**
+     * Appends FINGERPRINT at {@code length} and updates the header length; must be last
+     *
+     * @return the new message length
+     */
+    static int appendFingerprint(byte[] message, int length) {
+        setLength(message, length + FINGERPRINT_ATTRIBUTE_LENGTH);
+        int value = crc(message, length);
+        writeAttributeHeader(message, length, FINGERPRINT, 4);
+        writeInt(message, length + 4, value);
+        return length + FINGERPRINT_ATTRIBUTE_LENGTH;
+    }
+
+    static boolean verifyIntegrity(byte[] message, int attributeOffset, Mac mac) {
+        // the HMAC was computed with the header length ending right after MESSAGE-INTEGRITY
+        int originalLength = readShort(message, 2);
+        setLength(message, attributeOffset + INTEGRITY_ATTRIBUTE_LENGTH);
+        byte[] expected = hmac(message, attributeOffset, mac);
+        message[2] = (byte) (originalLength >> 8);
+        message[3] = (byte) originalLength;
+
+        int diff = 0;
+        for (int i = 0; i < HMAC_LENGTH; i++) {
+            diff |= expected[i] ^ message[attributeOffset + 4 + i];
+        }
+        return diff == 0;
+    }
+
+    static boolean verifyFingerprint(byte[] message, int attributeOffset) {
+        int value = ((message[attributeOffset + 4] & 0xFF) << 24) | ((message[attributeOffset + 5] & 0xFF) << 16)
+                | ((message[attributeOffset + 6] & 0xFF) << 8) | (message[attributeOffset + 7] & 0xFF);
+        return crc(message, attributeOffset) == value;
+    }
+
+    private static byte[] hmac(byte[] message, int length, Mac mac) {
+        mac.update(message, 0, length);
+        byte[] out = hmacOut.get();
+        try {
+            mac.doFinal(out, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+        return out;
+    }
+
+    private static int crc(byte[] message, int length) {
+        CRC32 checksum = crc.get();
+        checksum.reset();
+        checksum.update(message, 0, length);
+        return (int) checksum.getValue() ^ FINGERPRINT_XOR;
+    }
+
+    private static void setLength(byte[] message, int totalLength) {
+        int bodyLength = totalLength - HEADER_LENGTH;
+        message[2] = (byte) (bodyLength >> 8);
+        message[3] = (byte) bodyLength;
+    }
+
+    private static int readShort(byte[] message, int offset) {
+        return ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+    }
+
+    private static void writeAttributeHeader(byte[] message, int offset, char type, int length) {
+        message[offset] = (byte) (type >> 8);
+        message[offset + 1] = (byte) type;
+        message[offset + 2] = (byte) (length >> 8);
+        message[offset + 3] = (byte) length;
+    }
+
+    private static void writeInt(byte[] message, int offset, int value) {
+        message[offset] = (byte) (value >> 24);
+        message[offset + 1] = (byte) (value >> 16);
+        message[offset + 2] = (byte) (value >> 8);
+        message[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,156 @@
+package prototype_1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * A UDP socket carrying several concurrent STUN transactions. Responses are matched
+ * to requests by transaction id, whatever address they arrive from, and requests are
+ * retransmitted with exponential backoff until answered or timed out.
+ * <p>
+ * The first retransmission timeout and the transaction timeout come from the
+ * destination's {@link PathStatistics}, and every plain Binding transaction feeds them
+ * back: an RTT sample if it was answered on the first transmission, and a loss for every
+ * retransmission or timeout. Requests carrying CHANGE-REQUEST are left out since their
+ * responses may be filtered by design.
+ * <p>
+ * The socket is bound to the wildcard address, which is dual-stack unless
+ * {@code java.net.preferIPv4Stack} is set, so IPv4 and IPv6 destinations can share it.
+ */
+class TransactionSocket implements Closeable {
+    private static final Logger logger = Logger.getLogger(TransactionSocket.class.getName());
+
+    private final DatagramSocket socket = new DatagramSocket();
+    private final Map<ByteBuffer, Transaction> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final StunCredentials credentials;
+    private final PathStatistics pathStatistics;
+    private final Thread receiver;
+
+    /**
+     * @param scheduler runs retransmissions and timeouts
+     * @param credentials credentials to sign requests with and verify responses against, or null
+     * @param pathStatistics supplies timers per destination and records the outcomes
+     */
+    TransactionSocket(ScheduledExecutorService scheduler, StunCredentials credentials,
+                      PathStatistics pathStatistics) throws SocketException {
+        this.scheduler = scheduler;
+        this.credentials = credentials;
+        this.pathStatistics = pathStatistics;
+        receiver = new Thread(this::receive, "stun-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Starts a Binding transaction
+     *
+     * @param destination where to send the request
+     * @param changeFlags RFC 5780 CHANGE-REQUEST flags, or 0
+     * @return completes with the response, or exceptionally on timeout or send failure
+     */
+    CompletableFuture<StunClient.Response> request(StunClient.TransportAddress destination, int changeFlags) {
+        byte[] request = StunClient.createBindingRequest(changeFlags, credentials);
+        ByteBuffer transactionId = ByteBuffer.wrap(request, 8, 12).slice();
+        InetAddress peer = destination.getInetAddress();
+
+        DatagramPacket packet = new DatagramPacket(request, request.length, peer, destination.getPort());
+        Transaction transaction = new Transaction(packet, changeFlags == 0);
+        pending.put(transactionId, transaction);
+        transaction.future.whenComplete((response, error) -> pending.remove(transactionId));
+
+        send(transaction, pathStatistics.retransmissionTimeoutMillis(peer));
+        scheduler.schedule(() -> {
+            if (transaction.future.completeExceptionally(new TimeoutException()) && transaction.recordStatistics) {
+                pathStatistics.recordTransmissions(peer, 1, 1);
+            }
+        }, pathStatistics.transactionTimeoutMillis(peer), TimeUnit.MILLISECONDS);
+        return transaction.future;
+    }
+
+    private void send(Transaction transaction, long rto) {
+        if (transaction.future.isDone() || socket.isClosed()) {
+            return;
+        }
+        if (transaction.transmissions > 0 && transaction.recordStatistics) {
+            // the previous transmission went unanswered for a full RTO
+            pathStatistics.recordTransmissions(transaction.packet.getAddress(), 1, 1);
+        }
+        try {
+            transaction.transmissions++;
+            socket.send(transaction.packet);
+        } catch (IOException e) {
+            // e.g. "Network is unreachable" for an IPv6 destination on an IPv4-only host
+            transaction.future.completeExceptionally(e);
+            return;
+        }
+        scheduler.schedule(() -> send(transaction, rto * 2), rto, TimeUnit.MILLISECONDS);
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                long receivedAt = System.nanoTime();
+                StunClient.Response response = StunClient.parseStunResponse(buffer, packet.getLength(), credentials);
+                Transaction transaction = pending.get(response.transactionId);
+                if (transaction != null && transaction.future.complete(response)) {
+                    transaction.recordResponse(receivedAt);
+                }
+            } catch (StunException e) {
+                logger.fine("Ignoring invalid STUN response: " + e.getMessage());
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    logger.warning("Receive failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        for (Transaction transaction : pending.values()) {
+            transaction.future.cancel(false);
+        }
+    }
+
+    private final class Transaction {
+        final DatagramPacket packet;
+        final boolean recordStatistics;
+        final long startedAt = System.nanoTime();
+        final CompletableFuture<StunClient.Response> future = new CompletableFuture<>();
+        volatile int transmissions;
+
+        Transaction(DatagramPacket packet, boolean recordStatistics) {
+            this.packet = packet;
+            this.recordStatistics = recordStatistics;
+        }
+
+        void recordResponse(long receivedAt) {
+            if (!recordStatistics) {
+                return;
+            }
+            InetAddress peer = packet.getAddress();
+            pathStatistics.recordTransmissions(peer, 1, 0);
+            // Karn: after a retransmission it is unknown which copy was answered
+            if (transmissions == 1) {
+                pathStatistics.recordRtt(peer, TimeUnit.NANOSECONDS.toMicros(receivedAt - startedAt));
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package prototype_1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * An RFC 5780 STUN server on 127.0.0.1 and 127.0.0.2, each on two ports, that plays the
+ * part of the NAT in front of the client. The mapped address it reports depends on which
+ * of its four sockets a request reached, as a NAT with the given mapping behavior would
+ * assign it, and responses a NAT with the given filtering behavior would drop are never
+ * sent. Any of the four sockets can also be {@linkplain #silence silenced}, to play a server
+ * whose alternate address is unreachable.
+ */
+class LoopbackStunServer implements Closeable {
+    static final InetAddress PRIMARY_IP = address(127, 0, 0, 1);
+    static final InetAddress ALTERNATE_IP = address(127, 0, 0, 2);
+
+    private static final int MAGIC_COOKIE = 0x2112A442;
+    private static final int BINDING_RESPONSE = 0x0101;
+    private static final int XOR_MAPPED_ADDRESS = 0x0020;
+    private static final int OTHER_ADDRESS = 0x802C;
+    private static final int CHANGE_REQUEST = 0x0003;
+    /** A documentation address (RFC 5737) standing in for the NAT's public side. */
+    private static final byte[] PUBLIC_IP = {(byte) 198, 51, 100, 7};
+    private static final int PUBLIC_PORT = 40000;
+
+    private final NatBehavior.Mapping mapping;
+    private final NatBehavior.Filtering filtering;
+    // [ip][port]: 0 is primary, 1 alternate
+    private final DatagramSocket[][] sockets = new DatagramSocket[2][2];
+    // bit 2 * ip + port set: requests to that socket go unanswered
+    private volatile int silenced;
+
+    /**
+     * @param mapping how the simulated NAT maps the client, or {@link NatBehavior.Mapping#NO_NAT}
+     *                to report the client's real loopback address
+     * @param filtering which responses from a changed address the simulated NAT lets through
+     */
+    LoopbackStunServer(NatBehavior.Mapping mapping, NatBehavior.Filtering filtering) throws SocketException {
+        this.mapping = mapping;
+        this.filtering = filtering;
+        try {
+            sockets[0][0] = new DatagramSocket(new InetSocketAddress(PRIMARY_IP, 0));
+            sockets[0][1] = new DatagramSocket(new InetSocketAddress(PRIMARY_IP, 0));
+            int primaryPort = sockets[0][0].getLocalPort();
+            int alternatePort = sockets[0][1].getLocalPort();
+            sockets[1][0] = new DatagramSocket(new InetSocketAddress(ALTERNATE_IP, primaryPort));
+            sockets[1][1] = new DatagramSocket(new InetSocketAddress(ALTERNATE_IP, alternatePort));
+        } catch (SocketException e) {
+            close();
+            throw e;
+        }
+        for (int ip = 0; ip < 2; ip++) {
+            for (int port = 0; port < 2; port++) {
+                int receivedIp = ip;
+                int receivedPort = port;
+                Thread thread = new Thread(() -> serve(receivedIp, receivedPort), "loopback-stun");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * @return whether 127.0.0.2 can be bound here, as on Linux but not by default on macOS
+     */
+    static boolean alternateAddressAvailable() {
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(ALTERNATE_IP, 0))) {
+            return true;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops answering requests that reach the given socket
+     *
+     * @param ip 0 for 127.0.0.1, 1 for 127.0.0.2
+     * @param port 0 for the primary port, 1 for the alternate
+     */
+    void silence(int ip, int port) {
+        silenced |= 1 << (2 * ip + port);
+    }
+
+    StunClient.TransportAddress primaryAddress() {
+        return new StunClient.TransportAddress(PRIMARY_IP, sockets[0][0].getLocalPort());
+    }
+
+    private void serve(int ip, int port) {
+        DatagramSocket socket = sockets[ip][port];
+        byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(request);
+                if ((silenced & 1 << (2 * ip + port)) != 0) {
+                    continue;
+                }
+                int changeFlags = changeFlags(buffer, request.getLength());
+                int responseIp = (changeFlags & StunClient.CHANGE_IP) != 0 ? 1 - ip : ip;
+                int responsePort = (changeFlags & StunClient.CHANGE_PORT) != 0 ? 1 - port : port;
+                if (!passesFilter(responseIp != ip, responsePort != port)) {
+                    continue;
+                }
+                byte[] response = response(buffer, mappedAddress(request, ip, port));
+                sockets[responseIp][responsePort].send(new DatagramPacket(response, response.length,
+                    request.getSocketAddress()));
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private boolean passesFilter(boolean ipChanged, boolean portChanged) {
+        switch (filtering) {
+            case ENDPOINT_INDEPENDENT:
+                return true;
+            case ADDRESS_DEPENDENT:
+                return !ipChanged;
+            default:
+                return !ipChanged && !portChanged;
+        }
+    }
+
+    private InetSocketAddress mappedAddress(DatagramPacket request, int ip, int port) throws IOException {
+        switch (mapping) {
+            case NO_NAT:
+                return (InetSocketAddress) request.getSocketAddress();
+            case ENDPOINT_INDEPENDENT:
+                return new InetSocketAddress(InetAddress.getByAddress(PUBLIC_IP), PUBLIC_PORT);
+            case ADDRESS_DEPENDENT:
+                return new InetSocketAddress(InetAddress.getByAddress(PUBLIC_IP), PUBLIC_PORT + ip);
+            default:
+                return new InetSocketAddress(InetAddress.getByAddress(PUBLIC_IP), PUBLIC_PORT + 2 * ip + port);
+        }
+    }
+
+    private static int changeFlags(byte[] request, int length) {
+        ByteBuffer message = ByteBuffer.wrap(request, 0, length);
+        int end = Math.min(length, 20 + (message.getShort(2) & 0xFFFF));
+        for (int pos = 20; pos + 4 <= end; ) {
+            int type = message.getShort(pos) & 0xFFFF;
+            int attributeLength = message.getShort(pos + 2) & 0xFFFF;
+            if (type == CHANGE_REQUEST && attributeLength == 4 && pos + 8 <= end) {
+                return message.getInt(pos + 4);
+            }
+            pos += 4 + ((attributeLength + 3) & ~3);
+        }
+        return 0;
+    }
+
+    private byte[] response(byte[] request, InetSocketAddress mapped) {
+        int mappedLength = 8 + mapped.getAddress().getAddress().length;
+        ByteBuffer response = ByteBuffer.allocate(20 + mappedLength + 12);
+        response.putShort((short) BINDING_RESPONSE);
+        response.putShort((short) (mappedLength + 12));
+        response.put(request, 4, 16);
+        putXorMappedAddress(response, mapped);
+
+        response.putShort((short) OTHER_ADDRESS).putShort((short) 8);
+        response.put((byte) 0).put((byte) 0x01);
+        response.putShort((short) sockets[1][1].getLocalPort());
+        response.put(ALTERNATE_IP.getAddress());
+        return response.array();
+    }
+
+    /**
+     * @return a Binding success response to {@code request} carrying only the mapped address
+     */
+    static byte[] bindingResponse(byte[] request, InetSocketAddress mapped) {
+        int mappedLength = 8 + mapped.getAddress().getAddress().length;
+        ByteBuffer response = ByteBuffer.allocate(20 + mappedLength);
+        response.putShort((short) BINDING_RESPONSE);
+        response.putShort((short) mappedLength);
+        response.put(request, 4, 16);
+        putXorMappedAddress(response, mapped);
+        return response.array();
+    }
+
+    /**
+     * Appends an XOR-MAPPED-ADDRESS after a header that is already written. The port is
+     * XORed with the top of the magic cookie, the address with the cookie and, for IPv6,
+     * the transaction id that follows it.
+     */
+    static void putXorMappedAddress(ByteBuffer response, InetSocketAddress mapped) {
+        byte[] address = mapped.getAddress().getAddress();
+        response.putShort((short) XOR_MAPPED_ADDRESS).putShort((short) (4 + address.length));
+        response.put((byte) 0).put((byte) (address.length == 4 ? 0x01 : 0x02));
+        response.putShort((short) (mapped.getPort() ^ (MAGIC_COOKIE >>> 16)));
+        for (int i = 0; i < address.length; i++) {
+            response.put((byte) (address[i] ^ response.get(4 + i)));
+        }
+    }
+
+    @Override
+    public void close() {
+        for (DatagramSocket[] row : sockets) {
+            for (DatagramSocket socket : row) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package prototype_1;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs the RFC 5780 tests against {@link LoopbackStunServer}, bound to 127.0.0.1 and
+ * 127.0.0.2, for each mapping and filtering behavior.
+ */
+class NatBehaviorDiscoveryTest {
+    private PathStatistics pathStatistics;
+
+    @BeforeEach
+    void setUp() {
+        assumeTrue(LoopbackStunServer.alternateAddressAvailable(), "127.0.0.2 cannot be bound");
+        // a known 1 ms path puts the RTO at its 50 ms floor, so dropped responses time out quickly
+        pathStatistics = new PathStatistics(16);
+        pathStatistics.recordRtt(LoopbackStunServer.PRIMARY_IP, 1000);
+        pathStatistics.recordRtt(LoopbackStunServer.ALTERNATE_IP, 1000);
+    }
+
+    private NatBehavior discover(NatBehavior.Mapping mapping, NatBehavior.Filtering filtering) throws Exception {
+        try (LoopbackStunServer server = new LoopbackStunServer(mapping, filtering)) {
+            return new NatBehaviorDiscovery(null, pathStatistics).discover(server.primaryAddress());
+        }
+    }
+
+    @Test
+    void loopbackWithoutNatConnectsDirectly() throws Exception {
+        NatBehavior behavior = discover(NatBehavior.Mapping.NO_NAT, NatBehavior.Filtering.ENDPOINT_INDEPENDENT);
+
+        assertEquals(NatBehavior.Mapping.NO_NAT, behavior.getMapping());
+        assertEquals(NatBehavior.Filtering.ENDPOINT_INDEPENDENT, behavior.getFiltering());
+        assertEquals(NatBehavior.TraversalStrategy.DIRECT, behavior.getTraversalStrategy());
+    }
+
+    @Test
+    void endpointIndependentMappingWithPortFilteringNeedsHolePunching() throws Exception {
+        NatBehavior behavior = discover(NatBehavior.Mapping.ENDPOINT_INDEPENDENT,
+            NatBehavior.Filtering.ADDRESS_AND_PORT_DEPENDENT);
+
+        assertEquals(NatBehavior.Mapping.ENDPOINT_INDEPENDENT, behavior.getMapping());
+        assertEquals(NatBehavior.Filtering.ADDRESS_AND_PORT_DEPENDENT, behavior.getFiltering());
+        assertEquals(NatBehavior.TraversalStrategy.HOLE_PUNCH, behavior.getTraversalStrategy());
+    }
+
+    @Test
+    void addressDependentFilteringIsToldApartFromPortFiltering() throws Exception {
+        NatBehavior behavior = discover(NatBehavior.Mapping.ENDPOINT_INDEPENDENT,
+            NatBehavior.Filtering.ADDRESS_DEPENDENT);
+
+        assertEquals(NatBehavior.Filtering.ADDRESS_DEPENDENT, behavior.getFiltering());
+        assertEquals(NatBehavior.TraversalStrategy.HOLE_PUNCH, behavior.getTraversalStrategy());
+    }
+
+    @Test
+    void addressDependentMappingNeedsARelay() throws Exception {
+        NatBehavior behavior = discover(NatBehavior.Mapping.ADDRESS_DEPENDENT,
+            NatBehavior.Filtering.ENDPOINT_INDEPENDENT);
+
+        assertEquals(NatBehavior.Mapping.ADDRESS_DEPENDENT, behavior.getMapping());
+        assertEquals(NatBehavior.TraversalStrategy.RELAY, behavior.getTraversalStrategy());
+    }
+
+    @Test
+    void addressAndPortDependentMappingNeedsARelay() throws Exception {
+        NatBehavior behavior = discover(NatBehavior.Mapping.ADDRESS_AND_PORT_DEPENDENT,
+            NatBehavior.Filtering.ADDRESS_AND_PORT_DEPENDENT);
+
+        assertEquals(NatBehavior.Mapping.ADDRESS_AND_PORT_DEPENDENT, behavior.getMapping());
+        assertEquals(NatBehavior.Filtering.ADDRESS_AND_PORT_DEPENDENT, behavior.getFiltering());
+        assertEquals(NatBehavior.TraversalStrategy.RELAY, behavior.getTraversalStrategy());
+    }
+
+    @Test
+    void silentAlternateAddressLeavesTheMappingUnknown() throws Exception {
+        try (LoopbackStunServer server = new LoopbackStunServer(NatBehavior.Mapping.ENDPOINT_INDEPENDENT,
+                NatBehavior.Filtering.ENDPOINT_INDEPENDENT)) {
+            server.silence(1, 0);
+            server.silence(1, 1);
+            NatBehaviorDiscovery discovery = new NatBehaviorDiscovery(null, pathStatistics);
+
+            assertThrows(IOException.class, () -> discovery.discover(server.primaryAddress()));
+            assertNull(discovery.getCachedBehavior(server.primaryAddress()));
+        }
+    }
+
+    @Test
+    void silentAlternatePortLeavesTheMappingUnknown() throws Exception {
+        // the second test shows the mapping moved, only the third could say why
+        try (LoopbackStunServer server = new LoopbackStunServer(NatBehavior.Mapping.ADDRESS_DEPENDENT,
+                NatBehavior.Filtering.ENDPOINT_INDEPENDENT)) {
+            server.silence(1, 1);
+            NatBehaviorDiscovery discovery = new NatBehaviorDiscovery(null, pathStatistics);
+
+            assertThrows(IOException.class, () -> discovery.discover(server.primaryAddress()));
+        }
+    }
+
+    @Test
+    void resultsAreCachedPerServer() throws Exception {
+        NatBehaviorDiscovery discovery = new NatBehaviorDiscovery(null, pathStatistics);
+        try (LoopbackStunServer first = new LoopbackStunServer(NatBehavior.Mapping.ENDPOINT_INDEPENDENT,
+                NatBehavior.Filtering.ENDPOINT_INDEPENDENT);
+             LoopbackStunServer second = new LoopbackStunServer(NatBehavior.Mapping.ADDRESS_DEPENDENT,
+                NatBehavior.Filtering.ENDPOINT_INDEPENDENT)) {
+            NatBehavior fromFirst = discovery.discover(first.primaryAddress());
+            NatBehavior fromSecond = discovery.discover(second.primaryAddress());
+
+            assertNotSame(fromFirst, fromSecond);
+            assertEquals(NatBehavior.Mapping.ADDRESS_DEPENDENT, fromSecond.getMapping());
+            assertSame(fromFirst, discovery.discover(first.primaryAddress()));
+            assertSame(fromFirst, discovery.getCachedBehavior(first.primaryAddress()));
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package prototype_1;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives {@link PathStatistics} with simulated links and checks the timers it derives.
+ */
+class PathStatisticsTest {
+    private static final InetAddress PEER = InetAddress.getLoopbackAddress();
+
+    /**
+     * A link with a base RTT, uniform jitter on top of it and independent loss of each
+     * transmission. Transactions are fed to the statistics the way {@link TransactionSocket}
+     * does: a loss per unanswered transmission, and an RTT sample only when the first
+     * transmission was answered.
+     */
+    private static final class LossyLink {
+        private final Random random = new Random(42);
+        private final long rttMicros;
+        private final long jitterMicros;
+        private final double loss;
+
+        LossyLink(long rttMillis, long jitterMillis, double loss) {
+            this.rttMicros = rttMillis * 1000;
+            this.jitterMicros = jitterMillis * 1000;
+            this.loss = loss;
+        }
+
+        void run(PathStatistics statistics, int transactions) {
+            for (int i = 0; i < transactions; i++) {
+                int transmissions = 1;
+                // a transmission is answered only if neither the request nor the response is lost
+                while (random.nextDouble() < loss && transmissions < 7) {
+                    statistics.recordTransmissions(PEER, 1, 1);
+                    transmissions++;
+                }
+                statistics.recordTransmissions(PEER, 1, 0);
+                if (transmissions == 1) {
+                    statistics.recordRtt(PEER, rttMicros + (long) (random.nextDouble() * jitterMicros));
+                }
+            }
+        }
+    }
+
+    private static PathStatistics simulate(long rttMillis, long jitterMillis, double loss) {
+        PathStatistics statistics = new PathStatistics(16);
+        new LossyLink(rttMillis, jitterMillis, loss).run(statistics, 2000);
+        return statistics;
+    }
+
+    @Test
+    void unknownPeerGetsTheStunDefaults() {
+        PathStatistics statistics = new PathStatistics(16);
+
+        assertEquals(PathStatistics.INITIAL_RTO_MILLIS, statistics.retransmissionTimeoutMillis(PEER));
+        assertEquals(6 * PathStatistics.INITIAL_RTO_MILLIS, statistics.transactionTimeoutMillis(PEER));
+        assertEquals(15_000, statistics.keepaliveIntervalMillis(PEER));
+    }
+
+    @Test
+    void steadyPathConvergesOnItsRtt() {
+        PathStatistics statistics = simulate(100, 5, 0);
+        PathStatistics.Path path = statistics.get(PEER);
+
+        assertEquals(102.5, path.getSmoothedRttMillis(), 3);
+        assertEquals(0, path.getLossRate(), 0.001);
+        long rto = statistics.retransmissionTimeoutMillis(PEER);
+        assertTrue(rto >= 100 && rto <= 115, "rto " + rto);
+        assertEquals(6 * rto, statistics.transactionTimeoutMillis(PEER));
+    }
+
+    @Test
+    void fastPathIsRetriedAtTheFloor() {
+        PathStatistics statistics = simulate(2, 1, 0);
+
+        assertEquals(PathStatistics.MIN_RTO_MILLIS, statistics.retransmissionTimeoutMillis(PEER));
+    }
+
+    @Test
+    void jitterWidensTheRto() {
+        long steady = simulate(100, 5, 0).retransmissionTimeoutMillis(PEER);
+        long jittery = simulate(100, 150, 0).retransmissionTimeoutMillis(PEER);
+
+        assertTrue(jittery > steady + 100, "steady " + steady + ", jittery " + jittery);
+    }
+
+    @Test
+    void satellitePathGetsLongerThanTheDefaults() {
+        PathStatistics statistics = simulate(650, 50, 0);
+
+        assertTrue(statistics.retransmissionTimeoutMillis(PEER) > PathStatistics.INITIAL_RTO_MILLIS);
+        assertTrue(statistics.transactionTimeoutMillis(PEER) > 6 * PathStatistics.INITIAL_RTO_MILLIS);
+    }
+
+    @Test
+    void lossStretchesTransactionsAndShortensKeepalives() {
+        PathStatistics clean = simulate(100, 5, 0);
+        PathStatistics lossy = simulate(100, 5, 0.3);
+        PathStatistics.Path path = lossy.get(PEER);
+
+        // the smoothed loss rate of lost / sent transmissions settles near the link loss
+        assertEquals(0.3, path.getLossRate(), 0.1);
+        assertTrue(lossy.transactionTimeoutMillis(PEER) > clean.transactionTimeoutMillis(PEER));
+        assertTrue(lossy.keepaliveIntervalMillis(PEER) < clean.keepaliveIntervalMillis(PEER));
+        assertTrue(lossy.keepaliveIntervalMillis(PEER) >= 4 * lossy.retransmissionTimeoutMillis(PEER));
+    }
+
+    @Test
+    void heavyLossIsCappedSoTimersStayBounded() {
+        PathStatistics statistics = simulate(100, 5, 0.9);
+        long rto = statistics.retransmissionTimeoutMillis(PEER);
+
+        // loss scaling stops at one half: transactions at most double, keepalives at most halve
+        assertTrue(statistics.transactionTimeoutMillis(PEER) <= 12 * rto);
+        assertTrue(statistics.keepaliveIntervalMillis(PEER) >= 7_500);
+    }
+
+    @Test
+    void pathRecoversOnceLossStops() {
+        PathStatistics statistics = new PathStatistics(16);
+        new LossyLink(100, 5, 0.5).run(statistics, 200);
+        double lossy = statistics.get(PEER).getLossRate();
+        new LossyLink(100, 5, 0).run(statistics, 200);
+
+        assertTrue(lossy > 0.3, "loss " + lossy);
+        assertEquals(0, statistics.get(PEER).getLossRate(), 0.01);
+        assertEquals(15_000, statistics.keepaliveIntervalMillis(PEER));
+    }
+
+    @Test
+    void peersRacingForSlotsNeverSeeEachOthersStatistics() throws Exception {
+        // four slots for eight peers, so nearly every sample evicts someone
+        PathStatistics statistics = new PathStatistics(2);
+        InetAddress[] peers = new InetAddress[8];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) i});
+        }
+        // each peer always measures its own RTT, so its SRTT is either unset or exactly that
+        ConcurrentLinkedQueue<String> mixedUp = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Random random = new Random(t);
+            threads.add(new Thread(() -> {
+                for (int n = 0; n < 100_000 && mixedUp.isEmpty(); n++) {
+                    int i = random.nextInt(peers.length);
+                    statistics.recordRtt(peers[i], rttMicros(i));
+                    statistics.recordTransmissions(peers[i], 1, 0);
+                    check(statistics.get(peers[i]), mixedUp);
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            for (int n = 0; n < 100_000 && mixedUp.isEmpty(); n++) {
+                for (PathStatistics.Path path : statistics.snapshot()) {
+                    check(path, mixedUp);
+                }
+            }
+        }));
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(mixedUp.peek());
+    }
+
+    private static long rttMicros(int peer) {
+        return (peer + 1) * 10_000L;
+    }
+
+    private static void check(PathStatistics.Path path, ConcurrentLinkedQueue<String> mixedUp) {
+        if (path == null) {
+            return;
+        }
+        long srtt = Math.round(path.getSmoothedRttMillis() * 1000);
+        long expected = rttMicros(path.getPeer().getAddress()[3]);
+        if (srtt != 0 && srtt != expected) {
+            mixedUp.add(path.getPeer().getHostAddress() + " has srtt " + srtt + ", expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package prototype_1;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Races a peer's candidates on ::1 and 127.0.0.1, each answered by a {@link Responder}
+ * that can be told to stay silent. Answers carry the prober's address, so the IPv6 one
+ * also goes through the IPv6 XOR-MAPPED-ADDRESS decoding.
+ */
+class PeerConnectorTest {
+    private static final InetAddress IPV6_LOOPBACK = address("::1");
+    private static final InetAddress IPV4_LOOPBACK = address("127.0.0.1");
+
+    private Responder ipv6;
+    private Responder ipv4;
+    private PeerConnector connector;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        assumeTrue(ipv6LoopbackAvailable(), "::1 cannot be bound");
+        ipv6 = new Responder(IPV6_LOOPBACK);
+        ipv4 = new Responder(IPV4_LOOPBACK);
+        connector = new PeerConnector(null, new PathStatistics(16));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (connector != null) {
+            connector.close();
+        }
+        if (ipv6 != null) {
+            ipv6.close();
+        }
+        if (ipv4 != null) {
+            ipv4.close();
+        }
+    }
+
+    /** IPv4 first, so the preference comes from the connector rather than the list. */
+    private List<StunClient.TransportAddress> candidates() {
+        return Arrays.asList(ipv4.address(), ipv6.address());
+    }
+
+    @Test
+    void ipv6IsPreferredWhenBothFamiliesAnswer() throws Exception {
+        assertEquals(ipv6.address(), connector.connect("peer", candidates()));
+        // answered well inside the attempt delay, so IPv4 was never tried
+        assertEquals(0, ipv4.requests());
+    }
+
+    @Test
+    void silentIpv6FallsBackToIpv4AfterTheAttemptDelay() throws Exception {
+        ipv6.silence();
+
+        long started = System.nanoTime();
+        StunClient.TransportAddress winner = connector.connect("peer", candidates());
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertEquals(ipv4.address(), winner);
+        assertEquals(1, ipv6.requests());
+        assertTrue(elapsedMillis >= PeerConnector.CONNECTION_ATTEMPT_DELAY_MILLIS, elapsedMillis + " ms");
+        // the unanswered IPv6 request is not waited out: its first retransmission is due at the initial RTO
+        assertTrue(elapsedMillis < PathStatistics.INITIAL_RTO_MILLIS, elapsedMillis + " ms");
+    }
+
+    @Test
+    void losingAttemptsAreCancelled() throws Exception {
+        ipv6.silence();
+        connector.connect("peer", candidates());
+        int sent = ipv6.requests();
+
+        // left running, the IPv6 attempt would retransmit at the initial RTO and again at three times it
+        Thread.sleep(2 * PathStatistics.INITIAL_RTO_MILLIS);
+
+        assertEquals(sent, ipv6.requests());
+    }
+
+    @Test
+    void winnerIsReusedUntilForgotten() throws Exception {
+        connector.connect("peer", candidates());
+        ipv6.silence();
+
+        assertEquals(ipv6.address(), connector.connect("peer", candidates()));
+        assertEquals(1, ipv6.requests());
+
+        connector.forget("peer");
+        assertEquals(ipv4.address(), connector.connect("peer", candidates()));
+    }
+
+    private static boolean ipv6LoopbackAvailable() {
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(IPV6_LOOPBACK, 0))) {
+            return true;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    private static InetAddress address(String literal) {
+        try {
+            return InetAddress.getByName(literal);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Answers every Binding request with the address it came from, unless silenced
+     */
+    private static final class Responder implements Closeable {
+        private final DatagramSocket socket;
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile boolean silent;
+
+        Responder(InetAddress address) throws SocketException {
+            socket = new DatagramSocket(new InetSocketAddress(address, 0));
+            Thread thread = new Thread(this::serve, "stun-responder");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        StunClient.TransportAddress address() {
+            return new StunClient.TransportAddress(socket.getLocalAddress(), socket.getLocalPort());
+        }
+
+        void silence() {
+            silent = true;
+        }
+
+        int requests() {
+            return requests.get();
+        }
+
+        private void serve() {
+            byte[] buffer = new byte[512];
+            while (!socket.isClosed()) {
+                DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(request);
+                    requests.incrementAndGet();
+                    if (silent) {
+                        continue;
+                    }
+                    byte[] response = LoopbackStunServer.bindingResponse(buffer,
+                        (InetSocketAddress) request.getSocketAddress());
+                    socket.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+}
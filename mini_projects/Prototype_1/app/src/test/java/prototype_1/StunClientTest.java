@@ -0,0 +1,82 @@
+package prototype_1;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Decodes Binding responses that carry IPv6 addresses, starting with the RFC 5769 sample.
+ */
+class StunClientTest {
+    /** RFC 5769 2.3: software "test vector", mapped to [2001:db8:1234:5678:11:2233:4455:6677]:32853. */
+    private static final String RFC5769_IPV6_RESPONSE = ""
+            + "01010048" + "2112a442" + "b7e7a701bc34d686fa87dfae"
+            + "8022000b" + "74657374" + "20766563" + "746f7220"
+            + "00200014" + "0002a147" + "0113a9fa" + "a5d3f179" + "bc25f4b5" + "bed2b9d9"
+            + "00080014" + "a382954e" + "4be67bf1" + "1784c97c" + "8292c275" + "bfe3ed41"
+            + "80280004" + "c8fb0b4c";
+    private static final String RFC5769_PASSWORD = "VOkJxbRl1RmTxUk/WvJxBt";
+
+    @Test
+    void rfc5769Ipv6SampleIsDecodedAndVerified() throws Exception {
+        byte[] response = hex(RFC5769_IPV6_RESPONSE);
+
+        StunClient.Response parsed = StunClient.parseStunResponse(response, response.length,
+                new StunCredentials("evtj:h6vY", RFC5769_PASSWORD));
+
+        assertEquals(new StunClient.TransportAddress("2001:db8:1234:5678:11:2233:4455:6677", 32853),
+                StunClient.handleStunResponse(parsed));
+    }
+
+    @Test
+    void ipv6AddressIsXoredWithTheTransactionId() throws Exception {
+        InetSocketAddress mapped = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 40000);
+        byte[] response = LoopbackStunServer.bindingResponse(StunClient.createBindingRequest(0), mapped);
+
+        assertEquals(new StunClient.TransportAddress(mapped.getAddress(), 40000), decode(response));
+
+        // the same attribute read under another transaction id is another address, on the same port
+        response[19] ^= 1;
+        StunClient.TransportAddress misread = decode(response);
+        assertNotEquals(mapped.getAddress(), misread.getInetAddress());
+        assertEquals(40000, misread.getPort());
+    }
+
+    @Test
+    void ipv4AddressIgnoresTheTransactionId() throws Exception {
+        InetSocketAddress mapped = new InetSocketAddress(InetAddress.getByName("198.51.100.7"), 40000);
+        byte[] response = LoopbackStunServer.bindingResponse(StunClient.createBindingRequest(0), mapped);
+        response[19] ^= 1;
+
+        assertEquals(new StunClient.TransportAddress(mapped.getAddress(), 40000), decode(response));
+    }
+
+    @Test
+    void ipv6AttributeTooShortForItsAddressIsRejected() throws Exception {
+        InetSocketAddress mapped = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 40000);
+        byte[] full = LoopbackStunServer.bindingResponse(StunClient.createBindingRequest(0), mapped);
+        // keep the IPv6 family but claim only an IPv4 address's worth of bytes
+        byte[] response = ByteBuffer.allocate(20 + 12).put(full, 0, 32).putShort(2, (short) 12)
+                .putShort(22, (short) 8).array();
+
+        assertThrows(StunException.class, () -> decode(response));
+    }
+
+    private static StunClient.TransportAddress decode(byte[] response) throws StunException {
+        return StunClient.handleStunResponse(StunClient.parseStunResponse(response, response.length));
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,282 @@
+package prototype_5.beckn;
+
+import prototype_5.client.PeerConnectionPool;
+import prototype_5.security.SignatureVerifier;
+import prototype_5.security.StaticSubscriberKeyResolver;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.incubator.codec.http3.DefaultHttp3DataFrame;
+import io.netty.incubator.codec.http3.DefaultHttp3HeadersFrame;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.http3.Http3DataFrame;
+import io.netty.incubator.codec.http3.Http3HeadersFrame;
+import io.netty.incubator.codec.http3.Http3RequestStreamInboundHandler;
+import io.netty.incubator.codec.http3.Http3ServerConnectionHandler;
+import io.netty.incubator.codec.quic.InsecureQuicTokenHandler;
+import io.netty.incubator.codec.quic.Quic;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
+import org.bouncycastle.crypto.signers.Ed25519Signer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.AUTHORIZATION;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpHeaderValues.APPLICATION_JSON;
+
+/**
+ * Time for one search across hundreds of stand-in BPP peers on loopback, each its own
+ * HTTP/3 server answering with a signed on_search after a fixed, seeded delay of up to
+ * {@value #MAX_DELAY_MILLIS} ms. {@code stragglers} of them answer only well after the
+ * deadline.
+ * <p>
+ * With enough in-flight slots a search should take about as long as the slowest peer that
+ * answers inside the deadline, or the deadline itself when there are stragglers; with
+ * {@code maxInFlight = 1} it degrades to the sum of the delays, cut off by the deadline.
+ * Setup prints the slowest delay and the sum for comparison.
+ * <p>
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class SearchFanOutBenchmark {
+    private static final int MAX_DELAY_MILLIS = 20;
+    private static final long DEADLINE_MILLIS = 1000;
+    private static final long STRAGGLER_DELAY_MILLIS = 10 * DEADLINE_MILLIS;
+    private static final String SUBSCRIBER_ID = "bpp.example";
+    private static final String UNIQUE_KEY_ID = "k1";
+    private static final byte[] SEARCH = ("{\"context\":{\"action\":\"search\",\"transaction_id\":\"t-1\","
+        + "\"message_id\":\"m-1\",\"bap_id\":\"bap.example\"},\"message\":{\"intent\":{}}}")
+        .getBytes(CharsetUtil.UTF_8);
+
+    @Param({"100", "400"})
+    public int peers;
+
+    @Param({"1", "512"})
+    public int maxInFlight;
+
+    @Param({"0", "5"})
+    public int stragglers;
+
+    private EventLoopGroup peerGroup;
+    private EventLoopGroup clientGroup;
+    private EventExecutorGroup fanOutGroup;
+    private SelfSignedCertificate certificate;
+    private SignatureVerifier verifier;
+    private PeerConnectionPool pool;
+    private SearchFanOut fanOut;
+    private final List<Channel> peerChannels = new ArrayList<>();
+    private final List<InetSocketAddress> peerAddresses = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // fail with the reason rather than an UnsatisfiedLinkError deep in the first bind
+        Quic.ensureAvailability();
+        Ed25519PrivateKeyParameters signingKey = new Ed25519PrivateKeyParameters(new SecureRandom());
+        verifier = new SignatureVerifier(new StaticSubscriberKeyResolver().register(SUBSCRIBER_ID, UNIQUE_KEY_ID,
+            Base64.getEncoder().encodeToString(signingKey.generatePublicKey().getEncoded())), 4, 4096);
+
+        certificate = new SelfSignedCertificate();
+        QuicSslContext serverContext = QuicSslContextBuilder.forServer(certificate.key(), null, certificate.cert())
+            .applicationProtocols(Http3.supportedApplicationProtocols())
+            .build();
+        peerGroup = new NioEventLoopGroup(4);
+        Random random = new Random(42);
+        long slowest = 0;
+        long sum = 0;
+        for (int i = 0; i < peers; i++) {
+            long delay = i < stragglers ? STRAGGLER_DELAY_MILLIS : 1 + random.nextInt(MAX_DELAY_MILLIS);
+            if (delay < DEADLINE_MILLIS) {
+                slowest = Math.max(slowest, delay);
+            }
+            sum += delay;
+            Channel channel = startPeer(serverContext, delay, signedOnSearch(signingKey, i));
+            peerChannels.add(channel);
+            peerAddresses.add((InetSocketAddress) channel.localAddress());
+        }
+        System.out.printf("%n%d stand-in peers: slowest inside the deadline %d ms, sum of delays %d ms, deadline %d ms%n",
+            peers, slowest, sum, DEADLINE_MILLIS);
+
+        clientGroup = new NioEventLoopGroup(2);
+        fanOutGroup = new DefaultEventExecutorGroup(1);
+        // the stand-ins present a throwaway self-signed certificate
+        pool = new PeerConnectionPool(clientGroup, NioDatagramChannel.class, 60_000, null,
+            InsecureTrustManagerFactory.INSTANCE);
+        pool.start();
+        fanOut = new SearchFanOut(pool, verifier, fanOutGroup.next(), maxInFlight, 2 * peers);
+    }
+
+    private Channel startPeer(QuicSslContext sslContext, long delayMillis, Response response)
+            throws InterruptedException {
+        ChannelHandler codec = Http3.newQuicServerCodecBuilder()
+            .sslContext(sslContext)
+            .maxIdleTimeout(60, TimeUnit.SECONDS)
+            .initialMaxData(10000000)
+            .initialMaxStreamDataBidirectionalLocal(1000000)
+            .initialMaxStreamDataBidirectionalRemote(1000000)
+            .initialMaxStreamsBidirectional(1000)
+            .tokenHandler(InsecureQuicTokenHandler.INSTANCE)
+            .handler(new ChannelInitializer<QuicChannel>() {
+                @Override
+                protected void initChannel(QuicChannel connection) {
+                    connection.pipeline().addLast(new Http3ServerConnectionHandler(
+                        new ChannelInitializer<QuicStreamChannel>() {
+                            @Override
+                            protected void initChannel(QuicStreamChannel stream) {
+                                stream.pipeline().addLast(new StandInPeer(delayMillis, response));
+                            }
+                        }));
+                }
+            })
+            .build();
+        return new Bootstrap()
+            .group(peerGroup)
+            .channel(NioDatagramChannel.class)
+            .handler(codec)
+            .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+            .sync()
+            .channel();
+    }
+
+    private static Response signedOnSearch(Ed25519PrivateKeyParameters key, int peer) {
+        byte[] body = ("{\"context\":{\"action\":\"on_search\",\"transaction_id\":\"t-1\",\"message_id\":\"m-1\","
+            + "\"bap_id\":\"bap.example\",\"bpp_id\":\"bpp-" + peer + ".example\"},"
+            + "\"message\":{\"catalog\":{\"descriptor\":{\"name\":\"Stand-in " + peer + "\"}}}}")
+            .getBytes(CharsetUtil.UTF_8);
+
+        Blake2bDigest blake = new Blake2bDigest(512);
+        blake.update(body, 0, body.length);
+        byte[] digest = new byte[blake.getDigestSize()];
+        blake.doFinal(digest, 0);
+
+        long created = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        long expires = created + TimeUnit.HOURS.toSeconds(1);
+        byte[] signingString = ("(created): " + created + "\n(expires): " + expires
+            + "\ndigest: BLAKE-512=" + Base64.getEncoder().encodeToString(digest)).getBytes(CharsetUtil.UTF_8);
+        Ed25519Signer signer = new Ed25519Signer();
+        signer.init(true, key);
+        signer.update(signingString, 0, signingString.length);
+        String signature = Base64.getEncoder().encodeToString(signer.generateSignature());
+
+        return new Response(body, "Signature keyId=\"" + SUBSCRIBER_ID + "|" + UNIQUE_KEY_ID + "|ed25519\","
+            + "algorithm=\"ed25519\",created=\"" + created + "\",expires=\"" + expires + "\","
+            + "headers=\"(created) (expires) digest\",signature=\"" + signature + "\"");
+    }
+
+    @Benchmark
+    public SearchFanOut.Summary search() throws Exception {
+        return fanOut.search(peerAddresses, SEARCH, "unused by the stand-ins", 0, DEADLINE_MILLIS, response -> { })
+            .get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.out.printf("%nLast search: %s%n", search());
+        pool.close();
+        for (Channel channel : peerChannels) {
+            channel.close().syncUninterruptibly();
+        }
+        peerChannels.clear();
+        peerAddresses.clear();
+        fanOutGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        peerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        verifier.shutdown();
+        certificate.delete();
+    }
+
+    private static final class Response {
+        final byte[] body;
+        final String authorization;
+
+        Response(byte[] body, String authorization) {
+            this.body = body;
+            this.authorization = authorization;
+        }
+    }
+
+    /**
+     * Answers every request on its stream with the peer's signed on_search after the peer's delay
+     */
+    private static final class StandInPeer extends Http3RequestStreamInboundHandler {
+        private final long delayMillis;
+        private final Response response;
+
+        StandInPeer(long delayMillis, Response response) {
+            this.delayMillis = delayMillis;
+            this.response = response;
+        }
+
+        @Override
+        protected void channelRead(ChannelHandlerContext ctx, Http3HeadersFrame headersFrame, boolean isLast) {
+            if (isLast) {
+                respondLater(ctx);
+            }
+        }
+
+        @Override
+        protected void channelRead(ChannelHandlerContext ctx, Http3DataFrame dataFrame, boolean isLast) {
+            dataFrame.release();
+            if (isLast) {
+                respondLater(ctx);
+            }
+        }
+
+        private void respondLater(ChannelHandlerContext ctx) {
+            ctx.executor().schedule(() -> {
+                if (!ctx.channel().isActive()) {
+                    return;
+                }
+                Http3HeadersFrame headers = new DefaultHttp3HeadersFrame();
+                headers.headers()
+                    .status("200")
+                    .set(CONTENT_TYPE, APPLICATION_JSON)
+                    .set(AUTHORIZATION, response.authorization);
+                ctx.write(headers);
+                ctx.writeAndFlush(new DefaultHttp3DataFrame(Unpooled.wrappedBuffer(response.body)))
+                    .addListener(QuicStreamChannel.SHUTDOWN_OUTPUT);
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package prototype_5.cluster;
+
+import prototype_5.config.ServerConfig;
+import prototype_5.handler.PacketInspector;
+import prototype_5.handler.TurnHandler;
+import prototype_5.turn.TurnMessages;
+import prototype_5.turn.TurnServer;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Mac;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Aggregate relay rate of a TURN cluster of 1, 2 or 4 nodes on loopback, each with its own
+ * I/O loop, executor, public and internal socket, as separate processes would have. Each of
+ * {@value #CLIENTS} clients has an allocation with a channel bound to one peer, and sends
+ * its ChannelData to node {@code client % nodes}, as SO_REUSEPORT spreads clients over
+ * processes; packets that arrive at a node that does not own the client's allocation are
+ * forwarded over the internal socket, which is the price of the cluster.
+ * <p>
+ * Each invocation sends one {@value #PAYLOAD_BYTES}-byte packet, keeping at most
+ * {@value #WINDOW} in flight. The {@code relayed} counter is packets that reached the peer
+ * and {@code lost} packets given up on after {@value #LOSS_TIMEOUT_MILLIS} ms, both per second.
+ * Scaling with nodes needs at least a core per node.
+ * <p>
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TurnClusterBenchmark {
+    private static final String USER = "bench";
+    private static final String PASSWORD = "bench-password";
+    private static final String CLUSTER_KEY = "turn-cluster-benchmark-key";
+    private static final int CLIENTS = 64;
+    private static final int CHANNEL = 0x4000;
+    private static final int PAYLOAD_BYTES = 160;
+    private static final int WINDOW = 256;
+    private static final long LOSS_TIMEOUT_MILLIS = 20;
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    @Param({"1", "2", "4"})
+    public int nodes;
+
+    private final List<Node> cluster = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+    private final AtomicLong delivered = new AtomicLong();
+    private DatagramSocket peer;
+    private Thread sink;
+    private long sent;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        InetSocketAddress seed = null;
+        for (int i = 0; i < nodes; i++) {
+            Node node = new Node(nodes > 1 ? freePort() : 0, seed);
+            if (seed == null) {
+                seed = node.internal;
+            }
+            cluster.add(node);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!cluster.stream().allMatch(node -> node.cluster.getRing().getMembers().size() == nodes)) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Cluster did not form");
+            }
+            Thread.sleep(10);
+        }
+
+        peer = new DatagramSocket(0, LOOPBACK);
+        peer.setReceiveBufferSize(4 * 1024 * 1024);
+        InetSocketAddress peerAddress = new InetSocketAddress(LOOPBACK, peer.getLocalPort());
+        for (int i = 0; i < CLIENTS; i++) {
+            Client client = new Client(cluster.get(i % nodes).publicAddress);
+            client.allocate();
+            client.channelBind(peerAddress);
+            clients.add(client);
+        }
+        sink = new Thread(this::drain, "relay-sink");
+        sink.setDaemon(true);
+        sink.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        // nodes first, so nothing is relayed to a closed peer
+        for (Node node : cluster) {
+            node.cluster.close();
+            node.publicChannel.close().syncUninterruptibly();
+        }
+        for (Client client : clients) {
+            client.socket.close();
+        }
+        peer.close();
+        sink.join();
+        for (Node node : cluster) {
+            node.executor.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            node.ioGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    @Benchmark
+    public void relay(Counters counters) throws IOException {
+        Client client = clients.get(next);
+        next = (next + 1) % CLIENTS;
+        client.socket.send(client.channelData);
+        sent++;
+
+        long waitingSince = 0;
+        while (sent - delivered.get() - counters.lost > WINDOW) {
+            long now = System.nanoTime();
+            if (waitingSince == 0) {
+                waitingSince = now;
+            } else if (now - waitingSince > TimeUnit.MILLISECONDS.toNanos(LOSS_TIMEOUT_MILLIS)) {
+                counters.lost = sent - delivered.get();
+                break;
+            }
+            LockSupport.parkNanos(10_000);
+        }
+        counters.relayed = delivered.get() - counters.deliveredBefore;
+    }
+
+    /**
+     * Packets the peer received, and packets given up on, during one iteration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long relayed;
+        public long lost;
+        long deliveredBefore;
+
+        @Setup(Level.Iteration)
+        public void reset(TurnClusterBenchmark benchmark) {
+            relayed = 0;
+            lost = 0;
+            // counts start over, so packets lost in an earlier iteration do not hold up this one
+            deliveredBefore = benchmark.delivered.get();
+            benchmark.sent = deliveredBefore;
+        }
+    }
+
+    private void drain() {
+        DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+        while (true) {
+            try {
+                peer.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            delivered.incrementAndGet();
+        }
+    }
+
+    private static int freePort() throws SocketException {
+        try (DatagramSocket probe = new DatagramSocket(0, LOOPBACK)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * One cluster member, with the public socket's pipeline cut down to the TURN handlers
+     */
+    private static final class Node {
+        final EventLoopGroup ioGroup = new NioEventLoopGroup(1);
+        final EventExecutor executor = new DefaultEventExecutor();
+        final InetSocketAddress internal;
+        final ClusterNode cluster;
+        final Channel publicChannel;
+        final InetSocketAddress publicAddress;
+
+        /**
+         * @param port the internal port, or 0 to run alone
+         */
+        Node(int port, InetSocketAddress seed) throws InterruptedException {
+            internal = port != 0 ? new InetSocketAddress(LOOPBACK, port) : null;
+            ServerConfig config = ServerConfig.builder()
+                .turnUsers(Collections.singletonMap(USER, PASSWORD))
+                .turnRelayAddress(LOOPBACK)
+                .build();
+            cluster = new ClusterNode(executor, ioGroup, NioDatagramChannel.class, internal,
+                seed != null ? Collections.singletonList(seed) : Collections.emptyList(), 100, 2000, CLUSTER_KEY);
+            cluster.start(new TurnServer(config, executor, ioGroup, NioDatagramChannel.class, HashRing.SHARDS,
+                cluster));
+            publicChannel = new Bootstrap()
+                .group(ioGroup)
+                .channel(NioDatagramChannel.class)
+                .handler(new ChannelInitializer<DatagramChannel>() {
+                    @Override
+                    protected void initChannel(DatagramChannel ch) {
+                        ch.pipeline().addLast(new PacketInspector());
+                        ch.pipeline().addLast(new TurnHandler(cluster));
+                        ch.pipeline().addLast(new Discard());
+                    }
+                })
+                .bind(LOOPBACK, 0)
+                .sync()
+                .channel();
+            publicAddress = (InetSocketAddress) publicChannel.localAddress();
+        }
+    }
+
+    /**
+     * Drops what reaches the end of the public pipeline, where the QUIC codec would be
+     */
+    private static final class Discard extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof PacketInspector.StunPacketMarker) {
+                ((PacketInspector.StunPacketMarker) msg).content().release();
+            } else {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    /**
+     * A TURN client that allocates, binds a channel and then only sends ChannelData
+     */
+    private static final class Client {
+        final DatagramSocket socket;
+        final InetSocketAddress server;
+        final Mac mac = TurnMessages.longTermMac(USER, "beckn", PASSWORD);
+        DatagramPacket channelData;
+        String realm;
+        String nonce;
+
+        Client(InetSocketAddress server) throws IOException {
+            this.server = server;
+            socket = new DatagramSocket(0, LOOPBACK);
+            socket.setSoTimeout(200);
+        }
+
+        void allocate() throws IOException {
+            ByteBuf challenge = transact(start(TurnMessages.ALLOCATE));
+            realm = TurnMessages.readString(challenge, TurnMessages.attribute(challenge, TurnMessages.REALM));
+            nonce = TurnMessages.readString(challenge, TurnMessages.attribute(challenge, TurnMessages.NONCE));
+            ByteBuf request = start(TurnMessages.ALLOCATE);
+            TurnMessages.writeIntAttribute(request, TurnMessages.REQUESTED_TRANSPORT, 17 << 24);
+            expectSuccess(transact(sign(request)));
+        }
+
+        void channelBind(InetSocketAddress peer) throws IOException {
+            ByteBuf request = start(TurnMessages.CHANNEL_BIND);
+            TurnMessages.writeIntAttribute(request, TurnMessages.CHANNEL_NUMBER, CHANNEL << 16);
+            TurnMessages.writeXorAddress(request, TurnMessages.XOR_PEER_ADDRESS, peer);
+            expectSuccess(transact(sign(request)));
+
+            byte[] message = new byte[TurnMessages.CHANNEL_DATA_HEADER_BYTES + PAYLOAD_BYTES];
+            Unpooled.wrappedBuffer(message).clear().writeShort(CHANNEL).writeShort(PAYLOAD_BYTES);
+            channelData = new DatagramPacket(message, message.length, server);
+        }
+
+        private static ByteBuf start(int method) {
+            byte[] transactionId = new byte[12];
+            ThreadLocalRandom.current().nextBytes(transactionId);
+            return Unpooled.buffer()
+                .writeShort(method | TurnMessages.REQUEST)
+                .writeShort(0)
+                .writeInt(TurnMessages.MAGIC_COOKIE)
+                .writeBytes(transactionId);
+        }
+
+        private ByteBuf sign(ByteBuf request) {
+            TurnMessages.writeAttribute(request, TurnMessages.USERNAME, USER);
+            TurnMessages.writeAttribute(request, TurnMessages.REALM, realm);
+            TurnMessages.writeAttribute(request, TurnMessages.NONCE, nonce);
+            TurnMessages.appendIntegrity(request, mac);
+            return request;
+        }
+
+        private static void expectSuccess(ByteBuf answer) {
+            if (TurnMessages.messageClass(answer.getUnsignedShort(0)) != TurnMessages.SUCCESS) {
+                throw new IllegalStateException("TURN request refused");
+            }
+        }
+
+        private ByteBuf transact(ByteBuf request) throws IOException {
+            TurnMessages.end(request);
+            byte[] bytes = Arrays.copyOf(request.array(), request.readableBytes());
+            DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+            for (int attempt = 0; attempt < 10; attempt++) {
+                socket.send(new DatagramPacket(bytes, bytes.length, server));
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                ByteBuf answer = Unpooled.wrappedBuffer(Arrays.copyOf(packet.getData(), packet.getLength()));
+                if (TurnMessages.isStun(answer) && answer.slice(4, 16).equals(request.slice(4, 16))) {
+                    return answer;
+                }
+            }
+            throw new IOException("No answer from " + server);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package prototype_5.outbox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Durable enqueue rate of the outbox log with the server's defaults: 64 MiB segments,
+ * forced every 10 ms. Each invocation appends a batch of callbacks. A producer keeps at
+ * most {@value #OUTSTANDING} batches waiting for the disk, as a server answering many
+ * requests would; past that it waits until the oldest batch is on disk, so the rate
+ * measured is one the forces keep up with. Batches on disk are acknowledged as a delivery
+ * would, so compaction keeps the log from growing without bound.
+ * <p>
+ * The outbox is meant to take tens of thousands of callbacks a second; the floor this
+ * benchmark is held to is 20,000 durable enqueues per second from a single producer, on
+ * any disk that forces a 64 MiB segment's dirty pages within the sync interval.
+ * <p>
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentLogBenchmark {
+    private static final int BATCH = 256;
+    private static final int OUTSTANDING = 32;
+
+    @Param({"512", "4096"})
+    public int bodyBytes;
+
+    private File directory;
+    private SegmentLog log;
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("outbox-benchmark").toFile();
+        log = new SegmentLog(directory, 64 * 1024 * 1024, 10);
+        body = new byte[bodyBytes];
+        Arrays.fill(body, (byte) 'x');
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        log.close();
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void durableEnqueue(Producer producer) throws Exception {
+        producer.appendBatch(this);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    @Threads(4)
+    public void durableEnqueueFourProducers(Producer producer) throws Exception {
+        producer.appendBatch(this);
+    }
+
+    /**
+     * One producer's batches that are not yet known to be on disk
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        private final ArrayDeque<SegmentLog.Entry[]> outstanding = new ArrayDeque<>();
+
+        void appendBatch(SegmentLogBenchmark benchmark) throws Exception {
+            SegmentLog.Entry[] entries = new SegmentLog.Entry[BATCH];
+            for (int i = 0; i < BATCH; i++) {
+                entries[i] = benchmark.log.append("bap-" + (i & 7) + ".example", "/on_search",
+                    "Signature keyId=\"k\"", benchmark.body);
+            }
+            outstanding.add(entries);
+            while (outstanding.size() > OUTSTANDING) {
+                acknowledgeOldest(benchmark.log);
+            }
+        }
+
+        private void acknowledgeOldest(SegmentLog log) throws Exception {
+            SegmentLog.Entry[] entries = outstanding.remove();
+            // appended in order by this thread, so the last on disk means all of them are
+            entries[BATCH - 1].durable().get(5, TimeUnit.SECONDS);
+            for (SegmentLog.Entry entry : entries) {
+                log.acknowledge(entry);
+            }
+        }
+    }
+}
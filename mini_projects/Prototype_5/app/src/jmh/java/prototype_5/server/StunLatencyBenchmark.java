@@ -0,0 +1,256 @@
+package prototype_5.server;
+
+import prototype_5.handler.PacketInspector;
+import prototype_5.turn.TurnMessages;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * STUN Binding round trips while slow upstream work is in progress, with that work run on
+ * the I/O loop the STUN socket is read on or on the blocking group, as the server runs it.
+ * The public pipeline is the server's: the {@link PacketInspector}, a Binding responder, and
+ * last the handler for everything else, here one that spends {@value #UPSTREAM_MILLIS} ms
+ * blocked on each packet, the way an upstream call would. With {@code upstreamLoad} a
+ * second socket sends it {@value #UPSTREAM_PER_SECOND} packets a second. The responder
+ * encodes with {@link TurnMessages} rather than ice4j, so the ice4j encoding is not part
+ * of what is measured; which thread the slow work runs on is.
+ * <p>
+ * STUN clients do not wait for each other, so requests go out on a fixed schedule of
+ * {@value #REQUESTS_PER_SECOND} a second, whatever the answers do, and each round trip is
+ * timed from when its request was due. A client that only sent once answered would be
+ * held up by a stall once and miss the requests queued behind it. Each invocation is one
+ * second of requests; teardown prints the percentiles, of which p99 is the one to watch. On
+ * the blocking group it should match the unloaded run, while on the I/O loop it approaches
+ * the upstream delay.
+ * <p>
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StunLatencyBenchmark {
+    private static final long UPSTREAM_MILLIS = 20;
+    private static final int UPSTREAM_PER_SECOND = 20;
+    private static final int REQUESTS_PER_SECOND = 500;
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / REQUESTS_PER_SECOND;
+    // an answer this late counts as lost
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    @Param({"false", "true"})
+    public boolean upstreamLoad;
+
+    @Param({"ioLoop", "blockingGroup"})
+    public String upstreamOn;
+
+    private EventLoopGroup ioGroup;
+    private EventExecutorGroup blockingGroup;
+    private Channel server;
+    private InetSocketAddress serverAddress;
+    private DatagramSocket client;
+    private Thread load;
+    private volatile boolean loading;
+    private final long[] roundTrips = new long[REQUESTS_PER_SECOND];
+
+    @Setup
+    public void setUp() throws Exception {
+        ioGroup = new NioEventLoopGroup(1);
+        blockingGroup = new DefaultEventExecutorGroup(16);
+        boolean offload = "blockingGroup".equals(upstreamOn);
+        server = new Bootstrap()
+            .group(ioGroup)
+            .channel(NioDatagramChannel.class)
+            .handler(new ChannelInitializer<DatagramChannel>() {
+                @Override
+                protected void initChannel(DatagramChannel ch) {
+                    ChannelPipeline pipeline = ch.pipeline();
+                    pipeline.addLast(new PacketInspector());
+                    pipeline.addLast(new BindingResponder());
+                    if (offload) {
+                        pipeline.addLast(blockingGroup, new SlowUpstream());
+                    } else {
+                        pipeline.addLast(new SlowUpstream());
+                    }
+                }
+            })
+            .bind(LOOPBACK, 0)
+            .sync()
+            .channel();
+        serverAddress = (InetSocketAddress) server.localAddress();
+        client = new DatagramSocket(0, LOOPBACK);
+        client.setReceiveBufferSize(1024 * 1024);
+        client.setSoTimeout(100);
+        if (upstreamLoad) {
+            loading = true;
+            load = new Thread(this::sendUpstream, "upstream-load");
+            load.setDaemon(true);
+            load.start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        loading = false;
+        if (load != null) {
+            load.join();
+        }
+        client.close();
+        server.close().syncUninterruptibly();
+        // closing passes events back and forth with the blocking group, so the I/O loop stays
+        // up until they have stopped for a few upstream delays
+        ioGroup.shutdownGracefully(5 * UPSTREAM_MILLIS, 1000, TimeUnit.MILLISECONDS).syncUninterruptibly();
+        blockingGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    @Benchmark
+    public void bindingRequests() throws Exception {
+        Arrays.fill(roundTrips, Long.MAX_VALUE);
+        long start = System.nanoTime();
+        Thread receiver = new Thread(() -> receive(start), "stun-receiver");
+        receiver.start();
+
+        byte[] request = new byte[TurnMessages.HEADER_BYTES];
+        ByteBuffer header = ByteBuffer.wrap(request);
+        header.putShort((short) (TurnMessages.BINDING | TurnMessages.REQUEST)).putShort((short) 0)
+            .putInt(TurnMessages.MAGIC_COOKIE);
+        java.net.DatagramPacket packet = new java.net.DatagramPacket(request, request.length, serverAddress);
+        for (int i = 0; i < REQUESTS_PER_SECOND; i++) {
+            long due = start + i * INTERVAL_NANOS;
+            while (System.nanoTime() < due) {
+                LockSupport.parkNanos(due - System.nanoTime());
+            }
+            // the transaction id says which request an answer is for
+            header.putInt(8, i).putLong(12, ThreadLocalRandom.current().nextLong());
+            client.send(packet);
+        }
+        receiver.join();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        long[] sorted = roundTrips.clone();
+        Arrays.sort(sorted);
+        long lost = Arrays.stream(sorted).filter(roundTrip -> roundTrip == Long.MAX_VALUE).count();
+        System.out.printf("%n  STUN round trip (us): p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f  lost %d%n",
+            micros(sorted, 0.50), micros(sorted, 0.90), micros(sorted, 0.99), micros(sorted, 0.999),
+            micros(sorted, 1.0), lost);
+    }
+
+    private static double micros(long[] sorted, double quantile) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1);
+        long nanos = sorted[Math.max(0, index)];
+        return nanos == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : nanos / 1000.0;
+    }
+
+    /**
+     * Times each answer from when its request was due
+     */
+    private void receive(long start) {
+        java.net.DatagramPacket answer = new java.net.DatagramPacket(new byte[512], 512);
+        ByteBuffer header = ByteBuffer.wrap(answer.getData());
+        long deadline = start + REQUESTS_PER_SECOND * INTERVAL_NANOS + TIMEOUT_NANOS;
+        int received = 0;
+        while (received < REQUESTS_PER_SECOND && System.nanoTime() < deadline) {
+            try {
+                client.receive(answer);
+            } catch (IOException e) {
+                continue;
+            }
+            long now = System.nanoTime();
+            int i = header.getInt(8);
+            if (i >= 0 && i < REQUESTS_PER_SECOND && roundTrips[i] == Long.MAX_VALUE) {
+                roundTrips[i] = now - (start + i * INTERVAL_NANOS);
+                received++;
+            }
+        }
+    }
+
+    private void sendUpstream() {
+        // a QUIC short header byte, so the inspector passes it down the pipeline
+        byte[] packet = new byte[64];
+        packet[0] = 0x40;
+        try (DatagramSocket socket = new DatagramSocket(0, LOOPBACK)) {
+            while (loading) {
+                socket.send(new java.net.DatagramPacket(packet, packet.length, serverAddress));
+                Thread.sleep(1000 / UPSTREAM_PER_SECOND);
+            }
+        } catch (IOException | InterruptedException e) {
+            // stopped with the benchmark
+        }
+    }
+
+    /**
+     * Answers Binding requests with the sender's address, as the STUN handler does
+     */
+    private static final class BindingResponder
+            extends SimpleChannelInboundHandler<PacketInspector.StunPacketMarker> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, PacketInspector.StunPacketMarker msg) {
+            ByteBuf request = msg.content();
+            try {
+                ByteBuf out = ctx.alloc().buffer(32);
+                TurnMessages.startResponse(out, TurnMessages.BINDING | TurnMessages.SUCCESS, request);
+                TurnMessages.writeXorAddress(out, TurnMessages.XOR_MAPPED_ADDRESS, msg.sender());
+                TurnMessages.end(out);
+                ctx.writeAndFlush(new DatagramPacket(out, msg.sender()), ctx.voidPromise());
+            } finally {
+                request.release();
+            }
+        }
+    }
+
+    /**
+     * Blocks on every packet for as long as a slow upstream call would
+     */
+    private static final class SlowUpstream extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws InterruptedException {
+            try {
+                Thread.sleep(UPSTREAM_MILLIS);
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+}
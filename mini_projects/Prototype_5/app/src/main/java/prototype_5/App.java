@@ -1,7 +1,8 @@
-package java.prototype_5;
+package prototype_5;
 
-import java.prototype_5.config.ServerConfig;
-import java.prototype_5.server.CombinedServer;
+import prototype_5.config.ServerConfig;
+import prototype_5.server.CombinedServer;
+import prototype_5.server.StartupMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,6 +10,7 @@ public class App {
     private static final Logger logger = LoggerFactory.getLogger(App.class);
     
     public static void main(String[] args) {
+        StartupMetrics.mainEntered();
         try {
             ServerConfig config = ServerConfig.createDefault();
             
@@ -19,6 +21,11 @@ public class App {
                 server.shutdown();
             }));
             
+            // used by the AppCDS training run to record the classes loaded during startup
+            if (Boolean.getBoolean("server.exitAfterStartup")) {
+                server.ready().thenRunAsync(server::shutdown);
+            }
+            
             logger.info("Starting combined STUN/HTTP3 server on port {}", config.getPort());
             server.start();
         } catch (Exception e) {
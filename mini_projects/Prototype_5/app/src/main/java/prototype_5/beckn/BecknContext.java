@@ -0,0 +1,155 @@
+package prototype_5.beckn;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The identifying fields of a Beckn message {@code context}, read with a streaming
+ * parser so the rest of the payload is skipped rather than materialised. A message is
+ * identified by its action, its ids and who sent it: every BPP answers a search with an
+ * {@code on_search} carrying the search's own transaction and message id.
+ */
+public final class BecknContext {
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final String CALLBACK_PREFIX = "on_";
+
+    private final String action;
+    private final String transactionId;
+    private final String messageId;
+    private final String sender;
+    private final String senderUri;
+
+    /**
+     * @param action the Beckn action, e.g. {@code search} or {@code on_search}
+     * @param sender the subscriber that sent the message
+     */
+    public BecknContext(String action, String transactionId, String messageId, String sender) {
+        this(action, transactionId, messageId, sender, null);
+    }
+
+    /**
+     * @param senderUri the subscriber URL the sender gave, or null
+     */
+    public BecknContext(String action, String transactionId, String messageId, String sender, String senderUri) {
+        this.action = action;
+        this.transactionId = transactionId;
+        this.messageId = messageId;
+        this.sender = sender;
+        this.senderUri = senderUri;
+    }
+
+    /**
+     * Extracts the context of a Beckn request body without consuming the buffer
+     *
+     * @param body the request body
+     * @return the context, or null if the body is not JSON or has no transaction/message id
+     */
+    public static BecknContext parse(ByteBuf body) {
+        if (body == null || !body.isReadable()) {
+            return null;
+        }
+
+        try (JsonParser parser = JSON.createParser((InputStream) new ByteBufInputStream(body.duplicate()))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("context".equals(field) && value == JsonToken.START_OBJECT) {
+                    return parseContext(parser);
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return null;
+    }
+
+    private static BecknContext parseContext(JsonParser parser) throws IOException {
+        String action = null;
+        String transactionId = null;
+        String messageId = null;
+        String bapId = null;
+        String bapUri = null;
+        String bppId = null;
+        String bppUri = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value != JsonToken.VALUE_STRING) {
+                parser.skipChildren();
+            } else if ("action".equals(field)) {
+                action = parser.getText();
+            } else if ("transaction_id".equals(field)) {
+                transactionId = parser.getText();
+            } else if ("message_id".equals(field)) {
+                messageId = parser.getText();
+            } else if ("bap_id".equals(field)) {
+                bapId = parser.getText();
+            } else if ("bap_uri".equals(field)) {
+                bapUri = parser.getText();
+            } else if ("bpp_id".equals(field)) {
+                bppId = parser.getText();
+            } else if ("bpp_uri".equals(field)) {
+                bppUri = parser.getText();
+            }
+        }
+        if (transactionId == null || messageId == null) {
+            return null;
+        }
+        // callbacks come from the BPP and keep the ids of the request they answer, which every BPP shares
+        boolean callback = isCallback(action);
+        String sender = callback ? (bppId != null ? bppId : bppUri) : (bapId != null ? bapId : bapUri);
+        return new BecknContext(action, transactionId, messageId, sender, callback ? bppUri : bapUri);
+    }
+
+    private static boolean isCallback(String action) {
+        return action != null && action.startsWith(CALLBACK_PREFIX);
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return the BPP for a callback and the BAP for a request, or null if the context names neither
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * @return the sender's subscriber URL, where messages for it are posted, or null if the context has none
+     */
+    public String getSenderUri() {
+        return senderUri;
+    }
+
+    /**
+     * @return the action of the callback answering this message, or null if it is a callback itself
+     */
+    public String getCallbackAction() {
+        return action != null && !isCallback(action) ? CALLBACK_PREFIX + action : null;
+    }
+
+    @Override
+    public String toString() {
+        return action + " " + transactionId + "/" + messageId + " from " + sender;
+    }
+}
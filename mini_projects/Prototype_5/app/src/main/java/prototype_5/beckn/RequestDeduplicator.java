@@ -0,0 +1,229 @@
+package prototype_5.beckn;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Time-windowed de-duplication index for retransmitted Beckn requests, keyed by
+ * {@code transaction_id} + {@code message_id} + {@code action} + sender (see {@link BecknContext}).
+ * <p>
+ * IDs are reduced to 64-bit fingerprints and kept in a ring of fixed-size open-addressing
+ * tables ("generations"). New fingerprints go into the current generation; lookups check all
+ * of them. Every {@code window / generations} the oldest table is wiped and becomes current,
+ * so memory stays fixed at {@code generations * capacity * 8} bytes no matter how many IDs
+ * pass through. A full probe sequence overwrites its home slot, so overload degrades into
+ * forwarding some duplicates rather than growing.
+ * <p>
+ * Responses for processed requests are kept in a separate direct-mapped cache so duplicates
+ * can be answered without reaching the application. It has {@value #RESPONSE_CACHE_SLOTS}
+ * slots holding bodies of at most {@value #MAX_CACHED_RESPONSE_BYTES} bytes, so it never
+ * holds more than 16 MiB of bodies, about 17 MiB with the entries around them. Larger
+ * responses are not cached, and a duplicate whose response was evicted by a colliding one
+ * is answered as still in flight.
+ */
+public class RequestDeduplicator {
+    private static final int GENERATIONS = 4;
+    private static final int MAX_PROBES = 8;
+    static final int RESPONSE_CACHE_SLOTS = 1 << 13;
+    // the acknowledgements answered to Beckn requests are a few hundred bytes
+    static final int MAX_CACHED_RESPONSE_BYTES = 2 * 1024;
+
+    private final AtomicLongArray[] generations = new AtomicLongArray[GENERATIONS];
+    private final int mask;
+    private final long sliceNanos;
+    private final long windowMillis;
+    private final AtomicReferenceArray<CachedResponse> responses = new AtomicReferenceArray<>(RESPONSE_CACHE_SLOTS);
+    private final ReentrantLock rotateLock = new ReentrantLock();
+
+    private volatile int current;
+    private volatile long rotatedAt;
+
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+
+    /**
+     * @param window how long an ID is remembered
+     * @param unit the unit of {@code window}
+     * @param capacity fingerprint slots per generation, rounded up to a power of two
+     */
+    public RequestDeduplicator(long window, TimeUnit unit, int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+        for (int i = 0; i < GENERATIONS; i++) {
+            generations[i] = new AtomicLongArray(slots);
+        }
+        this.mask = slots - 1;
+        this.windowMillis = unit.toMillis(window);
+        this.sliceNanos = unit.toNanos(window) / GENERATIONS;
+        this.rotatedAt = System.nanoTime();
+    }
+
+    /**
+     * Computes the fingerprint of a Beckn message context; the same ids from another sender
+     * or for another action fingerprint differently
+     *
+     * @param context the message context
+     * @return a non-zero 64-bit fingerprint
+     */
+    public static long fingerprint(BecknContext context) {
+        long h = 0xcbf29ce484222325L;
+        h = fnv(h, context.getTransactionId());
+        h = (h ^ 0x1F) * 0x100000001b3L;
+        h = fnv(h, context.getMessageId());
+        h = (h ^ 0x1F) * 0x100000001b3L;
+        h = fnv(h, context.getAction());
+        h = (h ^ 0x1F) * 0x100000001b3L;
+        h = fnv(h, context.getSender());
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private static long fnv(long h, String s) {
+        if (s == null) {
+            return h;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Records a fingerprint, reporting whether it was already seen inside the window
+     *
+     * @param fingerprint the request fingerprint
+     * @return true if this is a duplicate
+     */
+    public boolean markSeen(long fingerprint) {
+        maybeRotate();
+
+        int gen = current;
+        for (int i = 1; i < GENERATIONS; i++) {
+            if (contains(generations[(gen + GENERATIONS - i) % GENERATIONS], fingerprint)) {
+                duplicates.increment();
+                return true;
+            }
+        }
+
+        AtomicLongArray table = generations[gen];
+        int home = (int) fingerprint & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (home + probe) & mask;
+            long existing = table.get(slot);
+            if (existing == fingerprint) {
+                duplicates.increment();
+                return true;
+            }
+            if (existing == 0) {
+                if (table.compareAndSet(slot, 0, fingerprint)) {
+                    return false;
+                }
+                if (table.get(slot) == fingerprint) {
+                    duplicates.increment();
+                    return true;
+                }
+            }
+        }
+        table.set(home, fingerprint);
+        return false;
+    }
+
+    private boolean contains(AtomicLongArray table, long fingerprint) {
+        int home = (int) fingerprint & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            long existing = table.get((home + probe) & mask);
+            if (existing == fingerprint) {
+                return true;
+            }
+            if (existing == 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void maybeRotate() {
+        long now = System.nanoTime();
+        long elapsed = now - rotatedAt;
+        if (elapsed < sliceNanos || !rotateLock.tryLock()) {
+            return;
+        }
+        try {
+            long slices = Math.min((now - rotatedAt) / sliceNanos, GENERATIONS);
+            for (long i = 0; i < slices; i++) {
+                // wipe the oldest generation before publishing it as current
+                int next = (current + 1) % GENERATIONS;
+                AtomicLongArray table = generations[next];
+                for (int slot = 0; slot <= mask; slot++) {
+                    table.lazySet(slot, 0);
+                }
+                current = next;
+            }
+            rotatedAt = now;
+        } finally {
+            rotateLock.unlock();
+        }
+    }
+
+    /**
+     * Remembers the response sent for a request so duplicates can be answered from cache
+     */
+    public void cacheResponse(long fingerprint, int status, byte[] body) {
+        if (body.length > MAX_CACHED_RESPONSE_BYTES) {
+            return;
+        }
+        responses.set((int) fingerprint & (RESPONSE_CACHE_SLOTS - 1),
+            new CachedResponse(fingerprint, status, body, System.currentTimeMillis()));
+    }
+
+    /**
+     * @return the cached response for a fingerprint, or null if the original is still in
+     *         flight or its response has been evicted
+     */
+    public CachedResponse cachedResponse(long fingerprint) {
+        CachedResponse response = responses.get((int) fingerprint & (RESPONSE_CACHE_SLOTS - 1));
+        if (response == null || response.fingerprint != fingerprint
+                || System.currentTimeMillis() - response.storedAt > windowMillis) {
+            return null;
+        }
+        replayed.increment();
+        return response;
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    public long getReplayedCount() {
+        return replayed.sum();
+    }
+
+    public static final class CachedResponse {
+        private final long fingerprint;
+        private final int status;
+        private final byte[] body;
+        private final long storedAt;
+
+        CachedResponse(long fingerprint, int status, byte[] body, long storedAt) {
+            this.fingerprint = fingerprint;
+            this.status = status;
+            this.body = body;
+            this.storedAt = storedAt;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package prototype_5.beckn;
+
+import prototype_5.client.PeerConnectionPool;
+import prototype_5.security.SignatureVerifier;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.incubator.codec.http3.DefaultHttp3DataFrame;
+import io.netty.incubator.codec.http3.DefaultHttp3HeadersFrame;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.http3.Http3DataFrame;
+import io.netty.incubator.codec.http3.Http3HeadersFrame;
+import io.netty.incubator.codec.http3.Http3RequestStreamInboundHandler;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.AUTHORIZATION;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpHeaderValues.APPLICATION_JSON;
+
+/**
+ * Sends one Beckn {@code search} to many BPP peers at once and hands each peer's
+ * {@code on_search} to the caller as it arrives.
+ * <p>
+ * In the peer-to-peer network there is no gateway to broadcast a search, so the BAP agent
+ * contacts every peer itself over the pooled HTTP/3 connections. A peer answers on the
+ * same request stream with its on_search as the response body, so no callback endpoint
+ * is involved.
+ * <p>
+ * All bookkeeping runs on a single executor, so neither the in-flight limit nor a search's
+ * state needs locking. The limit is shared by every search: requests beyond it wait in a
+ * bounded FIFO queue and go out as earlier ones finish. A search stops at its deadline, once
+ * its quorum of successful responses is in, or when every peer has answered; queued requests
+ * are then dropped and open streams closed, so the caller waits for the slowest responder
+ * inside the deadline rather than for the sum of all responses. A search that would overfill
+ * the queue is refused with a {@link RejectedExecutionException}, which a caller answering
+ * over HTTP turns into 503 just as it does for a saturated {@link SignatureVerifier}.
+ * <p>
+ * An on_search is only handed on once the signature in its Authorization header has been
+ * verified; a 2xx response without a valid one counts as a failed peer.
+ */
+public class SearchFanOut {
+    private static final Logger logger = LoggerFactory.getLogger(SearchFanOut.class);
+
+    private static final int MAX_RESPONSE_BYTES = 1 << 20;
+
+    private final PeerConnectionPool pool;
+    private final SignatureVerifier verifier;
+    private final EventExecutor executor;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final ArrayDeque<Dispatch> waiting = new ArrayDeque<>();
+    private int inFlight;
+
+    /**
+     * @param pool connections to peers
+     * @param verifier checks the signature on each on_search
+     * @param executor runs all fan-out bookkeeping and the result listeners; not an I/O loop
+     * @param maxInFlight how many peer requests may be outstanding across all searches
+     * @param maxQueued how many peer requests may wait for an in-flight slot
+     */
+    public SearchFanOut(PeerConnectionPool pool, SignatureVerifier verifier, EventExecutor executor,
+                        int maxInFlight, int maxQueued) {
+        this.pool = pool;
+        this.verifier = verifier;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Starts a search
+     *
+     * @param peers the peers to ask
+     * @param body the signed search request
+     * @param authorization the request's Beckn Authorization header
+     * @param quorum stop after this many successful responses, or 0 to wait for every peer
+     * @param deadlineMillis stop after this long regardless
+     * @param listener receives each verified on_search as it arrives, on the fan-out executor
+     * @return completes with a summary once the search has stopped, or exceptionally with
+     *         {@link RejectedExecutionException} if the fan-out is too busy to take it
+     */
+    public CompletableFuture<Summary> search(List<InetSocketAddress> peers, byte[] body, CharSequence authorization,
+                                             int quorum, long deadlineMillis, Consumer<PeerResponse> listener) {
+        Search search = new Search(peers.size(), body, authorization, quorum, listener);
+        try {
+            executor.execute(() -> {
+                int queued = waiting.size() + peers.size() - Math.max(0, maxInFlight - inFlight);
+                if (queued > maxQueued) {
+                    logger.warn("Search fan-out queue full, refusing a search to {} peers", peers.size());
+                    search.result.completeExceptionally(
+                        new RejectedExecutionException("Search fan-out queue full"));
+                    return;
+                }
+                search.start(deadlineMillis);
+                for (InetSocketAddress peer : peers) {
+                    waiting.add(new Dispatch(search, peer));
+                }
+                pump();
+            });
+        } catch (RejectedExecutionException e) {
+            search.result.completeExceptionally(e);
+        }
+        return search.result;
+    }
+
+    /**
+     * @return requests currently outstanding, for inspection; only accurate on the fan-out executor
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    private void pump() {
+        while (inFlight < maxInFlight && !waiting.isEmpty()) {
+            Dispatch dispatch = waiting.poll();
+            if (dispatch.search.done) {
+                continue;
+            }
+            inFlight++;
+            dispatch.send();
+        }
+    }
+
+    private void onExecutor(Runnable task) {
+        if (executor.inEventLoop()) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    public enum StopReason {
+        /** Every peer answered or failed. */
+        COMPLETE,
+        /** The requested number of successful responses arrived. */
+        QUORUM,
+        /** The deadline passed first. */
+        DEADLINE
+    }
+
+    /**
+     * One peer's on_search
+     */
+    public static class PeerResponse {
+        private final InetSocketAddress peer;
+        private final int status;
+        private final byte[] body;
+        private final long latencyNanos;
+
+        PeerResponse(InetSocketAddress peer, int status, byte[] body, long latencyNanos) {
+            this.peer = peer;
+            this.status = status;
+            this.body = body;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public InetSocketAddress getPeer() {
+            return peer;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return time from the start of the search to this response
+         */
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+    }
+
+    /**
+     * How a search ended
+     */
+    public static class Summary {
+        private final StopReason reason;
+        private final int requested;
+        private final int succeeded;
+        private final int failed;
+        private final long elapsedNanos;
+
+        Summary(StopReason reason, int requested, int succeeded, int failed, long elapsedNanos) {
+            this.reason = reason;
+            this.requested = requested;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public StopReason getReason() {
+            return reason;
+        }
+
+        public int getRequested() {
+            return requested;
+        }
+
+        /**
+         * @return peers that answered with a 2xx status
+         */
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * @return peers that answered with another status, or could not be reached
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return peers still outstanding when the search stopped
+         */
+        public int getUnanswered() {
+            return requested - succeeded - failed;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s after %d ms: %d/%d succeeded, %d failed, %d unanswered",
+                reason, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), succeeded, requested, failed, getUnanswered());
+        }
+    }
+
+    /**
+     * State of one search; only touched on the fan-out executor
+     */
+    private final class Search {
+        final int requested;
+        final byte[] body;
+        final CharSequence authorization;
+        final int quorum;
+        final Consumer<PeerResponse> listener;
+        final CompletableFuture<Summary> result = new CompletableFuture<>();
+        final List<QuicStreamChannel> streams = new ArrayList<>();
+        long startedAt;
+        ScheduledFuture<?> deadline;
+        int succeeded;
+        int failed;
+        boolean done;
+
+        Search(int requested, byte[] body, CharSequence authorization, int quorum, Consumer<PeerResponse> listener) {
+            this.requested = requested;
+            this.body = body;
+            this.authorization = authorization;
+            this.quorum = quorum;
+            this.listener = listener;
+        }
+
+        void start(long deadlineMillis) {
+            startedAt = System.nanoTime();
+            deadline = executor.schedule(() -> stop(StopReason.DEADLINE), deadlineMillis, TimeUnit.MILLISECONDS);
+            if (requested == 0) {
+                stop(StopReason.COMPLETE);
+            }
+        }
+
+        void onResponse(InetSocketAddress peer, int status, byte[] responseBody) {
+            if (done) {
+                return;
+            }
+            if (status >= 200 && status < 300) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+            try {
+                listener.accept(new PeerResponse(peer, status, responseBody, System.nanoTime() - startedAt));
+            } catch (RuntimeException e) {
+                logger.warn("on_search listener failed for {}", peer, e);
+            }
+            checkStop();
+        }
+
+        void onFailure(InetSocketAddress peer, Throwable cause) {
+            if (done) {
+                return;
+            }
+            logger.debug("Search to {} failed: {}", peer, cause.toString());
+            failed++;
+            checkStop();
+        }
+
+        private void checkStop() {
+            if (quorum > 0 && succeeded >= quorum) {
+                stop(StopReason.QUORUM);
+            } else if (succeeded + failed >= requested) {
+                stop(StopReason.COMPLETE);
+            }
+        }
+
+        void stop(StopReason reason) {
+            if (done) {
+                return;
+            }
+            done = true;
+            deadline.cancel(false);
+            for (QuicStreamChannel stream : streams) {
+                stream.close();
+            }
+            streams.clear();
+            result.complete(new Summary(reason, requested, succeeded, failed, System.nanoTime() - startedAt));
+        }
+    }
+
+    /**
+     * One request to one peer. Holds an in-flight slot from {@link #send()} until
+     * {@link #release()}, which runs exactly once whichever way the request ends.
+     */
+    private final class Dispatch {
+        final Search search;
+        final InetSocketAddress peer;
+        boolean released;
+
+        Dispatch(Search search, InetSocketAddress peer) {
+            this.search = search;
+            this.peer = peer;
+        }
+
+        void send() {
+            pool.connect(peer).addListener(future -> onExecutor(() -> onConnected(future)));
+        }
+
+        private void onConnected(Future<?> future) {
+            if (search.done) {
+                release();
+                return;
+            }
+            if (!future.isSuccess()) {
+                fail(future.cause());
+                return;
+            }
+            QuicChannel connection = (QuicChannel) future.getNow();
+            Http3.newRequestStream(connection, new ResponseCollector(this))
+                .addListener(stream -> onExecutor(() -> onStream(stream)));
+        }
+
+        private void onStream(Future<?> future) {
+            if (!future.isSuccess()) {
+                fail(future.cause());
+                return;
+            }
+            QuicStreamChannel stream = (QuicStreamChannel) future.getNow();
+            if (search.done) {
+                stream.close();
+                return;
+            }
+            search.streams.add(stream);
+
+            Http3HeadersFrame headers = new DefaultHttp3HeadersFrame();
+            headers.headers()
+                .method("POST")
+                .path("/search")
+                .scheme("https")
+                .authority(peer.getHostString() + ":" + peer.getPort())
+                .set(CONTENT_TYPE, APPLICATION_JSON)
+                .set(AUTHORIZATION, search.authorization);
+            stream.write(headers);
+            stream.writeAndFlush(new DefaultHttp3DataFrame(Unpooled.wrappedBuffer(search.body)))
+                .addListener(QuicStreamChannel.SHUTDOWN_OUTPUT);
+        }
+
+        void complete(int status, CharSequence signature, byte[] body) {
+            if (search.done || status < 200 || status >= 300) {
+                deliver(status, body);
+                return;
+            }
+            // the slot stays held until the signature is checked, so verification is bounded too
+            verifier.verify(signature, Unpooled.wrappedBuffer(body))
+                .whenComplete((ignored, cause) -> onExecutor(() -> {
+                    if (cause != null) {
+                        logger.debug("Dropping on_search from {}: {}", peer, cause.getMessage());
+                        fail(cause);
+                    } else {
+                        deliver(status, body);
+                    }
+                }));
+        }
+
+        private void deliver(int status, byte[] body) {
+            if (release()) {
+                search.onResponse(peer, status, body);
+            }
+        }
+
+        void fail(Throwable cause) {
+            if (release()) {
+                search.onFailure(peer, cause);
+            }
+        }
+
+        private boolean release() {
+            if (released) {
+                return false;
+            }
+            released = true;
+            inFlight--;
+            pump();
+            return true;
+        }
+    }
+
+    /**
+     * Collects a peer's response on its request stream and reports it to the dispatch
+     */
+    private final class ResponseCollector extends Http3RequestStreamInboundHandler {
+        private final Dispatch dispatch;
+        private int status;
+        private CharSequence signature;
+        private ByteBuf body;
+        private boolean finished;
+
+        ResponseCollector(Dispatch dispatch) {
+            this.dispatch = dispatch;
+        }
+
+        @Override
+        protected void channelRead(ChannelHandlerContext ctx, Http3HeadersFrame headersFrame, boolean isLast) {
+            if (finished) {
+                return;
+            }
+            CharSequence value = headersFrame.headers().status();
+            if (value != null) {
+                status = Integer.parseInt(value.toString());
+            }
+            signature = headersFrame.headers().get(AUTHORIZATION);
+            if (isLast) {
+                finish(ctx);
+            }
+        }
+
+        @Override
+        protected void channelRead(ChannelHandlerContext ctx, Http3DataFrame dataFrame, boolean isLast) {
+            if (finished) {
+                dataFrame.release();
+                return;
+            }
+            try {
+                ByteBuf content = dataFrame.content();
+                if (body == null) {
+                    body = ctx.alloc().buffer(content.readableBytes());
+                }
+                if (body.readableBytes() + content.readableBytes() > MAX_RESPONSE_BYTES) {
+                    abort(ctx, new IOException("on_search larger than " + MAX_RESPONSE_BYTES + " bytes"));
+                    return;
+                }
+                body.writeBytes(content);
+            } finally {
+                dataFrame.release();
+            }
+            if (isLast) {
+                finish(ctx);
+            }
+        }
+
+        private void finish(ChannelHandlerContext ctx) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            byte[] bytes = new byte[body != null ? body.readableBytes() : 0];
+            if (body != null) {
+                body.readBytes(bytes);
+            }
+            releaseBody();
+            int responseStatus = status;
+            CharSequence responseSignature = signature;
+            onExecutor(() -> dispatch.complete(responseStatus, responseSignature, bytes));
+            ctx.close();
+        }
+
+        private void abort(ChannelHandlerContext ctx, Throwable cause) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            releaseBody();
+            onExecutor(() -> dispatch.fail(cause));
+            ctx.close();
+        }
+
+        private void releaseBody() {
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            abort(ctx, new ClosedChannelException());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            abort(ctx, cause);
+        }
+    }
+}
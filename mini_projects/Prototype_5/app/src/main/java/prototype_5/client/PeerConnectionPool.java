@@ -0,0 +1,159 @@
+package prototype_5.client;
+
+import prototype_5.handler.PacketRecorder;
+import prototype_5.server.FlightRecorder;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.http3.Http3ClientConnectionHandler;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.TrustManagerFactory;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outgoing HTTP/3 connections to other peers, one per peer address, reused for as long
+ * as they stay open. All connections share one client UDP socket; the server socket can
+ * not carry them because a Netty datagram channel runs either a server or a client QUIC
+ * codec.
+ * <p>
+ * A peer's certificate must chain to a trusted certificate: by default the JDK's trust
+ * store, which for self-signed peer identities is pointed at a store holding them. What a
+ * peer says is additionally authenticated by the Beckn signature on its messages.
+ */
+public class PeerConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(PeerConnectionPool.class);
+
+    private final EventLoopGroup group;
+    private final Class<? extends DatagramChannel> channelClass;
+    private final long maxIdleTimeoutMillis;
+    private final FlightRecorder recorder;
+    private final TrustManagerFactory trustManagerFactory;
+    private final Map<InetSocketAddress, Future<QuicChannel>> connections = new ConcurrentHashMap<>();
+    private Channel channel;
+
+    /**
+     * @param group the event loops the client socket runs on
+     * @param channelClass the datagram channel type matching {@code group}
+     * @param maxIdleTimeoutMillis idle timeout advertised on outgoing connections
+     * @param recorder records the client socket's packets, or null
+     * @param trustManagerFactory checks peer certificates, or null for the JDK's default trust store
+     */
+    public PeerConnectionPool(EventLoopGroup group, Class<? extends DatagramChannel> channelClass,
+                              long maxIdleTimeoutMillis, FlightRecorder recorder,
+                              TrustManagerFactory trustManagerFactory) {
+        this.group = group;
+        this.channelClass = channelClass;
+        this.maxIdleTimeoutMillis = maxIdleTimeoutMillis;
+        this.recorder = recorder;
+        this.trustManagerFactory = trustManagerFactory;
+    }
+
+    public void start() throws InterruptedException, GeneralSecurityException {
+        QuicSslContext sslContext = QuicSslContextBuilder.forClient()
+            .trustManager(trustManagerFactory != null ? trustManagerFactory : defaultTrustManagerFactory())
+            .applicationProtocols(Http3.supportedApplicationProtocols())
+            .build();
+        ChannelHandler codec = Http3.newQuicClientCodecBuilder()
+            .sslContext(sslContext)
+            .maxIdleTimeout(maxIdleTimeoutMillis, TimeUnit.MILLISECONDS)
+            .initialMaxData(10000000)
+            .initialMaxStreamDataBidirectionalLocal(1000000)
+            .build();
+
+        channel = new Bootstrap()
+            .group(group)
+            .channel(channelClass)
+            .handler(new ChannelInitializer<DatagramChannel>() {
+                @Override
+                protected void initChannel(DatagramChannel ch) {
+                    if (recorder != null) {
+                        ch.pipeline().addLast(new PacketRecorder(recorder));
+                    }
+                    ch.pipeline().addLast(codec);
+                }
+            })
+            .bind(0)
+            .sync()
+            .channel();
+        logger.info("Peer connection pool using {}", channel.localAddress());
+    }
+
+    private static TrustManagerFactory defaultTrustManagerFactory() throws GeneralSecurityException {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init((KeyStore) null);
+        return factory;
+    }
+
+    /**
+     * Returns the open connection to a peer, connecting if there is none
+     *
+     * @param peer the peer's HTTP/3 address
+     * @return a future for the connection; concurrent callers share the same attempt
+     */
+    public Future<QuicChannel> connect(InetSocketAddress peer) {
+        Promise<QuicChannel> promise = channel.eventLoop().newPromise();
+        Future<QuicChannel> connection = connections.compute(peer,
+            (address, existing) -> isUsable(existing) ? existing : promise);
+        if (connection == promise) {
+            QuicChannel.newBootstrap(channel)
+                .handler(new Http3ClientConnectionHandler())
+                .remoteAddress(peer)
+                .connect()
+                .addListener(future -> onConnected(peer, promise, future));
+        }
+        return connection;
+    }
+
+    private void onConnected(InetSocketAddress peer, Promise<QuicChannel> promise, Future<?> future) {
+        if (!future.isSuccess()) {
+            logger.debug("Connecting to peer {} failed: {}", peer, future.cause().getMessage());
+            connections.remove(peer, promise);
+            promise.tryFailure(future.cause());
+            return;
+        }
+        QuicChannel connection = (QuicChannel) future.getNow();
+        connection.closeFuture().addListener(closed -> connections.remove(peer, promise));
+        promise.trySuccess(connection);
+    }
+
+    private static boolean isUsable(Future<QuicChannel> connection) {
+        return connection != null && (!connection.isDone()
+            || connection.isSuccess() && connection.getNow().isActive());
+    }
+
+    /**
+     * @return the number of connections open or being opened
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    public void close() {
+        for (Future<QuicChannel> connection : connections.values()) {
+            if (connection.isSuccess()) {
+                connection.getNow().close();
+            }
+        }
+        connections.clear();
+        if (channel != null) {
+            channel.close().syncUninterruptibly();
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package prototype_5.cluster;
+
+import prototype_5.turn.TurnMessages;
+import prototype_5.turn.TurnServer;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This process's place in a cluster of TURN servers that share the relaying load. Each
+ * client's allocation lives on the node that owns the client's shard in the
+ * {@link HashRing}; a packet from a client that arrives at any other node is forwarded to
+ * the owner over an internal UDP socket, and the owner's answers go back out through the
+ * node the client's packets arrive at. Clients can therefore be spread across nodes by
+ * anything in front of them, such as SO_REUSEPORT on one host or a load balancer.
+ * <p>
+ * Nodes find each other from a list of seeds and gossip the members they hear from in
+ * their heartbeats. A node that has not been heard from within the failure timeout, or
+ * that says it is leaving, is taken off the ring. When the ring changes, each node hands
+ * the allocations of shards it lost to their new owners a batch per heartbeat, and until
+ * an allocation arrives its new owner passes the client's packets back to the previous
+ * one. A node that leaves cleanly hands everything off first; the allocations of a node
+ * that fails are lost, and their clients get 437 on the next refresh and allocate again.
+ * <p>
+ * With no cluster port the node is alone and the ring always points at itself. Everything
+ * runs on one executor from the blocking group, shared with the {@link TurnServer}, so
+ * nothing is locked; packets from the public and internal sockets are handed to it from
+ * the I/O loops. Only the set of known clients is read from the public socket's loop.
+ * <p>
+ * Frames on the internal socket start with a type byte:
+ * <pre>
+ *   HEARTBEAT  count, then that many live members
+ *   FORWARD    redirected flag, client, ingress node, client packet
+ *   DELIVER    client, packet for the client
+ *   HANDOFF    allocation state
+ *   LEAVE      nothing
+ * </pre>
+ * Every frame ends with a sequence number and an HMAC-SHA256 under the shared cluster
+ * key, taken over the sender's internal address and the rest of the frame. Frames that
+ * fail it are dropped before anything else is read, so a stranger can neither join the
+ * ring nor have packets relayed; a captured frame only verifies when it comes from the
+ * member that sent it. Sequence numbers are the sender's wall clock in microseconds,
+ * bumped past the last one used, so they keep rising across restarts. A receiver
+ * accepts each sequence number from a sender once, within the last
+ * {@value #REPLAY_WINDOW} it has seen, and none stamped more than
+ * {@value #MAX_FRAME_AGE_MILLIS} ms ago, so a captured frame cannot be replayed to
+ * rejoin a node that has left or to repeat a handoff. Members' clocks must agree to
+ * within that age. The internal socket still belongs on a private address.
+ */
+public class ClusterNode implements TurnServer.Egress {
+    private static final Logger logger = LoggerFactory.getLogger(ClusterNode.class);
+
+    private static final int HEARTBEAT = 1;
+    private static final int FORWARD = 2;
+    private static final int DELIVER = 3;
+    private static final int HANDOFF = 4;
+    private static final int LEAVE = 5;
+    private static final int MAC_LENGTH = 32;
+    private static final int SEQUENCE_LENGTH = 8;
+    private static final int TRAILER_LENGTH = SEQUENCE_LENGTH + MAC_LENGTH;
+    // frames UDP may reorder on the way without being refused
+    private static final int REPLAY_WINDOW = 64;
+    private static final long MAX_FRAME_AGE_MILLIS = 30_000;
+
+    private static final int HANDOFF_BATCH = 1024;
+    // clients refresh permissions every five minutes, so this outlives any active one
+    private static final long CLIENT_IDLE_MILLIS = 15 * 60_000;
+    // members only gossiped about are forgotten after this many failure timeouts
+    private static final int FORGET_AFTER_FAILURES = 10;
+
+    private final EventExecutor executor;
+    private final EventLoopGroup ioGroup;
+    private final Class<? extends DatagramChannel> channelClass;
+    private final InetSocketAddress self;
+    private final Set<InetSocketAddress> seeds;
+    private final long heartbeatMillis;
+    private final long failureMillis;
+    private final boolean clustered;
+    private final Mac mac;
+    /** Members heard from directly, with when; these and this node make up the ring. */
+    private final Map<InetSocketAddress, Long> heard = new HashMap<>();
+    /** Members other nodes have heard from, with when they last said so. */
+    private final Map<InetSocketAddress, Long> gossiped = new HashMap<>();
+    /** Clients that have sent TURN messages to this node's public socket, with when. */
+    private final Map<InetSocketAddress, Long> clients = new ConcurrentHashMap<>();
+    /** Sequence numbers recently accepted from each sender. */
+    private final Map<InetSocketAddress, ReplayWindow> windows = new HashMap<>();
+    private long sequence;
+    private volatile HashRing ring;
+    private HashRing previous;
+    private TurnServer turn;
+    private Channel channel;
+    private volatile ChannelHandlerContext publicContext;
+    private boolean publicFlushScheduled;
+    private ScheduledFuture<?> tick;
+    private boolean leaving;
+
+    private final Runnable flushPublic = () -> {
+        publicFlushScheduled = false;
+        publicContext.flush();
+    };
+
+    /**
+     * @param executor runs everything but socket I/O; not an I/O loop
+     * @param ioGroup the event loops the internal socket is registered on
+     * @param channelClass the datagram channel type matching {@code ioGroup}
+     * @param self this node's internal address, or null to run alone
+     * @param seeds internal addresses of nodes to contact first
+     * @param heartbeatMillis how often members are told this node is alive
+     * @param failureMillis how long a member may stay silent before it is taken off the ring
+     * @param key the secret shared by every member; required with {@code self}
+     */
+    public ClusterNode(EventExecutor executor, EventLoopGroup ioGroup, Class<? extends DatagramChannel> channelClass,
+                       InetSocketAddress self, List<InetSocketAddress> seeds, long heartbeatMillis,
+                       long failureMillis, String key) {
+        this.executor = executor;
+        this.ioGroup = ioGroup;
+        this.channelClass = channelClass;
+        this.clustered = self != null;
+        this.self = clustered ? self : new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        this.seeds = new HashSet<>(seeds);
+        this.seeds.remove(this.self);
+        this.heartbeatMillis = heartbeatMillis;
+        this.failureMillis = failureMillis;
+        this.ring = new HashRing(Collections.singleton(this.self));
+        if (!clustered) {
+            this.mac = null;
+        } else if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("A cluster node needs a cluster key");
+        } else {
+            this.mac = hmac(key);
+        }
+    }
+
+    private static Mac hmac(String key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    /**
+     * Binds the internal socket, if clustered, and starts heartbeats
+     *
+     * @param turn holds the allocations this node owns
+     */
+    public void start(TurnServer turn) throws InterruptedException {
+        this.turn = turn;
+        if (clustered) {
+            channel = new Bootstrap()
+                .group(ioGroup)
+                .channel(channelClass)
+                .handler(new ChannelInitializer<DatagramChannel>() {
+                    @Override
+                    protected void initChannel(DatagramChannel ch) {
+                        ch.pipeline().addLast(new FlushConsolidationHandler(64, true));
+                        ch.pipeline().addLast(executor, new FrameHandler());
+                    }
+                })
+                .bind(self)
+                .sync()
+                .channel();
+            logger.info("Cluster node {} starting with seeds {}", self, seeds);
+        }
+        turn.start();
+        tick = executor.scheduleAtFixedRate(this::tick, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param publicContext where on the pipeline of the socket clients talk to answers are
+     * written from, below the QUIC codec
+     */
+    public void setPublicContext(ChannelHandlerContext publicContext) {
+        this.publicContext = publicContext;
+    }
+
+    /**
+     * @return true if the address has sent TURN messages here recently, which tells its
+     * ChannelData apart from QUIC
+     */
+    public boolean isClient(InetSocketAddress address) {
+        return clients.containsKey(address);
+    }
+
+    /**
+     * Routes a TURN packet from a client to the owner of its allocation, on the node's
+     * executor; may be called from any thread
+     *
+     * @param stun true for a STUN-framed message, which marks the sender as a TURN client
+     * @param packet released once handled
+     */
+    public void fromClient(InetSocketAddress client, ByteBuf packet, boolean stun) {
+        if (stun) {
+            clients.put(client, now());
+        }
+        if (executor.inEventLoop()) {
+            route(client, packet);
+            return;
+        }
+        try {
+            executor.execute(() -> route(client, packet));
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            packet.release();
+        }
+    }
+
+    private void route(InetSocketAddress client, ByteBuf packet) {
+        int shard = HashRing.shard(client);
+        InetSocketAddress owner = ring.owner(shard);
+        if (owner.equals(self)) {
+            handleLocally(client, shard, null, packet, true);
+        } else {
+            forward(owner, false, client, self, packet);
+        }
+    }
+
+    @Override
+    public void toClient(InetSocketAddress client, InetSocketAddress ingress, ByteBuf packet) {
+        if (ingress == null || ingress.equals(self) || !heard.containsKey(ingress)) {
+            // from here if the ingress node is gone; with a shared port it makes no difference
+            writeToClient(client, packet);
+            return;
+        }
+        ByteBuf frame = channel.alloc().directBuffer(1 + 19 + packet.readableBytes() + TRAILER_LENGTH);
+        frame.writeByte(DELIVER);
+        TurnMessages.writeAddress(frame, client);
+        frame.writeBytes(packet);
+        packet.release();
+        send(ingress, frame);
+    }
+
+    /**
+     * @return the current ring, for inspection
+     */
+    public HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Hands every allocation to the remaining members and tells them this node is leaving.
+     * The public socket keeps forwarding to the new owners until it is closed.
+     */
+    public void leave() {
+        executor.submit(() -> {
+            if (leaving || !clustered || heard.isEmpty()) {
+                return;
+            }
+            leaving = true;
+            previous = ring;
+            ring = new HashRing(heard.keySet());
+            int count = turn.handOff(shard -> false, Integer.MAX_VALUE, self, this::sendHandOff);
+            for (InetSocketAddress member : heard.keySet()) {
+                send(member, channel.alloc().buffer(1 + TRAILER_LENGTH).writeByte(LEAVE));
+            }
+            logger.info("Left the cluster, handing off {} allocation(s)", count);
+        }).syncUninterruptibly();
+    }
+
+    public void close() {
+        executor.submit(() -> {
+            if (tick != null) {
+                tick.cancel(false);
+            }
+        }).syncUninterruptibly();
+        turn.close();
+        if (channel != null) {
+            channel.close().syncUninterruptibly();
+        }
+    }
+
+    /**
+     * Hands a packet to the local TURN server, unless this node has just taken over the
+     * client's shard and its allocation is still with the previous owner
+     *
+     * @param mayRedirect false for packets already redirected once, so they cannot loop
+     */
+    private void handleLocally(InetSocketAddress client, int shard, InetSocketAddress ingress, ByteBuf packet,
+                               boolean mayRedirect) {
+        if (mayRedirect && previous != null && !turn.holds(client) && !TurnMessages.isAllocateRequest(packet)) {
+            InetSocketAddress former = previous.owner(shard);
+            if (!former.equals(self) && heard.containsKey(former)) {
+                forward(former, true, client, ingress != null ? ingress : self, packet);
+                return;
+            }
+        }
+        turn.handle(client, shard, ingress, packet);
+    }
+
+    private void forward(InetSocketAddress owner, boolean redirected, InetSocketAddress client,
+                         InetSocketAddress ingress, ByteBuf packet) {
+        ByteBuf frame = channel.alloc().directBuffer(2 + 19 + 19 + packet.readableBytes() + TRAILER_LENGTH);
+        frame.writeByte(FORWARD);
+        frame.writeBoolean(redirected);
+        TurnMessages.writeAddress(frame, client);
+        TurnMessages.writeAddress(frame, ingress);
+        frame.writeBytes(packet);
+        packet.release();
+        send(owner, frame);
+    }
+
+    private void sendHandOff(ByteBuf state, int shard) {
+        ByteBuf frame = channel.alloc().buffer(1 + state.readableBytes() + TRAILER_LENGTH);
+        frame.writeByte(HANDOFF);
+        frame.writeBytes(state);
+        state.release();
+        send(ring.owner(shard), frame);
+    }
+
+    private void send(InetSocketAddress member, ByteBuf frame) {
+        sign(frame);
+        write(member, frame);
+    }
+
+    private void write(InetSocketAddress member, ByteBuf frame) {
+        channel.writeAndFlush(new DatagramPacket(frame, member), channel.voidPromise());
+    }
+
+    /**
+     * Appends the frame's sequence number and MAC, as sent from this node
+     */
+    private void sign(ByteBuf frame) {
+        sequence = Math.max(sequence + 1, TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+        frame.writeLong(sequence);
+        frame.writeBytes(authenticate(self, frame, frame.readerIndex(), frame.readableBytes()));
+    }
+
+    /**
+     * Checks the sequence number and MAC a frame ends with and cuts them off
+     *
+     * @return false if the frame is not from a member holding the cluster key, or is a
+     * replay of one already accepted or too old to tell
+     */
+    private boolean verify(InetSocketAddress from, ByteBuf frame) {
+        int length = frame.readableBytes() - TRAILER_LENGTH;
+        if (length < 1) {
+            return false;
+        }
+        byte[] expected = authenticate(from, frame, frame.readerIndex(), length + SEQUENCE_LENGTH);
+        byte[] actual = new byte[MAC_LENGTH];
+        frame.getBytes(frame.readerIndex() + length + SEQUENCE_LENGTH, actual);
+        long sent = frame.getLong(frame.readerIndex() + length);
+        frame.writerIndex(frame.readerIndex() + length);
+        if (!MessageDigest.isEqual(expected, actual) || sent < oldestAcceptedSequence()) {
+            return false;
+        }
+        return windows.computeIfAbsent(from, member -> new ReplayWindow()).accept(sent);
+    }
+
+    private static long oldestAcceptedSequence() {
+        return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - MAX_FRAME_AGE_MILLIS);
+    }
+
+    private byte[] authenticate(InetSocketAddress sender, ByteBuf frame, int index, int length) {
+        mac.update(sender.getAddress().getAddress());
+        mac.update((byte) (sender.getPort() >>> 8));
+        mac.update((byte) sender.getPort());
+        mac.update(frame.nioBuffer(index, length));
+        return mac.doFinal();
+    }
+
+    private void writeToClient(InetSocketAddress client, ByteBuf packet) {
+        if (publicContext == null) {
+            // a member's answer can arrive before the public socket is bound
+            packet.release();
+            return;
+        }
+        // queued onto the public socket's loop in order, so the flush below follows the writes
+        publicContext.write(new DatagramPacket(packet, client), publicContext.voidPromise());
+        // flush once after the current burst of work, so epoll can send the lot with sendmmsg
+        if (!publicFlushScheduled) {
+            publicFlushScheduled = true;
+            executor.execute(flushPublic);
+        }
+    }
+
+    private void tick() {
+        long now = now();
+        clients.values().removeIf(seen -> now - seen > CLIENT_IDLE_MILLIS);
+        if (!clustered) {
+            return;
+        }
+
+        boolean changed = false;
+        for (Iterator<Map.Entry<InetSocketAddress, Long>> i = heard.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<InetSocketAddress, Long> member = i.next();
+            if (now - member.getValue() > failureMillis) {
+                logger.warn("Cluster node {} has not been heard from for {} ms, removing it", member.getKey(),
+                    now - member.getValue());
+                i.remove();
+                changed = true;
+            }
+        }
+        gossiped.values().removeIf(said -> now - said > FORGET_AFTER_FAILURES * failureMillis);
+        // anything older than a window's newest is refused by age anyway
+        long oldest = oldestAcceptedSequence();
+        windows.values().removeIf(window -> window.highest < oldest);
+        if (changed) {
+            updateRing();
+        }
+        if (leaving) {
+            return;
+        }
+
+        heartbeat();
+        int count = turn.handOff(shard -> ring.owner(shard).equals(self), HANDOFF_BATCH, self, this::sendHandOff);
+        if (count > 0) {
+            logger.debug("Handed off {} allocation(s)", count);
+        }
+    }
+
+    private void heartbeat() {
+        ByteBuf beat = channel.alloc().buffer(3 + heard.size() * 19 + TRAILER_LENGTH);
+        beat.writeByte(HEARTBEAT);
+        beat.writeShort(heard.size());
+        for (InetSocketAddress member : heard.keySet()) {
+            TurnMessages.writeAddress(beat, member);
+        }
+        sign(beat);
+        Set<InetSocketAddress> targets = new HashSet<>(seeds);
+        targets.addAll(gossiped.keySet());
+        targets.addAll(heard.keySet());
+        for (InetSocketAddress target : targets) {
+            write(target, beat.retainedDuplicate());
+        }
+        beat.release();
+    }
+
+    private void onHeartbeat(InetSocketAddress from, ByteBuf in) {
+        long now = now();
+        boolean joined = heard.put(from, now) == null;
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            InetSocketAddress member = TurnMessages.readAddress(in);
+            if (member != null && !member.equals(self)) {
+                gossiped.put(member, now);
+            }
+        }
+        if (joined) {
+            logger.info("Cluster node {} joined", from);
+            updateRing();
+        }
+    }
+
+    private void onLeave(InetSocketAddress from) {
+        if (heard.remove(from) != null) {
+            gossiped.remove(from);
+            logger.info("Cluster node {} left", from);
+            updateRing();
+        }
+    }
+
+    private void updateRing() {
+        if (leaving) {
+            return;
+        }
+        List<InetSocketAddress> members = new ArrayList<>(heard.keySet());
+        members.add(self);
+        HashRing next = new HashRing(members);
+        if (!next.getMembers().equals(ring.getMembers())) {
+            previous = ring;
+            ring = next;
+            logger.info("Cluster has {} node(s), {} of {} shards owned here", members.size(),
+                ring.shardsOwnedBy(self), HashRing.SHARDS);
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * The highest sequence number accepted from one sender and which of the
+     * {@value #REPLAY_WINDOW} below it have been
+     */
+    private static final class ReplayWindow {
+        long highest;
+        long accepted;
+
+        boolean accept(long sequence) {
+            if (sequence > highest) {
+                long shift = sequence - highest;
+                accepted = shift >= REPLAY_WINDOW ? 1 : accepted << shift | 1;
+                highest = sequence;
+                return true;
+            }
+            long age = highest - sequence;
+            if (age >= REPLAY_WINDOW || (accepted & 1L << age) != 0) {
+                return false;
+            }
+            accepted |= 1L << age;
+            return true;
+        }
+    }
+
+    /**
+     * Reads frames from other members
+     */
+    private final class FrameHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            InetSocketAddress from = packet.sender();
+            ByteBuf in = packet.content();
+            if (!verify(from, in)) {
+                logger.debug("Dropping unauthenticated or replayed cluster frame from {}", from);
+                return;
+            }
+            int type = in.readUnsignedByte();
+            if (type != HEARTBEAT && !heard.containsKey(from)) {
+                // heartbeats come first; anything else from a stranger is ignored
+                logger.debug("Ignoring cluster frame {} from unknown node {}", type, from);
+                return;
+            }
+            try {
+                switch (type) {
+                    case HEARTBEAT:
+                        onHeartbeat(from, in);
+                        break;
+                    case FORWARD: {
+                        boolean redirected = in.readBoolean();
+                        InetSocketAddress client = TurnMessages.readAddress(in);
+                        InetSocketAddress ingress = TurnMessages.readAddress(in);
+                        if (client == null || ingress == null) {
+                            throw new IllegalArgumentException("missing address");
+                        }
+                        handleLocally(client, HashRing.shard(client), ingress.equals(self) ? null : ingress,
+                            in.retain(), !redirected);
+                        break;
+                    }
+                    case DELIVER: {
+                        InetSocketAddress client = TurnMessages.readAddress(in);
+                        if (client == null) {
+                            throw new IllegalArgumentException("missing address");
+                        }
+                        writeToClient(client, in.retain());
+                        break;
+                    }
+                    case HANDOFF:
+                        turn.adopt(in);
+                        break;
+                    case LEAVE:
+                        onLeave(from);
+                        break;
+                    default:
+                        logger.debug("Ignoring cluster frame {} from {}", type, from);
+                }
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                logger.warn("Malformed cluster frame {} from {}: {}", type, from, e.toString());
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.warn("Cluster socket error: {}", cause.toString());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package prototype_5.cluster;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Assigns the {@link #SHARDS} shards of TURN clients to cluster nodes by consistent
+ * hashing. Every node is placed on a 64-bit ring at {@link #VIRTUAL_NODES} hashed points,
+ * the shards sit at evenly spaced points, and a shard belongs to the first node point at
+ * or after its own. When a node joins or leaves only the shards next to its points change
+ * hands. Spacing the shards evenly rather than hashing them keeps the share of each node
+ * within about a fifth of even at eight nodes.
+ * <p>
+ * Clients are hashed to a fixed number of shards first, rather than straight onto the
+ * ring, so the relayed ports can be divided up the same way (see
+ * {@link prototype_5.turn.TurnServer}) and ownership changes in whole shards. Hashes
+ * depend only on addresses and ports, so every node computes the same ring from the same
+ * members. Instances are immutable; a membership change builds a new one.
+ */
+public final class HashRing {
+    private static final int SHARD_BITS = 8;
+    public static final int SHARDS = 1 << SHARD_BITS;
+    public static final int VIRTUAL_NODES = 128;
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private static final Comparator<InetSocketAddress> ORDER = Comparator
+        .comparing((InetSocketAddress address) -> Arrays.toString(address.getAddress().getAddress()))
+        .thenComparingInt(InetSocketAddress::getPort);
+
+    private final List<InetSocketAddress> members;
+    private final InetSocketAddress[] owners = new InetSocketAddress[SHARDS];
+
+    /**
+     * @param members the live nodes, at least one and at most 256
+     */
+    public HashRing(Collection<InetSocketAddress> members) {
+        List<InetSocketAddress> sorted = new ArrayList<>(members);
+        sorted.sort(ORDER);
+        this.members = Collections.unmodifiableList(sorted);
+
+        // points packed as (hash with the low byte cleared | member index), so sorting sorts both
+        long[] points = new long[sorted.size() * VIRTUAL_NODES];
+        for (int m = 0; m < sorted.size(); m++) {
+            long base = mix(hash(sorted.get(m)));
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                points[m * VIRTUAL_NODES + v] = (mix(base + v * GOLDEN_GAMMA) & ~0xFFL) | m;
+            }
+        }
+        Arrays.sort(points);
+        for (int shard = 0; shard < SHARDS; shard++) {
+            int i = Arrays.binarySearch(points, (long) shard << (64 - SHARD_BITS));
+            if (i < 0) {
+                i = -i - 1;
+            }
+            owners[shard] = sorted.get((int) (points[i % points.length] & 0xFF));
+        }
+    }
+
+    /**
+     * @return the node that owns a shard
+     */
+    public InetSocketAddress owner(int shard) {
+        return owners[shard];
+    }
+
+    /**
+     * @return the members in a fixed order
+     */
+    public List<InetSocketAddress> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return how many shards a node owns
+     */
+    public int shardsOwnedBy(InetSocketAddress node) {
+        int count = 0;
+        for (InetSocketAddress owner : owners) {
+            if (owner.equals(node)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the shard of a TURN client, identified by its address and port
+     */
+    public static int shard(InetSocketAddress client) {
+        return (int) ((mix(hash(client)) >>> 1) % SHARDS);
+    }
+
+    private static long hash(InetSocketAddress address) {
+        long h = Arrays.hashCode(address.getAddress().getAddress());
+        return (h << 16) ^ address.getPort();
+    }
+
+    // the 64-bit finaliser of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3f99cba2e2fL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
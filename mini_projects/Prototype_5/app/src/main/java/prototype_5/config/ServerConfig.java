@@ -1,35 +1,806 @@
-package java.prototype_5.config;
+package prototype_5.config;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import prototype_5.security.RegistrySubscriberKeyResolver;
+import prototype_5.security.StaticSubscriberKeyResolver;
+import prototype_5.security.SubscriberKeyResolver;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.TrustManagerFactory;
 
 public class ServerConfig {
     private final int port;
     private final File certificateChainFile;
     private final File privateKeyFile;
-    
+    private final String certificateChainResource;
+    private final String privateKeyResource;
+    private final File identityKeyStore;
+    private final String identityKeyStorePassword;
+    private final SubscriberKeyResolver keyResolver;
+    private final int maxRequestBodyBytes;
+    private final int verifierThreads;
+    private final int verifierQueueCapacity;
+    private final long dedupWindowMillis;
+    private final int dedupCapacity;
+    private final int ioThreads;
+    private final int blockingThreads;
+    private final long monitorIntervalMillis;
+    private final long lagWarnMillis;
+    private final int queueDepthWarn;
+    private final long drainTimeoutMillis;
+    private final boolean reusePort;
+    private final int pathStatisticsCapacity;
+    private final long pathSampleIntervalMillis;
+    private final long requestDeadlineMinMillis;
+    private final long requestDeadlineMaxMillis;
+    private final long idleTimeoutMillis;
+    private final long maxIdleTimeoutMillis;
+    private final int fanOutMaxInFlight;
+    private final int fanOutMaxQueued;
+    private final TrustManagerFactory peerTrustManagerFactory;
+    private final File outboxDirectory;
+    private final int outboxSegmentBytes;
+    private final long outboxSyncIntervalMillis;
+    private final int flightRecorderSlots;
+    private final int flightRecorderSnapBytes;
+    private final Map<String, String> turnUsers;
+    private final String turnRealm;
+    private final InetAddress turnRelayAddress;
+    private final int turnRelayPortMin;
+    private final int turnRelayPortMax;
+    private final long turnMaxLifetimeSeconds;
+    private final InetAddress clusterAddress;
+    private final int clusterPort;
+    private final List<InetSocketAddress> clusterSeeds;
+    private final long clusterHeartbeatMillis;
+    private final long clusterFailureMillis;
+    private final String clusterKey;
+
     public ServerConfig(int port, File certificateChainFile, File privateKeyFile) {
-        this.port = port;
-        this.certificateChainFile = certificateChainFile;
-        this.privateKeyFile = privateKeyFile;
+        this(builder().port(port).certificateChainFile(certificateChainFile).privateKeyFile(privateKeyFile));
+    }
+
+    private ServerConfig(Builder builder) {
+        this.port = builder.port;
+        this.certificateChainFile = builder.certificateChainFile;
+        this.privateKeyFile = builder.privateKeyFile;
+        this.certificateChainResource = builder.certificateChainResource;
+        this.privateKeyResource = builder.privateKeyResource;
+        this.identityKeyStore = builder.identityKeyStore;
+        this.identityKeyStorePassword = builder.identityKeyStorePassword;
+        this.keyResolver = builder.keyResolver;
+        this.maxRequestBodyBytes = builder.maxRequestBodyBytes;
+        this.verifierThreads = builder.verifierThreads;
+        this.verifierQueueCapacity = builder.verifierQueueCapacity;
+        this.dedupWindowMillis = builder.dedupWindowMillis;
+        this.dedupCapacity = builder.dedupCapacity;
+        this.ioThreads = builder.ioThreads;
+        this.blockingThreads = builder.blockingThreads;
+        this.monitorIntervalMillis = builder.monitorIntervalMillis;
+        this.lagWarnMillis = builder.lagWarnMillis;
+        this.queueDepthWarn = builder.queueDepthWarn;
+        this.drainTimeoutMillis = builder.drainTimeoutMillis;
+        this.reusePort = builder.reusePort;
+        this.pathStatisticsCapacity = builder.pathStatisticsCapacity;
+        this.pathSampleIntervalMillis = builder.pathSampleIntervalMillis;
+        this.requestDeadlineMinMillis = builder.requestDeadlineMinMillis;
+        this.requestDeadlineMaxMillis = builder.requestDeadlineMaxMillis;
+        this.idleTimeoutMillis = builder.idleTimeoutMillis;
+        this.maxIdleTimeoutMillis = builder.maxIdleTimeoutMillis;
+        this.fanOutMaxInFlight = builder.fanOutMaxInFlight;
+        this.fanOutMaxQueued = builder.fanOutMaxQueued;
+        this.peerTrustManagerFactory = builder.peerTrustManagerFactory;
+        this.outboxDirectory = builder.outboxDirectory;
+        this.outboxSegmentBytes = builder.outboxSegmentBytes;
+        this.outboxSyncIntervalMillis = builder.outboxSyncIntervalMillis;
+        this.flightRecorderSlots = builder.flightRecorderSlots;
+        this.flightRecorderSnapBytes = builder.flightRecorderSnapBytes;
+        this.turnUsers = builder.turnUsers;
+        this.turnRealm = builder.turnRealm;
+        this.turnRelayAddress = builder.turnRelayAddress;
+        this.turnRelayPortMin = builder.turnRelayPortMin;
+        this.turnRelayPortMax = builder.turnRelayPortMax;
+        this.turnMaxLifetimeSeconds = builder.turnMaxLifetimeSeconds;
+        this.clusterAddress = builder.clusterAddress;
+        this.clusterPort = builder.clusterPort;
+        this.clusterSeeds = builder.clusterSeeds;
+        this.clusterHeartbeatMillis = builder.clusterHeartbeatMillis;
+        this.clusterFailureMillis = builder.clusterFailureMillis;
+        this.clusterKey = builder.clusterKey;
     }
-    
+
     public int getPort() {
         return port;
     }
-    
+
     public File getCertificateChainFile() {
         return certificateChainFile;
     }
-    
+
     public File getPrivateKeyFile() {
         return privateKeyFile;
     }
-    
-    public static ServerConfig createDefault() {
-        ClassLoader classLoader = ServerConfig.class.getClassLoader();
-        File certFile = new File(classLoader.getResource("certs/cert.crt").getFile());
-        File keyFile = new File(classLoader.getResource("certs/private.key").getFile());
-        
-        return new ServerConfig(8443, certFile, keyFile);
+
+    public String getCertificateChainResource() {
+        return certificateChainResource;
+    }
+
+    public String getPrivateKeyResource() {
+        return privateKeyResource;
+    }
+
+    public File getIdentityKeyStore() {
+        return identityKeyStore;
+    }
+
+    public String getIdentityKeyStorePassword() {
+        return identityKeyStorePassword;
+    }
+
+    public SubscriberKeyResolver getKeyResolver() {
+        return keyResolver;
+    }
+
+    public int getMaxRequestBodyBytes() {
+        return maxRequestBodyBytes;
+    }
+
+    public int getVerifierThreads() {
+        return verifierThreads;
+    }
+
+    public int getVerifierQueueCapacity() {
+        return verifierQueueCapacity;
+    }
+
+    public long getDedupWindowMillis() {
+        return dedupWindowMillis;
+    }
+
+    public int getDedupCapacity() {
+        return dedupCapacity;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public int getBlockingThreads() {
+        return blockingThreads;
+    }
+
+    public long getMonitorIntervalMillis() {
+        return monitorIntervalMillis;
+    }
+
+    public long getLagWarnMillis() {
+        return lagWarnMillis;
+    }
+
+    public int getQueueDepthWarn() {
+        return queueDepthWarn;
+    }
+
+    public long getDrainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public int getPathStatisticsCapacity() {
+        return pathStatisticsCapacity;
+    }
+
+    public long getPathSampleIntervalMillis() {
+        return pathSampleIntervalMillis;
+    }
+
+    public long getRequestDeadlineMinMillis() {
+        return requestDeadlineMinMillis;
+    }
+
+    public long getRequestDeadlineMaxMillis() {
+        return requestDeadlineMaxMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public long getMaxIdleTimeoutMillis() {
+        return maxIdleTimeoutMillis;
+    }
+
+    public int getFanOutMaxInFlight() {
+        return fanOutMaxInFlight;
+    }
+
+    public int getFanOutMaxQueued() {
+        return fanOutMaxQueued;
+    }
+
+    public TrustManagerFactory getPeerTrustManagerFactory() {
+        return peerTrustManagerFactory;
+    }
+
+    public File getOutboxDirectory() {
+        return outboxDirectory;
+    }
+
+    public int getOutboxSegmentBytes() {
+        return outboxSegmentBytes;
+    }
+
+    public long getOutboxSyncIntervalMillis() {
+        return outboxSyncIntervalMillis;
+    }
+
+    public int getFlightRecorderSlots() {
+        return flightRecorderSlots;
+    }
+
+    public int getFlightRecorderSnapBytes() {
+        return flightRecorderSnapBytes;
+    }
+
+    public Map<String, String> getTurnUsers() {
+        return turnUsers;
+    }
+
+    public String getTurnRealm() {
+        return turnRealm;
+    }
+
+    public InetAddress getTurnRelayAddress() {
+        return turnRelayAddress;
+    }
+
+    public int getTurnRelayPortMin() {
+        return turnRelayPortMin;
+    }
+
+    public int getTurnRelayPortMax() {
+        return turnRelayPortMax;
+    }
+
+    public long getTurnMaxLifetimeSeconds() {
+        return turnMaxLifetimeSeconds;
+    }
+
+    public InetAddress getClusterAddress() {
+        return clusterAddress;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public List<InetSocketAddress> getClusterSeeds() {
+        return clusterSeeds;
+    }
+
+    public long getClusterHeartbeatMillis() {
+        return clusterHeartbeatMillis;
+    }
+
+    public long getClusterFailureMillis() {
+        return clusterFailureMillis;
+    }
+
+    public String getClusterKey() {
+        return clusterKey;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static ServerConfig createDefault() throws IOException {
+        // several processes on one host form a TURN cluster with e.g. -Dserver.reusePort=true
+        // -Dturn.relayAddress=203.0.113.7 -Dcluster.port=7001 -Dcluster.seeds=127.0.0.1:7000, and the
+        // TURN users and cluster key in BECKN_AGENT_TURN_USERS and BECKN_AGENT_CLUSTER_KEY or in the
+        // files named by -Dturn.usersFile and -Dcluster.keyFile; secrets never go on the command line
+        int clusterPort = Integer.getInteger("cluster.port", 0);
+        String users = secret("BECKN_AGENT_TURN_USERS", "turn.usersFile");
+        String relayAddress = System.getProperty("turn.relayAddress");
+        Builder builder = builder()
+            .port(8443)
+            .reusePort(Boolean.getBoolean("server.reusePort"))
+            .keyResolver(createKeyResolver())
+            .turnUsers(parseUsers(users != null ? users : ""))
+            .turnRelayAddress(relayAddress != null ? InetAddress.getByName(relayAddress) : null)
+            .clusterPort(clusterPort)
+            .clusterSeeds(parseAddresses(System.getProperty("cluster.seeds", "")))
+            .clusterKey(secret("BECKN_AGENT_CLUSTER_KEY", "cluster.keyFile"));
+        if (clusterPort != 0) {
+            // processes sharing a host must not share an outbox
+            builder.outboxDirectory(new File(System.getProperty("user.home"), ".beckn-agent/outbox-" + clusterPort));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Signing keys come from the registry named by {@code beckn.registry} (its lookup URL), or
+     * from the key file named by {@code beckn.keys}; with neither there is no resolver
+     */
+    private static SubscriberKeyResolver createKeyResolver() throws IOException {
+        String registry = System.getProperty("beckn.registry");
+        if (registry != null) {
+            return new RegistrySubscriberKeyResolver(URI.create(registry));
+        }
+        String keys = System.getProperty("beckn.keys");
+        if (keys != null) {
+            return StaticSubscriberKeyResolver.load(new File(keys));
+        }
+        return null;
+    }
+
+    /**
+     * Reads a secret from an environment variable, or else from the file a system property
+     * names, so it does not show up in the process list
+     *
+     * @return the secret, or null if neither is set
+     */
+    private static String secret(String variable, String fileProperty) throws IOException {
+        String value = System.getenv(variable);
+        if (value != null) {
+            return value;
+        }
+        String file = System.getProperty(fileProperty);
+        if (file == null) {
+            return null;
+        }
+        return new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Parses {@code user:password} pairs separated by commas
+     */
+    private static Map<String, String> parseUsers(String value) {
+        Map<String, String> users = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            int colon = entry.indexOf(':');
+            if (colon > 0) {
+                users.put(entry.substring(0, colon).trim(), entry.substring(colon + 1));
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Parses {@code host:port} addresses separated by commas; IPv6 hosts go in brackets
+     */
+    private static List<InetSocketAddress> parseAddresses(String value) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            int colon = entry.lastIndexOf(':');
+            if (colon > 0) {
+                String host = entry.substring(0, colon).replace("[", "").replace("]", "");
+                addresses.add(new InetSocketAddress(host, Integer.parseInt(entry.substring(colon + 1))));
+            }
+        }
+        return addresses;
+    }
+
+    public static final class Builder {
+        private int port = 8443;
+        private File certificateChainFile;
+        private File privateKeyFile;
+        private String certificateChainResource = "certs/cert.crt";
+        private String privateKeyResource = "certs/private.key";
+        private File identityKeyStore = new File(System.getProperty("user.home"), ".beckn-agent/identity.p12");
+        private String identityKeyStorePassword = System.getenv("BECKN_AGENT_IDENTITY_PASSWORD");
+        private SubscriberKeyResolver keyResolver;
+        private int maxRequestBodyBytes = 1024 * 1024;
+        private int verifierThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        private int verifierQueueCapacity = 1024;
+        private long dedupWindowMillis = 10 * 60 * 1000;
+        private int dedupCapacity = 1 << 19;
+        private int ioThreads = 0;
+        private int blockingThreads = 16;
+        private long monitorIntervalMillis = 100;
+        private long lagWarnMillis = 50;
+        private int queueDepthWarn = 1000;
+        private long drainTimeoutMillis = 10_000;
+        private boolean reusePort = false;
+        private int pathStatisticsCapacity = 4096;
+        private long pathSampleIntervalMillis = 1000;
+        private long requestDeadlineMinMillis = 2000;
+        private long requestDeadlineMaxMillis = 30_000;
+        private long idleTimeoutMillis = 5000;
+        private long maxIdleTimeoutMillis = 60_000;
+        private int fanOutMaxInFlight = 256;
+        private int fanOutMaxQueued = 4096;
+        private TrustManagerFactory peerTrustManagerFactory;
+        private File outboxDirectory = new File(System.getProperty("user.home"), ".beckn-agent/outbox");
+        private int outboxSegmentBytes = 64 * 1024 * 1024;
+        private long outboxSyncIntervalMillis = 10;
+        private int flightRecorderSlots = 16384;
+        private int flightRecorderSnapBytes = 128;
+        private Map<String, String> turnUsers = Collections.emptyMap();
+        private String turnRealm = "beckn";
+        private InetAddress turnRelayAddress;
+        private int turnRelayPortMin = 49152;
+        private int turnRelayPortMax = 65535;
+        private long turnMaxLifetimeSeconds = 3600;
+        private InetAddress clusterAddress = InetAddress.getLoopbackAddress();
+        private int clusterPort = 0;
+        private List<InetSocketAddress> clusterSeeds = Collections.emptyList();
+        private long clusterHeartbeatMillis = 500;
+        private long clusterFailureMillis = 2000;
+        private String clusterKey;
+
+        private Builder() {
+        }
+
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder certificateChainFile(File certificateChainFile) {
+            this.certificateChainFile = certificateChainFile;
+            return this;
+        }
+
+        public Builder privateKeyFile(File privateKeyFile) {
+            this.privateKeyFile = privateKeyFile;
+            return this;
+        }
+
+        /**
+         * Classpath location of the PEM certificate chain, used when no certificate file is set
+         */
+        public Builder certificateChainResource(String certificateChainResource) {
+            this.certificateChainResource = certificateChainResource;
+            return this;
+        }
+
+        /**
+         * Classpath location of the PEM private key, used when no key file is set
+         */
+        public Builder privateKeyResource(String privateKeyResource) {
+            this.privateKeyResource = privateKeyResource;
+            return this;
+        }
+
+        /**
+         * PKCS#12 key store holding the generated agent identity when no PEM material is available
+         */
+        public Builder identityKeyStore(File identityKeyStore) {
+            this.identityKeyStore = identityKeyStore;
+            return this;
+        }
+
+        /**
+         * Password of the identity key store; defaults to the {@code BECKN_AGENT_IDENTITY_PASSWORD}
+         * environment variable. Without one a random password is generated and kept in an
+         * owner-only file beside the key store
+         */
+        public Builder identityKeyStorePassword(String identityKeyStorePassword) {
+            this.identityKeyStorePassword = identityKeyStorePassword;
+            return this;
+        }
+
+        /**
+         * Where the signing keys of requesting subscribers are looked up; required, as every
+         * request must be signed
+         */
+        public Builder keyResolver(SubscriberKeyResolver keyResolver) {
+            this.keyResolver = keyResolver;
+            return this;
+        }
+
+        /**
+         * Largest request body accepted; bodies are held in memory until their signature is checked
+         */
+        public Builder maxRequestBodyBytes(int maxRequestBodyBytes) {
+            this.maxRequestBodyBytes = maxRequestBodyBytes;
+            return this;
+        }
+
+        public Builder verifierThreads(int verifierThreads) {
+            this.verifierThreads = verifierThreads;
+            return this;
+        }
+
+        public Builder verifierQueueCapacity(int verifierQueueCapacity) {
+            this.verifierQueueCapacity = verifierQueueCapacity;
+            return this;
+        }
+
+        public Builder dedupWindowMillis(long dedupWindowMillis) {
+            this.dedupWindowMillis = dedupWindowMillis;
+            return this;
+        }
+
+        /**
+         * Fingerprint slots per de-duplication generation; memory use is 32 bytes per slot
+         */
+        public Builder dedupCapacity(int dedupCapacity) {
+            this.dedupCapacity = dedupCapacity;
+            return this;
+        }
+
+        /**
+         * Number of I/O event loops; 0 uses Netty's default of twice the core count
+         */
+        public Builder ioThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+
+        /**
+         * Threads for handlers that may block, such as request processing
+         */
+        public Builder blockingThreads(int blockingThreads) {
+            this.blockingThreads = blockingThreads;
+            return this;
+        }
+
+        public Builder monitorIntervalMillis(long monitorIntervalMillis) {
+            this.monitorIntervalMillis = monitorIntervalMillis;
+            return this;
+        }
+
+        public Builder lagWarnMillis(long lagWarnMillis) {
+            this.lagWarnMillis = lagWarnMillis;
+            return this;
+        }
+
+        public Builder queueDepthWarn(int queueDepthWarn) {
+            this.queueDepthWarn = queueDepthWarn;
+            return this;
+        }
+
+        /**
+         * How long a shutdown waits for open QUIC connections to finish
+         */
+        public Builder drainTimeoutMillis(long drainTimeoutMillis) {
+            this.drainTimeoutMillis = drainTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Bind with SO_REUSEPORT (epoll only) so a replacement process can take over the port during a drain.
+         * While both are bound the kernel splits clients between them, so QUIC connections whose packets
+         * move to the replacement are lost; STUN and TURN are unaffected.
+         */
+        public Builder reusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        /**
+         * Peers tracked in the path statistics table; memory use is 24 bytes per peer plus the address
+         */
+        public Builder pathStatisticsCapacity(int pathStatisticsCapacity) {
+            this.pathStatisticsCapacity = pathStatisticsCapacity;
+            return this;
+        }
+
+        /**
+         * How often QUIC connection statistics are sampled into the path statistics
+         */
+        public Builder pathSampleIntervalMillis(long pathSampleIntervalMillis) {
+            this.pathSampleIntervalMillis = pathSampleIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Shortest time any peer is given to deliver a complete request
+         */
+        public Builder requestDeadlineMinMillis(long requestDeadlineMinMillis) {
+            this.requestDeadlineMinMillis = requestDeadlineMinMillis;
+            return this;
+        }
+
+        /**
+         * Longest time any peer is given to deliver a complete request, however slow its path
+         */
+        public Builder requestDeadlineMaxMillis(long requestDeadlineMaxMillis) {
+            this.requestDeadlineMaxMillis = requestDeadlineMaxMillis;
+            return this;
+        }
+
+        /**
+         * Idle timeout for a connection on a fast path; slower or lossy paths get longer, up to the maximum
+         */
+        public Builder idleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Idle timeout advertised to QUIC peers, and the most any path is given
+         */
+        public Builder maxIdleTimeoutMillis(long maxIdleTimeoutMillis) {
+            this.maxIdleTimeoutMillis = maxIdleTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Peer requests a search fan-out may have outstanding at once, across all searches
+         */
+        public Builder fanOutMaxInFlight(int fanOutMaxInFlight) {
+            this.fanOutMaxInFlight = fanOutMaxInFlight;
+            return this;
+        }
+
+        /**
+         * Peer requests that may wait for an in-flight slot; a search that would queue more is refused
+         */
+        public Builder fanOutMaxQueued(int fanOutMaxQueued) {
+            this.fanOutMaxQueued = fanOutMaxQueued;
+            return this;
+        }
+
+        /**
+         * Decides which certificates outgoing peer connections accept. Unset, the JDK's default
+         * trust store is used, which {@code -Djavax.net.ssl.trustStore} can point at the peers' certificates.
+         */
+        public Builder peerTrustManagerFactory(TrustManagerFactory peerTrustManagerFactory) {
+            this.peerTrustManagerFactory = peerTrustManagerFactory;
+            return this;
+        }
+
+        /**
+         * Where callbacks for unreachable peers are kept until delivered
+         */
+        public Builder outboxDirectory(File outboxDirectory) {
+            this.outboxDirectory = outboxDirectory;
+            return this;
+        }
+
+        /**
+         * Size of each outbox segment file, which is also the largest callback that can be queued
+         */
+        public Builder outboxSegmentBytes(int outboxSegmentBytes) {
+            this.outboxSegmentBytes = outboxSegmentBytes;
+            return this;
+        }
+
+        /**
+         * How often queued callbacks are forced to disk; one fsync covers every callback queued in between
+         */
+        public Builder outboxSyncIntervalMillis(long outboxSyncIntervalMillis) {
+            this.outboxSyncIntervalMillis = outboxSyncIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Packets the flight recorder keeps per event loop; 0 turns it off. Memory use is
+         * 56 bytes plus the snap length per packet
+         */
+        public Builder flightRecorderSlots(int flightRecorderSlots) {
+            this.flightRecorderSlots = flightRecorderSlots;
+            return this;
+        }
+
+        /**
+         * How many bytes of each packet the flight recorder keeps
+         */
+        public Builder flightRecorderSnapBytes(int flightRecorderSnapBytes) {
+            this.flightRecorderSnapBytes = flightRecorderSnapBytes;
+            return this;
+        }
+
+        /**
+         * TURN user names and passwords for long-term credentials; TURN is off while there are none
+         */
+        public Builder turnUsers(Map<String, String> turnUsers) {
+            this.turnUsers = turnUsers;
+            return this;
+        }
+
+        /**
+         * Realm presented to TURN clients and mixed into their credential keys
+         */
+        public Builder turnRealm(String turnRealm) {
+            this.turnRealm = turnRealm;
+            return this;
+        }
+
+        /**
+         * Address relayed sockets are bound on and handed to TURN clients, so one they can
+         * reach; required with TURN users. In a cluster every node must be able to bind it,
+         * so allocations can move between nodes
+         */
+        public Builder turnRelayAddress(InetAddress turnRelayAddress) {
+            this.turnRelayAddress = turnRelayAddress;
+            return this;
+        }
+
+        /**
+         * Lowest relayed port; the range is divided between shards, so each shard can hold
+         * a 256th of it in allocations
+         */
+        public Builder turnRelayPortMin(int turnRelayPortMin) {
+            this.turnRelayPortMin = turnRelayPortMin;
+            return this;
+        }
+
+        /**
+         * Highest relayed port
+         */
+        public Builder turnRelayPortMax(int turnRelayPortMax) {
+            this.turnRelayPortMax = turnRelayPortMax;
+            return this;
+        }
+
+        /**
+         * Longest lifetime an allocation may ask for before it must be refreshed
+         */
+        public Builder turnMaxLifetimeSeconds(long turnMaxLifetimeSeconds) {
+            this.turnMaxLifetimeSeconds = turnMaxLifetimeSeconds;
+            return this;
+        }
+
+        /**
+         * Private address cluster nodes exchange heartbeats and forwarded packets on
+         */
+        public Builder clusterAddress(InetAddress clusterAddress) {
+            this.clusterAddress = clusterAddress;
+            return this;
+        }
+
+        /**
+         * Port of the internal cluster socket, identifying this node together with the
+         * cluster address; 0 runs TURN on this node alone
+         */
+        public Builder clusterPort(int clusterPort) {
+            this.clusterPort = clusterPort;
+            return this;
+        }
+
+        /**
+         * Internal addresses of cluster nodes to contact on start; the rest are learned from them
+         */
+        public Builder clusterSeeds(List<InetSocketAddress> clusterSeeds) {
+            this.clusterSeeds = clusterSeeds;
+            return this;
+        }
+
+        /**
+         * How often cluster nodes tell each other they are alive, which also paces handoffs
+         */
+        public Builder clusterHeartbeatMillis(long clusterHeartbeatMillis) {
+            this.clusterHeartbeatMillis = clusterHeartbeatMillis;
+            return this;
+        }
+
+        /**
+         * How long a cluster node may stay silent before its shards are taken over
+         */
+        public Builder clusterFailureMillis(long clusterFailureMillis) {
+            this.clusterFailureMillis = clusterFailureMillis;
+            return this;
+        }
+
+        /**
+         * Secret every cluster node shares, which frames on the internal socket are
+         * authenticated with; a node with a cluster port will not start without it
+         */
+        public Builder clusterKey(String clusterKey) {
+            this.clusterKey = clusterKey;
+            return this;
+        }
+
+        public ServerConfig build() {
+            return new ServerConfig(this);
+        }
     }
-}
\ No newline at end of file
+}
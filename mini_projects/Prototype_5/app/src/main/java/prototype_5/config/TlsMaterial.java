@@ -0,0 +1,202 @@
+package prototype_5.config;
+
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Collection;
+
+/**
+ * Private key and certificate chain the QUIC server presents.
+ * <p>
+ * Material is taken from the first source that has it: explicit PEM files, PEM resources
+ * on the classpath (read as streams so they work from inside a jar), then the agent's
+ * identity key store. If none exist an ECDSA P-256 identity is generated once and saved
+ * to the key store, so later starts skip key generation entirely. The key store password
+ * comes from the configuration, or failing that from a generated file beside the key store.
+ */
+public final class TlsMaterial {
+    private static final Logger logger = LoggerFactory.getLogger(TlsMaterial.class);
+
+    private static final String KEY_ALIAS = "agent";
+    private static final String PASSWORD_SUFFIX = ".password";
+    private static final int PASSWORD_BYTES = 24;
+
+    private final PrivateKey privateKey;
+    private final X509Certificate[] certificateChain;
+
+    private TlsMaterial(PrivateKey privateKey, X509Certificate[] certificateChain) {
+        this.privateKey = privateKey;
+        this.certificateChain = certificateChain;
+    }
+
+    public PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    public X509Certificate[] getCertificateChain() {
+        return certificateChain;
+    }
+
+    /**
+     * Loads, or on first start creates, the server's TLS material
+     *
+     * @param config the server configuration
+     * @return the key and certificate chain
+     * @throws IOException if the material cannot be read or persisted
+     * @throws GeneralSecurityException if the material is invalid
+     */
+    public static TlsMaterial load(ServerConfig config) throws IOException, GeneralSecurityException {
+        File certFile = config.getCertificateChainFile();
+        File keyFile = config.getPrivateKeyFile();
+        if (certFile != null && keyFile != null && certFile.exists() && keyFile.exists()) {
+            try (InputStream certs = new FileInputStream(certFile); InputStream key = new FileInputStream(keyFile)) {
+                logger.debug("Loading TLS material from {}", certFile);
+                return fromPem(certs, key);
+            }
+        }
+
+        ClassLoader classLoader = TlsMaterial.class.getClassLoader();
+        try (InputStream certs = classLoader.getResourceAsStream(config.getCertificateChainResource());
+             InputStream key = classLoader.getResourceAsStream(config.getPrivateKeyResource())) {
+            if (certs != null && key != null) {
+                logger.debug("Loading TLS material from classpath {}", config.getCertificateChainResource());
+                return fromPem(certs, key);
+            }
+        }
+
+        File keyStoreFile = config.getIdentityKeyStore();
+        char[] password = config.getIdentityKeyStorePassword() != null
+            ? config.getIdentityKeyStorePassword().toCharArray()
+            : passwordFromFile(new File(keyStoreFile.getPath() + PASSWORD_SUFFIX));
+        if (keyStoreFile.exists()) {
+            logger.debug("Loading agent identity from {}", keyStoreFile);
+            return fromKeyStore(keyStoreFile, password);
+        }
+
+        return generate(keyStoreFile, password);
+    }
+
+    private static TlsMaterial fromPem(InputStream certs, InputStream key) throws IOException, GeneralSecurityException {
+        Collection<? extends Certificate> chain = CertificateFactory.getInstance("X.509").generateCertificates(certs);
+        X509Certificate[] certificateChain = chain.toArray(new X509Certificate[0]);
+
+        try (PEMParser parser = new PEMParser(new InputStreamReader(key, StandardCharsets.US_ASCII))) {
+            Object pem = parser.readObject();
+            JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
+            if (pem instanceof PEMKeyPair) {
+                return new TlsMaterial(converter.getKeyPair((PEMKeyPair) pem).getPrivate(), certificateChain);
+            } else if (pem instanceof PrivateKeyInfo) {
+                return new TlsMaterial(converter.getPrivateKey((PrivateKeyInfo) pem), certificateChain);
+            }
+            throw new IOException("Unsupported private key format: " + (pem == null ? "empty" : pem.getClass().getSimpleName()));
+        }
+    }
+
+    private static TlsMaterial fromKeyStore(File keyStoreFile, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStoreFile)) {
+            keyStore.load(in, password);
+        }
+
+        PrivateKey key = (PrivateKey) keyStore.getKey(KEY_ALIAS, password);
+        Certificate[] chain = keyStore.getCertificateChain(KEY_ALIAS);
+        if (key == null || chain == null) {
+            throw new GeneralSecurityException("No '" + KEY_ALIAS + "' entry in " + keyStoreFile);
+        }
+
+        X509Certificate[] certificateChain = new X509Certificate[chain.length];
+        for (int i = 0; i < chain.length; i++) {
+            certificateChain[i] = (X509Certificate) chain[i];
+        }
+        return new TlsMaterial(key, certificateChain);
+    }
+
+    private static TlsMaterial generate(File keyStoreFile, char[] password) throws IOException, GeneralSecurityException {
+        long started = System.nanoTime();
+        SelfSignedCertificate selfSigned = new SelfSignedCertificate("localhost", "EC", 256);
+        try {
+            TlsMaterial material = new TlsMaterial(selfSigned.key(), new X509Certificate[] {selfSigned.cert()});
+
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(null, null);
+            keyStore.setKeyEntry(KEY_ALIAS, material.privateKey, password, material.certificateChain);
+
+            Path target = keyStoreFile.toPath().toAbsolutePath();
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), "identity", ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tmp)) {
+                    keyStore.store(out, password);
+                }
+                restrictToOwner(tmp);
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+
+            logger.info("Generated ECDSA agent identity in {} ms, saved to {}",
+                (System.nanoTime() - started) / 1_000_000, target);
+            return material;
+        } finally {
+            selfSigned.delete();
+        }
+    }
+
+    /**
+     * Reads the key store password kept beside it, creating a random one on first use. The
+     * file is only readable by its owner, which is what protects the key store either way.
+     */
+    private static char[] passwordFromFile(File passwordFile) throws IOException {
+        Path target = passwordFile.toPath().toAbsolutePath();
+        if (Files.exists(target)) {
+            return new String(Files.readAllBytes(target), StandardCharsets.US_ASCII).trim().toCharArray();
+        }
+
+        byte[] random = new byte[PASSWORD_BYTES];
+        new SecureRandom().nextBytes(random);
+        String password = Base64.getEncoder().encodeToString(random);
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), "identity", ".tmp");
+        try {
+            restrictToOwner(tmp);
+            Files.write(tmp, password.getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        logger.info("Generated a password for the agent identity, saved to {}", target);
+        return password.toCharArray();
+    }
+
+    private static void restrictToOwner(Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            logger.debug("File system does not support POSIX permissions, leaving {} as is", file);
+        }
+    }
+}
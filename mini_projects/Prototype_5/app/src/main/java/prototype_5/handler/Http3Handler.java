@@ -1,23 +1,43 @@
-package java.prototype_5.handler;
+package prototype_5.handler;
+
+import prototype_5.beckn.BecknContext;
+import prototype_5.beckn.RequestDeduplicator;
+import prototype_5.outbox.CallbackOutbox;
+import prototype_5.security.SignatureVerificationException;
+import prototype_5.security.SignatureVerifier;
+import prototype_5.server.PathSampler;
+import prototype_5.server.PathStatistics;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.incubator.codec.http3.Http3;
 import io.netty.incubator.codec.http3.Http3DataFrame;
+import io.netty.incubator.codec.http3.Http3Headers;
 import io.netty.incubator.codec.http3.Http3HeadersFrame;
 import io.netty.incubator.codec.http3.Http3RequestStreamInboundHandler;
-import io.netty.incubator.codec.quic.QuicChannel;
 import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import static io.netty.handler.codec.http.HttpHeaderNames.*;
 import static io.netty.handler.codec.http.HttpHeaderValues.*;
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
 
 public class Http3Handler extends ChannelInboundHandlerAdapter {
     private static final Logger logger = LoggerFactory.getLogger(Http3Handler.class);
+    private static final String SIGNATURE_CHALLENGE =
+        "Signature realm=\"beckn\",headers=\"(created) (expires) digest\"";
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
@@ -38,49 +58,226 @@ public class Http3Handler extends ChannelInboundHandlerAdapter {
     public static class Http3RequestHandler extends Http3RequestStreamInboundHandler {
         private static final Logger logger = LoggerFactory.getLogger(Http3RequestHandler.class);
 
+        private final SignatureVerifier verifier;
+        private final RequestDeduplicator deduplicator;
+        private final PathStatistics pathStatistics;
+        private final long deadlineMinMillis;
+        private final long deadlineMaxMillis;
+        private final int maxBodyBytes;
+        private final CallbackOutbox callbacks;
+        private Http3Headers requestHeaders;
+        private ByteBuf body;
+        private ScheduledFuture<?> deadline;
+        // set once a response has gone out before the request was complete; later frames are dropped
+        private boolean answered;
+
+        /**
+         * @param pathStatistics sizes the deadline for receiving the request to the peer's path
+         * @param deadlineMinMillis the shortest deadline any peer gets
+         * @param deadlineMaxMillis the longest deadline any peer gets
+         * @param maxBodyBytes the largest request body accepted; anything bigger gets 413
+         * @param callbacks told where the sender of each verified message can be reached, or null
+         */
+        public Http3RequestHandler(SignatureVerifier verifier, RequestDeduplicator deduplicator,
+                                   PathStatistics pathStatistics, long deadlineMinMillis, long deadlineMaxMillis,
+                                   int maxBodyBytes, CallbackOutbox callbacks) {
+            this.verifier = verifier;
+            this.deduplicator = deduplicator;
+            this.pathStatistics = pathStatistics;
+            this.deadlineMinMillis = deadlineMinMillis;
+            this.deadlineMaxMillis = deadlineMaxMillis;
+            this.maxBodyBytes = maxBodyBytes;
+            this.callbacks = callbacks;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            InetAddress peer = PathSampler.peerAddress(ctx.channel().parent());
+            long timeout = peer != null
+                ? pathStatistics.requestDeadlineMillis(peer, deadlineMinMillis, deadlineMaxMillis)
+                : deadlineMaxMillis;
+            deadline = ctx.executor().schedule(() -> onDeadline(ctx, timeout), timeout, TimeUnit.MILLISECONDS);
+        }
+
+        private void onDeadline(ChannelHandlerContext ctx, long timeout) {
+            deadline = null;
+            answered = true;
+            logger.debug("Request not complete after {} ms, giving up", timeout);
+            writeResponse(ctx, REQUEST_TIMEOUT, "Request not received in time");
+        }
+
+        private void cancelDeadline() {
+            if (deadline != null) {
+                deadline.cancel(false);
+                deadline = null;
+            }
+        }
+
         @Override
         protected void channelRead(ChannelHandlerContext ctx, Http3HeadersFrame headersFrame, 
                                   boolean isLast) {
+            if (answered) {
+                return;
+            }
             logger.debug("Received HTTP/3 headers: {}", headersFrame.headers());
+            requestHeaders = headersFrame.headers();
 
-            Http3HeadersFrame responseHeaders = Http3.newHttp3HeadersFrame();
-            responseHeaders.headers()
-                .status(OK.codeAsText())
-                .set(CONTENT_TYPE, TEXT_PLAIN)
-                .set(SERVER, "Netty-HTTP3-STUN-Server");
-
-            QuicStreamChannel channel = (QuicStreamChannel) ctx.channel();
-            ctx.write(responseHeaders);
+            // refuse a declared oversized body before any of it is buffered
+            Long contentLength = requestHeaders.getLong(CONTENT_LENGTH);
+            if (contentLength != null && contentLength > maxBodyBytes) {
+                rejectTooLarge(ctx);
+                return;
+            }
 
             if (isLast) {
-                ByteBuf content = ctx.alloc().buffer();
-                content.writeBytes("Hello from HTTP/3 server!".getBytes());
-                ctx.writeAndFlush(new Http3DataFrame(content));
+                onRequestComplete(ctx);
             }
         }
 
         @Override
         protected void channelRead(ChannelHandlerContext ctx, Http3DataFrame dataFrame, boolean isLast) {
+            if (answered) {
+                dataFrame.release();
+                return;
+            }
             try {
-                logger.debug("Received HTTP/3 data frame, size: {}", dataFrame.content().readableBytes());
-                
-                ByteBuf content = ctx.alloc().buffer();
-                content.writeBytes("Received your HTTP/3 data, thanks!".getBytes());
-                
-                Http3DataFrame responseDataFrame = new Http3DataFrame(content);
-                ctx.write(responseDataFrame);
-                
-                if (isLast) {
-                    ctx.flush();
+                int length = dataFrame.content().readableBytes();
+                logger.debug("Received HTTP/3 data frame, size: {}", length);
+
+                // the body is buffered before its signature can be checked, so its size is all that bounds it
+                if (length > maxBodyBytes - (body != null ? body.readableBytes() : 0)) {
+                    rejectTooLarge(ctx);
+                    return;
+                }
+                if (body == null) {
+                    body = ctx.alloc().buffer(length);
                 }
+                body.writeBytes(dataFrame.content());
             } finally {
                 dataFrame.release();
             }
+
+            if (isLast) {
+                onRequestComplete(ctx);
+            }
+        }
+
+        private void rejectTooLarge(ChannelHandlerContext ctx) {
+            cancelDeadline();
+            answered = true;
+            logger.debug("Request body over {} bytes, refusing it", maxBodyBytes);
+            writeResponse(ctx, REQUEST_ENTITY_TOO_LARGE, "Request body too large");
+        }
+
+        private void onRequestComplete(ChannelHandlerContext ctx) {
+            // the deadline covers receiving the request; verification and dispatch are ours
+            cancelDeadline();
+            if (requestHeaders == null) {
+                writeResponse(ctx, BAD_REQUEST, "Missing request headers");
+                return;
+            }
+
+            ByteBuf content = body != null ? body : Unpooled.EMPTY_BUFFER;
+            CompletableFuture<Void> verification = verifier.verify(requestHeaders.get(AUTHORIZATION), content);
+            verification.whenComplete((ignored, cause) -> {
+                if (ctx.executor().inEventLoop()) {
+                    onVerified(ctx, cause);
+                } else {
+                    ctx.executor().execute(() -> onVerified(ctx, cause));
+                }
+            });
+        }
+
+        private void onVerified(ChannelHandlerContext ctx, Throwable cause) {
+            if (cause instanceof SignatureVerificationException) {
+                logger.debug("Rejected request signature: {}", cause.getMessage());
+                writeResponse(ctx, UNAUTHORIZED, "Signature verification failed");
+            } else if (cause instanceof RejectedExecutionException) {
+                logger.warn("Signature verification pool saturated, shedding request");
+                writeResponse(ctx, SERVICE_UNAVAILABLE, "Server busy, retry later");
+            } else if (cause != null) {
+                logger.error("Unexpected error verifying request", cause);
+                writeResponse(ctx, INTERNAL_SERVER_ERROR, "Internal error");
+            } else if (body != null) {
+                dispatch(ctx);
+            } else {
+                writeResponse(ctx, OK, "Hello from HTTP/3 server!");
+            }
+        }
+
+        private void dispatch(ChannelHandlerContext ctx) {
+            BecknContext context = BecknContext.parse(body);
+            if (context == null) {
+                writeResponse(ctx, OK, "Received your HTTP/3 data, thanks!");
+                return;
+            }
+
+            // a signed message from a peer means it is back; replay what is queued for it
+            if (callbacks != null && context.getSender() != null) {
+                InetSocketAddress address = CallbackOutbox.address(context.getSenderUri());
+                if (address != null) {
+                    callbacks.peerAvailable(context.getSender(), address);
+                }
+            }
+
+            long fingerprint = RequestDeduplicator.fingerprint(context);
+            if (deduplicator.markSeen(fingerprint)) {
+                RequestDeduplicator.CachedResponse cached = deduplicator.cachedResponse(fingerprint);
+                if (cached != null) {
+                    logger.debug("Replaying cached response for duplicate request {}", context);
+                    writeResponse(ctx, HttpResponseStatus.valueOf(cached.getStatus()), cached.getBody());
+                } else {
+                    logger.debug("Duplicate of in-flight request {}", context);
+                    writeResponse(ctx, ACCEPTED, "Duplicate request is already being processed");
+                }
+                return;
+            }
+
+            byte[] response = "Received your HTTP/3 data, thanks!".getBytes(CharsetUtil.UTF_8);
+            deduplicator.cacheResponse(fingerprint, OK.code(), response);
+            writeResponse(ctx, OK, response);
+        }
+
+        private void writeResponse(ChannelHandlerContext ctx, HttpResponseStatus status, String message) {
+            writeResponse(ctx, status, message.getBytes(CharsetUtil.UTF_8));
+        }
+
+        private void writeResponse(ChannelHandlerContext ctx, HttpResponseStatus status, byte[] message) {
+            releaseBody();
+
+            Http3HeadersFrame responseHeaders = Http3.newHttp3HeadersFrame();
+            responseHeaders.headers()
+                .status(status.codeAsText())
+                .set(CONTENT_TYPE, TEXT_PLAIN)
+                .set(SERVER, "Netty-HTTP3-STUN-Server");
+            if (status == UNAUTHORIZED) {
+                responseHeaders.headers().set(WWW_AUTHENTICATE, SIGNATURE_CHALLENGE);
+            }
+            ctx.write(responseHeaders);
+
+            ByteBuf content = ctx.alloc().buffer();
+            content.writeBytes(message);
+            ctx.writeAndFlush(new Http3DataFrame(content))
+                .addListener(QuicStreamChannel.SHUTDOWN_OUTPUT);
+        }
+
+        private void releaseBody() {
+            if (body != null) {
+                body.release();
+                body = null;
+            }
         }
 
         @Override
         public void channelReadComplete(ChannelHandlerContext ctx) {
             ctx.flush();
         }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            cancelDeadline();
+            releaseBody();
+            super.channelInactive(ctx);
+        }
     }
 }
\ No newline at end of file
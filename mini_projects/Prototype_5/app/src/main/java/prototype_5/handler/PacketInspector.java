@@ -1,67 +1,120 @@
-package java.prototype_5.handler;
+package prototype_5.handler;
+
+import prototype_5.server.FlightRecorder;
+import prototype_5.server.StartupMetrics;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
+
 public class PacketInspector extends ChannelInboundHandlerAdapter {
     private static final Logger logger = LoggerFactory.getLogger(PacketInspector.class);
     
+    public static final int UNKNOWN = 0;
+    public static final int STUN = 1;
+    public static final int QUIC = 2;
+    
     private static final int STUN_MAGIC_COOKIE = 0x2112A442;
     
+    private final FlightRecorder recorder;
+    
+    public PacketInspector() {
+        this(null);
+    }
+    
+    /**
+     * @param recorder records each datagram with the classification made here, or null;
+     *                 pair it with {@link PacketRecorder#outboundOnly} at the head of the pipeline
+     */
+    public PacketInspector(FlightRecorder recorder) {
+        this.recorder = recorder;
+    }
+    
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        if (!(msg instanceof ByteBuf)) {
-            ctx.fireChannelRead(msg);
-            return;
-        }
+        StartupMetrics.packetHandled();
         
-        ByteBuf buf = (ByteBuf) msg;
-        if (!buf.isReadable(4)) {
+        // a datagram channel delivers DatagramPackets; keep the sender so a STUN answer
+        // can be addressed to it whichever family it came from
+        if (!(msg instanceof DatagramPacket)) {
             ctx.fireChannelRead(msg);
             return;
         }
         
-        buf.markReaderIndex();
-        
-       
-        int firstByte = buf.readByte() & 0xFF;
-        
-        if ((firstByte & 0xC0) != 0) {
-            buf.resetReaderIndex();
-            logger.debug("Detected QUIC/HTTP3 packet");
-            ctx.fireChannelRead(msg);
-            return;
+        DatagramPacket packet = (DatagramPacket) msg;
+        int classification = classify(packet.content());
+        if (recorder != null) {
+            PacketRecorder.recordInbound(recorder, ctx, packet, classification);
         }
-        
-        buf.skipBytes(3);
-        
-        if (buf.readableBytes() >= 4) {
-            int magicCookie = buf.readInt();
-            if (magicCookie == STUN_MAGIC_COOKIE) {
-                buf.resetReaderIndex();
+        switch (classification) {
+            case QUIC:
+                logger.debug("Detected QUIC/HTTP3 packet");
+                ctx.fireChannelRead(msg);
+                break;
+            case STUN:
                 logger.debug("Detected STUN packet");
-                ctx.fireChannelRead(new StunPacketMarker(buf.retain()));
-                return;
-            }
+                ctx.fireChannelRead(new StunPacketMarker(packet.content(), packet.sender()));
+                break;
+            default:
+                logger.debug("Forwarding to HTTP3/QUIC handler");
+                ctx.fireChannelRead(msg);
+        }
+    }
+    
+    /**
+     * Tells STUN from QUIC by the first byte, whose two high bits are zero for STUN and
+     * not for QUIC, and by the STUN magic cookie. The buffer is not consumed.
+     *
+     * @return {@link #STUN}, {@link #QUIC}, or {@link #UNKNOWN} for anything else
+     */
+    public static int classify(ByteBuf buf) {
+        if (!buf.isReadable(4)) {
+            return UNKNOWN;
+        }
+        int start = buf.readerIndex();
+        if ((buf.getUnsignedByte(start) & 0xC0) != 0) {
+            return QUIC;
+        }
+        if (buf.isReadable(8) && buf.getInt(start + 4) == STUN_MAGIC_COOKIE) {
+            return STUN;
+        }
+        return UNKNOWN;
+    }
+    
+    /**
+     * @return a name for a {@link #classify} result
+     */
+    public static String describe(int classification) {
+        switch (classification) {
+            case STUN:
+                return "STUN";
+            case QUIC:
+                return "QUIC";
+            default:
+                return "unknown";
         }
-        
-        buf.resetReaderIndex();
-        logger.debug("Forwarding to HTTP3/QUIC handler");
-        ctx.fireChannelRead(msg);
     }
     
     public static class StunPacketMarker {
         private final ByteBuf content;
+        private final InetSocketAddress sender;
         
-        public StunPacketMarker(ByteBuf content) {
+        public StunPacketMarker(ByteBuf content, InetSocketAddress sender) {
             this.content = content;
+            this.sender = sender;
         }
         
         public ByteBuf content() {
             return content;
         }
+        
+        public InetSocketAddress sender() {
+            return sender;
+        }
     }
 }
\ No newline at end of file
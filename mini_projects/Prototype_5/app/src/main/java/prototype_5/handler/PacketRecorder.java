@@ -0,0 +1,83 @@
+package prototype_5.handler;
+
+import prototype_5.server.FlightRecorder;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.net.SocketAddress;
+
+/**
+ * Hands every datagram read from or written to a UDP channel to the {@link FlightRecorder}.
+ * Sits at the head of the pipeline so it sees packets as they are on the wire, before
+ * they are taken apart on the way in and after they are built on the way out.
+ * <p>
+ * Where a {@link PacketInspector} classifies what is read anyway, it records inbound
+ * packets itself with that classification, and the recorder in front of it is created
+ * with {@link #outboundOnly} so no packet is classified twice.
+ */
+@ChannelHandler.Sharable
+public class PacketRecorder extends ChannelDuplexHandler {
+    private final FlightRecorder recorder;
+    private final boolean recordInbound;
+
+    public PacketRecorder(FlightRecorder recorder) {
+        this(recorder, true);
+    }
+
+    private PacketRecorder(FlightRecorder recorder, boolean recordInbound) {
+        this.recorder = recorder;
+        this.recordInbound = recordInbound;
+    }
+
+    /**
+     * @return a recorder for written packets only, for a pipeline whose {@link PacketInspector} records what is read
+     */
+    public static PacketRecorder outboundOnly(FlightRecorder recorder) {
+        return new PacketRecorder(recorder, false);
+    }
+
+    /**
+     * Records a datagram that was read, as classified by the caller
+     */
+    static void recordInbound(FlightRecorder recorder, ChannelHandlerContext ctx, DatagramPacket packet,
+                              int classification) {
+        SocketAddress recipient = packet.recipient() != null ? packet.recipient() : ctx.channel().localAddress();
+        recorder.record(FlightRecorder.INBOUND, classification, packet.sender(), recipient, packet.content());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (recordInbound && msg instanceof DatagramPacket) {
+            DatagramPacket packet = (DatagramPacket) msg;
+            recordInbound(recorder, ctx, packet, PacketInspector.classify(packet.content()));
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        recorder.endBatch();
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof DatagramPacket) {
+            DatagramPacket packet = (DatagramPacket) msg;
+            SocketAddress sender = packet.sender() != null ? packet.sender() : ctx.channel().localAddress();
+            recorder.record(FlightRecorder.OUTBOUND, PacketInspector.classify(packet.content()),
+                sender, packet.recipient(), packet.content());
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        recorder.endBatch();
+        ctx.flush();
+    }
+}
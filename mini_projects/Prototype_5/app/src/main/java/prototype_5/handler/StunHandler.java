@@ -1,10 +1,12 @@
-package java.prototype_5.handler;
+package prototype_5.handler;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
 import org.ice4j.StunException;
+import org.ice4j.Transport;
+import org.ice4j.TransportAddress;
 import org.ice4j.message.Message;
 import org.ice4j.message.MessageFactory;
 import org.ice4j.message.Response;
@@ -18,8 +20,8 @@ public class StunHandler extends SimpleChannelInboundHandler<PacketInspector.Stu
     private static final Logger logger = LoggerFactory.getLogger(StunHandler.class);
     private final StunStack stunStack;
     
-    public StunHandler() {
-        this.stunStack = new StunStack();
+    public StunHandler(StunStack stunStack) {
+        this.stunStack = stunStack;
     }
     
     @Override
@@ -35,20 +37,23 @@ public class StunHandler extends SimpleChannelInboundHandler<PacketInspector.Stu
             if (stunMessage instanceof Response) {
                 logger.debug("Received STUN response, forwarding to client");
             } else {
+                // the mapped address is the sender as seen on this socket, IPv4 or IPv6;
+                // ice4j XORs IPv6 addresses with the transaction id as RFC 5389 requires
+                InetSocketAddress clientAddress = msg.sender();
                 Response response = stunStack.getServerResponseFactory()
-                    .createBindingResponse(stunMessage, new InetSocketAddress(0));
+                    .createBindingResponse(stunMessage, new TransportAddress(clientAddress, Transport.UDP));
                 
                 byte[] responseBytes = response.encode();
                 
                 ByteBuf responseBuf = ctx.alloc().buffer(responseBytes.length);
                 responseBuf.writeBytes(responseBytes);
                 
-                InetSocketAddress clientAddress = (InetSocketAddress) ctx.channel().remoteAddress();
-                
                 if (ctx.channel().isActive()) {
                     DatagramPacket packet = new DatagramPacket(responseBuf, clientAddress);
                     ctx.writeAndFlush(packet);
                     logger.debug("Sent STUN response to {}", clientAddress);
+                } else {
+                    responseBuf.release();
                 }
             }
         } catch (StunException e) {
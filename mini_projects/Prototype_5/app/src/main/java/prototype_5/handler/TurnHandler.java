@@ -0,0 +1,48 @@
+package prototype_5.handler;
+
+import prototype_5.cluster.ClusterNode;
+import prototype_5.turn.TurnMessages;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+
+/**
+ * Takes TURN traffic off the public socket and hands it to the {@link ClusterNode}, which
+ * relays it here or passes it to the node that owns the client's allocation. STUN Binding
+ * requests go on to the {@link StunHandler} and everything else to QUIC.
+ * <p>
+ * ChannelData starts with the same bits as a QUIC short header packet (RFC 9443), so it is
+ * only taken from senders that have already sent this node a TURN message. Runs on the
+ * public socket's I/O loop; the cluster node moves TURN packets to its own executor.
+ */
+public class TurnHandler extends ChannelInboundHandlerAdapter {
+    private final ClusterNode cluster;
+
+    public TurnHandler(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        cluster.setPublicContext(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof PacketInspector.StunPacketMarker) {
+            PacketInspector.StunPacketMarker stun = (PacketInspector.StunPacketMarker) msg;
+            if (TurnMessages.isTurn(stun.content())) {
+                cluster.fromClient(stun.sender(), stun.content(), true);
+                return;
+            }
+        } else if (msg instanceof DatagramPacket) {
+            DatagramPacket packet = (DatagramPacket) msg;
+            if (TurnMessages.isChannelData(packet.content()) && cluster.isClient(packet.sender())) {
+                cluster.fromClient(packet.sender(), packet.content(), false);
+                return;
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+}
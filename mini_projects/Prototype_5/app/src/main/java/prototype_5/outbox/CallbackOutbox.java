@@ -0,0 +1,277 @@
+package prototype_5.outbox;
+
+import prototype_5.beckn.BecknContext;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Holds Beckn {@code on_*} callbacks for peers that cannot be reached right now and
+ * delivers them, oldest first, once the peer's address is known again.
+ * <p>
+ * Every callback is written to the {@link SegmentLog} before delivery is attempted, so
+ * one that is accepted survives a restart until the peer acknowledges it with a 2xx.
+ * Each peer has at most one callback in flight, which keeps them in order. A failed
+ * connection, a timeout, or any answer other than a 2xx or a client error pauses the
+ * peer's queue until {@link #peerAvailable} is called again, typically because its NAT
+ * mapping was renewed or a discovery lookup returned a new address. A client error other
+ * than 408 or 429 is final, so that callback is dropped. A crash between delivery and
+ * acknowledgement means one callback is sent twice, which the receiver's request
+ * de-duplication absorbs.
+ * <p>
+ * Callbacks are sent with {@link #answer}, which addresses them to the subscriber URL of
+ * the request they answer, and the request handler reports every verified message through
+ * {@link #peerAvailable}, since a peer that has just reached us is likely reachable again.
+ * <p>
+ * Per-peer state is only touched on one executor, as in
+ * {@link prototype_5.beckn.SearchFanOut}. The callbacks themselves go out through a
+ * {@link Sender}, over HTTP/3 with {@link Http3CallbackSender}.
+ */
+public class CallbackOutbox implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(CallbackOutbox.class);
+
+    private static final long DELIVERY_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Posts one callback to a peer
+     */
+    public interface Sender {
+        /**
+         * @return completes with the HTTP status the peer answered with, or exceptionally if
+         * it did not answer; cancelled when the outbox stops waiting for it
+         */
+        CompletableFuture<Integer> send(InetSocketAddress address, SegmentLog.Message message);
+    }
+
+    private final SegmentLog log;
+    private final Sender sender;
+    private final EventExecutor executor;
+    private final Map<String, Peer> peers = new HashMap<>();
+
+    /**
+     * @param log where callbacks are kept until delivered; whatever it recovered is queued again
+     * @param sender posts callbacks to peers
+     * @param executor runs all delivery bookkeeping; not an I/O loop, since reading a callback
+     *                 back from the log and acknowledging it touch the mapped segments
+     */
+    public CallbackOutbox(SegmentLog log, Sender sender, EventExecutor executor) {
+        this.log = log;
+        this.sender = sender;
+        this.executor = executor;
+        executor.execute(() -> {
+            for (SegmentLog.Entry entry : log.pending()) {
+                peer(entry.getPeer()).queue.put(entry.getSequence(), entry);
+            }
+        });
+    }
+
+    /**
+     * Sends the {@code on_*} callback answering a request to the subscriber that made it,
+     * at the subscriber URL the request gave, and keeps it until that subscriber takes it
+     *
+     * @param request the context of the request being answered
+     * @param authorization the callback's Beckn Authorization header
+     * @param body the signed callback
+     * @return completes once the callback is on disk
+     */
+    public CompletableFuture<Void> answer(BecknContext request, CharSequence authorization, byte[] body) {
+        String action = request.getCallbackAction();
+        if (request.getSender() == null || action == null) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException("Nothing to answer in " + request));
+            return failed;
+        }
+        InetSocketAddress address = address(request.getSenderUri());
+        if (address != null) {
+            peerAvailable(request.getSender(), address);
+        }
+        return enqueue(request.getSender(), "/" + action, authorization, body);
+    }
+
+    /**
+     * Queues a callback and starts delivering it if the peer's address is known
+     *
+     * @param peer the receiving subscriber
+     * @param path the callback path, e.g. {@code /on_search}
+     * @param authorization the callback's Beckn Authorization header, or null
+     * @param body the signed callback
+     * @return completes once the callback is on disk
+     */
+    public CompletableFuture<Void> enqueue(String peer, String path, CharSequence authorization, byte[] body) {
+        SegmentLog.Entry entry;
+        try {
+            entry = log.append(peer, path, authorization != null ? authorization.toString() : null, body);
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        executor.execute(() -> {
+            Peer state = peer(peer);
+            state.queue.put(entry.getSequence(), entry);
+            pump(state);
+        });
+        return entry.durable();
+    }
+
+    /**
+     * Records where a peer can be reached and replays its pending callbacks there
+     */
+    public void peerAvailable(String peer, InetSocketAddress address) {
+        executor.execute(() -> {
+            Peer state = peer(peer);
+            state.address = address;
+            state.paused = false;
+            pump(state);
+        });
+    }
+
+    /**
+     * Resolves a subscriber URL to the address its HTTP/3 endpoint listens on
+     *
+     * @param subscriberUri the URL, e.g. {@code https://bap.example:8443/beckn}
+     * @return the address, or null if the URL is missing, malformed or does not resolve
+     */
+    public static InetSocketAddress address(String subscriberUri) {
+        if (subscriberUri == null) {
+            return null;
+        }
+        try {
+            URI uri = new URI(subscriberUri);
+            if (uri.getHost() == null) {
+                return null;
+            }
+            InetSocketAddress address = new InetSocketAddress(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 443);
+            return address.isUnresolved() ? null : address;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Forces pending callbacks to disk; undelivered ones are replayed after the next start
+     */
+    @Override
+    public void close() {
+        log.close();
+    }
+
+    private Peer peer(String peer) {
+        return peers.computeIfAbsent(peer, Peer::new);
+    }
+
+    private void pump(Peer peer) {
+        if (peer.inFlight != null || peer.paused || peer.address == null || peer.queue.isEmpty()) {
+            return;
+        }
+        peer.inFlight = new Delivery(peer, peer.queue.firstEntry().getValue());
+        peer.inFlight.send();
+    }
+
+    private void onExecutor(Runnable task) {
+        if (executor.inEventLoop()) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * One peer's queue; only touched on the outbox executor
+     */
+    private static final class Peer {
+        final String id;
+        final TreeMap<Long, SegmentLog.Entry> queue = new TreeMap<>();
+        InetSocketAddress address;
+        Delivery inFlight;
+        boolean paused;
+
+        Peer(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * One attempt to deliver one callback; {@link #finish} runs exactly once
+     */
+    private final class Delivery {
+        final Peer peer;
+        final SegmentLog.Entry entry;
+        final InetSocketAddress address;
+        ScheduledFuture<?> timeout;
+        CompletableFuture<Integer> result;
+        boolean finished;
+
+        Delivery(Peer peer, SegmentLog.Entry entry) {
+            this.peer = peer;
+            this.entry = entry;
+            this.address = peer.address;
+        }
+
+        void send() {
+            timeout = executor.schedule(() -> fail(new TimeoutException()), DELIVERY_TIMEOUT_MILLIS,
+                TimeUnit.MILLISECONDS);
+            result = sender.send(address, log.read(entry));
+            result.whenComplete((status, cause) -> onExecutor(() -> {
+                if (cause != null) {
+                    fail(cause);
+                } else {
+                    complete(status);
+                }
+            }));
+        }
+
+        void complete(int status) {
+            if (status >= 200 && status < 300) {
+                finish(true, false);
+            } else if (status >= 400 && status < 500 && status != 408 && status != 429) {
+                logger.warn("Callback {} to {} rejected with {}, dropping it", entry.getSequence(), peer.id, status);
+                finish(true, false);
+            } else {
+                logger.debug("Callback {} to {} answered {}, pausing", entry.getSequence(), peer.id, status);
+                finish(false, true);
+            }
+        }
+
+        void fail(Throwable cause) {
+            logger.debug("Callback {} to {} at {} failed: {}", entry.getSequence(), peer.id, address, cause.toString());
+            finish(false, true);
+        }
+
+        private void finish(boolean done, boolean pause) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            timeout.cancel(false);
+            result.cancel(false);
+            peer.inFlight = null;
+
+            if (done) {
+                peer.queue.remove(entry.getSequence());
+                try {
+                    log.acknowledge(entry);
+                } catch (IOException e) {
+                    // delivered all the same; at worst it is sent again after a restart
+                    logger.warn("Could not record delivery of callback {}: {}", entry.getSequence(), e.getMessage());
+                }
+            }
+            // a newer address may have arrived while this attempt was running
+            peer.paused = pause && address.equals(peer.address);
+            pump(peer);
+        }
+    }
+}
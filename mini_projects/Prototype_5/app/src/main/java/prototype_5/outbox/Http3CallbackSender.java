@@ -0,0 +1,124 @@
+package prototype_5.outbox;
+
+import prototype_5.client.PeerConnectionPool;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.incubator.codec.http3.DefaultHttp3DataFrame;
+import io.netty.incubator.codec.http3.DefaultHttp3HeadersFrame;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.http3.Http3DataFrame;
+import io.netty.incubator.codec.http3.Http3HeadersFrame;
+import io.netty.incubator.codec.http3.Http3RequestStreamInboundHandler;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.AUTHORIZATION;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpHeaderValues.APPLICATION_JSON;
+
+/**
+ * Posts callbacks over pooled HTTP/3 connections. The request stream is closed once the
+ * result completes, whether by the peer's answer, a failure, or the outbox cancelling it.
+ */
+public class Http3CallbackSender implements CallbackOutbox.Sender {
+    private final PeerConnectionPool pool;
+
+    public Http3CallbackSender(PeerConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public CompletableFuture<Integer> send(InetSocketAddress address, SegmentLog.Message message) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        pool.connect(address).addListener(connected -> {
+            if (!connected.isSuccess()) {
+                result.completeExceptionally(connected.cause());
+                return;
+            }
+            if (result.isDone()) {
+                return;
+            }
+            QuicChannel connection = (QuicChannel) connected.getNow();
+            Http3.newRequestStream(connection, new StatusCollector(result)).addListener(opened -> {
+                if (!opened.isSuccess()) {
+                    result.completeExceptionally(opened.cause());
+                    return;
+                }
+                QuicStreamChannel stream = (QuicStreamChannel) opened.getNow();
+                // runs at once if the outbox has already given up on this attempt
+                result.whenComplete((status, cause) -> stream.close());
+                if (result.isDone()) {
+                    return;
+                }
+
+                Http3HeadersFrame headers = new DefaultHttp3HeadersFrame();
+                headers.headers()
+                    .method("POST")
+                    .path(message.getPath())
+                    .scheme("https")
+                    .authority(address.getHostString() + ":" + address.getPort())
+                    .set(CONTENT_TYPE, APPLICATION_JSON);
+                if (message.getAuthorization() != null) {
+                    headers.headers().set(AUTHORIZATION, message.getAuthorization());
+                }
+                stream.write(headers);
+                stream.writeAndFlush(new DefaultHttp3DataFrame(Unpooled.wrappedBuffer(message.getBody())))
+                    .addListener(QuicStreamChannel.SHUTDOWN_OUTPUT);
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Reads the status of a peer's answer to a callback and discards the body
+     */
+    private static final class StatusCollector extends Http3RequestStreamInboundHandler {
+        private final CompletableFuture<Integer> result;
+        private int status;
+
+        StatusCollector(CompletableFuture<Integer> result) {
+            this.result = result;
+        }
+
+        @Override
+        protected void channelRead(ChannelHandlerContext ctx, Http3HeadersFrame headersFrame, boolean isLast) {
+            CharSequence value = headersFrame.headers().status();
+            if (value != null) {
+                status = Integer.parseInt(value.toString());
+            }
+            if (isLast) {
+                report(ctx);
+            }
+        }
+
+        @Override
+        protected void channelRead(ChannelHandlerContext ctx, Http3DataFrame dataFrame, boolean isLast) {
+            dataFrame.release();
+            if (isLast) {
+                report(ctx);
+            }
+        }
+
+        private void report(ChannelHandlerContext ctx) {
+            result.complete(status);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            result.completeExceptionally(new ClosedChannelException());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            result.completeExceptionally(cause);
+            ctx.close();
+        }
+    }
+}
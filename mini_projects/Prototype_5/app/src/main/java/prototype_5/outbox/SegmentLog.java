@@ -0,0 +1,622 @@
+package prototype_5.outbox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of outgoing messages in fixed-size memory-mapped segment files.
+ * <p>
+ * An append copies the record into the mapped active segment under a short lock, so
+ * enqueueing costs a memory copy rather than a system call. Durability is batched: a
+ * background thread forces the dirty segments every sync interval and completes the
+ * futures of everything written before the force, so one fsync covers however many
+ * appends arrived in between. Delivered messages are marked with an acknowledgement
+ * record in the same log.
+ * <p>
+ * Each record is {@code length, CRC32C, sequence, type, payload}, the length covering the
+ * whole record so that zero always means unwritten space. Recovery scans the
+ * segments in order and stops a segment at the first record that is zero-length, runs
+ * past the end or fails its checksum; in the newest segment that is where appending
+ * resumes, after the torn tail is zeroed. Messages without an acknowledgement are
+ * pending again.
+ * <p>
+ * Forces never hold the lock, so an append does not wait for the disk, and a segment that
+ * is rolled away from stays dirty until the sync thread forces it with the rest.
+ * <p>
+ * Compaction happens on the sync thread and only ever removes the oldest segment: once
+ * no more than half of its bytes are unacknowledged messages, or no more than half of the
+ * whole log's, those are copied to the active segment with their original sequence
+ * numbers, the copies are forced, and the segment is deleted. The second condition keeps
+ * a segment full of long-pending messages from holding back the acknowledged ones behind
+ * it, while a log that is mostly pending is left alone instead of being rewritten. A crash
+ * between copying and deleting leaves two copies of a message, which recovery folds
+ * together by sequence number. Because acknowledgements are only written for live
+ * messages, and a copy is always made before any later acknowledgement of it, deleting
+ * the oldest segment never loses an acknowledgement that is still needed.
+ */
+public class SegmentLog implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentLog.class);
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{10})\\.log");
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 1;
+    private static final byte MESSAGE = 1;
+    private static final byte ACK = 2;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<Long, Entry> live = new HashMap<>();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private final CRC32C crc = new CRC32C();
+    private final ScheduledExecutorService syncer;
+    private Segment active;
+    private long nextSequence = 1;
+    private long written;
+    private boolean closed;
+
+    /**
+     * Opens the log, recovering whatever is in {@code directory}
+     *
+     * @param directory where the segment files live; created if missing
+     * @param segmentBytes the size of each segment file, which bounds the largest message
+     * @param syncIntervalMillis how often appends are forced to disk
+     */
+    public SegmentLog(File directory, int segmentBytes, long syncIntervalMillis) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create outbox directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        recover();
+
+        syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbox-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::maintain, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends a message
+     *
+     * @param peer who the message is for
+     * @param path the request path it is delivered to
+     * @param authorization the message's Authorization header, or null
+     * @param body the message body
+     * @return the pending entry; {@link Entry#durable()} completes once it is on disk
+     * @throws IllegalArgumentException if the message does not fit in a segment
+     */
+    public Entry append(String peer, String path, String authorization, byte[] body) throws IOException {
+        byte[] payload = encode(peer, path, authorization, body);
+        if (HEADER_BYTES + payload.length > segmentBytes) {
+            throw new IllegalArgumentException("Message of " + body.length + " bytes does not fit in a segment");
+        }
+        lock.lock();
+        try {
+            ensureOpen();
+            Entry entry = new Entry(nextSequence++, peer);
+            write(MESSAGE, entry.sequence, payload, entry);
+            live.put(entry.sequence, entry);
+            waiters.add(new Waiter(written, entry.durable));
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a message as delivered so it is not pending after a restart. Repeated calls
+     * are ignored.
+     */
+    public void acknowledge(Entry entry) throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            if (live.remove(entry.sequence) == null) {
+                return;
+            }
+            entry.segment.liveBytes -= entry.length;
+            write(ACK, entry.sequence, new byte[0], null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a pending message back
+     */
+    public Message read(Entry entry) {
+        lock.lock();
+        try {
+            ByteBuffer record = entry.segment.buffer.duplicate();
+            record.position(entry.offset + HEADER_BYTES).limit(entry.offset + entry.length);
+            return decode(entry, record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return every unacknowledged message in sequence order, i.e. the order they were appended
+     */
+    public List<Entry> pending() {
+        lock.lock();
+        try {
+            List<Entry> entries = new ArrayList<>(live.values());
+            entries.sort(Comparator.comparingLong(Entry::getSequence));
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of segment files, for inspection
+     */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk and stops the sync thread
+     */
+    @Override
+    public void close() {
+        syncer.shutdown();
+        try {
+            syncer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        lock.lock();
+        try {
+            closed = true;
+            for (Waiter waiter : waiters) {
+                waiter.future.completeExceptionally(new IOException("Outbox closed"));
+            }
+            waiters.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Outbox closed");
+        }
+    }
+
+    /**
+     * Writes one record at the end of the active segment, rolling to a new one if it does
+     * not fit. Called with the lock held.
+     */
+    private void write(byte type, long sequence, byte[] payload, Entry entry) throws IOException {
+        int length = HEADER_BYTES + payload.length;
+        if (active.position + length > segmentBytes) {
+            roll();
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int offset = active.position;
+
+        crc.reset();
+        ByteBuffer checked = ByteBuffer.allocate(9).putLong(sequence).put(type);
+        crc.update(checked.array(), 0, 9);
+        crc.update(payload, 0, payload.length);
+
+        buffer.position(offset + 4);
+        buffer.putInt((int) crc.getValue()).putLong(sequence).put(type).put(payload);
+        // length last, so a record is invisible to recovery until it is complete in memory
+        buffer.putInt(offset, length);
+        active.position = offset + length;
+        active.dirty = true;
+        written++;
+
+        if (entry != null) {
+            entry.segment = active;
+            entry.offset = offset;
+            entry.length = length;
+            active.liveBytes += length;
+        }
+    }
+
+    private void roll() throws IOException {
+        // the old segment stays dirty; the sync thread forces it along with the new one
+        active = createSegment(active.index + 1);
+    }
+
+    /**
+     * Runs on the sync thread: forces appends, completes the durable futures they cover,
+     * then compacts the oldest segment if it has become mostly acknowledged
+     */
+    private void maintain() {
+        try {
+            sync();
+            compact();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Outbox maintenance failed", e);
+        }
+    }
+
+    private void sync() {
+        List<Segment> dirty = new ArrayList<>();
+        long covered;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                }
+            }
+            if (dirty.isEmpty()) {
+                return;
+            }
+            covered = written;
+        } finally {
+            lock.unlock();
+        }
+
+        // outside the lock so appends carry on while the pages are written out
+        for (Segment segment : dirty) {
+            segment.buffer.force();
+        }
+
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        lock.lock();
+        try {
+            while (!waiters.isEmpty() && waiters.peek().written <= covered) {
+                done.add(waiters.poll().future);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (CompletableFuture<Void> future : done) {
+            future.complete(null);
+        }
+    }
+
+    private void compact() throws IOException {
+        Segment oldest;
+        int copied = 0;
+        lock.lock();
+        try {
+            oldest = segments.firstEntry().getValue();
+            if (closed || oldest == active || !isWorthCompacting(oldest)) {
+                return;
+            }
+            if (oldest.liveBytes > 0) {
+                List<Entry> moving = new ArrayList<>();
+                for (Entry entry : live.values()) {
+                    if (entry.segment == oldest) {
+                        moving.add(entry);
+                    }
+                }
+                moving.sort(Comparator.comparingLong(Entry::getSequence));
+                for (Entry entry : moving) {
+                    ByteBuffer record = oldest.buffer.duplicate();
+                    record.position(entry.offset + HEADER_BYTES).limit(entry.offset + entry.length);
+                    byte[] payload = new byte[record.remaining()];
+                    record.get(payload);
+                    write(MESSAGE, entry.sequence, payload, entry);
+                    copied++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // the copies must be on disk before the originals go; compaction is only ever on
+        // this thread, so the segment cannot change underneath while the lock is released
+        if (copied > 0) {
+            sync();
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            segments.remove(oldest.index);
+        } finally {
+            lock.unlock();
+        }
+        logger.debug("Compacted outbox segment {}, {} pending message(s) moved", oldest.index, copied);
+        if (!oldest.file.delete()) {
+            logger.warn("Could not delete compacted outbox segment {}", oldest.file);
+        }
+    }
+
+    private boolean isWorthCompacting(Segment oldest) {
+        if (oldest.liveBytes * 2 <= oldest.position) {
+            return true;
+        }
+        long liveBytes = 0;
+        long usedBytes = 0;
+        for (Segment segment : segments.values()) {
+            liveBytes += segment.liveBytes;
+            usedBytes += segment.position;
+        }
+        return liveBytes * 2 <= usedBytes;
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        TreeMap<Integer, File> found = new TreeMap<>();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    found.put(Integer.parseInt(matcher.group(1)), file);
+                }
+            }
+        }
+
+        Set<Long> acknowledged = new HashSet<>();
+        long highest = 0;
+        for (Map.Entry<Integer, File> file : found.entrySet()) {
+            Segment segment = new Segment(file.getKey(), file.getValue(), map(file.getValue()));
+            segments.put(segment.index, segment);
+            highest = Math.max(highest, scan(segment, acknowledged, file.getKey().equals(found.lastKey())));
+        }
+        for (Long sequence : acknowledged) {
+            live.remove(sequence);
+        }
+        for (Entry entry : live.values()) {
+            entry.segment.liveBytes += entry.length;
+        }
+        nextSequence = highest + 1;
+
+        active = segments.isEmpty() ? createSegment(0) : segments.lastEntry().getValue();
+        if (!found.isEmpty()) {
+            logger.info("Recovered outbox from {} segment(s): {} pending message(s)", found.size(), live.size());
+        }
+    }
+
+    /**
+     * Reads one segment's records into {@link #live} and {@code acknowledged}
+     *
+     * @param newest whether this is the segment appends continue in
+     * @return the highest sequence number seen
+     */
+    private long scan(Segment segment, Set<Long> acknowledged, boolean newest) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        long highest = 0;
+        while (position + HEADER_BYTES <= segmentBytes) {
+            int length = buffer.getInt(position);
+            if (length < HEADER_BYTES || length > segmentBytes - position) {
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + 8).limit(position + length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+
+            long sequence = record.getLong();
+            byte type = record.get();
+            highest = Math.max(highest, sequence);
+            if (type == ACK) {
+                acknowledged.add(sequence);
+            } else if (type == MESSAGE) {
+                String peer = readString(record);
+                Entry entry = new Entry(sequence, peer);
+                entry.segment = segment;
+                entry.offset = position;
+                entry.length = length;
+                entry.durable.complete(null);
+                // a later copy made by compaction supersedes the original
+                live.put(sequence, entry);
+            }
+            position += length;
+        }
+        segment.position = position;
+
+        // a record cut short leaves bytes behind the last good one; clear them so a
+        // shorter record appended there later cannot be followed by stale data
+        if (newest && !isZero(buffer, position)) {
+            logger.warn("Outbox segment {} has a torn record at offset {}, discarding it", segment.index, position);
+            for (int i = position; i < segmentBytes; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.force();
+        }
+        return highest;
+    }
+
+    private boolean isZero(MappedByteBuffer buffer, int from) {
+        for (int i = from; i < segmentBytes; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Segment createSegment(int index) throws IOException {
+        File file = new File(directory, String.format("segment-%010d.log", index));
+        Segment segment = new Segment(index, file, map(file));
+        segments.put(index, segment);
+        // make the new file's directory entry durable too
+        try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            logger.debug("Directory fsync not supported: {}", e.getMessage());
+        }
+        return segment;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private static byte[] encode(String peer, String path, String authorization, byte[] body) {
+        byte[] peerBytes = peer.getBytes(StandardCharsets.UTF_8);
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        byte[] authorizationBytes = authorization != null
+            ? authorization.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteBuffer payload = ByteBuffer.allocate(3 * 4 + peerBytes.length + pathBytes.length
+            + authorizationBytes.length + 4 + body.length);
+        payload.putInt(peerBytes.length).put(peerBytes)
+            .putInt(pathBytes.length).put(pathBytes)
+            .putInt(authorizationBytes.length).put(authorizationBytes)
+            .putInt(body.length).put(body);
+        return payload.array();
+    }
+
+    private static Message decode(Entry entry, ByteBuffer record) {
+        String peer = readString(record);
+        String path = readString(record);
+        String authorization = readString(record);
+        byte[] body = new byte[record.getInt()];
+        record.get(body);
+        return new Message(entry.sequence, peer, path, authorization.isEmpty() ? null : authorization, body);
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Segment {
+        final int index;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position;
+        int liveBytes;
+        boolean dirty;
+
+        Segment(int index, File file, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Waiter {
+        final long written;
+        final CompletableFuture<Void> future;
+
+        Waiter(long written, CompletableFuture<Void> future) {
+            this.written = written;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A pending message's place in the log; the message itself is read back with
+     * {@link #read(Entry)}
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final String peer;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+        private Segment segment;
+        private int offset;
+        private int length;
+
+        Entry(long sequence, String peer) {
+            this.sequence = sequence;
+            this.peer = peer;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getPeer() {
+            return peer;
+        }
+
+        /**
+         * @return completes once the message has been forced to disk
+         */
+        public CompletableFuture<Void> durable() {
+            return durable;
+        }
+    }
+
+    /**
+     * A message as it was appended
+     */
+    public static final class Message {
+        private final long sequence;
+        private final String peer;
+        private final String path;
+        private final String authorization;
+        private final byte[] body;
+
+        Message(long sequence, String peer, String path, String authorization, byte[] body) {
+            this.sequence = sequence;
+            this.peer = peer;
+            this.path = path;
+            this.authorization = authorization;
+            this.body = body;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getPeer() {
+            return peer;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the Authorization header, or null if there was none
+         */
+        public String getAuthorization() {
+            return authorization;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
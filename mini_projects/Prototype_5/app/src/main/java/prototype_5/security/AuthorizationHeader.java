@@ -0,0 +1,130 @@
+package prototype_5.security;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parsed form of a Beckn {@code Authorization} header:
+ * <pre>
+ * Signature keyId="{subscriber_id}|{unique_key_id}|ed25519",algorithm="ed25519",
+ *     created="1641287875",expires="1641291475",headers="(created) (expires) digest",signature="..."
+ * </pre>
+ */
+public final class AuthorizationHeader {
+    private static final String SCHEME = "Signature ";
+
+    private final String keyId;
+    private final String subscriberId;
+    private final String uniqueKeyId;
+    private final long created;
+    private final long expires;
+    private final String signature;
+
+    private AuthorizationHeader(String keyId, String subscriberId, String uniqueKeyId,
+                                long created, long expires, String signature) {
+        this.keyId = keyId;
+        this.subscriberId = subscriberId;
+        this.uniqueKeyId = uniqueKeyId;
+        this.created = created;
+        this.expires = expires;
+        this.signature = signature;
+    }
+
+    /**
+     * Parses an Authorization header value
+     *
+     * @param value the raw header value
+     * @return the parsed header
+     * @throws SignatureVerificationException if the header is missing or malformed
+     */
+    public static AuthorizationHeader parse(CharSequence value) throws SignatureVerificationException {
+        if (value == null) {
+            throw new SignatureVerificationException("Missing Authorization header");
+        }
+        String header = value.toString().trim();
+        if (!header.startsWith(SCHEME)) {
+            throw new SignatureVerificationException("Unsupported authorization scheme");
+        }
+
+        Map<String, String> params = new HashMap<>();
+        int pos = SCHEME.length();
+        while (pos < header.length()) {
+            int eq = header.indexOf('=', pos);
+            if (eq < 0 || eq + 1 >= header.length() || header.charAt(eq + 1) != '"') {
+                throw new SignatureVerificationException("Malformed Authorization header");
+            }
+            int end = header.indexOf('"', eq + 2);
+            if (end < 0) {
+                throw new SignatureVerificationException("Unterminated Authorization parameter");
+            }
+            params.put(header.substring(pos, eq).trim(), header.substring(eq + 2, end));
+
+            pos = end + 1;
+            while (pos < header.length() && (header.charAt(pos) == ',' || header.charAt(pos) == ' ')) {
+                pos++;
+            }
+        }
+
+        String keyId = require(params, "keyId");
+        String algorithm = params.getOrDefault("algorithm", "ed25519");
+        if (!"ed25519".equalsIgnoreCase(algorithm)) {
+            throw new SignatureVerificationException("Unsupported signature algorithm: " + algorithm);
+        }
+
+        String[] keyParts = keyId.split("\\|");
+        if (keyParts.length < 2) {
+            throw new SignatureVerificationException("Malformed keyId: " + keyId);
+        }
+
+        try {
+            return new AuthorizationHeader(keyId, keyParts[0], keyParts[1],
+                Long.parseLong(require(params, "created")),
+                Long.parseLong(require(params, "expires")),
+                require(params, "signature"));
+        } catch (NumberFormatException e) {
+            throw new SignatureVerificationException("Malformed created/expires timestamp");
+        }
+    }
+
+    private static String require(Map<String, String> params, String name) throws SignatureVerificationException {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new SignatureVerificationException("Missing Authorization parameter: " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Builds the Beckn signing string covered by the signature
+     *
+     * @param digest the base64 BLAKE-512 digest of the request body
+     * @return the signing string
+     */
+    public String signingString(String digest) {
+        return "(created): " + created + "\n(expires): " + expires + "\ndigest: BLAKE-512=" + digest;
+    }
+
+    public String getKeyId() {
+        return keyId;
+    }
+
+    public String getSubscriberId() {
+        return subscriberId;
+    }
+
+    public String getUniqueKeyId() {
+        return uniqueKeyId;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+}
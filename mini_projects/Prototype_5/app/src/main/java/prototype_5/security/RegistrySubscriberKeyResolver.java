@@ -0,0 +1,93 @@
+package prototype_5.security;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+/**
+ * Resolves signing keys with the Beckn registry's {@code lookup} call. Lookups block, which
+ * is fine from the verification pool; {@link SignatureVerifier} caches what they return.
+ */
+public class RegistrySubscriberKeyResolver implements SubscriberKeyResolver {
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final URI lookupUri;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+
+    /**
+     * @param lookupUri the registry's lookup endpoint, e.g. {@code https://registry.example/lookup}
+     */
+    public RegistrySubscriberKeyResolver(URI lookupUri) {
+        this.lookupUri = lookupUri;
+    }
+
+    @Override
+    public String resolveSigningPublicKey(String subscriberId, String uniqueKeyId) throws IOException,
+            InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(lookupUri)
+            .timeout(TIMEOUT)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(lookupBody(subscriberId, uniqueKeyId)))
+            .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Registry lookup for " + subscriberId + " returned " + response.statusCode());
+        }
+        return signingKey(response.body(), subscriberId, uniqueKeyId);
+    }
+
+    private static String lookupBody(String subscriberId, String uniqueKeyId) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = JSON.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeStringField("subscriber_id", subscriberId);
+            generator.writeStringField("unique_key_id", uniqueKeyId);
+            generator.writeEndObject();
+        }
+        return out.toString();
+    }
+
+    /**
+     * Picks the key of the matching subscriber out of the lookup response, an array of
+     * subscriber records; registries name the key id either {@code unique_key_id} or {@code ukId}
+     */
+    private static String signingKey(String body, String subscriberId, String uniqueKeyId) throws IOException {
+        try (JsonParser parser = JSON.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Registry lookup response is not an array");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String subscriber = null;
+                String keyId = null;
+                String key = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (value != JsonToken.VALUE_STRING) {
+                        parser.skipChildren();
+                    } else if ("subscriber_id".equals(field)) {
+                        subscriber = parser.getText();
+                    } else if ("unique_key_id".equals(field) || "ukId".equals(field)) {
+                        keyId = parser.getText();
+                    } else if ("signing_public_key".equals(field)) {
+                        key = parser.getText();
+                    }
+                }
+                if (subscriberId.equals(subscriber) && uniqueKeyId.equals(keyId)) {
+                    return key;
+                }
+            }
+        }
+        return null;
+    }
+}
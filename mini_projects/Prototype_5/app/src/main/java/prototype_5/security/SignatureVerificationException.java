@@ -0,0 +1,7 @@
+package prototype_5.security;
+
+public class SignatureVerificationException extends Exception {
+    public SignatureVerificationException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,280 @@
+package prototype_5.security;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.bouncycastle.crypto.params.Ed25519PublicKeyParameters;
+import org.bouncycastle.crypto.signers.Ed25519Signer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifies Beckn request signatures without stalling the event loops.
+ * <p>
+ * Three layers keep verification cheap: decoded public keys are cached per
+ * subscriber/key id, successful verifications are remembered for a short window so
+ * retransmitted requests skip ed25519 entirely, and cold verifications run on a
+ * bounded worker pool. When that pool is saturated the request fails fast with a
+ * {@link RejectedExecutionException} instead of queueing without limit.
+ */
+public class SignatureVerifier {
+    private static final Logger logger = LoggerFactory.getLogger(SignatureVerifier.class);
+
+    private static final int ED25519_KEY_LENGTH = 32;
+    private static final long CLOCK_SKEW_SECONDS = 5;
+
+    private final SubscriberKeyResolver keyResolver;
+    private final ExecutorService workers;
+    private final int maxCacheEntries;
+    private final long keyTtlMillis;
+    private final long resultTtlMillis;
+
+    private final Map<String, CachedKey> keyCache = new ConcurrentHashMap<>();
+    private final Map<String, Long> verifiedCache = new ConcurrentHashMap<>();
+
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+    private final LongAdder keyHits = new LongAdder();
+    private final LongAdder keyMisses = new LongAdder();
+    private final LongAdder resultHits = new LongAdder();
+    private final LongAdder resultMisses = new LongAdder();
+
+    private long lastReportNanos = System.nanoTime();
+    private long lastReportedVerifications;
+
+    public SignatureVerifier(SubscriberKeyResolver keyResolver, int threads, int queueCapacity) {
+        this(keyResolver, threads, queueCapacity, 10_000, TimeUnit.HOURS.toMillis(1), TimeUnit.SECONDS.toMillis(30));
+    }
+
+    public SignatureVerifier(SubscriberKeyResolver keyResolver, int threads, int queueCapacity,
+                             int maxCacheEntries, long keyTtlMillis, long resultTtlMillis) {
+        this.keyResolver = keyResolver;
+        this.maxCacheEntries = maxCacheEntries;
+        this.keyTtlMillis = keyTtlMillis;
+        this.resultTtlMillis = resultTtlMillis;
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), new DefaultThreadFactory("beckn-verify", true),
+            new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Verifies the signature of a request. The body digest is computed on the calling
+     * thread; a cached verification completes immediately, anything else is handed to
+     * the worker pool.
+     *
+     * @param authorization the Authorization header value, may be null
+     * @param body the complete request body; not retained beyond this call
+     * @return a future completed normally when the signature is valid, or exceptionally with
+     *         {@link SignatureVerificationException} or {@link RejectedExecutionException}
+     */
+    public CompletableFuture<Void> verify(CharSequence authorization, ByteBuf body) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        final AuthorizationHeader header;
+        final String digest;
+        try {
+            header = AuthorizationHeader.parse(authorization);
+            checkValidity(header);
+            digest = digest(body);
+        } catch (SignatureVerificationException e) {
+            rejected.increment();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        String resultKey = header.getKeyId() + '|' + digest + '|' + header.getSignature();
+        Long validUntil = verifiedCache.get(resultKey);
+        if (validUntil != null && validUntil > System.currentTimeMillis()) {
+            resultHits.increment();
+            verified.increment();
+            result.complete(null);
+            return result;
+        }
+        resultMisses.increment();
+
+        try {
+            workers.execute(() -> {
+                try {
+                    verifyCold(header, digest);
+                    long expiresMillis = TimeUnit.SECONDS.toMillis(header.getExpires());
+                    remember(verifiedCache, resultKey, Math.min(expiresMillis, System.currentTimeMillis() + resultTtlMillis));
+                    verified.increment();
+                    result.complete(null);
+                } catch (SignatureVerificationException e) {
+                    rejected.increment();
+                    result.completeExceptionally(e);
+                } catch (Exception e) {
+                    rejected.increment();
+                    logger.warn("Signature verification failed for {}", header.getKeyId(), e);
+                    result.completeExceptionally(new SignatureVerificationException("Verification failed: " + e.getMessage()));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            overloaded.increment();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void checkValidity(AuthorizationHeader header) throws SignatureVerificationException {
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        if (header.getCreated() > now + CLOCK_SKEW_SECONDS) {
+            throw new SignatureVerificationException("Signature created in the future");
+        }
+        if (header.getExpires() < now - CLOCK_SKEW_SECONDS) {
+            throw new SignatureVerificationException("Signature expired");
+        }
+    }
+
+    private void verifyCold(AuthorizationHeader header, String digest) throws Exception {
+        Ed25519PublicKeyParameters publicKey = publicKey(header);
+
+        byte[] signature;
+        try {
+            signature = Base64.getDecoder().decode(header.getSignature());
+        } catch (IllegalArgumentException e) {
+            throw new SignatureVerificationException("Signature is not valid base64");
+        }
+
+        byte[] signingString = header.signingString(digest).getBytes(StandardCharsets.UTF_8);
+        Ed25519Signer signer = new Ed25519Signer();
+        signer.init(false, publicKey);
+        signer.update(signingString, 0, signingString.length);
+        if (!signer.verifySignature(signature)) {
+            throw new SignatureVerificationException("Signature mismatch for " + header.getKeyId());
+        }
+    }
+
+    private Ed25519PublicKeyParameters publicKey(AuthorizationHeader header) throws Exception {
+        String cacheKey = header.getSubscriberId() + '|' + header.getUniqueKeyId();
+        CachedKey cached = keyCache.get(cacheKey);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            keyHits.increment();
+            return cached.key;
+        }
+        keyMisses.increment();
+
+        String encoded = keyResolver.resolveSigningPublicKey(header.getSubscriberId(), header.getUniqueKeyId());
+        if (encoded == null) {
+            throw new SignatureVerificationException("Unknown signing key " + cacheKey);
+        }
+
+        byte[] raw = Base64.getDecoder().decode(encoded.trim());
+        if (raw.length < ED25519_KEY_LENGTH) {
+            throw new SignatureVerificationException("Invalid signing key length for " + cacheKey);
+        }
+        // Registries publish either the raw key or its DER SubjectPublicKeyInfo; the key is the trailing 32 bytes
+        Ed25519PublicKeyParameters key = new Ed25519PublicKeyParameters(raw, raw.length - ED25519_KEY_LENGTH);
+        remember(keyCache, cacheKey, new CachedKey(key, System.currentTimeMillis() + keyTtlMillis));
+        return key;
+    }
+
+    private <V> void remember(Map<String, V> cache, String key, V value) {
+        if (cache.size() >= maxCacheEntries) {
+            evictExpired();
+            if (cache.size() >= maxCacheEntries) {
+                Iterator<String> it = cache.keySet().iterator();
+                if (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+        cache.put(key, value);
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        verifiedCache.values().removeIf(validUntil -> validUntil <= now);
+        keyCache.values().removeIf(cached -> cached.expiresAt <= now);
+    }
+
+    private static String digest(ByteBuf body) {
+        Blake2bDigest blake = new Blake2bDigest(512);
+        if (body.hasArray()) {
+            blake.update(body.array(), body.arrayOffset() + body.readerIndex(), body.readableBytes());
+        } else {
+            byte[] bytes = new byte[body.readableBytes()];
+            body.getBytes(body.readerIndex(), bytes);
+            blake.update(bytes, 0, bytes.length);
+        }
+        byte[] out = new byte[blake.getDigestSize()];
+        blake.doFinal(out, 0);
+        return Base64.getEncoder().encodeToString(out);
+    }
+
+    /**
+     * Periodically logs verification throughput and cache hit rates
+     *
+     * @param scheduler the scheduler to run the report on
+     * @param period the reporting period in seconds
+     */
+    public void startReporting(ScheduledExecutorService scheduler, long period) {
+        scheduler.scheduleAtFixedRate(this::reportStats, period, period, TimeUnit.SECONDS);
+    }
+
+    private synchronized void reportStats() {
+        evictExpired();
+
+        long now = System.nanoTime();
+        long total = verified.sum();
+        double seconds = (now - lastReportNanos) / 1_000_000_000.0;
+        double perSecond = seconds > 0 ? (total - lastReportedVerifications) / seconds : 0;
+        lastReportNanos = now;
+        lastReportedVerifications = total;
+
+        logger.info("Signature verification: {}/s, verified={}, rejected={}, overloaded={}, "
+                + "key cache hit rate={}%, result cache hit rate={}%",
+            String.format("%.1f", perSecond), total, rejected.sum(), overloaded.sum(),
+            hitRate(keyHits.sum(), keyMisses.sum()), hitRate(resultHits.sum(), resultMisses.sum()));
+    }
+
+    private static String hitRate(long hits, long misses) {
+        long lookups = hits + misses;
+        return lookups == 0 ? "0.0" : String.format("%.1f", hits * 100.0 / lookups);
+    }
+
+    public long getVerifiedCount() {
+        return verified.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getKeyCacheHits() {
+        return keyHits.sum();
+    }
+
+    public long getResultCacheHits() {
+        return resultHits.sum();
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private static final class CachedKey {
+        final Ed25519PublicKeyParameters key;
+        final long expiresAt;
+
+        CachedKey(Ed25519PublicKeyParameters key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
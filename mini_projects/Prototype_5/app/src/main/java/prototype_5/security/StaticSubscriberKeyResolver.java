@@ -0,0 +1,53 @@
+package prototype_5.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory key resolver for subscribers whose keys are known up front.
+ */
+public class StaticSubscriberKeyResolver implements SubscriberKeyResolver {
+    private final Map<String, String> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Reads keys from a properties file with one {@code subscriberId|uniqueKeyId=base64key} line per key
+     *
+     * @param file the key file
+     * @return a resolver holding every key in the file
+     * @throws IOException if the file cannot be read or holds no keys
+     */
+    public static StaticSubscriberKeyResolver load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            properties.load(in);
+        }
+        StaticSubscriberKeyResolver resolver = new StaticSubscriberKeyResolver();
+        for (String name : properties.stringPropertyNames()) {
+            int separator = name.indexOf('|');
+            if (separator <= 0) {
+                throw new IOException("Key " + name + " in " + file + " is not subscriberId|uniqueKeyId");
+            }
+            resolver.register(name.substring(0, separator), name.substring(separator + 1),
+                properties.getProperty(name).trim());
+        }
+        if (resolver.keys.isEmpty()) {
+            throw new IOException("No subscriber keys in " + file);
+        }
+        return resolver;
+    }
+
+    public StaticSubscriberKeyResolver register(String subscriberId, String uniqueKeyId, String signingPublicKey) {
+        keys.put(subscriberId + "|" + uniqueKeyId, signingPublicKey);
+        return this;
+    }
+
+    @Override
+    public String resolveSigningPublicKey(String subscriberId, String uniqueKeyId) {
+        return keys.get(subscriberId + "|" + uniqueKeyId);
+    }
+}
@@ -0,0 +1,19 @@
+package prototype_5.security;
+
+/**
+ * Looks up the signing public key a subscriber has published in the Beckn registry.
+ * Implementations may block (e.g. a registry lookup call); they are only invoked
+ * from the verification worker pool, never from an event loop.
+ */
+public interface SubscriberKeyResolver {
+
+    /**
+     * Resolves a subscriber's signing public key
+     *
+     * @param subscriberId the registry subscriber id
+     * @param uniqueKeyId the subscriber's unique key id
+     * @return the base64 encoded ed25519 public key, or null if the key is unknown
+     * @throws Exception if the lookup fails
+     */
+    String resolveSigningPublicKey(String subscriberId, String uniqueKeyId) throws Exception;
+}
@@ -0,0 +1,438 @@
+package prototype_5.server;
+
+import prototype_5.beckn.RequestDeduplicator;
+import prototype_5.beckn.SearchFanOut;
+import prototype_5.client.PeerConnectionPool;
+import prototype_5.cluster.ClusterNode;
+import prototype_5.cluster.HashRing;
+import prototype_5.config.ServerConfig;
+import prototype_5.config.TlsMaterial;
+import prototype_5.handler.Http3Handler;
+import prototype_5.handler.PacketInspector;
+import prototype_5.handler.PacketRecorder;
+import prototype_5.handler.StunHandler;
+import prototype_5.handler.TurnHandler;
+import prototype_5.outbox.CallbackOutbox;
+import prototype_5.outbox.Http3CallbackSender;
+import prototype_5.outbox.SegmentLog;
+import prototype_5.security.SignatureVerifier;
+import prototype_5.turn.TurnServer;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.incubator.codec.http3.DefaultHttp3GoAwayFrame;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.http3.Http3ServerConnectionHandler;
+import io.netty.incubator.codec.quic.*;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.ice4j.stack.StunStack;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CombinedServer {
+    private static final Logger logger = LoggerFactory.getLogger(CombinedServer.class);
+    
+    // RFC 9114 5.2: the largest client-initiated bidirectional stream id, announcing a graceful shutdown
+    private static final long GRACEFUL_GOAWAY_ID = (1L << 62) - 4;
+    private static final int H3_NO_ERROR = 0x100;
+    private static final String FLIGHT_RECORDER_NAME = "prototype_5:type=FlightRecorder";
+    
+    private final ServerConfig config;
+    private EventLoopGroup group;
+    private EventExecutorGroup blockingGroup;
+    private EventLoopMonitor ioMonitor;
+    private EventLoopMonitor blockingMonitor;
+    private StunStack stunStack;
+    private Channel channel;
+    private SignatureVerifier signatureVerifier;
+    private RequestDeduplicator deduplicator;
+    private PathStatistics pathStatistics;
+    private PathSampler pathSampler;
+    private PeerConnectionPool peerConnections;
+    private SearchFanOut searchFanOut;
+    private CallbackOutbox callbackOutbox;
+    private FlightRecorder flightRecorder;
+    private ClusterNode clusterNode;
+    private final ChannelGroup connections = new DefaultChannelGroup("quic-connections", GlobalEventExecutor.INSTANCE);
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    
+    public CombinedServer(ServerConfig config) {
+        this.config = config;
+    }
+    
+    public void start() throws Exception {
+        // every request must carry a valid signature, so without keys nothing would get through
+        if (config.getKeyResolver() == null) {
+            throw new IllegalStateException("No Beckn signing keys configured; set -Dbeckn.registry=<lookup URL> "
+                + "or -Dbeckn.keys=<key file>, or ServerConfig.Builder.keyResolver");
+        }
+        // clients are told to send their peers' traffic to the relay address, so guessing one breaks them
+        if (!config.getTurnUsers().isEmpty() && config.getTurnRelayAddress() == null) {
+            throw new IllegalStateException("TURN users configured but no relay address; set "
+                + "-Dturn.relayAddress=<address clients can reach> or ServerConfig.Builder.turnRelayAddress");
+        }
+        // SO_REUSEPORT lets a replacement process bind the same port while this one drains. It is not a
+        // handover: the kernel hashes each client address over every socket on the port, so once the
+        // replacement binds, roughly half of this process's QUIC connections have their packets delivered
+        // there, where they are unknown, and are lost. STUN is stateless and TURN relays through whichever
+        // node owns the allocation, so both survive. Steering by connection id needs a reuseport BPF
+        // program, which Netty cannot attach; where QUIC connections must survive, drain before starting
+        // the replacement and let peers reconnect.
+        boolean reusePort = config.isReusePort() && Epoll.isAvailable();
+        if (config.isReusePort() && !reusePort) {
+            logger.warn("SO_REUSEPORT requested but native epoll is unavailable, binding exclusively");
+        }
+        group = reusePort
+            ? new EpollEventLoopGroup(config.getIoThreads(), new DefaultThreadFactory("io"))
+            : new NioEventLoopGroup(config.getIoThreads(), new DefaultThreadFactory("io"));
+        Class<? extends DatagramChannel> channelClass = reusePort ? EpollDatagramChannel.class : NioDatagramChannel.class;
+        blockingGroup = new DefaultEventExecutorGroup(config.getBlockingThreads(), new DefaultThreadFactory("blocking"));
+        ioMonitor = new EventLoopMonitor("I/O", group, config.getMonitorIntervalMillis(),
+            config.getLagWarnMillis(), config.getQueueDepthWarn());
+        blockingMonitor = new EventLoopMonitor("blocking", blockingGroup, config.getMonitorIntervalMillis(),
+            config.getLagWarnMillis(), config.getQueueDepthWarn());
+        ioMonitor.start();
+        blockingMonitor.start();
+        
+        // StunStack spins up its own threads; build it here rather than on an I/O thread
+        stunStack = new StunStack();
+        signatureVerifier = new SignatureVerifier(config.getKeyResolver(),
+            config.getVerifierThreads(), config.getVerifierQueueCapacity());
+        signatureVerifier.startReporting(group, 60);
+        deduplicator = new RequestDeduplicator(config.getDedupWindowMillis(), TimeUnit.MILLISECONDS,
+            config.getDedupCapacity());
+        pathStatistics = new PathStatistics(config.getPathStatisticsCapacity());
+        pathSampler = new PathSampler(pathStatistics, connections, config.getPathSampleIntervalMillis(),
+            config.getIdleTimeoutMillis(), config.getMaxIdleTimeoutMillis());
+        pathSampler.start(group);
+        if (config.getFlightRecorderSlots() > 0) {
+            flightRecorder = new FlightRecorder(config.getFlightRecorderSlots(), config.getFlightRecorderSnapBytes());
+            registerFlightRecorder();
+        }
+        peerConnections = new PeerConnectionPool(group, channelClass, config.getMaxIdleTimeoutMillis(),
+            flightRecorder, config.getPeerTrustManagerFactory());
+        // fan-out bookkeeping and its listeners do real work per response; keep them off the I/O loops
+        searchFanOut = new SearchFanOut(peerConnections, signatureVerifier, blockingGroup.next(),
+            config.getFanOutMaxInFlight(), config.getFanOutMaxQueued());
+        // the outbox reads and acknowledges callbacks in mapped segments; keep that off the I/O loops too
+        callbackOutbox = new CallbackOutbox(new SegmentLog(config.getOutboxDirectory(),
+            config.getOutboxSegmentBytes(), config.getOutboxSyncIntervalMillis()),
+            new Http3CallbackSender(peerConnections), blockingGroup.next());
+        if (!config.getTurnUsers().isEmpty()) {
+            InetSocketAddress clusterAddress = config.getClusterPort() > 0
+                ? new InetSocketAddress(config.getClusterAddress(), config.getClusterPort())
+                : null;
+            // TURN and cluster state share one blocking executor, so it needs no locks and stays off the I/O loops
+            EventExecutor turnExecutor = blockingGroup.next();
+            clusterNode = new ClusterNode(turnExecutor, group, channelClass, clusterAddress, config.getClusterSeeds(),
+                config.getClusterHeartbeatMillis(), config.getClusterFailureMillis(), config.getClusterKey());
+            clusterNode.start(new TurnServer(config, turnExecutor, group, channelClass, HashRing.SHARDS, clusterNode));
+        }
+        
+        try {
+            Bootstrap bootstrap = new Bootstrap();
+            
+            bootstrap.group(group)
+                .channel(channelClass)
+                .handler(new ChannelInitializer<DatagramChannel>() {
+                    @Override
+                    protected void initChannel(DatagramChannel ch) {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        
+                        // the inspector records what is read, so each packet is classified only once
+                        if (flightRecorder != null) {
+                            pipeline.addLast(PacketRecorder.outboundOnly(flightRecorder));
+                        }
+                        
+                        pipeline.addLast(new PacketInspector(flightRecorder));
+                        
+                        if (clusterNode != null) {
+                            pipeline.addLast(new TurnHandler(clusterNode));
+                        }
+                        
+                        pipeline.addLast(new StunHandler(stunStack));
+                        
+                        pipeline.addLast(new Http3Handler());
+                    }
+                });
+            
+            if (reusePort) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            channel = bootstrap.bind(new InetSocketAddress(config.getPort())).sync().channel();
+            logger.info("Combined STUN/TURN/HTTP3 server started on port {}", config.getPort());
+            StartupMetrics.ready();
+            peerConnections.start();
+            
+            // STUN is served as soon as the socket is bound; QUIC joins the pipeline once TLS is ready.
+            // Early QUIC Initials are dropped and retransmitted by the peer.
+            blockingGroup.submit(this::createSslContext).addListener(future -> {
+                if (!future.isSuccess()) {
+                    logger.error("Failed to initialise TLS, closing server", future.cause());
+                    channel.close();
+                    return;
+                }
+                QuicSslContext sslContext = (QuicSslContext) future.getNow();
+                channel.eventLoop().execute(() -> {
+                    channel.pipeline().addLast(createQuicCodec(sslContext));
+                    StartupMetrics.tlsReady();
+                    ready.complete(null);
+                });
+            });
+            
+            channel.closeFuture().sync();
+        } finally {
+            shutdown();
+        }
+    }
+    
+    /**
+     * @return a future completed once the server accepts both STUN and HTTP/3 traffic
+     */
+    public CompletableFuture<Void> ready() {
+        return ready;
+    }
+    
+    /**
+     * @return per-peer RTT and loss, for inspection
+     */
+    public PathStatistics getPathStatistics() {
+        return pathStatistics;
+    }
+    
+    /**
+     * @return the engine for sending a search to many peers at once
+     */
+    public SearchFanOut getSearchFanOut() {
+        return searchFanOut;
+    }
+    
+    /**
+     * @return sends on_* callbacks to peers, keeping them while a peer cannot be reached
+     */
+    public CallbackOutbox getCallbackOutbox() {
+        return callbackOutbox;
+    }
+    
+    /**
+     * @return this node's place in the TURN cluster, or null if TURN is turned off
+     */
+    public ClusterNode getClusterNode() {
+        return clusterNode;
+    }
+    
+    /**
+     * @return the recorder of recent packets, or null if it is turned off
+     */
+    public FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+    
+    // dumps are taken on demand over JMX, e.g. from jconsole, without touching the running server
+    private void registerFlightRecorder() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(flightRecorder, new ObjectName(FLIGHT_RECORDER_NAME));
+        } catch (JMException e) {
+            logger.warn("Could not register the flight recorder with JMX: {}", e.getMessage());
+        }
+    }
+    
+    private void unregisterFlightRecorder() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(FLIGHT_RECORDER_NAME));
+        } catch (JMException e) {
+            logger.debug("Flight recorder was not registered with JMX: {}", e.getMessage());
+        }
+    }
+    
+    private ChannelHandler createQuicCodec(QuicSslContext sslContext) {
+        return new QuicServerCodecBuilder()
+            .sslContext(sslContext)
+            // the ceiling; PathSampler closes idle connections sooner depending on the peer's path
+            .maxIdleTimeout(config.getMaxIdleTimeoutMillis(), TimeUnit.MILLISECONDS)
+            .initialMaxData(10000000)
+            .initialMaxStreamDataBidirectionalLocal(1000000)
+            .initialMaxStreamDataBidirectionalRemote(1000000)
+            .initialMaxStreamsBidirectional(100)
+            .tokenHandler(new InsecureQuicTokenHandler())
+            .handler(new QuicChannelInitializer() {
+                @Override
+                protected void initChannel(QuicChannel channel) {
+                    if (draining.get()) {
+                        logger.debug("Refusing new QUIC connection while draining");
+                        channel.close(true, H3_NO_ERROR, Unpooled.EMPTY_BUFFER);
+                        return;
+                    }
+                    connections.add(channel);
+                    
+                    Http3ServerConnectionHandler h3ConnectionHandler = 
+                        Http3.newServerConnectionHandler(new ChannelInitializer<QuicStreamChannel>() {
+                            @Override
+                            protected void initChannel(QuicStreamChannel stream) {
+                                // request handling may call out to the co-hosted app; keep it off the I/O loop
+                                stream.pipeline().addLast(blockingGroup,
+                                    new Http3Handler.Http3RequestHandler(signatureVerifier, deduplicator,
+                                        pathStatistics, config.getRequestDeadlineMinMillis(),
+                                        config.getRequestDeadlineMaxMillis(), config.getMaxRequestBodyBytes(),
+                                        callbackOutbox));
+                            }
+                        });
+                    channel.pipeline().addLast(h3ConnectionHandler);
+                    logger.debug("HTTP/3 connection initialized");
+                }
+            })
+            .build();
+    }
+    
+    private QuicSslContext createSslContext() throws IOException, GeneralSecurityException {
+        TlsMaterial material = TlsMaterial.load(config);
+        return QuicSslContextBuilder.forServer(material.getPrivateKey(), null, material.getCertificateChain())
+            .applicationProtocols(Http3.supportedApplicationProtocols())
+            .build();
+    }
+    
+    /**
+     * Stops accepting new QUIC connections and lets existing ones finish. Every open
+     * connection is sent an HTTP/3 GOAWAY so peers move new requests elsewhere; whatever
+     * is still open at the deadline is closed. The UDP socket stays bound throughout so
+     * in-flight streams and STUN traffic keep flowing until then.
+     * <p>
+     * If a replacement has bound the port with SO_REUSEPORT, only connections whose packets
+     * the kernel still delivers here are drained; see {@link #start()}. New connections that
+     * land here are refused, and since a client's retries come from the same address they
+     * land here again until this process closes its socket.
+     *
+     * @param timeout how long to wait for open connections to finish
+     * @param unit the unit of {@code timeout}
+     */
+    public void drain(long timeout, TimeUnit unit) {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        
+        logger.info("Draining {} QUIC connection(s), deadline {} ms", connections.size(), unit.toMillis(timeout));
+        for (Channel connection : connections) {
+            connection.eventLoop().execute(() -> {
+                QuicStreamChannel control = Http3.getLocalControlStream(connection);
+                if (control != null) {
+                    control.writeAndFlush(new DefaultHttp3GoAwayFrame(GRACEFUL_GOAWAY_ID));
+                }
+            });
+        }
+        
+        if (!connections.newCloseFuture().awaitUninterruptibly(timeout, unit)) {
+            logger.warn("Drain deadline reached, closing {} remaining connection(s)", connections.size());
+            for (Channel connection : connections) {
+                ((QuicChannel) connection).close(true, H3_NO_ERROR, Unpooled.EMPTY_BUFFER);
+            }
+        }
+        logger.info("Drain complete");
+    }
+    
+    public void shutdown() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        // hand TURN allocations to the rest of the cluster before anything else goes away
+        if (clusterNode != null) {
+            clusterNode.leave();
+        }
+        if (channel != null && channel.isActive()) {
+            drain(config.getDrainTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (channel != null) {
+            channel.close().syncUninterruptibly();
+        }
+        if (peerConnections != null) {
+            peerConnections.close();
+        }
+        if (callbackOutbox != null) {
+            callbackOutbox.close();
+        }
+        if (clusterNode != null) {
+            clusterNode.close();
+        }
+        if (flightRecorder != null) {
+            unregisterFlightRecorder();
+        }
+        if (pathSampler != null) {
+            pathSampler.stop();
+        }
+        if (ioMonitor != null) {
+            ioMonitor.stop();
+            blockingMonitor.stop();
+        }
+        // connections are already drained, so there is no need for a long quiet period
+        if (group != null) {
+            group.shutdownGracefully(100, 2000, TimeUnit.MILLISECONDS);
+        }
+        if (blockingGroup != null) {
+            blockingGroup.shutdownGracefully(100, 2000, TimeUnit.MILLISECONDS);
+        }
+        if (stunStack != null) {
+            stunStack.shutDown();
+        }
+        if (signatureVerifier != null) {
+            signatureVerifier.shutdown();
+        }
+        logger.info("Server shutdown complete");
+    }
+    
+    private static final class InsecureQuicTokenHandler implements QuicTokenHandler {
+        private static final Logger logger = LoggerFactory.getLogger(InsecureQuicTokenHandler.class);
+        
+        @Override
+        public boolean writeToken(ByteBuf out, ByteBuf dcid, InetSocketAddress address) {
+            out.writeByte(dcid.readableBytes());
+            out.writeBytes(dcid.duplicate());
+            logger.debug("Generated token for {}", address);
+            return true;
+        }
+        
+        @Override
+        public int validateToken(ByteBuf token, InetSocketAddress address) {
+            if (token.readableBytes() >= 1) {
+                int len = token.readByte();
+                if (token.readableBytes() >= len) {
+                    return len;
+                }
+            }
+            return -1;
+        }
+        
+        @Override
+        public QuicTokenHandler.RetrievedAddressResults extractAddressFromToken(
+                ByteBuf token, int retrieveAddressIndex, ByteBuf oldDcid) {
+            return new QuicTokenHandler.RetrievedAddressResults(true, null);
+        }
+    }
+}
\ No newline at end of file
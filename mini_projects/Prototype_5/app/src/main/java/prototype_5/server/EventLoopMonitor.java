@@ -0,0 +1,114 @@
+package prototype_5.server;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the executors of a group for scheduling lag and task-queue build-up.
+ * <p>
+ * A probe is scheduled on every executor at a fixed interval; the difference between
+ * when it was due and when it actually ran is the time the executor spent busy with
+ * other work. A loop that keeps falling behind (blocking calls on the I/O thread, a
+ * flood of tasks) is logged as a warning so it shows up before peers start timing out.
+ */
+public class EventLoopMonitor {
+    private static final Logger logger = LoggerFactory.getLogger(EventLoopMonitor.class);
+
+    private final String name;
+    private final EventExecutorGroup group;
+    private final long intervalNanos;
+    private final long warnLagNanos;
+    private final int warnQueueDepth;
+    private final List<Probe> probes = new ArrayList<>();
+
+    private volatile boolean running;
+
+    public EventLoopMonitor(String name, EventExecutorGroup group, long intervalMillis,
+                            long warnLagMillis, int warnQueueDepth) {
+        this.name = name;
+        this.group = group;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.warnLagNanos = TimeUnit.MILLISECONDS.toNanos(warnLagMillis);
+        this.warnQueueDepth = warnQueueDepth;
+    }
+
+    public void start() {
+        running = true;
+        int index = 0;
+        for (EventExecutor executor : group) {
+            Probe probe = new Probe(executor, index++);
+            probes.add(probe);
+            probe.schedule();
+        }
+        logger.info("Monitoring {} {} executor(s)", probes.size(), name);
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * @return the highest scheduling lag observed on any executor in the last interval, in milliseconds
+     */
+    public long getMaxLagMillis() {
+        long max = 0;
+        for (Probe probe : probes) {
+            max = Math.max(max, probe.lastLagNanos);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(max);
+    }
+
+    /**
+     * @return the deepest pending-task queue observed on any executor in the last interval
+     */
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (Probe probe : probes) {
+            max = Math.max(max, probe.lastQueueDepth);
+        }
+        return max;
+    }
+
+    private final class Probe implements Runnable {
+        private final EventExecutor executor;
+        private final int index;
+        private long dueAt;
+        private volatile long lastLagNanos;
+        private volatile int lastQueueDepth;
+
+        Probe(EventExecutor executor, int index) {
+            this.executor = executor;
+            this.index = index;
+        }
+
+        void schedule() {
+            if (!running || executor.isShuttingDown()) {
+                return;
+            }
+            dueAt = System.nanoTime() + intervalNanos;
+            executor.schedule(this, intervalNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            long lag = Math.max(0, System.nanoTime() - dueAt);
+            int depth = executor instanceof SingleThreadEventExecutor
+                ? ((SingleThreadEventExecutor) executor).pendingTasks() : 0;
+            lastLagNanos = lag;
+            lastQueueDepth = depth;
+
+            if (lag > warnLagNanos || depth > warnQueueDepth) {
+                logger.warn("{} executor #{} is falling behind: lag={}ms, pending tasks={}",
+                    name, index, TimeUnit.NANOSECONDS.toMillis(lag), depth);
+            }
+            schedule();
+        }
+    }
+}
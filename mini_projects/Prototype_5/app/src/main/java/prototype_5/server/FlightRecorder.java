@@ -0,0 +1,335 @@
+package prototype_5.server;
+
+import prototype_5.handler.PacketInspector;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.VarHandle;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Always-on record of the most recent datagrams, for debugging NAT traversal without
+ * turning on per-packet logging.
+ * <p>
+ * Every thread that records gets its own off-heap ring of fixed-size slots, so the
+ * writer is the ring's only owner: recording a packet is a timestamp, the addresses and
+ * a copy of its first bytes into the next slot, followed by an ordered store of the
+ * write index. No locks and no compare-and-set are involved, the fences compile to
+ * nothing on x86, the clock is read once per batch (see {@link #endBatch}), and nothing
+ * is allocated except the copies of the addresses. Memory is
+ * {@code slots * (56 + snap bytes)} per recording thread, i.e. per event loop that owns
+ * a UDP channel.
+ * <p>
+ * {@link #dump} copies every ring while the writers carry on and discards any slot that
+ * was overwritten during the copy. The packets are merged by time and written as pcapng
+ * with synthesized IPv4/IPv6 and UDP headers, so Wireshark and tcpdump show the 5-tuple
+ * and dissect STUN and QUIC as usual; each packet's direction is in its flags and what
+ * {@link PacketInspector} took it for is its comment.
+ */
+public class FlightRecorder implements FlightRecorderMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(FlightRecorder.class);
+
+    public static final int INBOUND = 0;
+    public static final int OUTBOUND = 1;
+
+    private static final int TIMESTAMP = 0;
+    private static final int LENGTH = 8;
+    private static final int CAPTURED = 12;
+    private static final int DIRECTION = 14;
+    private static final int CLASSIFICATION = 15;
+    private static final int FAMILY = 16;
+    private static final int SOURCE_PORT = 20;
+    private static final int DESTINATION_PORT = 22;
+    private static final int SOURCE = 24;
+    private static final int DESTINATION = 40;
+    private static final int PAYLOAD = 56;
+
+    private static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int BLOCK_INTERFACE = 1;
+    private static final int BLOCK_ENHANCED_PACKET = 6;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int SECTION_HEADER_BYTES = 28;
+    private static final int INTERFACE_BYTES = 32;
+    /** Block header and fixed fields; the trailing length is counted here too. */
+    private static final int ENHANCED_PACKET_BYTES = 32;
+    private static final short OPTION_COMMENT = 1;
+    private static final short OPTION_FLAGS = 2;
+    private static final short OPTION_TIMESTAMP_RESOLUTION = 9;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int IPV4_HEADER_BYTES = 20;
+    private static final int IPV6_HEADER_BYTES = 40;
+    private static final int UDP_HEADER_BYTES = 8;
+    private static final int PROTOCOL_UDP = 17;
+
+    private final int slots;
+    private final int snapBytes;
+    private final int slotBytes;
+    private final long epochNanosAtStart = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private final long nanoTimeAtStart = System.nanoTime();
+    private final List<Ring> rings = new CopyOnWriteArrayList<>();
+    private final FastThreadLocal<Ring> ring = new FastThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring created = new Ring(Thread.currentThread().getName());
+            rings.add(created);
+            return created;
+        }
+    };
+
+    /**
+     * @param slots packets kept per recording thread, rounded up to a power of two
+     * @param snapBytes how many bytes of each packet are kept
+     */
+    public FlightRecorder(int slots, int snapBytes) {
+        this.slots = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+        this.snapBytes = snapBytes;
+        this.slotBytes = (PAYLOAD + snapBytes + 7) & ~7;
+    }
+
+    /**
+     * Records a datagram; must not be called for the same packet from two threads
+     *
+     * @param direction {@link #INBOUND} or {@link #OUTBOUND}
+     * @param classification what the packet was taken for, see {@code PacketInspector.classify}
+     * @param source the sending address
+     * @param destination the receiving address
+     * @param content the datagram payload; not consumed
+     */
+    public void record(int direction, int classification, SocketAddress source, SocketAddress destination,
+                       ByteBuf content) {
+        Ring r = ring.get();
+        if (!r.inBatch) {
+            r.batchTimestamp = System.nanoTime();
+            r.inBatch = true;
+        }
+        r.write(r.batchTimestamp, direction, classification, source, destination, content);
+    }
+
+    /**
+     * Ends the calling thread's batch of packets. Packets recorded between two batch ends
+     * share one timestamp, taken when the first of them was recorded; a batch is one pass
+     * of an event loop over a socket's reads or writes, so they are microseconds apart and
+     * reading the clock for each would cost more than recording the packet.
+     */
+    public void endBatch() {
+        ring.get().inBatch = false;
+    }
+
+    @Override
+    public long getRecordedPackets() {
+        long recorded = 0;
+        for (Ring r : rings) {
+            recorded += r.published.get();
+        }
+        return recorded;
+    }
+
+    @Override
+    public int dump(String file) throws IOException {
+        return dump(Paths.get(file));
+    }
+
+    /**
+     * Writes the packets currently held to a pcapng file
+     *
+     * @return the number of packets written
+     */
+    public int dump(Path file) throws IOException {
+        List<ByteBuffer> packets = new ArrayList<>();
+        for (Ring r : rings) {
+            r.snapshot(packets);
+        }
+        packets.sort(Comparator.comparingLong(slot -> slot.getLong(TIMESTAMP)));
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            ByteBuffer header = ByteBuffer.allocate(SECTION_HEADER_BYTES + INTERFACE_BYTES);
+            header.putInt(BLOCK_SECTION_HEADER).putInt(SECTION_HEADER_BYTES).putInt(BYTE_ORDER_MAGIC)
+                .putShort((short) 1).putShort((short) 0).putLong(-1).putInt(SECTION_HEADER_BYTES);
+            header.putInt(BLOCK_INTERFACE).putInt(INTERFACE_BYTES)
+                .putShort((short) LINKTYPE_RAW).putShort((short) 0)
+                .putInt(IPV6_HEADER_BYTES + UDP_HEADER_BYTES + snapBytes)
+                .putShort(OPTION_TIMESTAMP_RESOLUTION).putShort((short) 1).putInt(9 << 24)
+                .putInt(0)
+                .putInt(INTERFACE_BYTES);
+            out.write(header.array());
+            for (ByteBuffer slot : packets) {
+                out.write(packet(slot));
+            }
+        }
+        logger.info("Dumped {} packet(s) from {} recorder ring(s) to {}", packets.size(), rings.size(), file);
+        return packets.size();
+    }
+
+    /**
+     * @return an Enhanced Packet Block carrying the datagram behind synthesized IP and UDP
+     *         headers, with its direction in the flags and its classification as a comment
+     */
+    private byte[] packet(ByteBuffer slot) {
+        long epochNanos = epochNanosAtStart + slot.getLong(TIMESTAMP) - nanoTimeAtStart;
+        int length = slot.getInt(LENGTH);
+        int captured = slot.getShort(CAPTURED) & 0xFFFF;
+        boolean inbound = slot.get(DIRECTION) == INBOUND;
+        boolean ipv4 = slot.get(FAMILY) == 4;
+        int headerBytes = (ipv4 ? IPV4_HEADER_BYTES : IPV6_HEADER_BYTES) + UDP_HEADER_BYTES;
+        byte[] comment = PacketInspector.describe(slot.get(CLASSIFICATION)).getBytes(StandardCharsets.US_ASCII);
+
+        int dataBytes = pad(headerBytes + captured);
+        int blockBytes = ENHANCED_PACKET_BYTES + dataBytes + 8 + 4 + pad(comment.length) + 4;
+        ByteBuffer block = ByteBuffer.allocate(blockBytes);
+        block.putInt(BLOCK_ENHANCED_PACKET).putInt(blockBytes).putInt(0)
+            .putInt((int) (epochNanos >>> 32)).putInt((int) epochNanos)
+            .putInt(headerBytes + captured).putInt(headerBytes + length);
+
+        int udpLength = Math.min(UDP_HEADER_BYTES + length, 0xFFFF);
+        if (ipv4) {
+            int ipStart = block.position();
+            block.put((byte) 0x45).put((byte) 0)
+                .putShort((short) Math.min(IPV4_HEADER_BYTES + udpLength, 0xFFFF))
+                .putShort((short) 0).putShort((short) 0x4000)
+                .put((byte) 64).put((byte) PROTOCOL_UDP).putShort((short) 0)
+                .put(slot.array(), SOURCE, 4).put(slot.array(), DESTINATION, 4);
+            block.putShort(ipStart + 10, (short) ipv4Checksum(block.array(), ipStart));
+        } else {
+            block.putInt(6 << 28).putShort((short) udpLength).put((byte) PROTOCOL_UDP).put((byte) 64)
+                .put(slot.array(), SOURCE, 16).put(slot.array(), DESTINATION, 16);
+        }
+        // a zero UDP checksum means none, which Wireshark accepts for both families
+        block.putShort(slot.getShort(SOURCE_PORT)).putShort(slot.getShort(DESTINATION_PORT))
+            .putShort((short) udpLength).putShort((short) 0)
+            .put(slot.array(), PAYLOAD, captured);
+        block.position(ENHANCED_PACKET_BYTES - 4 + dataBytes);
+
+        block.putShort(OPTION_FLAGS).putShort((short) 4).putInt(inbound ? 1 : 2)
+            .putShort(OPTION_COMMENT).putShort((short) comment.length).put(comment);
+        block.position(block.position() + pad(comment.length) - comment.length);
+        block.putInt(0).putInt(blockBytes);
+        return block.array();
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static int ipv4Checksum(byte[] packet, int offset) {
+        int sum = 0;
+        for (int i = offset; i < offset + IPV4_HEADER_BYTES; i += 2) {
+            sum += ((packet[i] & 0xFF) << 8) | (packet[i + 1] & 0xFF);
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    /**
+     * One thread's slots. Only the owning thread writes; {@link #published} is the number
+     * of slots written so far and is the only field other threads read.
+     */
+    private final class Ring {
+        final String owner;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(slots * slotBytes);
+        final ByteBuffer view = buffer.duplicate();
+        final AtomicLong published = new AtomicLong();
+        long next;
+        long batchTimestamp;
+        boolean inBatch;
+
+        Ring(String owner) {
+            this.owner = owner;
+        }
+
+        void write(long timestamp, int direction, int classification, SocketAddress source,
+                   SocketAddress destination, ByteBuf content) {
+            int offset = (int) (next & (slots - 1)) * slotBytes;
+            int length = content.readableBytes();
+            int captured = Math.min(length, snapBytes);
+
+            buffer.putLong(offset + TIMESTAMP, timestamp)
+                .putInt(offset + LENGTH, length)
+                .putShort(offset + CAPTURED, (short) captured)
+                .put(offset + DIRECTION, (byte) direction)
+                .put(offset + CLASSIFICATION, (byte) classification);
+
+            InetAddress remote = address(direction == INBOUND ? source : destination);
+            boolean ipv4 = remote == null || remote instanceof Inet4Address;
+            buffer.put(offset + FAMILY, (byte) (ipv4 ? 4 : 6));
+            putEndpoint(offset + SOURCE, offset + SOURCE_PORT, source, ipv4);
+            putEndpoint(offset + DESTINATION, offset + DESTINATION_PORT, destination, ipv4);
+
+            buffer.limit(offset + PAYLOAD + captured).position(offset + PAYLOAD);
+            content.getBytes(content.readerIndex(), buffer);
+            buffer.clear();
+
+            published.lazySet(++next);
+            // keeps the next packet's stores from overtaking this index, which the dump relies on
+            VarHandle.storeStoreFence();
+        }
+
+        /**
+         * Writes an address in the packet's family, or zeros when it is unknown or of the
+         * other family, as for the wildcard address of a dual-stack socket
+         */
+        private void putEndpoint(int addressOffset, int portOffset, SocketAddress endpoint, boolean ipv4) {
+            InetAddress address = address(endpoint);
+            int port = endpoint instanceof InetSocketAddress ? ((InetSocketAddress) endpoint).getPort() : 0;
+            buffer.putShort(portOffset, (short) port);
+            if (address != null && (address instanceof Inet4Address) == ipv4) {
+                byte[] bytes = address.getAddress();
+                for (int i = 0; i < bytes.length; i++) {
+                    buffer.put(addressOffset + i, bytes[i]);
+                }
+            } else {
+                buffer.putLong(addressOffset, 0).putLong(addressOffset + 8, 0);
+            }
+        }
+
+        /**
+         * Copies the slots that are not overwritten while copying, oldest first
+         */
+        void snapshot(List<ByteBuffer> into) {
+            long end = published.get();
+            long start = Math.max(0, end - slots);
+            List<ByteBuffer> copied = new ArrayList<>((int) (end - start));
+            for (long index = start; index < end; index++) {
+                int offset = (int) (index & (slots - 1)) * slotBytes;
+                byte[] slot = new byte[slotBytes];
+                ByteBuffer source = view.duplicate();
+                source.position(offset).limit(offset + slotBytes);
+                source.get(slot);
+                copied.add(ByteBuffer.wrap(slot));
+            }
+            // the slot being written now is the one for index 'after', which reuses 'after - slots'
+            VarHandle.loadLoadFence();
+            long after = published.get();
+            long firstIntact = Math.max(start, after - slots + 1);
+            into.addAll(copied.subList((int) Math.min(firstIntact - start, copied.size()), copied.size()));
+            if (firstIntact > start) {
+                logger.debug("Recorder ring of {} overwrote {} slot(s) during the dump", owner, firstIntact - start);
+            }
+        }
+    }
+
+    private static InetAddress address(SocketAddress endpoint) {
+        return endpoint instanceof InetSocketAddress ? ((InetSocketAddress) endpoint).getAddress() : null;
+    }
+}
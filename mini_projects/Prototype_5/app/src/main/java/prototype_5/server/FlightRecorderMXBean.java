@@ -0,0 +1,22 @@
+package prototype_5.server;
+
+import java.io.IOException;
+
+/**
+ * Management interface of the {@link FlightRecorder}, so a dump can be taken on demand
+ * from jconsole or any other JMX client
+ */
+public interface FlightRecorderMXBean {
+    /**
+     * @return packets recorded since start, including those since overwritten
+     */
+    long getRecordedPackets();
+
+    /**
+     * Writes the packets currently held to a pcapng file
+     *
+     * @param file where to write, on the agent's host
+     * @return the number of packets written
+     */
+    int dump(String file) throws IOException;
+}
@@ -0,0 +1,131 @@
+package prototype_5.server;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicConnectionPathStats;
+import io.netty.incubator.codec.quic.QuicConnectionStats;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically reads every QUIC connection's statistics into {@link PathStatistics}: the
+ * RTT quiche estimates for the active path, and the packets sent and lost since the last
+ * sample. The same pass closes connections that have been quiet for longer than their
+ * peer's idle timeout, which lets the codec-level idle timeout be a generous ceiling for
+ * slow peers while fast peers are still cleaned up promptly.
+ */
+public class PathSampler {
+    private static final Logger logger = LoggerFactory.getLogger(PathSampler.class);
+
+    private static final AttributeKey<ConnectionSample> SAMPLE =
+        AttributeKey.valueOf(PathSampler.class, "sample");
+    private static final int H3_NO_ERROR = 0x100;
+
+    private final PathStatistics pathStatistics;
+    private final ChannelGroup connections;
+    private final long intervalMillis;
+    private final long idleFloorMillis;
+    private final long idleCeilingMillis;
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param pathStatistics where samples go
+     * @param connections the open QUIC connections
+     * @param intervalMillis how often to sample
+     * @param idleFloorMillis the shortest idle timeout any peer gets
+     * @param idleCeilingMillis the longest idle timeout any peer gets
+     */
+    public PathSampler(PathStatistics pathStatistics, ChannelGroup connections, long intervalMillis,
+                       long idleFloorMillis, long idleCeilingMillis) {
+        this.pathStatistics = pathStatistics;
+        this.connections = connections;
+        this.intervalMillis = intervalMillis;
+        this.idleFloorMillis = idleFloorMillis;
+        this.idleCeilingMillis = idleCeilingMillis;
+    }
+
+    public void start(EventExecutorGroup executor) {
+        task = executor.scheduleAtFixedRate(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * @return the IP address of a QUIC connection's peer, or null if it is not known yet
+     */
+    public static InetAddress peerAddress(Channel quicChannel) {
+        SocketAddress address = ((QuicChannel) quicChannel).remoteSocketAddress();
+        return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : null;
+    }
+
+    private void sample() {
+        for (Channel connection : connections) {
+            QuicChannel channel = (QuicChannel) connection;
+            InetAddress peer = peerAddress(channel);
+            if (peer == null || !channel.isActive()) {
+                continue;
+            }
+            // both listeners run on the connection's event loop, so the sample needs no locking
+            channel.collectStats().addListener(future -> {
+                if (future.isSuccess()) {
+                    onStats(channel, peer, (QuicConnectionStats) future.getNow());
+                }
+            });
+            channel.collectPathStats(0).addListener(future -> {
+                if (future.isSuccess()) {
+                    long rttNanos = ((QuicConnectionPathStats) future.getNow()).rtt();
+                    if (rttNanos > 0) {
+                        pathStatistics.recordRtt(peer, TimeUnit.NANOSECONDS.toMicros(rttNanos));
+                    }
+                }
+            });
+        }
+    }
+
+    private void onStats(QuicChannel channel, InetAddress peer, QuicConnectionStats stats) {
+        Attribute<ConnectionSample> attribute = channel.attr(SAMPLE);
+        ConnectionSample sample = attribute.get();
+        if (sample == null) {
+            sample = new ConnectionSample();
+            attribute.set(sample);
+        }
+
+        pathStatistics.recordTransmissions(peer, stats.sent() - sample.sent, stats.lost() - sample.lost);
+
+        long now = System.nanoTime();
+        if (stats.recv() != sample.recv) {
+            sample.lastActivityNanos = now;
+        }
+        sample.sent = stats.sent();
+        sample.lost = stats.lost();
+        sample.recv = stats.recv();
+
+        long idleTimeout = pathStatistics.idleTimeoutMillis(peer, idleFloorMillis, idleCeilingMillis);
+        if (TimeUnit.NANOSECONDS.toMillis(now - sample.lastActivityNanos) > idleTimeout) {
+            logger.debug("Closing QUIC connection from {} after {} ms idle", peer, idleTimeout);
+            channel.close(true, H3_NO_ERROR, Unpooled.EMPTY_BUFFER);
+        }
+    }
+
+    private static final class ConnectionSample {
+        long sent;
+        long lost;
+        long recv;
+        long lastActivityNanos = System.nanoTime();
+    }
+}
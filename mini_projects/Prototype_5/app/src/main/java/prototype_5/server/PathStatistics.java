@@ -0,0 +1,303 @@
+package prototype_5.server;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-peer path statistics (smoothed RTT, RTT variance and loss rate), fed from the QUIC
+ * stack by {@link PathSampler}. HTTP/3 request deadlines and connection idle timeouts are
+ * derived from it, so a fast peer is given up on quickly and a slow or lossy one is given
+ * the time it needs.
+ * <p>
+ * RTT follows RFC 6298: the first sample sets SRTT to R and RTTVAR to R/2, later ones are
+ * blended with gains of 1/8 and 1/4. Loss is an exponentially weighted fraction of lost
+ * transmissions with the same 1/8 gain.
+ * <p>
+ * Memory is fixed at construction: peers live in a two-way set-associative table and a
+ * new peer evicts the less recently updated of the two in its set. A peer's statistics are
+ * packed into one long (SRTT and RTTVAR in microseconds, 24 bits each, loss in 16 bits),
+ * so readers always see a consistent triple. Writers hold a lock per set while they find
+ * or claim a slot and update it; without it, an update for the peer being evicted could
+ * land after the reset and hand its statistics to the peer moving in. A claimed slot is
+ * emptied while it is reset, and readers, which take no lock, check the slot still holds
+ * their peer after reading it.
+ * <p>
+ * The estimator is shared with Prototype_1's {@code PathStatistics}, which derives STUN
+ * timers from it instead; the two builds have no common module, so keep them in step.
+ */
+public class PathStatistics {
+    static final long INITIAL_RTO_MILLIS = 500;
+    static final long MIN_RTO_MILLIS = 50;
+    static final long MAX_RTO_MILLIS = 10_000;
+
+    /** Enough for a request to survive four retransmissions with backoff (1 + 2 + 4 + 8 RTOs). */
+    private static final int REQUEST_RTO_MULTIPLIER = 16;
+    /** RFC 9000 10.1: the idle timeout must be at least three times the probe timeout. */
+    private static final int IDLE_RTO_MULTIPLIER = 3;
+    private static final double MAX_LOSS_SCALING = 0.5;
+
+    private static final int FIELD_BITS = 24;
+    private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+    private static final int LOSS_SHIFT = 2 * FIELD_BITS;
+    private static final long LOSS_ONE = 0xFFFF;
+
+    private final int setMask;
+    private final AtomicReferenceArray<InetAddress> peers;
+    private final AtomicLongArray states;
+    private final AtomicLongArray updatedAt;
+    private final Object[] locks;
+
+    /**
+     * @param capacity the number of peers to track, rounded up to a power of two
+     */
+    public PathStatistics(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.setMask = slots / 2 - 1;
+        this.peers = new AtomicReferenceArray<>(slots);
+        this.states = new AtomicLongArray(slots);
+        this.updatedAt = new AtomicLongArray(slots);
+        this.locks = new Object[slots / 2];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Records an RTT sample
+     */
+    public void recordRtt(InetAddress peer, long rttMicros) {
+        long sample = Math.min(Math.max(rttMicros, 1), FIELD_MASK);
+        synchronized (lock(peer)) {
+            int slot = claim(peer);
+            long current = states.get(slot);
+            long srtt = srtt(current);
+            long rttvar = rttvar(current);
+            if (srtt == 0) {
+                srtt = sample;
+                rttvar = sample / 2;
+            } else {
+                rttvar = rttvar - (rttvar >> 2) + (Math.abs(srtt - sample) >> 2);
+                srtt = srtt - (srtt >> 3) + (sample >> 3);
+            }
+            states.set(slot, pack(srtt, Math.min(rttvar, FIELD_MASK), loss(current)));
+            updatedAt.set(slot, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Records the outcome of a batch of transmissions to a peer
+     *
+     * @param sent how many were sent
+     * @param lost how many of those were lost or went unanswered
+     */
+    public void recordTransmissions(InetAddress peer, long sent, long lost) {
+        if (sent <= 0) {
+            return;
+        }
+        long sample = Math.min(lost, sent) * LOSS_ONE / sent;
+        synchronized (lock(peer)) {
+            int slot = claim(peer);
+            long current = states.get(slot);
+            long loss = loss(current);
+            loss += (sample - loss) >> 3;
+            states.set(slot, pack(srtt(current), rttvar(current), loss));
+            updatedAt.set(slot, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return RTO per RFC 6298, SRTT + 4 * RTTVAR, clamped; the STUN default before any sample
+     */
+    public long retransmissionTimeoutMillis(InetAddress peer) {
+        return rto(state(peer));
+    }
+
+    /**
+     * @return how long a peer may take to deliver a complete HTTP/3 request, stretched on
+     *         lossy paths and clamped to the given bounds
+     */
+    public long requestDeadlineMillis(InetAddress peer, long minMillis, long maxMillis) {
+        return clamp(scaled(state(peer), REQUEST_RTO_MULTIPLIER), minMillis, maxMillis);
+    }
+
+    /**
+     * @return how long a connection to the peer may sit idle before it is closed, clamped to
+     *         the given bounds
+     */
+    public long idleTimeoutMillis(InetAddress peer, long minMillis, long maxMillis) {
+        return clamp(scaled(state(peer), IDLE_RTO_MULTIPLIER), minMillis, maxMillis);
+    }
+
+    /**
+     * @return the statistics for a peer, or null if it is not being tracked
+     */
+    public Path get(InetAddress peer) {
+        int slot = find(peer);
+        Path path = slot >= 0 ? path(slot) : null;
+        return path != null && peer.equals(path.getPeer()) ? path : null;
+    }
+
+    /**
+     * @return every tracked peer's statistics, for inspection
+     */
+    public List<Path> snapshot() {
+        List<Path> paths = new ArrayList<>();
+        for (int slot = 0; slot < peers.length(); slot++) {
+            if (peers.get(slot) != null) {
+                Path path = path(slot);
+                if (path != null) {
+                    paths.add(path);
+                }
+            }
+        }
+        return paths;
+    }
+
+    private Path path(int slot) {
+        InetAddress peer = peers.get(slot);
+        long state = states.get(slot);
+        long updated = updatedAt.get(slot);
+        // a peer evicted in between may have left the state of the one that replaced it
+        return peer != null && peer == peers.get(slot) ? new Path(peer, state, updated) : null;
+    }
+
+    private long state(InetAddress peer) {
+        int slot = find(peer);
+        if (slot < 0) {
+            return 0;
+        }
+        long state = states.get(slot);
+        return peer.equals(peers.get(slot)) ? state : 0;
+    }
+
+    private int find(InetAddress peer) {
+        int base = set(peer);
+        for (int way = 0; way < 2; way++) {
+            if (peer.equals(peers.get(base + way))) {
+                return base + way;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the peer's slot, taking the less recently updated one in its set if it has none;
+     *         the caller holds the set's lock
+     */
+    private int claim(InetAddress peer) {
+        int slot = find(peer);
+        if (slot >= 0) {
+            return slot;
+        }
+
+        int base = set(peer);
+        int victim = peers.get(base) == null ? base
+            : peers.get(base + 1) == null ? base + 1
+            : updatedAt.get(base) <= updatedAt.get(base + 1) ? base : base + 1;
+        // emptied first, so no reader sees the new peer with the old peer's statistics
+        peers.set(victim, null);
+        states.set(victim, 0);
+        updatedAt.set(victim, System.currentTimeMillis());
+        peers.set(victim, peer);
+        return victim;
+    }
+
+    private Object lock(InetAddress peer) {
+        return locks[set(peer) >> 1];
+    }
+
+    private int set(InetAddress peer) {
+        int h = peer.hashCode();
+        h ^= h >>> 16;
+        return (h & setMask) << 1;
+    }
+
+    private static long rto(long state) {
+        long srtt = srtt(state);
+        if (srtt == 0) {
+            return INITIAL_RTO_MILLIS;
+        }
+        long rtoMillis = (srtt + 4 * rttvar(state)) / 1000;
+        return Math.min(Math.max(rtoMillis, MIN_RTO_MILLIS), MAX_RTO_MILLIS);
+    }
+
+    private static long scaled(long state, int rtoMultiplier) {
+        double loss = Math.min((double) loss(state) / LOSS_ONE, MAX_LOSS_SCALING);
+        return (long) (rto(state) * rtoMultiplier / (1 - loss));
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.min(Math.max(value, min), max);
+    }
+
+    private static long pack(long srtt, long rttvar, long loss) {
+        return (loss << LOSS_SHIFT) | (rttvar << FIELD_BITS) | srtt;
+    }
+
+    private static long srtt(long state) {
+        return state & FIELD_MASK;
+    }
+
+    private static long rttvar(long state) {
+        return (state >>> FIELD_BITS) & FIELD_MASK;
+    }
+
+    private static long loss(long state) {
+        return state >>> LOSS_SHIFT;
+    }
+
+    /**
+     * One peer's statistics at the time they were read
+     */
+    public static class Path {
+        private final InetAddress peer;
+        private final long state;
+        private final long updatedAt;
+
+        Path(InetAddress peer, long state, long updatedAt) {
+            this.peer = peer;
+            this.state = state;
+            this.updatedAt = updatedAt;
+        }
+
+        public InetAddress getPeer() {
+            return peer;
+        }
+
+        /**
+         * @return smoothed RTT in milliseconds, or 0 before the first sample
+         */
+        public double getSmoothedRttMillis() {
+            return srtt(state) / 1000.0;
+        }
+
+        public double getRttVarianceMillis() {
+            return rttvar(state) / 1000.0;
+        }
+
+        /**
+         * @return the smoothed fraction of transmissions lost, between 0 and 1
+         */
+        public double getLossRate() {
+            return (double) loss(state) / LOSS_ONE;
+        }
+
+        public long getRetransmissionTimeoutMillis() {
+            return rto(state);
+        }
+
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s srtt=%.1fms rttvar=%.1fms loss=%.3f rto=%dms",
+                peer.getHostAddress(), getSmoothedRttMillis(), getRttVarianceMillis(),
+                getLossRate(), getRetransmissionTimeoutMillis());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package prototype_5.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how long the agent takes to become reachable. Times are reported relative to
+ * process start (when the OS exposes it) and to entry into {@code main}, so JVM boot
+ * cost and our own initialisation can be told apart.
+ */
+public final class StartupMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(StartupMetrics.class);
+
+    /** Target time from process start until the first packet can be answered. */
+    public static final long TARGET_MILLIS = 200;
+
+    private static volatile long mainEnteredNanos = System.nanoTime();
+    private static volatile long processStartOffsetMillis = -1;
+    private static volatile long readyMillis = -1;
+    private static volatile long firstPacketMillis = -1;
+
+    private StartupMetrics() {
+    }
+
+    public static void mainEntered() {
+        mainEnteredNanos = System.nanoTime();
+        processStartOffsetMillis = ProcessHandle.current().info().startInstant()
+            .map(start -> Math.max(0, Instant.now().toEpochMilli() - start.toEpochMilli()))
+            .orElse(-1L);
+    }
+
+    /**
+     * Records that the UDP socket is bound and STUN can be answered
+     */
+    public static void ready() {
+        readyMillis = sinceMain();
+        long total = sinceProcessStart(readyMillis);
+        if (total > TARGET_MILLIS) {
+            logger.warn("Ready to serve after {} ms ({} ms since main), target is {} ms",
+                total, readyMillis, TARGET_MILLIS);
+        } else {
+            logger.info("Ready to serve after {} ms ({} ms since main)", total, readyMillis);
+        }
+    }
+
+    public static void tlsReady() {
+        logger.info("TLS context ready {} ms after main", sinceMain());
+    }
+
+    /**
+     * Records the first packet handled; cheap enough to call on every packet
+     */
+    public static void packetHandled() {
+        if (firstPacketMillis >= 0) {
+            return;
+        }
+        synchronized (StartupMetrics.class) {
+            if (firstPacketMillis >= 0) {
+                return;
+            }
+            firstPacketMillis = sinceMain();
+        }
+        logger.info("Time to first packet: {} ms ({} ms since main)",
+            sinceProcessStart(firstPacketMillis), firstPacketMillis);
+    }
+
+    public static long getReadyMillis() {
+        return readyMillis;
+    }
+
+    public static long getFirstPacketMillis() {
+        return firstPacketMillis;
+    }
+
+    private static long sinceMain() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mainEnteredNanos);
+    }
+
+    private static long sinceProcessStart(long sinceMain) {
+        return processStartOffsetMillis < 0 ? sinceMain : processStartOffsetMillis + sinceMain;
+    }
+}
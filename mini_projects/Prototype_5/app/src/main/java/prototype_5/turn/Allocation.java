@@ -0,0 +1,166 @@
+package prototype_5.turn;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import javax.crypto.Mac;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * One client's TURN allocation: its relayed socket, permissions and channel bindings.
+ * Only touched on the event loop of the {@link TurnServer} that holds it.
+ */
+final class Allocation {
+    final InetSocketAddress client;
+    final int shard;
+    final String username;
+    final Mac mac;
+    /** Transaction id of the Allocate request, so a retransmission gets the same answer. */
+    final byte[] transactionId;
+    final Map<InetAddress, Long> permissions = new HashMap<>();
+    final IntObjectMap<Binding> channels = new IntObjectHashMap<>();
+    final Map<InetSocketAddress, Binding> peerChannels = new HashMap<>();
+    /** The node the client's packets last arrived at, or null if this one. */
+    InetSocketAddress ingress;
+    int port;
+    Channel relay;
+    InetSocketAddress relayed;
+    long expiresAt;
+
+    Allocation(InetSocketAddress client, int shard, String username, Mac mac, byte[] transactionId) {
+        this.client = client;
+        this.shard = shard;
+        this.username = username;
+        this.mac = mac;
+        this.transactionId = transactionId;
+    }
+
+    boolean isRetransmission(ByteBuf request) {
+        int start = request.readerIndex() + 8;
+        for (int i = 0; i < transactionId.length; i++) {
+            if (request.getByte(start + i) != transactionId[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean permits(InetAddress peer) {
+        return permissions.containsKey(peer);
+    }
+
+    void permit(InetAddress peer, long expiresAt) {
+        permissions.put(peer, expiresAt);
+    }
+
+    void bind(int number, InetSocketAddress peer, long expiresAt) {
+        Binding binding = channels.get(number);
+        if (binding == null) {
+            binding = new Binding(number, peer);
+            channels.put(number, binding);
+            peerChannels.put(peer, binding);
+        }
+        binding.expiresAt = expiresAt;
+    }
+
+    /**
+     * Drops permissions and channel bindings that have run out
+     */
+    void expire(long now) {
+        permissions.values().removeIf(expiry -> expiry <= now);
+        for (Iterator<Binding> i = channels.values().iterator(); i.hasNext(); ) {
+            Binding binding = i.next();
+            if (binding.expiresAt <= now) {
+                i.remove();
+                peerChannels.remove(binding.peer);
+            }
+        }
+    }
+
+    /**
+     * Writes what another node needs to take this allocation over. Expiry times are written
+     * as time remaining, since clocks are not shared.
+     *
+     * @param ingress written in place of a null {@link #ingress}, i.e. this node
+     */
+    void writeState(ByteBuf out, InetSocketAddress ingress, long now) {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(shard);
+        TurnMessages.writeAddress(out, client);
+        TurnMessages.writeAddress(out, this.ingress != null ? this.ingress : ingress);
+        out.writeShort(port);
+        out.writeShort(user.length);
+        out.writeBytes(user);
+        out.writeBytes(transactionId);
+        out.writeInt(remaining(expiresAt, now));
+        out.writeShort(permissions.size());
+        for (Map.Entry<InetAddress, Long> permission : permissions.entrySet()) {
+            TurnMessages.writeAddress(out, new InetSocketAddress(permission.getKey(), 0));
+            out.writeInt(remaining(permission.getValue(), now));
+        }
+        out.writeShort(channels.size());
+        for (Binding binding : channels.values()) {
+            out.writeShort(binding.number);
+            TurnMessages.writeAddress(out, binding.peer);
+            out.writeInt(remaining(binding.expiresAt, now));
+        }
+    }
+
+    /**
+     * Reads the state written by {@link #writeState}
+     *
+     * @param macs the credential for a user name, or null if the user is unknown here
+     * @return the allocation without a relayed socket, or null if its user is unknown
+     */
+    static Allocation readState(ByteBuf in, Function<String, Mac> macs, long now) {
+        int shard = in.readUnsignedShort();
+        InetSocketAddress client = TurnMessages.readAddress(in);
+        InetSocketAddress ingress = TurnMessages.readAddress(in);
+        int port = in.readUnsignedShort();
+        String username = in.readCharSequence(in.readUnsignedShort(), StandardCharsets.UTF_8).toString();
+        byte[] transactionId = new byte[12];
+        in.readBytes(transactionId);
+        Mac mac = macs.apply(username);
+        if (mac == null) {
+            return null;
+        }
+
+        Allocation allocation = new Allocation(client, shard, username, mac, transactionId);
+        allocation.ingress = ingress;
+        allocation.port = port;
+        allocation.expiresAt = now + in.readUnsignedInt();
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            InetAddress peer = TurnMessages.readAddress(in).getAddress();
+            allocation.permit(peer, now + in.readUnsignedInt());
+        }
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            int number = in.readUnsignedShort();
+            InetSocketAddress peer = TurnMessages.readAddress(in);
+            allocation.bind(number, peer, now + in.readUnsignedInt());
+        }
+        return allocation;
+    }
+
+    private static int remaining(long expiresAt, long now) {
+        return (int) Math.max(0, expiresAt - now);
+    }
+
+    static final class Binding {
+        final int number;
+        final InetSocketAddress peer;
+        long expiresAt;
+
+        Binding(int number, InetSocketAddress peer) {
+            this.number = number;
+            this.peer = peer;
+        }
+    }
+}
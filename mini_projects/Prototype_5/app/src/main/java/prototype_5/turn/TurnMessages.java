@@ -0,0 +1,362 @@
+package prototype_5.turn;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reads and writes the parts of STUN (RFC 8489) and TURN (RFC 8656) messages the relay
+ * needs, directly on {@link ByteBuf}s. Attributes are found by walking the message rather
+ * than parsing it into objects, so relaying data allocates little beyond the peer address.
+ * All offsets are absolute buffer indices and the message starts at its reader index.
+ */
+public final class TurnMessages {
+    public static final int HEADER_BYTES = 20;
+    public static final int CHANNEL_DATA_HEADER_BYTES = 4;
+    public static final int MAGIC_COOKIE = 0x2112A442;
+
+    public static final int BINDING = 0x001;
+    public static final int ALLOCATE = 0x003;
+    public static final int REFRESH = 0x004;
+    public static final int SEND = 0x006;
+    public static final int DATA = 0x007;
+    public static final int CREATE_PERMISSION = 0x008;
+    public static final int CHANNEL_BIND = 0x009;
+
+    public static final int REQUEST = 0x000;
+    public static final int INDICATION = 0x010;
+    public static final int SUCCESS = 0x100;
+    public static final int ERROR = 0x110;
+
+    public static final int USERNAME = 0x0006;
+    public static final int MESSAGE_INTEGRITY = 0x0008;
+    public static final int ERROR_CODE = 0x0009;
+    public static final int CHANNEL_NUMBER = 0x000C;
+    public static final int LIFETIME = 0x000D;
+    public static final int XOR_PEER_ADDRESS = 0x0012;
+    public static final int DATA_VALUE = 0x0013;
+    public static final int REALM = 0x0014;
+    public static final int NONCE = 0x0015;
+    public static final int XOR_RELAYED_ADDRESS = 0x0016;
+    public static final int REQUESTED_TRANSPORT = 0x0019;
+    public static final int XOR_MAPPED_ADDRESS = 0x0020;
+
+    public static final int MIN_CHANNEL = 0x4000;
+    public static final int MAX_CHANNEL = 0x4FFF;
+
+    private static final int HMAC_LENGTH = 20;
+    private static final int IPV4 = 0x01;
+    private static final int IPV6 = 0x02;
+
+    private TurnMessages() {
+    }
+
+    /**
+     * @return true if the buffer holds a STUN message: two zero high bits and the magic cookie
+     */
+    public static boolean isStun(ByteBuf buf) {
+        int start = buf.readerIndex();
+        return buf.isReadable(HEADER_BYTES)
+            && (buf.getUnsignedByte(start) & 0xC0) == 0
+            && buf.getInt(start + 4) == MAGIC_COOKIE;
+    }
+
+    /**
+     * @return true if the buffer holds a STUN message of a TURN method, i.e. anything but Binding
+     */
+    public static boolean isTurn(ByteBuf buf) {
+        return isStun(buf) && method(buf.getUnsignedShort(buf.readerIndex())) != BINDING;
+    }
+
+    /**
+     * @return true if the buffer holds an Allocate request
+     */
+    public static boolean isAllocateRequest(ByteBuf buf) {
+        return isStun(buf) && buf.getUnsignedShort(buf.readerIndex()) == (ALLOCATE | REQUEST);
+    }
+
+    /**
+     * Recognises a ChannelData message (RFC 8656 12.4): a channel number, then a length that
+     * accounts for the rest of the datagram give or take padding. The first byte overlaps
+     * with QUIC short headers, so callers also check that the sender is a TURN client.
+     */
+    public static boolean isChannelData(ByteBuf buf) {
+        if (!buf.isReadable(CHANNEL_DATA_HEADER_BYTES)) {
+            return false;
+        }
+        int start = buf.readerIndex();
+        int channel = buf.getUnsignedShort(start);
+        int spare = buf.readableBytes() - CHANNEL_DATA_HEADER_BYTES - buf.getUnsignedShort(start + 2);
+        return channel >= MIN_CHANNEL && channel <= MAX_CHANNEL && spare >= 0 && spare < 4;
+    }
+
+    /**
+     * @return the method of a message type, taking out the class bits interleaved with it
+     */
+    public static int method(int type) {
+        return (type & 0x000F) | ((type & 0x00E0) >> 1) | ((type & 0x3E00) >> 2);
+    }
+
+    /**
+     * @return the class bits of a message type, one of {@link #REQUEST}, {@link #INDICATION},
+     * {@link #SUCCESS} or {@link #ERROR}
+     */
+    public static int messageClass(int type) {
+        return type & 0x0110;
+    }
+
+    /**
+     * Finds the first attribute of a type. Attributes after MESSAGE-INTEGRITY are not covered
+     * by it, so the search stops there.
+     *
+     * @return the index of the attribute header, or -1
+     */
+    public static int attribute(ByteBuf message, int type) {
+        return attribute(message, type, message.readerIndex() + HEADER_BYTES);
+    }
+
+    /**
+     * Finds the next attribute of a type at or after an index, e.g. {@link #next} of the previous one
+     *
+     * @return the index of the attribute header, or -1
+     */
+    public static int attribute(ByteBuf message, int type, int from) {
+        int start = message.readerIndex();
+        int end = Math.min(message.writerIndex(), start + HEADER_BYTES + message.getUnsignedShort(start + 2));
+        for (int i = from; i + 4 <= end; i = next(message, i)) {
+            int attributeType = message.getUnsignedShort(i);
+            if (i + 4 + message.getUnsignedShort(i + 2) > end) {
+                return -1;
+            }
+            if (attributeType == type) {
+                return i;
+            }
+            if (attributeType == MESSAGE_INTEGRITY) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index just past an attribute and its padding
+     */
+    public static int next(ByteBuf message, int attribute) {
+        return attribute + 4 + ((message.getUnsignedShort(attribute + 2) + 3) & ~3);
+    }
+
+    /**
+     * @return the length of an attribute's value
+     */
+    public static int length(ByteBuf message, int attribute) {
+        return message.getUnsignedShort(attribute + 2);
+    }
+
+    public static String readString(ByteBuf message, int attribute) {
+        return message.toString(attribute + 4, length(message, attribute), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes an XOR-MAPPED-ADDRESS style attribute, which is XORed with the magic cookie
+     * and, for IPv6, the transaction id; those are header bytes 4 to 19 of the message
+     *
+     * @return the address, or null if the attribute is malformed
+     */
+    public static InetSocketAddress readXorAddress(ByteBuf message, int attribute) {
+        int family = message.getUnsignedByte(attribute + 5);
+        int size = family == IPV4 ? 4 : family == IPV6 ? 16 : 0;
+        if (size == 0 || length(message, attribute) != 4 + size) {
+            return null;
+        }
+        int key = message.readerIndex() + 4;
+        byte[] address = new byte[size];
+        for (int i = 0; i < size; i++) {
+            address[i] = (byte) (message.getByte(attribute + 8 + i) ^ message.getByte(key + i));
+        }
+        int port = message.getUnsignedShort(attribute + 6) ^ (MAGIC_COOKIE >>> 16);
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address), port);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Appends an XOR-MAPPED-ADDRESS style attribute to a message whose header is written
+     */
+    public static void writeXorAddress(ByteBuf out, int type, InetSocketAddress address) {
+        byte[] bytes = address.getAddress().getAddress();
+        boolean ipv4 = bytes.length == 4;
+        out.writeShort(type);
+        out.writeShort(ipv4 ? 8 : 20);
+        out.writeByte(0);
+        out.writeByte(ipv4 ? IPV4 : IPV6);
+        out.writeShort(address.getPort() ^ (MAGIC_COOKIE >>> 16));
+        // the magic cookie, then the transaction id for IPv6
+        int key = out.readerIndex() + 4;
+        for (int i = 0; i < bytes.length; i++) {
+            out.writeByte(bytes[i] ^ out.getByte(key + i));
+        }
+    }
+
+    /**
+     * Starts an answer to a request, copying its cookie and transaction id
+     */
+    public static void startResponse(ByteBuf out, int type, ByteBuf request) {
+        out.writeShort(type);
+        out.writeShort(0);
+        out.writeBytes(request, request.readerIndex() + 4, 16);
+    }
+
+    /**
+     * Starts an indication with a fresh transaction id
+     */
+    public static void startIndication(ByteBuf out, int type) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        out.writeShort(type);
+        out.writeShort(0);
+        out.writeInt(MAGIC_COOKIE);
+        out.writeInt(random.nextInt());
+        out.writeInt(random.nextInt());
+        out.writeInt(random.nextInt());
+    }
+
+    public static void writeAttribute(ByteBuf out, int type, ByteBuf value) {
+        int length = value.readableBytes();
+        out.writeShort(type);
+        out.writeShort(length);
+        out.writeBytes(value, value.readerIndex(), length);
+        out.writeZero(-length & 3);
+    }
+
+    public static void writeAttribute(ByteBuf out, int type, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(type);
+        out.writeShort(bytes.length);
+        out.writeBytes(bytes);
+        out.writeZero(-bytes.length & 3);
+    }
+
+    public static void writeIntAttribute(ByteBuf out, int type, int value) {
+        out.writeShort(type);
+        out.writeShort(4);
+        out.writeInt(value);
+    }
+
+    public static void writeErrorCode(ByteBuf out, int code, String reason) {
+        byte[] bytes = reason.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(ERROR_CODE);
+        out.writeShort(4 + bytes.length);
+        out.writeShort(0);
+        out.writeByte(code / 100);
+        out.writeByte(code % 100);
+        out.writeBytes(bytes);
+        out.writeZero(-bytes.length & 3);
+    }
+
+    /**
+     * Sets the length field of a finished message
+     */
+    public static void end(ByteBuf out) {
+        out.setShort(out.readerIndex() + 2, out.readableBytes() - HEADER_BYTES);
+    }
+
+    /**
+     * Derives the long-term credential key, MD5(username ":" realm ":" password) (RFC 8489 9.2.2)
+     */
+    public static Mac longTermMac(String username, String realm, String password) {
+        try {
+            byte[] key = MessageDigest.getInstance("MD5")
+                .digest((username + ":" + realm + ":" + password).getBytes(StandardCharsets.UTF_8));
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(key, "HmacSHA1"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("MD5 or HmacSHA1 unavailable", e);
+        }
+    }
+
+    /**
+     * Checks the MESSAGE-INTEGRITY attribute of a message. The HMAC covers the message up to
+     * the attribute with the header length field rewritten to end just after it, so the
+     * header is fed separately instead of patching the buffer.
+     */
+    public static boolean verifyIntegrity(ByteBuf message, int attribute, Mac mac) {
+        if (length(message, attribute) != HMAC_LENGTH) {
+            return false;
+        }
+        byte[] expected = hmac(message, attribute, mac);
+        int diff = 0;
+        for (int i = 0; i < HMAC_LENGTH; i++) {
+            diff |= expected[i] ^ message.getByte(attribute + 4 + i);
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Appends MESSAGE-INTEGRITY to a message being built and sets its length field
+     */
+    public static void appendIntegrity(ByteBuf out, Mac mac) {
+        byte[] hmac = hmac(out, out.writerIndex(), mac);
+        out.writeShort(MESSAGE_INTEGRITY);
+        out.writeShort(HMAC_LENGTH);
+        out.writeBytes(hmac);
+        end(out);
+    }
+
+    private static byte[] hmac(ByteBuf message, int attribute, Mac mac) {
+        int start = message.readerIndex();
+        int adjustedLength = attribute + 4 + HMAC_LENGTH - start - HEADER_BYTES;
+
+        mac.reset();
+        mac.update(message.getByte(start));
+        mac.update(message.getByte(start + 1));
+        mac.update((byte) (adjustedLength >> 8));
+        mac.update((byte) adjustedLength);
+        mac.update(message.nioBuffer(start + 4, attribute - start - 4));
+        return mac.doFinal();
+    }
+
+    /**
+     * Writes an address in the plain form used between cluster nodes: a length byte, the
+     * address and the port. A null address is written as length 0.
+     */
+    public static void writeAddress(ByteBuf out, InetSocketAddress address) {
+        if (address == null) {
+            out.writeByte(0);
+            return;
+        }
+        byte[] bytes = address.getAddress().getAddress();
+        out.writeByte(bytes.length);
+        out.writeBytes(bytes);
+        out.writeShort(address.getPort());
+    }
+
+    /**
+     * Reads an address written by {@link #writeAddress}
+     *
+     * @return the address, or null if none was written
+     * @throws IllegalArgumentException if the address is malformed
+     */
+    public static InetSocketAddress readAddress(ByteBuf in) {
+        int length = in.readUnsignedByte();
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readBytes(bytes);
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes), in.readUnsignedShort());
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Bad address length " + length, e);
+        }
+    }
+}
@@ -0,0 +1,745 @@
+package prototype_5.turn;
+
+import prototype_5.config.ServerConfig;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A TURN server (RFC 8656) relaying UDP for clients with long-term credentials. It holds
+ * the allocations this node owns; which node owns a client's allocation, and how answers
+ * get back to a client whose packets arrive at another node, is up to the {@link Egress}.
+ * <p>
+ * Relayed ports are chosen by shard, {@code relayPortMin + shard + k * shards}, so a
+ * relayed address belongs to the same shard, and hence the same node, as the client it
+ * was allocated to. An allocation moves between nodes with its relayed port, which works
+ * where every node can bind the relay address, such as several processes on one host.
+ * <p>
+ * Everything runs on one executor from the blocking group, shared with the cluster node,
+ * so none of the state is locked; the relayed sockets are registered on the I/O loops and
+ * hand what they read to that executor. Lifetimes are checked by a sweep once a second
+ * rather than on every packet.
+ */
+public class TurnServer {
+    private static final Logger logger = LoggerFactory.getLogger(TurnServer.class);
+
+    private static final long DEFAULT_LIFETIME_SECONDS = 600;
+    private static final long PERMISSION_LIFETIME_MILLIS = 300_000;
+    private static final long CHANNEL_LIFETIME_MILLIS = 600_000;
+    private static final long NONCE_LIFETIME_SECONDS = 3600;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    private static final int UDP = 17;
+    private static final int BIND_ATTEMPTS = 8;
+    private static final int NONCE_LENGTH = 24;
+
+    /**
+     * Where packets for clients go
+     */
+    public interface Egress {
+        /**
+         * Sends a packet to a client the way the client's packets arrive
+         *
+         * @param ingress the node the client's packets arrive at, or null for this one
+         * @param packet released once sent
+         */
+        void toClient(InetSocketAddress client, InetSocketAddress ingress, ByteBuf packet);
+    }
+
+    private final EventExecutor executor;
+    private final EventLoopGroup ioGroup;
+    private final Class<? extends DatagramChannel> channelClass;
+    private final InetAddress relayAddress;
+    private final int relayPortMin;
+    private final int relayPortMax;
+    private final int shards;
+    private final String realm;
+    private final Map<String, String> users;
+    private final long maxLifetimeSeconds;
+    private final Egress egress;
+    private final ByteBufAllocator alloc = ByteBufAllocator.DEFAULT;
+    private final Map<InetSocketAddress, Allocation> allocations = new HashMap<>();
+    private final Set<Integer> relayPorts = new HashSet<>();
+    private final Map<String, Mac> macs = new HashMap<>();
+    private final Mac nonceMac;
+    private ScheduledFuture<?> sweep;
+
+    /**
+     * @param config the relay address, port range, realm, users and lifetime limit
+     * @param executor runs everything but socket I/O; not an I/O loop
+     * @param ioGroup the event loops the relayed sockets are registered on
+     * @param channelClass the datagram channel type matching {@code ioGroup}
+     * @param shards how many shards clients are divided into
+     * @param egress sends packets to clients
+     */
+    public TurnServer(ServerConfig config, EventExecutor executor, EventLoopGroup ioGroup,
+                      Class<? extends DatagramChannel> channelClass, int shards, Egress egress) {
+        this.executor = executor;
+        this.ioGroup = ioGroup;
+        this.channelClass = channelClass;
+        this.relayAddress = config.getTurnRelayAddress();
+        this.relayPortMin = config.getTurnRelayPortMin();
+        this.relayPortMax = config.getTurnRelayPortMax();
+        this.shards = shards;
+        this.realm = config.getTurnRealm();
+        this.users = config.getTurnUsers();
+        this.maxLifetimeSeconds = config.getTurnMaxLifetimeSeconds();
+        this.egress = egress;
+
+        // nonces are only checked by the node that issued them; one handed off is answered with 438
+        byte[] secret = new byte[20];
+        new SecureRandom().nextBytes(secret);
+        try {
+            nonceMac = Mac.getInstance("HmacSHA1");
+            nonceMac.init(new SecretKeySpec(secret, "HmacSHA1"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA1 unavailable", e);
+        }
+    }
+
+    public void start() {
+        sweep = executor.scheduleAtFixedRate(this::sweep, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Handles a packet from a client: a TURN request, a Send indication or ChannelData
+     *
+     * @param shard the client's shard
+     * @param ingress the node the packet arrived at, or null for this one
+     * @param packet released once handled
+     */
+    public void handle(InetSocketAddress client, int shard, InetSocketAddress ingress, ByteBuf packet) {
+        try {
+            Allocation allocation = allocations.get(client);
+            if (allocation != null) {
+                allocation.ingress = ingress;
+            }
+            if (TurnMessages.isChannelData(packet)) {
+                if (allocation != null) {
+                    relayChannelData(allocation, packet);
+                }
+                return;
+            }
+            if (!TurnMessages.isStun(packet)) {
+                return;
+            }
+            int type = packet.getUnsignedShort(packet.readerIndex());
+            int method = TurnMessages.method(type);
+            switch (TurnMessages.messageClass(type)) {
+                case TurnMessages.INDICATION:
+                    if (method == TurnMessages.SEND && allocation != null) {
+                        relaySend(allocation, packet);
+                    }
+                    break;
+                case TurnMessages.REQUEST:
+                    onRequest(client, shard, ingress, allocation, method, packet);
+                    break;
+                default:
+                    break;
+            }
+        } finally {
+            packet.release();
+        }
+    }
+
+    /**
+     * @return true if this node holds an allocation for the client
+     */
+    public boolean holds(InetSocketAddress client) {
+        return allocations.containsKey(client);
+    }
+
+    /**
+     * @return the number of allocations held here
+     */
+    public int getAllocationCount() {
+        return allocations.size();
+    }
+
+    /**
+     * Gives up allocations in shards this node no longer owns. Each one's relayed socket is
+     * closed before its state is handed on, so the new owner can bind the same port.
+     * Allocations still binding their relayed socket wait for a later call.
+     *
+     * @param owned whether a shard is still this node's
+     * @param limit hand off at most this many, so a rebalance is spread over several calls
+     * @param self this node, recorded as the ingress of clients whose packets arrive here
+     * @param sink receives each allocation's state and shard, to send to the shard's owner
+     * @return the number handed off
+     */
+    public int handOff(IntPredicate owned, int limit, InetSocketAddress self, ObjIntConsumer<ByteBuf> sink) {
+        long now = now();
+        int count = 0;
+        for (Iterator<Allocation> i = allocations.values().iterator(); i.hasNext() && count < limit; ) {
+            Allocation allocation = i.next();
+            if (allocation.relay == null || owned.test(allocation.shard)) {
+                continue;
+            }
+            i.remove();
+            // the new owner binds the same port, so it must be free before the state goes out
+            ChannelFuture closed = release(allocation);
+            if (closed != null) {
+                closed.awaitUninterruptibly();
+            }
+            ByteBuf state = alloc.buffer();
+            allocation.writeState(state, self, now);
+            sink.accept(state, allocation.shard);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Takes over an allocation handed off by another node, binding its relayed port here
+     *
+     * @param state written by the previous owner; not released
+     */
+    public void adopt(ByteBuf state) {
+        Allocation allocation = Allocation.readState(state, this::mac, now());
+        if (allocation == null) {
+            logger.warn("Dropping handed-off allocation of an unknown user");
+            return;
+        }
+        if (allocations.containsKey(allocation.client)) {
+            // the client allocated again here before the handoff arrived; keep the newer one
+            logger.debug("Dropping handed-off allocation for {}, which has a newer one", allocation.client);
+            return;
+        }
+        allocations.put(allocation.client, allocation);
+        relayPorts.add(allocation.port);
+        bindRelay(allocation, 0, bound -> {
+            if (!bound && allocations.remove(allocation.client, allocation)) {
+                logger.warn("Could not take over relayed port {} for {}", allocation.port, allocation.client);
+            }
+        });
+    }
+
+    /**
+     * Closes every relayed socket; allocations not handed off are lost
+     */
+    public void close() {
+        executor.submit(() -> {
+            if (sweep != null) {
+                sweep.cancel(false);
+            }
+            for (Allocation allocation : allocations.values()) {
+                release(allocation);
+            }
+            allocations.clear();
+        }).syncUninterruptibly();
+    }
+
+    private void onRequest(InetSocketAddress client, int shard, InetSocketAddress ingress, Allocation allocation,
+                           int method, ByteBuf request) {
+        String username = authenticate(client, ingress, method, request);
+        if (username == null) {
+            return;
+        }
+        Mac mac = mac(username);
+        if (allocation != null && !allocation.username.equals(username)) {
+            error(client, ingress, request, method, 441, "Wrong Credentials", mac);
+            return;
+        }
+        switch (method) {
+            case TurnMessages.ALLOCATE:
+                allocate(client, shard, ingress, allocation, username, mac, request);
+                break;
+            case TurnMessages.REFRESH:
+                refresh(client, ingress, allocation, mac, request);
+                break;
+            case TurnMessages.CREATE_PERMISSION:
+                createPermission(client, ingress, allocation, mac, request);
+                break;
+            case TurnMessages.CHANNEL_BIND:
+                channelBind(client, ingress, allocation, mac, request);
+                break;
+            default:
+                error(client, ingress, request, method, 400, "Bad Request", mac);
+        }
+    }
+
+    /**
+     * Checks a request's long-term credential (RFC 8489 9.2.4), answering with a challenge
+     * if it has none or its nonce has expired
+     *
+     * @return the authenticated user name, or null if the request has been answered
+     */
+    private String authenticate(InetSocketAddress client, InetSocketAddress ingress, int method, ByteBuf request) {
+        int integrity = TurnMessages.attribute(request, TurnMessages.MESSAGE_INTEGRITY);
+        if (integrity < 0) {
+            challenge(client, ingress, request, method, 401, "Unauthorized");
+            return null;
+        }
+        int username = TurnMessages.attribute(request, TurnMessages.USERNAME);
+        int requestRealm = TurnMessages.attribute(request, TurnMessages.REALM);
+        int nonce = TurnMessages.attribute(request, TurnMessages.NONCE);
+        if (username < 0 || requestRealm < 0 || nonce < 0) {
+            error(client, ingress, request, method, 400, "Bad Request", null);
+            return null;
+        }
+        String user = TurnMessages.readString(request, username);
+        Mac mac = mac(user);
+        if (mac == null || !realm.equals(TurnMessages.readString(request, requestRealm))
+                || !TurnMessages.verifyIntegrity(request, integrity, mac)) {
+            challenge(client, ingress, request, method, 401, "Unauthorized");
+            return null;
+        }
+        if (!isFresh(client, TurnMessages.readString(request, nonce))) {
+            challenge(client, ingress, request, method, 438, "Stale Nonce");
+            return null;
+        }
+        return user;
+    }
+
+    private void allocate(InetSocketAddress client, int shard, InetSocketAddress ingress, Allocation existing,
+                          String username, Mac mac, ByteBuf request) {
+        if (existing != null) {
+            if (!existing.isRetransmission(request)) {
+                error(client, ingress, request, TurnMessages.ALLOCATE, 437, "Allocation Mismatch", mac);
+            } else if (existing.relay != null) {
+                allocated(existing, request);
+            }
+            // a retransmission while the relayed socket is binding is answered once it is bound
+            return;
+        }
+        int transport = TurnMessages.attribute(request, TurnMessages.REQUESTED_TRANSPORT);
+        if (transport < 0) {
+            error(client, ingress, request, TurnMessages.ALLOCATE, 400, "Bad Request", mac);
+            return;
+        }
+        if (request.getUnsignedByte(transport + 4) != UDP) {
+            error(client, ingress, request, TurnMessages.ALLOCATE, 442, "Unsupported Transport Protocol", mac);
+            return;
+        }
+        int port = nextPort(shard, -1);
+        if (port < 0) {
+            error(client, ingress, request, TurnMessages.ALLOCATE, 508, "Insufficient Capacity", mac);
+            return;
+        }
+
+        byte[] transactionId = new byte[12];
+        request.getBytes(request.readerIndex() + 8, transactionId);
+        Allocation allocation = new Allocation(client, shard, username, mac, transactionId);
+        allocation.ingress = ingress;
+        allocation.port = port;
+        allocation.expiresAt = now() + TimeUnit.SECONDS.toMillis(lifetime(request));
+        allocations.put(client, allocation);
+        relayPorts.add(port);
+
+        ByteBuf pending = request.retainedDuplicate();
+        bindRelay(allocation, BIND_ATTEMPTS, bound -> {
+            try {
+                if (bound) {
+                    allocated(allocation, pending);
+                } else if (allocations.remove(client, allocation)) {
+                    error(client, allocation.ingress, pending, TurnMessages.ALLOCATE, 508,
+                        "Insufficient Capacity", mac);
+                }
+            } finally {
+                pending.release();
+            }
+        });
+    }
+
+    private void allocated(Allocation allocation, ByteBuf request) {
+        ByteBuf out = alloc.buffer();
+        TurnMessages.startResponse(out, TurnMessages.ALLOCATE | TurnMessages.SUCCESS, request);
+        TurnMessages.writeXorAddress(out, TurnMessages.XOR_RELAYED_ADDRESS, allocation.relayed);
+        TurnMessages.writeIntAttribute(out, TurnMessages.LIFETIME, remainingSeconds(allocation));
+        TurnMessages.writeXorAddress(out, TurnMessages.XOR_MAPPED_ADDRESS, allocation.client);
+        TurnMessages.appendIntegrity(out, allocation.mac);
+        egress.toClient(allocation.client, allocation.ingress, out);
+    }
+
+    private void refresh(InetSocketAddress client, InetSocketAddress ingress, Allocation allocation, Mac mac,
+                         ByteBuf request) {
+        if (allocation == null) {
+            error(client, ingress, request, TurnMessages.REFRESH, 437, "Allocation Mismatch", mac);
+            return;
+        }
+        long lifetime = lifetime(request);
+        if (lifetime == 0) {
+            allocations.remove(client);
+            release(allocation);
+        } else {
+            allocation.expiresAt = now() + TimeUnit.SECONDS.toMillis(lifetime);
+        }
+        ByteBuf out = alloc.buffer();
+        TurnMessages.startResponse(out, TurnMessages.REFRESH | TurnMessages.SUCCESS, request);
+        TurnMessages.writeIntAttribute(out, TurnMessages.LIFETIME, (int) lifetime);
+        TurnMessages.appendIntegrity(out, mac);
+        egress.toClient(client, ingress, out);
+    }
+
+    private void createPermission(InetSocketAddress client, InetSocketAddress ingress, Allocation allocation,
+                                  Mac mac, ByteBuf request) {
+        if (allocation == null) {
+            error(client, ingress, request, TurnMessages.CREATE_PERMISSION, 437, "Allocation Mismatch", mac);
+            return;
+        }
+        List<InetAddress> peers = new ArrayList<>();
+        for (int i = TurnMessages.attribute(request, TurnMessages.XOR_PEER_ADDRESS); i >= 0;
+                i = TurnMessages.attribute(request, TurnMessages.XOR_PEER_ADDRESS, TurnMessages.next(request, i))) {
+            InetSocketAddress peer = TurnMessages.readXorAddress(request, i);
+            if (peer == null) {
+                error(client, ingress, request, TurnMessages.CREATE_PERMISSION, 400, "Bad Request", mac);
+                return;
+            }
+            if (!sameFamily(peer.getAddress(), relayAddress)) {
+                error(client, ingress, request, TurnMessages.CREATE_PERMISSION, 443,
+                    "Peer Address Family Mismatch", mac);
+                return;
+            }
+            peers.add(peer.getAddress());
+        }
+        if (peers.isEmpty()) {
+            error(client, ingress, request, TurnMessages.CREATE_PERMISSION, 400, "Bad Request", mac);
+            return;
+        }
+        long expiresAt = now() + PERMISSION_LIFETIME_MILLIS;
+        for (InetAddress peer : peers) {
+            allocation.permit(peer, expiresAt);
+        }
+        success(client, ingress, request, TurnMessages.CREATE_PERMISSION, mac);
+    }
+
+    private void channelBind(InetSocketAddress client, InetSocketAddress ingress, Allocation allocation, Mac mac,
+                             ByteBuf request) {
+        if (allocation == null) {
+            error(client, ingress, request, TurnMessages.CHANNEL_BIND, 437, "Allocation Mismatch", mac);
+            return;
+        }
+        int channel = TurnMessages.attribute(request, TurnMessages.CHANNEL_NUMBER);
+        int address = TurnMessages.attribute(request, TurnMessages.XOR_PEER_ADDRESS);
+        InetSocketAddress peer = address >= 0 ? TurnMessages.readXorAddress(request, address) : null;
+        int number = channel >= 0 ? request.getUnsignedShort(channel + 4) : 0;
+        if (peer == null || number < TurnMessages.MIN_CHANNEL || number > TurnMessages.MAX_CHANNEL) {
+            error(client, ingress, request, TurnMessages.CHANNEL_BIND, 400, "Bad Request", mac);
+            return;
+        }
+        if (!sameFamily(peer.getAddress(), relayAddress)) {
+            error(client, ingress, request, TurnMessages.CHANNEL_BIND, 443, "Peer Address Family Mismatch", mac);
+            return;
+        }
+        // a channel stays bound to one peer, and a peer to one channel, until the binding expires
+        Allocation.Binding byNumber = allocation.channels.get(number);
+        Allocation.Binding byPeer = allocation.peerChannels.get(peer);
+        if (byNumber != byPeer) {
+            error(client, ingress, request, TurnMessages.CHANNEL_BIND, 400, "Bad Request", mac);
+            return;
+        }
+        long now = now();
+        allocation.bind(number, peer, now + CHANNEL_LIFETIME_MILLIS);
+        allocation.permit(peer.getAddress(), now + PERMISSION_LIFETIME_MILLIS);
+        success(client, ingress, request, TurnMessages.CHANNEL_BIND, mac);
+    }
+
+    private void relaySend(Allocation allocation, ByteBuf indication) {
+        int address = TurnMessages.attribute(indication, TurnMessages.XOR_PEER_ADDRESS);
+        int data = TurnMessages.attribute(indication, TurnMessages.DATA_VALUE);
+        if (address < 0 || data < 0 || allocation.relay == null) {
+            return;
+        }
+        InetSocketAddress peer = TurnMessages.readXorAddress(indication, address);
+        if (peer != null && allocation.permits(peer.getAddress())) {
+            ByteBuf payload = indication.retainedSlice(data + 4, TurnMessages.length(indication, data));
+            allocation.relay.writeAndFlush(new DatagramPacket(payload, peer), allocation.relay.voidPromise());
+        }
+    }
+
+    private void relayChannelData(Allocation allocation, ByteBuf message) {
+        int start = message.readerIndex();
+        Allocation.Binding binding = allocation.channels.get(message.getUnsignedShort(start));
+        if (binding == null || allocation.relay == null || !allocation.permits(binding.peer.getAddress())) {
+            return;
+        }
+        ByteBuf payload = message.retainedSlice(start + TurnMessages.CHANNEL_DATA_HEADER_BYTES,
+            message.getUnsignedShort(start + 2));
+        allocation.relay.writeAndFlush(new DatagramPacket(payload, binding.peer), allocation.relay.voidPromise());
+    }
+
+    /**
+     * Wraps a peer's datagram for the client: as ChannelData if a channel is bound to the
+     * peer, otherwise as a Data indication
+     */
+    private void relayToClient(Allocation allocation, DatagramPacket packet) {
+        InetSocketAddress peer = packet.sender();
+        if (!allocation.permits(peer.getAddress())) {
+            return;
+        }
+        ByteBuf content = packet.content();
+        int length = content.readableBytes();
+        Allocation.Binding binding = allocation.peerChannels.get(peer);
+        ByteBuf out;
+        if (binding != null) {
+            out = alloc.directBuffer(TurnMessages.CHANNEL_DATA_HEADER_BYTES + length);
+            out.writeShort(binding.number);
+            out.writeShort(length);
+            out.writeBytes(content, content.readerIndex(), length);
+        } else {
+            out = alloc.directBuffer(TurnMessages.HEADER_BYTES + 24 + 4 + length + 3);
+            TurnMessages.startIndication(out, TurnMessages.DATA | TurnMessages.INDICATION);
+            TurnMessages.writeXorAddress(out, TurnMessages.XOR_PEER_ADDRESS, peer);
+            TurnMessages.writeAttribute(out, TurnMessages.DATA_VALUE, content);
+            TurnMessages.end(out);
+        }
+        egress.toClient(allocation.client, allocation.ingress, out);
+    }
+
+    private void success(InetSocketAddress client, InetSocketAddress ingress, ByteBuf request, int method, Mac mac) {
+        ByteBuf out = alloc.buffer();
+        TurnMessages.startResponse(out, method | TurnMessages.SUCCESS, request);
+        TurnMessages.appendIntegrity(out, mac);
+        egress.toClient(client, ingress, out);
+    }
+
+    /**
+     * @param mac the request's credential, or null if it was not authenticated
+     */
+    private void error(InetSocketAddress client, InetSocketAddress ingress, ByteBuf request, int method,
+                       int code, String reason, Mac mac) {
+        ByteBuf out = alloc.buffer();
+        TurnMessages.startResponse(out, method | TurnMessages.ERROR, request);
+        TurnMessages.writeErrorCode(out, code, reason);
+        if (mac != null) {
+            TurnMessages.appendIntegrity(out, mac);
+        } else {
+            TurnMessages.end(out);
+        }
+        egress.toClient(client, ingress, out);
+    }
+
+    private void challenge(InetSocketAddress client, InetSocketAddress ingress, ByteBuf request, int method,
+                           int code, String reason) {
+        ByteBuf out = alloc.buffer();
+        TurnMessages.startResponse(out, method | TurnMessages.ERROR, request);
+        TurnMessages.writeErrorCode(out, code, reason);
+        TurnMessages.writeAttribute(out, TurnMessages.REALM, realm);
+        TurnMessages.writeAttribute(out, TurnMessages.NONCE, nonce(client, System.currentTimeMillis() / 1000));
+        TurnMessages.end(out);
+        egress.toClient(client, ingress, out);
+    }
+
+    /**
+     * A nonce is the time it was issued and a MAC of that time and the client's address,
+     * so it needs no state and is only valid for the client it was issued to
+     */
+    private String nonce(InetSocketAddress client, long issuedSeconds) {
+        nonceMac.reset();
+        nonceMac.update(client.getAddress().getAddress());
+        nonceMac.update((byte) (client.getPort() >> 8));
+        nonceMac.update((byte) client.getPort());
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            nonceMac.update((byte) (issuedSeconds >> shift));
+        }
+        byte[] tag = nonceMac.doFinal();
+        StringBuilder nonce = new StringBuilder(NONCE_LENGTH);
+        nonce.append(String.format("%08x", issuedSeconds & 0xFFFFFFFFL));
+        for (int i = 0; i < 8; i++) {
+            nonce.append(Character.forDigit((tag[i] >> 4) & 0xF, 16)).append(Character.forDigit(tag[i] & 0xF, 16));
+        }
+        return nonce.toString();
+    }
+
+    private boolean isFresh(InetSocketAddress client, String nonce) {
+        if (nonce.length() != NONCE_LENGTH) {
+            return false;
+        }
+        long issued;
+        try {
+            issued = Long.parseLong(nonce.substring(0, 8), 16);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        long age = System.currentTimeMillis() / 1000 - issued;
+        return age >= 0 && age < NONCE_LIFETIME_SECONDS && nonce.equals(nonce(client, issued));
+    }
+
+    /**
+     * @return the keyed HMAC for a user's long-term credential, or null if the user is unknown
+     */
+    private Mac mac(String username) {
+        Mac mac = macs.get(username);
+        if (mac == null) {
+            String password = users.get(username);
+            if (password == null) {
+                return null;
+            }
+            mac = TurnMessages.longTermMac(username, realm, password);
+            macs.put(username, mac);
+        }
+        return mac;
+    }
+
+    /**
+     * @return the lifetime a request asks for, or the default if it does not say, capped at the maximum
+     */
+    private long lifetime(ByteBuf request) {
+        int lifetime = TurnMessages.attribute(request, TurnMessages.LIFETIME);
+        long requested = lifetime < 0 ? DEFAULT_LIFETIME_SECONDS : request.getUnsignedInt(lifetime + 4);
+        return Math.min(requested, maxLifetimeSeconds);
+    }
+
+    /**
+     * @return the next free relayed port of a shard after {@code after}, starting at a random
+     * one if {@code after} is -1, or -1 if the shard has none left
+     */
+    private int nextPort(int shard, int after) {
+        int first = relayPortMin + shard;
+        if (first > relayPortMax) {
+            return -1;
+        }
+        int count = (relayPortMax - first) / shards + 1;
+        int start = after < 0 ? ThreadLocalRandom.current().nextInt(count) : (after - first) / shards + 1;
+        for (int i = 0; i < count; i++) {
+            int port = first + ((start + i) % count) * shards;
+            if (!relayPorts.contains(port)) {
+                return port;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Binds an allocation's relayed socket on its port, moving on to the shard's next free
+     * port if that is taken and attempts remain
+     */
+    private void bindRelay(Allocation allocation, int attempts, Consumer<Boolean> done) {
+        // the bind completes on the relayed socket's I/O loop; the state is only touched on the executor
+        bind(allocation).addListener((ChannelFuture future) -> executor.execute(() -> {
+            // expired, deleted or handed off while binding; its port was released with it
+            boolean current = allocations.get(allocation.client) == allocation;
+            if (future.isSuccess()) {
+                if (!current) {
+                    future.channel().close();
+                    done.accept(false);
+                    return;
+                }
+                allocation.relay = future.channel();
+                allocation.relayed = new InetSocketAddress(relayAddress, allocation.port);
+                done.accept(true);
+                return;
+            }
+            logger.debug("Binding relayed port {} failed: {}", allocation.port, future.cause().getMessage());
+            if (current) {
+                relayPorts.remove(allocation.port);
+            }
+            int next = current && attempts > 1 ? nextPort(allocation.shard, allocation.port) : -1;
+            if (next < 0) {
+                done.accept(false);
+                return;
+            }
+            allocation.port = next;
+            relayPorts.add(next);
+            bindRelay(allocation, attempts - 1, done);
+        }));
+    }
+
+    private ChannelFuture bind(Allocation allocation) {
+        return new Bootstrap()
+            .group(ioGroup)
+            .channel(channelClass)
+            .handler(new ChannelInitializer<DatagramChannel>() {
+                @Override
+                protected void initChannel(DatagramChannel ch) {
+                    // one sendmmsg per burst of peer-bound packets rather than a syscall each
+                    ch.pipeline().addLast(new FlushConsolidationHandler(64, true));
+                    ch.pipeline().addLast(executor, new RelayHandler(allocation));
+                }
+            })
+            .bind(new InetSocketAddress(relayAddress, allocation.port));
+    }
+
+    /**
+     * @return the closing of the allocation's relayed socket, or null if it had none
+     */
+    private ChannelFuture release(Allocation allocation) {
+        relayPorts.remove(allocation.port);
+        if (allocation.relay == null) {
+            return null;
+        }
+        ChannelFuture closed = allocation.relay.close();
+        allocation.relay = null;
+        return closed;
+    }
+
+    private void sweep() {
+        long now = now();
+        for (Iterator<Allocation> i = allocations.values().iterator(); i.hasNext(); ) {
+            Allocation allocation = i.next();
+            if (allocation.expiresAt <= now) {
+                logger.debug("Allocation for {} expired", allocation.client);
+                i.remove();
+                release(allocation);
+            } else {
+                allocation.expire(now);
+            }
+        }
+    }
+
+    private int remainingSeconds(Allocation allocation) {
+        return (int) TimeUnit.MILLISECONDS.toSeconds(Math.max(0, allocation.expiresAt - now()));
+    }
+
+    private static boolean sameFamily(InetAddress a, InetAddress b) {
+        return (a instanceof Inet4Address) == (b instanceof Inet4Address);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Receives what peers send to an allocation's relayed address
+     */
+    private final class RelayHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        private final Allocation allocation;
+
+        RelayHandler(Allocation allocation) {
+            this.allocation = allocation;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            relayToClient(allocation, packet);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.debug("Relayed socket for {} failed: {}", allocation.client, cause.toString());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package prototype_5.beckn;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestDeduplicatorTest {
+
+    private static BecknContext context(String action, String bppId) {
+        ByteBuf body = Unpooled.copiedBuffer("{\"context\":{\"action\":\"" + action + "\","
+            + "\"transaction_id\":\"t-1\",\"message_id\":\"m-1\",\"bap_id\":\"bap.example\","
+            + "\"bpp_id\":\"" + bppId + "\",\"timestamp\":\"2023-01-01T00:00:00Z\"},"
+            + "\"message\":{\"catalog\":{}}}", CharsetUtil.UTF_8);
+        try {
+            BecknContext context = BecknContext.parse(body);
+            assertNotNull(context);
+            return context;
+        } finally {
+            body.release();
+        }
+    }
+
+    @Test
+    void callbacksFromDifferentSendersWithTheSameIdsAreAllDelivered() {
+        RequestDeduplicator deduplicator = new RequestDeduplicator(1, TimeUnit.MINUTES, 1024);
+        BecknContext first = context("on_search", "bpp-one.example");
+        BecknContext second = context("on_search", "bpp-two.example");
+
+        assertEquals("bpp-one.example", first.getSender());
+        assertFalse(deduplicator.markSeen(RequestDeduplicator.fingerprint(first)));
+        assertFalse(deduplicator.markSeen(RequestDeduplicator.fingerprint(second)));
+        assertEquals(0, deduplicator.getDuplicateCount());
+    }
+
+    @Test
+    void retransmissionFromTheSameSenderIsADuplicate() {
+        RequestDeduplicator deduplicator = new RequestDeduplicator(1, TimeUnit.MINUTES, 1024);
+
+        assertFalse(deduplicator.markSeen(RequestDeduplicator.fingerprint(context("on_search", "bpp-one.example"))));
+        assertTrue(deduplicator.markSeen(RequestDeduplicator.fingerprint(context("on_search", "bpp-one.example"))));
+        assertEquals(1, deduplicator.getDuplicateCount());
+    }
+
+    @Test
+    void requestsAreIdentifiedByTheirBapAndAction() {
+        BecknContext search = context("search", "bpp-one.example");
+
+        assertEquals("bap.example", search.getSender());
+        assertEquals(RequestDeduplicator.fingerprint(search),
+            RequestDeduplicator.fingerprint(context("search", "bpp-two.example")));
+        assertNotEquals(RequestDeduplicator.fingerprint(search),
+            RequestDeduplicator.fingerprint(context("select", "bpp-one.example")));
+    }
+
+    @Test
+    void duplicateIsAnsweredWithTheCachedResponse() {
+        RequestDeduplicator deduplicator = new RequestDeduplicator(1, TimeUnit.MINUTES, 1024);
+        long fingerprint = RequestDeduplicator.fingerprint(context("search", "bpp-one.example"));
+        byte[] ack = "{\"message\":{\"ack\":{\"status\":\"ACK\"}}}".getBytes(CharsetUtil.UTF_8);
+
+        assertNull(deduplicator.cachedResponse(fingerprint));
+        deduplicator.cacheResponse(fingerprint, 200, ack);
+        RequestDeduplicator.CachedResponse cached = deduplicator.cachedResponse(fingerprint);
+        assertNotNull(cached);
+        assertEquals(200, cached.getStatus());
+        assertArrayEquals(ack, cached.getBody());
+        assertEquals(1, deduplicator.getReplayedCount());
+    }
+
+    @Test
+    void responsesOverTheSizeLimitAreNotCached() {
+        RequestDeduplicator deduplicator = new RequestDeduplicator(1, TimeUnit.MINUTES, 1024);
+        long fingerprint = RequestDeduplicator.fingerprint(context("search", "bpp-one.example"));
+
+        deduplicator.cacheResponse(fingerprint, 200, new byte[RequestDeduplicator.MAX_CACHED_RESPONSE_BYTES + 1]);
+        assertNull(deduplicator.cachedResponse(fingerprint));
+        deduplicator.cacheResponse(fingerprint, 200, new byte[RequestDeduplicator.MAX_CACHED_RESPONSE_BYTES]);
+        assertNotNull(deduplicator.cachedResponse(fingerprint));
+    }
+
+    @Test
+    void collidingResponseEvictsTheOlderOne() {
+        RequestDeduplicator deduplicator = new RequestDeduplicator(1, TimeUnit.MINUTES, 1024);
+        long first = 42;
+        long second = first + RequestDeduplicator.RESPONSE_CACHE_SLOTS;
+
+        deduplicator.cacheResponse(first, 200, new byte[1]);
+        deduplicator.cacheResponse(second, 200, new byte[2]);
+        assertNull(deduplicator.cachedResponse(first));
+        assertEquals(2, deduplicator.cachedResponse(second).getBody().length);
+    }
+}
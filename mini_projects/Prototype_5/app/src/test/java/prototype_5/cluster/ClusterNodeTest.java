@@ -0,0 +1,212 @@
+package prototype_5.cluster;
+
+import prototype_5.config.ServerConfig;
+import prototype_5.turn.TurnServer;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Drives one node's internal socket from plain sockets that sign frames the way members do
+ */
+class ClusterNodeTest {
+    private static final String KEY = "cluster-test-key";
+    private static final int HEARTBEAT = 1;
+    private static final int LEAVE = 5;
+
+    private EventLoopGroup ioGroup;
+    private EventExecutor executor;
+    private ClusterNode node;
+    private InetSocketAddress nodeAddress;
+
+    @BeforeEach
+    void start() throws Exception {
+        ioGroup = new NioEventLoopGroup(1);
+        executor = new DefaultEventExecutor();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramSocket probe = new DatagramSocket(0, loopback)) {
+            nodeAddress = new InetSocketAddress(loopback, probe.getLocalPort());
+        }
+        node = new ClusterNode(executor, ioGroup, NioDatagramChannel.class, nodeAddress,
+            Collections.emptyList(), 50, 60_000, KEY);
+        ServerConfig config = ServerConfig.builder().turnRelayAddress(loopback).build();
+        node.start(new TurnServer(config, executor, ioGroup, NioDatagramChannel.class, HashRing.SHARDS, node));
+    }
+
+    @AfterEach
+    void stop() {
+        node.close();
+        executor.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        ioGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    void signedHeartbeatJoinsAndLeaveRemoves() throws Exception {
+        try (Member member = new Member(KEY)) {
+            member.send(member.frame(HEARTBEAT, member.now()));
+            await(() -> inRing(member));
+            member.send(member.frame(LEAVE, member.now()));
+            await(() -> !inRing(member));
+        }
+    }
+
+    @Test
+    void replayedHeartbeatDoesNotRejoinAMemberThatLeft() throws Exception {
+        try (Member member = new Member(KEY)) {
+            byte[] heartbeat = member.frame(HEARTBEAT, member.now());
+            member.send(heartbeat);
+            await(() -> inRing(member));
+            member.send(member.frame(LEAVE, member.now()));
+            await(() -> !inRing(member));
+
+            member.send(heartbeat);
+            settle();
+            assertFalse(inRing(member), "a replayed heartbeat put a departed member back on the ring");
+        }
+    }
+
+    @Test
+    void replayedLeaveIsIgnoredOnceTheMemberIsBack() throws Exception {
+        try (Member member = new Member(KEY)) {
+            member.send(member.frame(HEARTBEAT, member.now()));
+            await(() -> inRing(member));
+            byte[] leave = member.frame(LEAVE, member.now());
+            member.send(leave);
+            await(() -> !inRing(member));
+            member.send(member.frame(HEARTBEAT, member.now()));
+            await(() -> inRing(member));
+
+            member.send(leave);
+            settle();
+            assertTrue(inRing(member), "a replayed leave took a live member off the ring");
+        }
+    }
+
+    @Test
+    void framesReorderedWithinTheWindowAreAccepted() throws Exception {
+        try (Member member = new Member(KEY)) {
+            long now = member.now();
+            member.send(member.frame(HEARTBEAT, now + 10));
+            await(() -> inRing(member));
+            // sent before the heartbeat, overtaken on the way
+            member.send(member.frame(LEAVE, now + 5));
+            await(() -> !inRing(member));
+        }
+    }
+
+    @Test
+    void staleFrameFromANewSenderIsRefused() throws Exception {
+        try (Member member = new Member(KEY)) {
+            member.send(member.frame(HEARTBEAT, member.now() - TimeUnit.MINUTES.toMicros(1)));
+            settle();
+            assertFalse(inRing(member), "a minute-old heartbeat was accepted");
+        }
+    }
+
+    @Test
+    void frameUnderAnotherKeyIsRefused() throws Exception {
+        try (Member member = new Member("not-the-cluster-key")) {
+            member.send(member.frame(HEARTBEAT, member.now()));
+            settle();
+            assertFalse(inRing(member), "a heartbeat under the wrong key was accepted");
+        }
+    }
+
+    private boolean inRing(Member member) {
+        return node.getRing().getMembers().contains(member.address);
+    }
+
+    /**
+     * Waits until the node has handled every frame sent to it so far, by having one more
+     * member join after them
+     */
+    private void settle() throws Exception {
+        try (Member marker = new Member(KEY)) {
+            marker.send(marker.frame(HEARTBEAT, marker.now()));
+            await(() -> inRing(marker));
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("timed out");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A stand-in cluster member on its own socket
+     */
+    private final class Member implements AutoCloseable {
+        final DatagramSocket socket;
+        final InetSocketAddress address;
+        final Mac mac;
+
+        Member(String key) throws Exception {
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            address = new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        }
+
+        long now() {
+            return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        }
+
+        /**
+         * @return a frame of the type with no members listed, sequence number and MAC
+         */
+        byte[] frame(int type, long sequence) {
+            ByteBuffer frame = ByteBuffer.allocate(type == HEARTBEAT ? 3 : 1);
+            frame.put((byte) type);
+            if (type == HEARTBEAT) {
+                frame.putShort((short) 0);
+            }
+            byte[] body = Arrays.copyOf(frame.array(), frame.capacity() + 8);
+            ByteBuffer.wrap(body, frame.capacity(), 8).putLong(sequence);
+            mac.update(address.getAddress().getAddress());
+            mac.update((byte) (address.getPort() >>> 8));
+            mac.update((byte) address.getPort());
+            mac.update(body);
+            byte[] signed = Arrays.copyOf(body, body.length + 32);
+            System.arraycopy(mac.doFinal(), 0, signed, body.length, 32);
+            return signed;
+        }
+
+        void send(byte[] frame) throws IOException {
+            socket.send(new DatagramPacket(frame, frame.length, nodeAddress));
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+}
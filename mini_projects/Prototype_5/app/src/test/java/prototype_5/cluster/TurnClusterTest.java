@@ -0,0 +1,383 @@
+package prototype_5.cluster;
+
+import prototype_5.config.ServerConfig;
+import prototype_5.handler.PacketInspector;
+import prototype_5.handler.TurnHandler;
+import prototype_5.turn.TurnMessages;
+import prototype_5.turn.TurnServer;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Three cluster nodes on loopback, each with its own executor, I/O loop, public socket and
+ * internal socket, and a TURN client and peer on plain sockets
+ */
+class TurnClusterTest {
+    private static final String USER = "alice";
+    private static final String PASSWORD = "secret";
+    private static final String CLUSTER_KEY = "turn-cluster-test-key";
+    private static final int CHANNEL = 0x4000;
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    @BeforeEach
+    void start() throws Exception {
+        InetSocketAddress seed = null;
+        for (int i = 0; i < 3; i++) {
+            Node node = new Node(freePort(), seed);
+            if (seed == null) {
+                seed = node.internal;
+            }
+            nodes.add(node);
+        }
+        await(() -> nodes.stream().allMatch(node -> node.cluster.getRing().getMembers().size() == 3));
+    }
+
+    @AfterEach
+    void stop() {
+        // every node stops sending to the others before any of them goes away
+        for (Node node : nodes) {
+            node.cluster.close();
+            node.publicChannel.close().syncUninterruptibly();
+        }
+        for (Node node : nodes) {
+            node.shutdown();
+        }
+    }
+
+    @Test
+    void allocationOnOneNodeRelaysThroughAnotherAndMovesWhenItsOwnerLeaves() throws Exception {
+        try (TurnClient client = new TurnClient(); DatagramSocket peer = new DatagramSocket(0, LOOPBACK)) {
+            peer.setSoTimeout(200);
+            InetSocketAddress peerAddress = new InetSocketAddress(LOOPBACK, peer.getLocalPort());
+            int shard = HashRing.shard(client.address);
+            Node a = owner(shard);
+            Node b = nodes.stream().filter(node -> node != a).findFirst().orElseThrow(AssertionError::new);
+
+            InetSocketAddress relayed = client.allocate(a.publicAddress);
+            assertTrue(a.holds(client.address));
+            // bound through B, which forwards to A and delivers A's answer
+            client.channelBind(b.publicAddress, CHANNEL, peerAddress);
+
+            assertRelayed(client, b, peer, relayed, "through B");
+            assertReturned(client, peer, relayed, "back to the client");
+
+            a.cluster.leave();
+            List<Node> remaining = new ArrayList<>(nodes);
+            remaining.remove(a);
+            await(() -> remaining.stream().allMatch(node -> node.cluster.getRing().getMembers().size() == 2));
+            Node successor = owner(shard, remaining.get(0));
+            assertNotEquals(a, successor);
+            await(() -> successor.holds(client.address));
+            assertFalse(a.holds(client.address));
+            assertEquals(0, a.allocationCount());
+
+            // the new owner bound the same relayed port and kept the channel binding
+            assertRelayed(client, b, peer, relayed, "after the handoff");
+            assertReturned(client, peer, relayed, "back after the handoff");
+        }
+    }
+
+    @Test
+    void ringsAgreeOnOwnersAndRebalanceWhenANodeLeaves() throws Exception {
+        for (int shard = 0; shard < HashRing.SHARDS; shard++) {
+            InetSocketAddress owner = nodes.get(0).cluster.getRing().owner(shard);
+            for (Node node : nodes) {
+                assertEquals(owner, node.cluster.getRing().owner(shard), "owners differ for shard " + shard);
+            }
+        }
+        Node leaving = nodes.get(1);
+        leaving.cluster.leave();
+        await(() -> nodes.get(0).cluster.getRing().getMembers().size() == 2
+            && nodes.get(2).cluster.getRing().getMembers().size() == 2);
+
+        int owned = 0;
+        for (Node node : Arrays.asList(nodes.get(0), nodes.get(2))) {
+            HashRing ring = node.cluster.getRing();
+            assertFalse(ring.getMembers().contains(leaving.internal));
+            owned += ring.shardsOwnedBy(node.internal);
+        }
+        assertEquals(HashRing.SHARDS, owned, "every shard has exactly one remaining owner");
+    }
+
+    private void assertRelayed(TurnClient client, Node ingress, DatagramSocket peer, InetSocketAddress relayed,
+                               String what) throws Exception {
+        byte[] payload = what.getBytes(StandardCharsets.UTF_8);
+        DatagramPacket received = new DatagramPacket(new byte[1500], 1500);
+        // the handoff binds the relayed port asynchronously, so early packets may be dropped
+        for (int attempt = 0; attempt < 25; attempt++) {
+            client.sendChannelData(ingress.publicAddress, CHANNEL, payload);
+            try {
+                peer.receive(received);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            // a late retransmission from an earlier step is skipped
+            if (what.equals(new String(received.getData(), 0, received.getLength(), StandardCharsets.UTF_8))) {
+                assertEquals(relayed, received.getSocketAddress(), "relayed from the allocated address");
+                return;
+            }
+        }
+        fail("nothing relayed " + what);
+    }
+
+    private void assertReturned(TurnClient client, DatagramSocket peer, InetSocketAddress relayed, String what)
+            throws Exception {
+        byte[] payload = what.getBytes(StandardCharsets.UTF_8);
+        for (int attempt = 0; attempt < 25; attempt++) {
+            peer.send(new DatagramPacket(payload, payload.length, relayed));
+            byte[] data = client.receiveChannelData(CHANNEL);
+            if (data != null && what.equals(new String(data, StandardCharsets.UTF_8))) {
+                return;
+            }
+        }
+        fail("nothing relayed " + what);
+    }
+
+    private Node owner(int shard) {
+        return owner(shard, nodes.get(0));
+    }
+
+    private Node owner(int shard, Node viewpoint) {
+        InetSocketAddress owner = viewpoint.cluster.getRing().owner(shard);
+        return nodes.stream().filter(node -> node.internal.equals(owner)).findFirst()
+            .orElseThrow(AssertionError::new);
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket probe = new DatagramSocket(0, LOOPBACK)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("timed out");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * One cluster member wired as the server wires it, with the public socket's pipeline cut
+     * down to the TURN handlers
+     */
+    private static final class Node {
+        final EventLoopGroup ioGroup = new NioEventLoopGroup(1);
+        final EventExecutor executor = new DefaultEventExecutor();
+        final InetSocketAddress internal;
+        final ClusterNode cluster;
+        final TurnServer turn;
+        final Channel publicChannel;
+        final InetSocketAddress publicAddress;
+
+        Node(int port, InetSocketAddress seed) throws InterruptedException {
+            internal = new InetSocketAddress(LOOPBACK, port);
+            ServerConfig config = ServerConfig.builder()
+                .turnUsers(Collections.singletonMap(USER, PASSWORD))
+                .turnRelayAddress(LOOPBACK)
+                .build();
+            cluster = new ClusterNode(executor, ioGroup, NioDatagramChannel.class, internal,
+                seed != null ? Collections.singletonList(seed) : Collections.emptyList(), 50, 2000, CLUSTER_KEY);
+            turn = new TurnServer(config, executor, ioGroup, NioDatagramChannel.class, HashRing.SHARDS, cluster);
+            cluster.start(turn);
+            publicChannel = new Bootstrap()
+                .group(ioGroup)
+                .channel(NioDatagramChannel.class)
+                .handler(new ChannelInitializer<DatagramChannel>() {
+                    @Override
+                    protected void initChannel(DatagramChannel ch) {
+                        ch.pipeline().addLast(new PacketInspector());
+                        ch.pipeline().addLast(new TurnHandler(cluster));
+                        ch.pipeline().addLast(new Discard());
+                    }
+                })
+                .bind(LOOPBACK, 0)
+                .sync()
+                .channel();
+            publicAddress = (InetSocketAddress) publicChannel.localAddress();
+        }
+
+        boolean holds(InetSocketAddress client) {
+            return executor.submit(() -> turn.holds(client)).syncUninterruptibly().getNow();
+        }
+
+        int allocationCount() {
+            return executor.submit(turn::getAllocationCount).syncUninterruptibly().getNow();
+        }
+
+        void shutdown() {
+            executor.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            ioGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    /**
+     * Drops what reaches the end of the public pipeline, where the QUIC codec would be
+     */
+    private static final class Discard extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof PacketInspector.StunPacketMarker) {
+                ((PacketInspector.StunPacketMarker) msg).content().release();
+            } else {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    /**
+     * Just enough of a TURN client for long-term credentials, channels and ChannelData
+     */
+    private static final class TurnClient implements AutoCloseable {
+        final DatagramSocket socket;
+        final InetSocketAddress address;
+        final Mac mac = TurnMessages.longTermMac(USER, "beckn", PASSWORD);
+        String realm;
+        String nonce;
+
+        TurnClient() throws IOException {
+            socket = new DatagramSocket(0, LOOPBACK);
+            socket.setSoTimeout(200);
+            address = new InetSocketAddress(LOOPBACK, socket.getLocalPort());
+        }
+
+        InetSocketAddress allocate(InetSocketAddress server) throws IOException {
+            ByteBuf challenge = transact(server, start(TurnMessages.ALLOCATE), TurnMessages.ERROR);
+            realm = TurnMessages.readString(challenge, TurnMessages.attribute(challenge, TurnMessages.REALM));
+            nonce = TurnMessages.readString(challenge, TurnMessages.attribute(challenge, TurnMessages.NONCE));
+
+            ByteBuf request = start(TurnMessages.ALLOCATE);
+            TurnMessages.writeIntAttribute(request, TurnMessages.REQUESTED_TRANSPORT, 17 << 24);
+            ByteBuf answer = transact(server, sign(request), TurnMessages.SUCCESS);
+            InetSocketAddress relayed = TurnMessages.readXorAddress(answer,
+                TurnMessages.attribute(answer, TurnMessages.XOR_RELAYED_ADDRESS));
+            assertNotNull(relayed);
+            return relayed;
+        }
+
+        void channelBind(InetSocketAddress server, int channel, InetSocketAddress peer) throws IOException {
+            ByteBuf request = start(TurnMessages.CHANNEL_BIND);
+            TurnMessages.writeIntAttribute(request, TurnMessages.CHANNEL_NUMBER, channel << 16);
+            TurnMessages.writeXorAddress(request, TurnMessages.XOR_PEER_ADDRESS, peer);
+            transact(server, sign(request), TurnMessages.SUCCESS);
+        }
+
+        void sendChannelData(InetSocketAddress server, int channel, byte[] payload) throws IOException {
+            byte[] message = new byte[TurnMessages.CHANNEL_DATA_HEADER_BYTES + payload.length];
+            Unpooled.wrappedBuffer(message).clear().writeShort(channel).writeShort(payload.length).writeBytes(payload);
+            socket.send(new DatagramPacket(message, message.length, server));
+        }
+
+        /**
+         * @return the payload of the next ChannelData on the channel, or null if none comes in time
+         */
+        byte[] receiveChannelData(int channel) throws IOException {
+            DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            ByteBuf message = Unpooled.wrappedBuffer(packet.getData(), 0, packet.getLength());
+            if (!TurnMessages.isChannelData(message) || message.getUnsignedShort(0) != channel) {
+                return null;
+            }
+            byte[] payload = new byte[message.getUnsignedShort(2)];
+            message.getBytes(TurnMessages.CHANNEL_DATA_HEADER_BYTES, payload);
+            return payload;
+        }
+
+        private static ByteBuf start(int method) {
+            byte[] transactionId = new byte[12];
+            ThreadLocalRandom.current().nextBytes(transactionId);
+            return Unpooled.buffer()
+                .writeShort(method | TurnMessages.REQUEST)
+                .writeShort(0)
+                .writeInt(TurnMessages.MAGIC_COOKIE)
+                .writeBytes(transactionId);
+        }
+
+        private ByteBuf sign(ByteBuf request) {
+            TurnMessages.writeAttribute(request, TurnMessages.USERNAME, USER);
+            TurnMessages.writeAttribute(request, TurnMessages.REALM, realm);
+            TurnMessages.writeAttribute(request, TurnMessages.NONCE, nonce);
+            TurnMessages.appendIntegrity(request, mac);
+            return request;
+        }
+
+        /**
+         * Sends a request until its answer comes back, as a client retransmits
+         *
+         * @return the answer, which must be of the expected class
+         */
+        private ByteBuf transact(InetSocketAddress server, ByteBuf request, int expectedClass) throws IOException {
+            TurnMessages.end(request);
+            byte[] bytes = Arrays.copyOf(request.array(), request.readableBytes());
+            DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+            for (int attempt = 0; attempt < 10; attempt++) {
+                socket.send(new DatagramPacket(bytes, bytes.length, server));
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                ByteBuf answer = Unpooled.wrappedBuffer(Arrays.copyOf(packet.getData(), packet.getLength()));
+                if (TurnMessages.isStun(answer) && answer.slice(4, 16).equals(request.slice(4, 16))) {
+                    int type = answer.getUnsignedShort(0);
+                    assertEquals(TurnMessages.method(request.getUnsignedShort(0)), TurnMessages.method(type));
+                    assertEquals(expectedClass, TurnMessages.messageClass(type), "answer class");
+                    return answer;
+                }
+            }
+            throw new AssertionError("no answer from " + server);
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package prototype_5.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ServerConfigTest {
+    private static final String[] PROPERTIES = {"turn.usersFile", "cluster.keyFile", "turn.relayAddress"};
+
+    @AfterEach
+    void clearProperties() {
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+    }
+
+    @Test
+    void turnSecretsAreReadFromTheNamedFiles() throws Exception {
+        Path users = Files.createTempFile("turn-users", ".txt");
+        Path key = Files.createTempFile("cluster-key", ".txt");
+        try {
+            Files.write(users, "alice:one,bob:two\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(key, "shared-cluster-secret\n".getBytes(StandardCharsets.UTF_8));
+            System.setProperty("turn.usersFile", users.toString());
+            System.setProperty("cluster.keyFile", key.toString());
+            System.setProperty("turn.relayAddress", "192.0.2.10");
+
+            ServerConfig config = ServerConfig.createDefault();
+
+            Map<String, String> expected = new LinkedHashMap<>();
+            expected.put("alice", "one");
+            expected.put("bob", "two");
+            assertEquals(expected, config.getTurnUsers());
+            assertEquals("shared-cluster-secret", config.getClusterKey());
+            assertEquals(InetAddress.getByName("192.0.2.10"), config.getTurnRelayAddress());
+        } finally {
+            Files.deleteIfExists(users);
+            Files.deleteIfExists(key);
+        }
+    }
+
+    @Test
+    void secretsAreNotTakenFromSystemProperties() throws Exception {
+        System.setProperty("turn.users", "alice:secret");
+        System.setProperty("cluster.key", "secret");
+        try {
+            ServerConfig config = ServerConfig.createDefault();
+            assertEquals(0, config.getTurnUsers().size());
+            assertNull(config.getClusterKey());
+        } finally {
+            System.clearProperty("turn.users");
+            System.clearProperty("cluster.key");
+        }
+    }
+
+    @Test
+    void relayAddressHasNoDefault() {
+        assertNull(ServerConfig.builder().build().getTurnRelayAddress());
+    }
+}
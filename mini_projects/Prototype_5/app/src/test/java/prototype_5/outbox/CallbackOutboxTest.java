@@ -0,0 +1,218 @@
+package prototype_5.outbox;
+
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CallbackOutboxTest {
+    private static final InetSocketAddress BAP = new InetSocketAddress("127.0.0.1", 8443);
+    private static final InetSocketAddress BAP_RENUMBERED = new InetSocketAddress("127.0.0.1", 9443);
+
+    private final RecordingSender sender = new RecordingSender();
+    private File directory;
+    private EventExecutor executor;
+    private SegmentLog log;
+    private CallbackOutbox outbox;
+
+    @BeforeEach
+    void start() throws IOException {
+        directory = Files.createTempDirectory("callback-outbox-test").toFile();
+        executor = new DefaultEventExecutor();
+        open();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        outbox.close();
+        executor.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private void open() throws IOException {
+        log = new SegmentLog(directory, 64 * 1024, 5);
+        outbox = new CallbackOutbox(log, sender, executor);
+    }
+
+    private static byte[] callback(int i) {
+        return ("{\"context\":{\"action\":\"on_search\",\"message_id\":\"m-" + i + "\"}}")
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void enqueue(String peer, int i) throws Exception {
+        outbox.enqueue(peer, "/on_search", "Signature keyId=\"bpp|k1|ed25519\"", callback(i)).get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits for every task queued on the outbox executor so far
+     */
+    private void settle() throws Exception {
+        executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void callbacksQueuedWhileThePeerIsAwayAreReplayedInOrderOneAtATime() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            enqueue("bap.example", i);
+        }
+        settle();
+        assertNull(sender.poll(), "nothing may be sent before the peer's address is known");
+
+        outbox.peerAvailable("bap.example", BAP);
+        for (int i = 0; i < 5; i++) {
+            Attempt attempt = sender.next();
+            assertEquals(BAP, attempt.address);
+            assertEquals("/on_search", attempt.message.getPath());
+            assertEquals(new String(callback(i), StandardCharsets.UTF_8), attempt.body());
+            settle();
+            assertNull(sender.poll(), "the next callback went out before callback " + i + " was answered");
+            attempt.result.complete(200);
+        }
+        settle();
+        assertTrue(log.pending().isEmpty());
+    }
+
+    @Test
+    void failureHoldsTheQueueUntilThePeerIsAvailableAgain() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            enqueue("bap.example", i);
+        }
+        outbox.peerAvailable("bap.example", BAP);
+        sender.next().result.complete(200);
+        sender.next().result.completeExceptionally(new ConnectException("Connection refused"));
+        settle();
+        assertNull(sender.poll(), "a failed delivery must pause the peer's queue");
+        assertEquals(2, log.pending().size());
+
+        // reachable again somewhere else: the failed callback goes first
+        outbox.peerAvailable("bap.example", BAP_RENUMBERED);
+        Attempt retried = sender.next();
+        assertEquals(BAP_RENUMBERED, retried.address);
+        assertEquals(new String(callback(1), StandardCharsets.UTF_8), retried.body());
+        retried.result.complete(202);
+        assertEquals(new String(callback(2), StandardCharsets.UTF_8), sender.next().body());
+    }
+
+    @Test
+    void serverErrorPausesAndClientErrorDropsTheCallback() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            enqueue("bap.example", i);
+        }
+        outbox.peerAvailable("bap.example", BAP);
+        sender.next().result.complete(503);
+        settle();
+        assertNull(sender.poll());
+
+        outbox.peerAvailable("bap.example", BAP);
+        Attempt again = sender.next();
+        assertEquals(new String(callback(0), StandardCharsets.UTF_8), again.body());
+        again.result.complete(400);
+        assertEquals(new String(callback(1), StandardCharsets.UTF_8), sender.next().body());
+        settle();
+        assertEquals(2, log.pending().size());
+    }
+
+    @Test
+    void peersAreQueuedIndependently() throws Exception {
+        enqueue("bap-one.example", 0);
+        enqueue("bap-two.example", 1);
+        enqueue("bap-one.example", 2);
+
+        outbox.peerAvailable("bap-two.example", BAP_RENUMBERED);
+        Attempt two = sender.next();
+        assertEquals(new String(callback(1), StandardCharsets.UTF_8), two.body());
+
+        outbox.peerAvailable("bap-one.example", BAP);
+        assertEquals(new String(callback(0), StandardCharsets.UTF_8), sender.next().body());
+    }
+
+    @Test
+    void undeliveredCallbacksAreReplayedInOrderAfterARestart() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            enqueue("bap.example", i);
+        }
+        outbox.peerAvailable("bap.example", BAP);
+        sender.next().result.complete(200);
+        Attempt interrupted = sender.next();
+        settle();
+        outbox.close();
+        interrupted.result.cancel(false);
+
+        open();
+        outbox.peerAvailable("bap.example", BAP);
+        List<String> replayed = new ArrayList<>();
+        for (int i = 1; i < 4; i++) {
+            Attempt attempt = sender.next();
+            replayed.add(attempt.body());
+            attempt.result.complete(200);
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i < 4; i++) {
+            expected.add(new String(callback(i), StandardCharsets.UTF_8));
+        }
+        assertEquals(expected, replayed);
+    }
+
+    private static final class Attempt {
+        final InetSocketAddress address;
+        final SegmentLog.Message message;
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        Attempt(InetSocketAddress address, SegmentLog.Message message) {
+            this.address = address;
+            this.message = message;
+        }
+
+        String body() {
+            return new String(message.getBody(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Hands each attempt to the test, which answers it by completing its result
+     */
+    private static final class RecordingSender implements CallbackOutbox.Sender {
+        private final BlockingQueue<Attempt> attempts = new LinkedBlockingQueue<>();
+
+        @Override
+        public CompletableFuture<Integer> send(InetSocketAddress address, SegmentLog.Message message) {
+            Attempt attempt = new Attempt(address, message);
+            attempts.add(attempt);
+            return attempt.result;
+        }
+
+        Attempt next() throws InterruptedException {
+            Attempt attempt = attempts.poll(5, TimeUnit.SECONDS);
+            assertNotNull(attempt, "no callback was sent");
+            return attempt;
+        }
+
+        Attempt poll() {
+            return attempts.poll();
+        }
+    }
+}
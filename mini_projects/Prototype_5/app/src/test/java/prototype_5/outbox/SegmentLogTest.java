@@ -0,0 +1,245 @@
+package prototype_5.outbox;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentLogTest {
+    private static final int SEGMENT_BYTES = 4096;
+    private static final long SYNC_MILLIS = 5;
+
+    private File directory;
+    private SegmentLog log;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("outbox-test").toFile();
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private SegmentLog reopen() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        log = new SegmentLog(directory, SEGMENT_BYTES, SYNC_MILLIS);
+        return log;
+    }
+
+    private static byte[] body(int i) {
+        return ("{\"context\":{\"action\":\"on_search\",\"message_id\":\"m-" + i + "\"}}")
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private SegmentLog.Entry append(int i) throws Exception {
+        SegmentLog.Entry entry = log.append("bap-" + (i % 3) + ".example", "/on_search",
+            "Signature keyId=\"k\"", body(i));
+        entry.durable().get(5, TimeUnit.SECONDS);
+        return entry;
+    }
+
+    private List<Integer> pendingIds() {
+        List<Integer> ids = new ArrayList<>();
+        for (SegmentLog.Entry entry : log.pending()) {
+            String body = new String(log.read(entry).getBody(), StandardCharsets.UTF_8);
+            ids.add(Integer.parseInt(body.substring(body.indexOf("m-") + 2, body.lastIndexOf('"'))));
+        }
+        return ids;
+    }
+
+    /**
+     * @return the offset just past the last complete record of a segment file
+     */
+    private static int endOfRecords(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            int position = 0;
+            while (position + 4 <= file.length()) {
+                file.seek(position);
+                int length = file.readInt();
+                if (length == 0) {
+                    break;
+                }
+                position += length;
+            }
+            return position;
+        }
+    }
+
+    private static boolean isZeroFrom(File segment, int offset) throws IOException {
+        byte[] bytes = Files.readAllBytes(segment.toPath());
+        for (int i = offset; i < bytes.length; i++) {
+            if (bytes[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File onlySegment() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-"));
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    @Test
+    void messagesSurviveARestartInOrder() throws Exception {
+        reopen();
+        for (int i = 0; i < 5; i++) {
+            append(i);
+        }
+
+        reopen();
+        assertEquals(List.of(0, 1, 2, 3, 4), pendingIds());
+        SegmentLog.Message message = log.read(log.pending().get(1));
+        assertEquals("bap-1.example", message.getPeer());
+        assertEquals("/on_search", message.getPath());
+        assertEquals("Signature keyId=\"k\"", message.getAuthorization());
+        assertArrayEquals(body(1), message.getBody());
+    }
+
+    @Test
+    void tornTailIsDiscardedAndAppendingResumesBeforeIt() throws Exception {
+        reopen();
+        for (int i = 0; i < 3; i++) {
+            append(i);
+        }
+        log.close();
+        log = null;
+
+        // a record whose length made it to disk but whose contents did not
+        File segment = onlySegment();
+        int end = endOfRecords(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(end);
+            file.writeInt(200);
+            file.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+        }
+
+        reopen();
+        assertEquals(List.of(0, 1, 2), pendingIds());
+        assertTrue(isZeroFrom(segment, end), "torn bytes left behind the last good record");
+        append(3);
+
+        reopen();
+        assertEquals(List.of(0, 1, 2, 3), pendingIds());
+    }
+
+    @Test
+    void segmentFileCutShortKeepsEveryCompleteRecord() throws Exception {
+        reopen();
+        for (int i = 0; i < 4; i++) {
+            append(i);
+        }
+        log.close();
+        log = null;
+
+        // the file ends part way through the last record, as after a crash while extending it
+        File segment = onlySegment();
+        int end = endOfRecords(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(end - 5);
+        }
+
+        reopen();
+        assertEquals(List.of(0, 1, 2), pendingIds());
+        append(4);
+
+        reopen();
+        assertEquals(List.of(0, 1, 2, 4), pendingIds());
+    }
+
+    @Test
+    void acknowledgedMessagesStayDeliveredAfterARestart() throws Exception {
+        reopen();
+        List<SegmentLog.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            entries.add(append(i));
+        }
+        log.acknowledge(entries.get(0));
+        log.acknowledge(entries.get(3));
+        log.acknowledge(entries.get(3));
+        append(6);
+
+        reopen();
+        assertEquals(List.of(1, 2, 4, 5, 6), pendingIds());
+    }
+
+    @Test
+    void compactionRemovesAcknowledgedSegmentsAndKeepsPendingOnes() throws Exception {
+        reopen();
+        List<SegmentLog.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            entries.add(append(i));
+        }
+        int before = log.getSegmentCount();
+        assertTrue(before > 4, "expected the messages to span several segments, got " + before);
+
+        List<Integer> kept = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            if (i % 50 == 7) {
+                kept.add(i);
+            } else {
+                log.acknowledge(entries.get(i));
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (log.getSegmentCount() > 2 && System.nanoTime() < deadline) {
+            Thread.sleep(SYNC_MILLIS);
+        }
+        assertTrue(log.getSegmentCount() <= 2, "segments left after compaction: " + log.getSegmentCount());
+        assertEquals(kept, pendingIds());
+
+        reopen();
+        assertEquals(kept, pendingIds());
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-"));
+        assertEquals(log.getSegmentCount(), files.length);
+    }
+
+    @Test
+    void closedLogRefusesAppends() throws Exception {
+        reopen();
+        append(0);
+        log.close();
+        assertThrows(IOException.class, () -> log.append("bap-0.example", "/on_search", null, body(1)));
+        log = null;
+
+        reopen();
+        assertEquals(List.of(0), pendingIds());
+    }
+
+    @Test
+    void missingAuthorizationReadsBackAsNull() throws Exception {
+        reopen();
+        log.append("bap-0.example", "/on_search", null, body(0)).durable().get(5, TimeUnit.SECONDS);
+
+        reopen();
+        assertNull(log.read(log.pending().get(0)).getAuthorization());
+    }
+}
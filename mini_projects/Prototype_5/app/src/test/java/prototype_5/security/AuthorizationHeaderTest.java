@@ -0,0 +1,47 @@
+package prototype_5.security;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AuthorizationHeaderTest {
+    private static final String HEADER = "Signature keyId=\"bap.example|k1|ed25519\",algorithm=\"ed25519\","
+        + "created=\"1641287875\",expires=\"1641291475\",headers=\"(created) (expires) digest\","
+        + "signature=\"c2lnbmF0dXJl\"";
+
+    @Test
+    void parsesEveryParameter() throws Exception {
+        AuthorizationHeader header = AuthorizationHeader.parse(HEADER);
+
+        assertEquals("bap.example|k1|ed25519", header.getKeyId());
+        assertEquals("bap.example", header.getSubscriberId());
+        assertEquals("k1", header.getUniqueKeyId());
+        assertEquals(1641287875L, header.getCreated());
+        assertEquals(1641291475L, header.getExpires());
+        assertEquals("c2lnbmF0dXJl", header.getSignature());
+    }
+
+    @Test
+    void signingStringCoversTheTimestampsAndDigest() throws Exception {
+        assertEquals("(created): 1641287875\n(expires): 1641291475\ndigest: BLAKE-512=abc=",
+            AuthorizationHeader.parse(HEADER).signingString("abc="));
+    }
+
+    @Test
+    void rejectsMissingOrMalformedHeaders() {
+        assertThrows(SignatureVerificationException.class, () -> AuthorizationHeader.parse(null));
+        assertThrows(SignatureVerificationException.class,
+            () -> AuthorizationHeader.parse(HEADER.replace("Signature ", "Bearer ")));
+        assertThrows(SignatureVerificationException.class,
+            () -> AuthorizationHeader.parse(HEADER.replace("algorithm=\"ed25519\"", "algorithm=\"rsa-sha256\"")));
+        assertThrows(SignatureVerificationException.class,
+            () -> AuthorizationHeader.parse(HEADER.replace("created=\"1641287875\",", "")));
+        assertThrows(SignatureVerificationException.class,
+            () -> AuthorizationHeader.parse(HEADER.replace("1641291475", "soon")));
+        assertThrows(SignatureVerificationException.class,
+            () -> AuthorizationHeader.parse(HEADER.replace("bap.example|k1|ed25519", "bap.example")));
+        assertThrows(SignatureVerificationException.class,
+            () -> AuthorizationHeader.parse(HEADER.substring(0, HEADER.length() - 1)));
+    }
+}
@@ -0,0 +1,144 @@
+package prototype_5.security;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
+import org.bouncycastle.crypto.signers.Ed25519Signer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SignatureVerifierTest {
+    private static final String BODY = "{\"context\":{\"action\":\"search\",\"transaction_id\":\"t-1\","
+        + "\"message_id\":\"m-1\",\"bap_id\":\"bap.example\"},\"message\":{}}";
+
+    private final Ed25519PrivateKeyParameters privateKey = new Ed25519PrivateKeyParameters(new SecureRandom());
+    private final SignatureVerifier verifier = new SignatureVerifier(new StaticSubscriberKeyResolver()
+        .register("bap.example", "k1", Base64.getEncoder().encodeToString(privateKey.generatePublicKey().getEncoded())),
+        1, 16);
+
+    @AfterEach
+    void shutdown() {
+        verifier.shutdown();
+    }
+
+    private static long now() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+
+    private static String digest(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        Blake2bDigest blake = new Blake2bDigest(512);
+        blake.update(bytes, 0, bytes.length);
+        byte[] out = new byte[blake.getDigestSize()];
+        blake.doFinal(out, 0);
+        return Base64.getEncoder().encodeToString(out);
+    }
+
+    private String sign(String body, long created, long expires) {
+        byte[] signingString = ("(created): " + created + "\n(expires): " + expires + "\ndigest: BLAKE-512="
+            + digest(body)).getBytes(StandardCharsets.UTF_8);
+        Ed25519Signer signer = new Ed25519Signer();
+        signer.init(true, privateKey);
+        signer.update(signingString, 0, signingString.length);
+        return "Signature keyId=\"bap.example|k1|ed25519\",algorithm=\"ed25519\",created=\"" + created
+            + "\",expires=\"" + expires + "\",headers=\"(created) (expires) digest\",signature=\""
+            + Base64.getEncoder().encodeToString(signer.generateSignature()) + "\"";
+    }
+
+    private void verify(String authorization, String body) throws Exception {
+        ByteBuf buffer = Unpooled.copiedBuffer(body, StandardCharsets.UTF_8);
+        try {
+            CompletableFuture<Void> result = verifier.verify(authorization, buffer);
+            result.get(5, TimeUnit.SECONDS);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static void assertRejected(Executable verification) {
+        ExecutionException e = assertThrows(ExecutionException.class, verification);
+        assertInstanceOf(SignatureVerificationException.class, e.getCause());
+    }
+
+    @Test
+    void validSignatureIsAccepted() throws Exception {
+        verify(sign(BODY, now(), now() + 60), BODY);
+
+        assertEquals(1, verifier.getVerifiedCount());
+        assertEquals(0, verifier.getRejectedCount());
+    }
+
+    @Test
+    void expiredSignatureIsRejectedWithoutVerifying() {
+        long created = now() - 3600;
+        assertRejected(() -> verify(sign(BODY, created, created + 60), BODY));
+
+        assertEquals(1, verifier.getRejectedCount());
+        assertEquals(0, verifier.getKeyCacheHits());
+    }
+
+    @Test
+    void signatureCreatedInTheFutureIsRejected() {
+        assertRejected(() -> verify(sign(BODY, now() + 600, now() + 660), BODY));
+    }
+
+    @Test
+    void tamperedBodyFailsTheDigest() {
+        String authorization = sign(BODY, now(), now() + 60);
+        assertRejected(() -> verify(authorization, BODY.replace("search", "select")));
+
+        assertEquals(1, verifier.getRejectedCount());
+    }
+
+    @Test
+    void unknownKeyIsRejected() {
+        String authorization = sign(BODY, now(), now() + 60).replace("bap.example|k1", "bap.example|k2");
+        assertRejected(() -> verify(authorization, BODY));
+    }
+
+    @Test
+    void retransmissionIsAnsweredFromTheResultCache() throws Exception {
+        String authorization = sign(BODY, now(), now() + 60);
+        verify(authorization, BODY);
+        verify(authorization, BODY);
+
+        assertEquals(2, verifier.getVerifiedCount());
+        assertEquals(1, verifier.getResultCacheHits());
+        assertEquals(0, verifier.getKeyCacheHits());
+    }
+
+    @Test
+    void secondMessageFromTheSameKeyHitsTheKeyCache() throws Exception {
+        String other = BODY.replace("m-1", "m-2");
+        verify(sign(BODY, now(), now() + 60), BODY);
+        verify(sign(other, now(), now() + 60), other);
+
+        assertEquals(2, verifier.getVerifiedCount());
+        assertEquals(0, verifier.getResultCacheHits());
+        assertEquals(1, verifier.getKeyCacheHits());
+    }
+
+    @Test
+    void cachedResultDoesNotCoverATamperedBody() throws Exception {
+        String authorization = sign(BODY, now(), now() + 60);
+        verify(authorization, BODY);
+        assertRejected(() -> verify(authorization, BODY + " "));
+
+        assertTrue(verifier.getRejectedCount() > 0);
+        assertEquals(0, verifier.getResultCacheHits());
+    }
+}
@@ -0,0 +1,198 @@
+package prototype_5.server;
+
+import prototype_5.config.ServerConfig;
+import prototype_5.security.StaticSubscriberKeyResolver;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.http3.Http3ClientConnectionHandler;
+import io.netty.incubator.codec.http3.Http3GoAwayFrame;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drains a running server with HTTP/3 clients connected over loopback: each connection is
+ * sent a GOAWAY, new connections are refused, and whatever is still open at the deadline is
+ * closed.
+ */
+class CombinedServerDrainTest {
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    // RFC 9114 5.2: the largest client-initiated bidirectional stream id, so no request is cut off
+    private static final long GRACEFUL_GOAWAY_ID = (1L << 62) - 4;
+
+    private File directory;
+    private CombinedServer server;
+    private Thread serverThread;
+    private InetSocketAddress serverAddress;
+    private EventLoopGroup clientGroup;
+    private Channel clientChannel;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = Files.createTempDirectory("drain-test").toFile();
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0, LOOPBACK)) {
+            port = probe.getLocalPort();
+        }
+        ServerConfig config = ServerConfig.builder()
+            .port(port)
+            .identityKeyStore(new File(directory, "identity.p12"))
+            .identityKeyStorePassword("drain-test")
+            .keyResolver(new StaticSubscriberKeyResolver())
+            .outboxDirectory(new File(directory, "outbox"))
+            .flightRecorderSlots(0)
+            .ioThreads(1)
+            .blockingThreads(2)
+            .build();
+        server = new CombinedServer(config);
+        serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (Exception e) {
+                server.ready().completeExceptionally(e);
+            }
+        }, "combined-server");
+        serverThread.start();
+        server.ready().get(30, TimeUnit.SECONDS);
+        serverAddress = new InetSocketAddress(LOOPBACK, port);
+
+        clientGroup = new NioEventLoopGroup(1);
+        ChannelHandler codec = Http3.newQuicClientCodecBuilder()
+            .sslContext(QuicSslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .applicationProtocols(Http3.supportedApplicationProtocols())
+                .build())
+            .maxIdleTimeout(30_000, TimeUnit.MILLISECONDS)
+            .initialMaxData(10000000)
+            .initialMaxStreamDataBidirectionalLocal(1000000)
+            .build();
+        clientChannel = new Bootstrap()
+            .group(clientGroup)
+            .channel(NioDatagramChannel.class)
+            .handler(codec)
+            .bind(LOOPBACK, 0)
+            .sync()
+            .channel();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (clientChannel != null) {
+            clientChannel.close().syncUninterruptibly();
+        }
+        if (clientGroup != null) {
+            clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+        if (server != null) {
+            server.shutdown();
+            serverThread.join(10_000);
+        }
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private Future<QuicChannel> connect(CompletableFuture<Long> goAway) {
+        return QuicChannel.newBootstrap(clientChannel)
+            .handler(new Http3ClientConnectionHandler(new GoAwayListener(goAway), null, null, null, true))
+            .remoteAddress(serverAddress)
+            .connect();
+    }
+
+    @Test
+    void drainSendsGoAwayAndFinishesOnceClientsLeave() throws Exception {
+        CompletableFuture<Long> goAway = new CompletableFuture<>();
+        QuicChannel connection = connect(goAway).get(10, TimeUnit.SECONDS);
+
+        CompletableFuture<Void> drained = CompletableFuture.runAsync(() -> server.drain(30, TimeUnit.SECONDS));
+
+        assertEquals(GRACEFUL_GOAWAY_ID, goAway.get(10, TimeUnit.SECONDS));
+        assertFalse(drained.isDone());
+        // a well-behaved peer finishes its requests and goes; the drain need not wait for the deadline
+        connection.close().sync();
+        drained.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void drainingServerRefusesNewConnections() throws Exception {
+        CompletableFuture<Long> goAway = new CompletableFuture<>();
+        QuicChannel connection = connect(goAway).get(10, TimeUnit.SECONDS);
+        CompletableFuture<Void> drained = CompletableFuture.runAsync(() -> server.drain(30, TimeUnit.SECONDS));
+        goAway.get(10, TimeUnit.SECONDS);
+
+        Future<QuicChannel> refused = connect(new CompletableFuture<>());
+
+        assertTrue(refused.await(10, TimeUnit.SECONDS));
+        if (refused.isSuccess()) {
+            assertTrue(refused.getNow().closeFuture().await(10, TimeUnit.SECONDS),
+                "connection accepted while draining");
+        }
+        assertTrue(connection.isActive());
+        connection.close().sync();
+        drained.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void connectionsStillOpenAtTheDeadlineAreClosed() throws Exception {
+        CompletableFuture<Long> goAway = new CompletableFuture<>();
+        QuicChannel connection = connect(goAway).get(10, TimeUnit.SECONDS);
+
+        long started = System.nanoTime();
+        server.drain(500, TimeUnit.MILLISECONDS);
+
+        assertTrue(goAway.isDone());
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(connection.closeFuture().await(10, TimeUnit.SECONDS), "connection left open after the drain");
+    }
+
+    /**
+     * Completes with the stream id of the first GOAWAY on the server's control stream
+     */
+    @ChannelHandler.Sharable
+    private static final class GoAwayListener extends ChannelInboundHandlerAdapter {
+        private final CompletableFuture<Long> goAway;
+
+        GoAwayListener(CompletableFuture<Long> goAway) {
+            this.goAway = goAway;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                if (msg instanceof Http3GoAwayFrame) {
+                    goAway.complete(((Http3GoAwayFrame) msg).id());
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package com.example;
 
 import io.netty.bootstrap.Bootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
@@ -10,24 +10,108 @@ import io.netty.channel.socket.nio.NioDatagramChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class CombinedServer {
     private static final Logger logger = LoggerFactory.getLogger(CombinedServer.class);
-    private static final int PORT = 3478; 
+    private static final int PORT = 3478;
+    private static final int ALTERNATE_PORT = 3479;
 
+    /**
+     * Starts the server. NAT behavior discovery (RFC 5780) is enabled by giving the server
+     * two local IPs, e.g. on loopback:
+     * <pre>
+     * -Dstun.primaryAddress=127.0.0.1 -Dstun.alternateAddress=127.0.0.2
+     * </pre>
+     * Without a primary address the server binds the wildcard, which is dual-stack and
+     * answers IPv4 and IPv6 clients alike. With explicit addresses, IPv6 clients are served
+     * by giving an IPv6 pair as well through {@code stun.primaryAddress6} and
+     * {@code stun.alternateAddress6}; each family does behavior discovery on its own pair.
+     * Short-term credentials, which make MESSAGE-INTEGRITY mandatory, are given as
+     * {@code -Dstun.credentials=user:password,...}.
+     */
     public static void main(String[] args) throws Exception {
+        int port = Integer.getInteger("stun.port", PORT);
+        int alternatePort = Integer.getInteger("stun.alternatePort", ALTERNATE_PORT);
+
+        List<ServerSockets> families = new ArrayList<>();
+        families.add(serverSockets("stun.primaryAddress", "stun.alternateAddress", port, alternatePort));
+        if (System.getProperty("stun.primaryAddress6") != null) {
+            if (System.getProperty("stun.primaryAddress") == null) {
+                throw new IllegalArgumentException("stun.primaryAddress6 requires stun.primaryAddress; "
+                        + "leave both unset to bind the dual-stack wildcard");
+            }
+            families.add(serverSockets("stun.primaryAddress6", "stun.alternateAddress6", port, alternatePort));
+        }
+
+        Map<String, byte[]> credentials = parseCredentials(System.getProperty("stun.credentials", ""));
+        if (!credentials.isEmpty()) {
+            logger.info("MESSAGE-INTEGRITY required for {} user(s)", credentials.size());
+        }
+
         EventLoopGroup group = new NioEventLoopGroup();
         try {
             Bootstrap b = new Bootstrap();
             b.group(group)
                 .channel(NioDatagramChannel.class)
-                .option(ChannelOption.SO_BROADCAST, true)
-                .handler(new CombinedServerHandler());
+                .option(ChannelOption.SO_BROADCAST, true);
+
+            List<Channel> channels = new ArrayList<>();
+            for (ServerSockets sockets : families) {
+                Bootstrap familyBootstrap = b.clone().handler(new ChannelInitializer<NioDatagramChannel>() {
+                    @Override
+                    protected void initChannel(NioDatagramChannel ch) {
+                        ch.pipeline().addLast(new CombinedServerHandler(sockets, credentials));
+                    }
+                });
+                for (InetSocketAddress address : sockets.bindAddresses()) {
+                    Channel channel = familyBootstrap.bind(address).sync().channel();
+                    sockets.register(channel);
+                    channels.add(channel);
+                    logger.info("STUN + Echo Server listening on {}", channel.localAddress());
+                }
+                if (sockets.supportsBehaviorDiscovery()) {
+                    logger.info("NAT behavior discovery (RFC 5780) enabled on {}", sockets.bindAddresses()[0]);
+                }
+            }
 
-            logger.info("STUN + Echo Server starting on port {}...", PORT);
-            ChannelFuture f = b.bind(PORT).sync();
-            f.channel().closeFuture().sync();
+            for (Channel channel : channels) {
+                channel.closeFuture().sync();
+            }
         } finally {
             group.shutdownGracefully();
         }
     }
-}
\ No newline at end of file
+
+    private static ServerSockets serverSockets(String primaryProperty, String alternateProperty,
+                                               int port, int alternatePort) throws UnknownHostException {
+        String primary = System.getProperty(primaryProperty);
+        String alternate = System.getProperty(alternateProperty);
+        if (alternate != null && primary == null) {
+            throw new IllegalArgumentException(alternateProperty + " requires " + primaryProperty);
+        }
+        return new ServerSockets(
+                primary != null ? InetAddress.getByName(primary) : null, port,
+                alternate != null ? InetAddress.getByName(alternate) : null, alternatePort);
+    }
+
+    private static Map<String, byte[]> parseCredentials(String spec) {
+        Map<String, byte[]> credentials = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            int colon = entry.indexOf(':');
+            if (colon > 0) {
+                credentials.put(entry.substring(0, colon).trim(),
+                        entry.substring(colon + 1).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return Collections.unmodifiableMap(credentials);
+    }
+}
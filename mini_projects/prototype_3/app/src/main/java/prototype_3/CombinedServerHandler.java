@@ -2,6 +2,7 @@ package com.example;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
@@ -9,13 +10,45 @@ import io.netty.util.CharsetUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.Mac;
 import java.net.InetSocketAddress;
+import java.util.Map;
 
 public class CombinedServerHandler extends SimpleChannelInboundHandler<DatagramPacket> {
     private static final Logger logger = LoggerFactory.getLogger(CombinedServerHandler.class);
     private static final int MAGIC_COOKIE = 0x2112A442;
     private static final short STUN_BINDING_REQUEST = 0x0001;
     private static final short STUN_BINDING_RESPONSE = 0x0101;
+    private static final short STUN_BINDING_ERROR_RESPONSE = 0x0111;
+    private static final int STUN_HEADER_LENGTH = 20;
+    
+    private static final int USERNAME = 0x0006;
+    private static final int CHANGE_REQUEST = 0x0003;
+    private static final int ERROR_CODE = 0x0009;
+    private static final int UNKNOWN_ATTRIBUTES = 0x000A;
+    private static final int XOR_MAPPED_ADDRESS = 0x0020;
+    private static final int RESPONSE_ORIGIN = 0x802B;
+    private static final int OTHER_ADDRESS = 0x802C;
+    
+    private static final int FAMILY_IPV4 = 0x01;
+    private static final int FAMILY_IPV6 = 0x02;
+    
+    private static final int CHANGE_IP = 0x04;
+    private static final int CHANGE_PORT = 0x02;
+    
+    private final ServerSockets sockets;
+    private final Map<String, byte[]> credentials;
+    private final RequestAttributes attributes = new RequestAttributes();
+    
+    /**
+     * @param sockets the sockets this server is bound to
+     * @param credentials short-term credentials by user name; when non-empty every
+     *                    request must carry a valid MESSAGE-INTEGRITY
+     */
+    public CombinedServerHandler(ServerSockets sockets, Map<String, byte[]> credentials) {
+        this.sockets = sockets;
+        this.credentials = credentials;
+    }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
@@ -49,40 +82,181 @@ public class CombinedServerHandler extends SimpleChannelInboundHandler<DatagramP
 
     private void handleStun(ChannelHandlerContext ctx, DatagramPacket packet) {
         ByteBuf request = packet.content();
+        InetSocketAddress local = (InetSocketAddress) ctx.channel().localAddress();
+        
+        scanAttributes(request);
+        if (attributes.fingerprintOffset >= 0
+                && !StunIntegrity.verifyFingerprint(request, attributes.fingerprintOffset)) {
+            logger.debug("Dropping STUN request with invalid FINGERPRINT from {}", packet.sender());
+            return;
+        }
         
-        ByteBuf response = Unpooled.buffer(32);
+        Mac mac = null;
+        if (!credentials.isEmpty()) {
+            if (attributes.integrityOffset < 0 || attributes.usernameOffset < 0) {
+                sendError(ctx, packet, 400, "Bad Request", -1);
+                return;
+            }
+            String username = request.toString(attributes.usernameOffset, attributes.usernameLength, CharsetUtil.UTF_8);
+            byte[] key = credentials.get(username);
+            if (key == null) {
+                sendError(ctx, packet, 401, "Unauthorized", -1);
+                return;
+            }
+            mac = StunIntegrity.mac(username, key);
+            if (!StunIntegrity.verifyIntegrity(request, attributes.integrityOffset, mac)) {
+                sendError(ctx, packet, 401, "Unauthorized", -1);
+                return;
+            }
+        }
+        
+        boolean changeIp = (attributes.changeFlags & CHANGE_IP) != 0;
+        boolean changePort = (attributes.changeFlags & CHANGE_PORT) != 0;
+        
+        Channel out = ctx.channel();
+        if (changeIp || changePort) {
+            out = sockets.supportsBehaviorDiscovery() ? sockets.channelFor(local, changeIp, changePort) : null;
+            if (out == null) {
+                sendError(ctx, packet, 420, "Unknown Attribute", CHANGE_REQUEST);
+                logger.info("Rejected CHANGE-REQUEST from {}: no alternate address configured", packet.sender());
+                return;
+            }
+        }
+        InetSocketAddress origin = (InetSocketAddress) out.localAddress();
+        
+        ByteBuf response = ctx.alloc().buffer(128);
         
         response.writeShort(STUN_BINDING_RESPONSE);  
         
-        response.writeShort(12);
+        response.writeShort(0);
         
         response.writeInt(MAGIC_COOKIE);
         
         byte[] transactionId = new byte[12];
-        request.getBytes(8, transactionId);
+        request.getBytes(request.readerIndex() + 8, transactionId);
         response.writeBytes(transactionId);
         
-        response.writeShort(0x0020);  
-        response.writeShort(8);       
-        response.writeByte(0);        
-        response.writeByte(1);       
+        writeAddress(response, XOR_MAPPED_ADDRESS, packet.sender(), true);
         
-        int port = packet.sender().getPort();
-        response.writeShort(port ^ (MAGIC_COOKIE >> 16));
+        if (!origin.getAddress().isAnyLocalAddress()) {
+            writeAddress(response, RESPONSE_ORIGIN, origin, false);
+        }
+        if (sockets.supportsBehaviorDiscovery()) {
+            writeAddress(response, OTHER_ADDRESS, sockets.otherAddress(local), false);
+        }
         
-        byte[] ipBytes = packet.sender().getAddress().getAddress();
-        int ipInt = ((ipBytes[0] & 0xFF) << 24) | 
-                    ((ipBytes[1] & 0xFF) << 16) | 
-                    ((ipBytes[2] & 0xFF) << 8) | 
-                    (ipBytes[3] & 0xFF);
-        response.writeInt(ipInt ^ MAGIC_COOKIE);
+        response.setShort(2, response.readableBytes() - STUN_HEADER_LENGTH);
         
-        ctx.writeAndFlush(new DatagramPacket(response, packet.sender()));
+        if (mac != null) {
+            StunIntegrity.appendIntegrity(response, mac);
+        }
+        if (mac != null || attributes.fingerprintOffset >= 0) {
+            StunIntegrity.appendFingerprint(response);
+        }
+        
+        out.writeAndFlush(new DatagramPacket(response, packet.sender()));
         
-        logger.info("Sent STUN response with XOR-mapped address {}:{} to {}", 
+        logger.info("Sent STUN response with XOR-mapped address {}:{} to {} from {}", 
                 packet.sender().getAddress().getHostAddress(), 
                 packet.sender().getPort(),
-                packet.sender());
+                packet.sender(),
+                origin);
+    }
+    
+    /**
+     * Records where the attributes this server acts on are, in one pass over the request.
+     * Per RFC 5389 only FINGERPRINT may follow MESSAGE-INTEGRITY, and nothing follows FINGERPRINT.
+     * 
+     * @param request the STUN request
+     */
+    private void scanAttributes(ByteBuf request) {
+        attributes.reset();
+        
+        int start = request.readerIndex();
+        int end = Math.min(request.writerIndex(),
+                start + STUN_HEADER_LENGTH + request.getUnsignedShort(start + 2));
+        
+        int pos = start + STUN_HEADER_LENGTH;
+        while (pos + 4 <= end) {
+            int type = request.getUnsignedShort(pos);
+            int length = request.getUnsignedShort(pos + 2);
+            if (pos + 4 + length > end) {
+                return;
+            }
+            
+            if (type == StunIntegrity.FINGERPRINT && length == 4) {
+                attributes.fingerprintOffset = pos;
+                return;
+            }
+            if (attributes.integrityOffset < 0) {
+                if (type == StunIntegrity.MESSAGE_INTEGRITY && length == 20) {
+                    attributes.integrityOffset = pos;
+                } else if (type == USERNAME) {
+                    attributes.usernameOffset = pos + 4;
+                    attributes.usernameLength = length;
+                } else if (type == CHANGE_REQUEST && length == 4) {
+                    attributes.changeFlags = request.getInt(pos + 4);
+                }
+            }
+            pos += 4 + ((length + 3) & ~3);
+        }
+    }
+    
+    /**
+     * Writes an address attribute; for XOR-MAPPED-ADDRESS the address is XORed with the
+     * magic cookie and, for IPv6, the transaction id that follows it in the header
+     */
+    private void writeAddress(ByteBuf out, int type, InetSocketAddress address, boolean xor) {
+        byte[] ip = address.getAddress().getAddress();
+        
+        out.writeShort(type);
+        out.writeShort(4 + ip.length);
+        out.writeByte(0);
+        out.writeByte(ip.length == 4 ? FAMILY_IPV4 : FAMILY_IPV6);
+        
+        int port = address.getPort();
+        out.writeShort(xor ? port ^ (MAGIC_COOKIE >>> 16) : port);
+        
+        int header = out.readerIndex() + 4;
+        for (int i = 0; i < ip.length; i++) {
+            out.writeByte(xor ? ip[i] ^ out.getByte(header + i) : ip[i]);
+        }
+    }
+    
+    /**
+     * Answers with an error response. 420 lists the attribute this server cannot honour, as
+     * RFC 5780 requires when CHANGE-REQUEST arrives at a server without an alternate address.
+     */
+    private void sendError(ChannelHandlerContext ctx, DatagramPacket packet, int code, String reason,
+                           int unknownAttribute) {
+        ByteBuf request = packet.content();
+        ByteBuf response = ctx.alloc().buffer(64);
+        
+        response.writeShort(STUN_BINDING_ERROR_RESPONSE);
+        response.writeShort(0);
+        response.writeInt(MAGIC_COOKIE);
+        response.writeBytes(request, request.readerIndex() + 8, 12);
+        
+        byte[] phrase = reason.getBytes(CharsetUtil.UTF_8);
+        response.writeShort(ERROR_CODE);
+        response.writeShort(4 + phrase.length);
+        response.writeShort(0);
+        response.writeByte(code / 100);
+        response.writeByte(code % 100);
+        response.writeBytes(phrase);
+        response.writeZero((4 - phrase.length % 4) % 4);
+        
+        if (unknownAttribute >= 0) {
+            response.writeShort(UNKNOWN_ATTRIBUTES);
+            response.writeShort(2);
+            response.writeShort(unknownAttribute);
+            response.writeShort(0);
+        }
+        
+        response.setShort(2, response.readableBytes() - STUN_HEADER_LENGTH);
+        
+        ctx.writeAndFlush(new DatagramPacket(response, packet.sender()));
+        logger.debug("Sent STUN error {} {} to {}", code, reason, packet.sender());
     }
 
     private void echoMessage(ChannelHandlerContext ctx, DatagramPacket packet) {
@@ -118,4 +292,24 @@ public class CombinedServerHandler extends SimpleChannelInboundHandler<DatagramP
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         logger.error("Error in server handler", cause);
     }
+
+    /**
+     * Attribute positions of the request being handled; reused since a handler only
+     * ever runs on its channel's event loop.
+     */
+    private static final class RequestAttributes {
+        int changeFlags;
+        int usernameOffset;
+        int usernameLength;
+        int integrityOffset;
+        int fingerprintOffset;
+        
+        void reset() {
+            changeFlags = 0;
+            usernameOffset = -1;
+            usernameLength = 0;
+            integrityOffset = -1;
+            fingerprintOffset = -1;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+package com.example;
+
+import io.netty.channel.Channel;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The sockets a STUN server listens on. With an alternate address and port configured
+ * the server binds all four combinations, which is what RFC 5780 behavior discovery
+ * needs: a response can then be sent from a different IP, a different port, or both.
+ */
+public class ServerSockets {
+    private final InetAddress primaryAddress;
+    private final InetAddress alternateAddress;
+    private final int primaryPort;
+    private final int alternatePort;
+    private final Map<InetSocketAddress, Channel> channels = new ConcurrentHashMap<>();
+
+    public ServerSockets(InetAddress primaryAddress, int primaryPort,
+                         InetAddress alternateAddress, int alternatePort) {
+        this.primaryAddress = primaryAddress;
+        this.primaryPort = primaryPort;
+        this.alternateAddress = alternateAddress;
+        this.alternatePort = alternatePort;
+    }
+
+    /**
+     * @return true if alternate address and port are configured
+     */
+    public boolean supportsBehaviorDiscovery() {
+        return alternateAddress != null && alternatePort > 0;
+    }
+
+    /**
+     * @return every local address the server has to bind
+     */
+    public InetSocketAddress[] bindAddresses() {
+        if (!supportsBehaviorDiscovery()) {
+            return new InetSocketAddress[] {new InetSocketAddress(primaryAddress, primaryPort)};
+        }
+        return new InetSocketAddress[] {
+            new InetSocketAddress(primaryAddress, primaryPort),
+            new InetSocketAddress(primaryAddress, alternatePort),
+            new InetSocketAddress(alternateAddress, primaryPort),
+            new InetSocketAddress(alternateAddress, alternatePort)
+        };
+    }
+
+    public void register(Channel channel) {
+        channels.put((InetSocketAddress) channel.localAddress(), channel);
+    }
+
+    /**
+     * Picks the socket a response should leave from
+     *
+     * @param local the address the request arrived on
+     * @param changeIp whether the client asked for a response from the other IP
+     * @param changePort whether the client asked for a response from the other port
+     * @return the channel to send on, or null if that combination is not bound
+     */
+    public Channel channelFor(InetSocketAddress local, boolean changeIp, boolean changePort) {
+        InetAddress ip = changeIp ? other(local.getAddress()) : local.getAddress();
+        int port = changePort ? otherPort(local.getPort()) : local.getPort();
+        return channels.get(new InetSocketAddress(ip, port));
+    }
+
+    /**
+     * @return the address differing from {@code local} in both IP and port, for OTHER-ADDRESS
+     */
+    public InetSocketAddress otherAddress(InetSocketAddress local) {
+        return new InetSocketAddress(other(local.getAddress()), otherPort(local.getPort()));
+    }
+
+    private InetAddress other(InetAddress address) {
+        return address.equals(primaryAddress) ? alternateAddress : primaryAddress;
+    }
+
+    private int otherPort(int port) {
+        return port == primaryPort ? alternatePort : primaryPort;
+    }
+}
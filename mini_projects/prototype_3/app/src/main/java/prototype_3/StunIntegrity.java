@@ -0,0 +1,174 @@
+package com.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * MESSAGE-INTEGRITY and FINGERPRINT (RFC 5389 15.4, 15.5) computed directly over
+ * {@link ByteBuf} memory.
+ * <p>
+ * Each event loop thread keeps its own already-keyed {@link Mac} per credential, so the
+ * per-packet cost is one {@code Mac.reset()} plus the HMAC itself; {@code Mac.getInstance}
+ * and key scheduling happen once per thread and credential. Both checks feed the buffer's
+ * NIO view to the JDK, which uses the intrinsic CRC32 and does not copy direct buffers.
+ */
+public final class StunIntegrity {
+    public static final int MESSAGE_INTEGRITY = 0x0008;
+    public static final int FINGERPRINT = 0x8028;
+
+    private static final int HEADER_LENGTH = 20;
+    private static final int HMAC_LENGTH = 20;
+    private static final int FINGERPRINT_XOR = 0x5354554E;
+
+    private static final FastThreadLocal<Map<String, KeyedMac>> MACS = new FastThreadLocal<Map<String, KeyedMac>>() {
+        @Override
+        protected Map<String, KeyedMac> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private static final FastThreadLocal<CRC32> CRC = new FastThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+
+    private static final FastThreadLocal<byte[]> HMAC_OUT = new FastThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[HMAC_LENGTH];
+        }
+    };
+
+    private StunIntegrity() {
+    }
+
+    /**
+     * Returns this thread's HMAC-SHA1 instance for a credential, keying it on first use
+     *
+     * @param username the credential's user name
+     * @param key the short-term credential key (the password bytes)
+     * @return a keyed Mac ready for use
+     */
+    public static Mac mac(String username, byte[] key) {
+        Map<String, KeyedMac> macs = MACS.get();
+        KeyedMac cached = macs.get(username);
+        if (cached == null || cached.key != key) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA1");
+                mac.init(new SecretKeySpec(key, "HmacSHA1"));
+                cached = new KeyedMac(key, mac);
+                macs.put(username, cached);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA1 unavailable", e);
+            }
+        }
+        return cached.mac;
+    }
+
+    /**
+     * Checks the FINGERPRINT attribute of a message
+     *
+     * @param message the message, starting at its reader index
+     * @param attributeOffset absolute index of the FINGERPRINT attribute header
+     * @return true if the CRC matches
+     */
+    public static boolean verifyFingerprint(ByteBuf message, int attributeOffset) {
+        return crc(message, message.readerIndex(), attributeOffset) == message.getInt(attributeOffset + 4);
+    }
+
+    /**
+     * Checks the MESSAGE-INTEGRITY attribute of a message. The HMAC covers the message up to
+     * the attribute with the header length field rewritten to end just after it, so the
+     * header is fed separately instead of patching the buffer.
+     *
+     * @param message the message, starting at its reader index
+     * @param attributeOffset absolute index of the MESSAGE-INTEGRITY attribute header
+     * @param mac the keyed Mac for the message's credential
+     * @return true if the HMAC matches
+     */
+    public static boolean verifyIntegrity(ByteBuf message, int attributeOffset, Mac mac) {
+        int start = message.readerIndex();
+        byte[] expected = hmac(message, start, attributeOffset, mac);
+
+        int diff = 0;
+        for (int i = 0; i < HMAC_LENGTH; i++) {
+            diff |= expected[i] ^ message.getByte(attributeOffset + 4 + i);
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Appends MESSAGE-INTEGRITY to a message being built, updating its length field
+     *
+     * @param message the message, header at its reader index and attributes written so far
+     * @param mac the keyed Mac for the credential the request used
+     */
+    public static void appendIntegrity(ByteBuf message, Mac mac) {
+        int start = message.readerIndex();
+        int attributeOffset = message.writerIndex();
+        byte[] hmac = hmac(message, start, attributeOffset, mac);
+
+        message.writeShort(MESSAGE_INTEGRITY);
+        message.writeShort(HMAC_LENGTH);
+        message.writeBytes(hmac);
+        message.setShort(start + 2, message.writerIndex() - start - HEADER_LENGTH);
+    }
+
+    /**
+     * Appends FINGERPRINT to a message being built, updating its length field; must be last
+     */
+    public static void appendFingerprint(ByteBuf message) {
+        int start = message.readerIndex();
+        message.setShort(start + 2, message.writerIndex() + 8 - start - HEADER_LENGTH);
+        int crc = crc(message, start, message.writerIndex());
+
+        message.writeShort(FINGERPRINT);
+        message.writeShort(4);
+        message.writeInt(crc);
+    }
+
+    private static byte[] hmac(ByteBuf message, int start, int attributeOffset, Mac mac) {
+        int adjustedLength = attributeOffset + 4 + HMAC_LENGTH - start - HEADER_LENGTH;
+
+        mac.reset();
+        mac.update(message.getByte(start));
+        mac.update(message.getByte(start + 1));
+        mac.update((byte) (adjustedLength >> 8));
+        mac.update((byte) adjustedLength);
+        mac.update(message.nioBuffer(start + 4, attributeOffset - start - 4));
+
+        byte[] out = HMAC_OUT.get();
+        try {
+            mac.doFinal(out, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC output buffer too small", e);
+        }
+        return out;
+    }
+
+    private static int crc(ByteBuf message, int from, int to) {
+        CRC32 crc = CRC.get();
+        crc.reset();
+        crc.update(message.nioBuffer(from, to - from));
+        return (int) crc.getValue() ^ FINGERPRINT_XOR;
+    }
+
+    private static final class KeyedMac {
+        final byte[] key;
+        final Mac mac;
+
+        KeyedMac(byte[] key, Mac mac) {
+            this.key = key;
+            this.mac = mac;
+        }
+    }
+}
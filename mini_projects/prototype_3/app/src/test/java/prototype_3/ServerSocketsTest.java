@@ -0,0 +1,158 @@
+package com.example;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Binds the server the way it starts without a configured address and sends Binding
+ * requests to it from ::1 and from 127.0.0.1, checking each client is told its own address
+ * in its own family.
+ */
+public class ServerSocketsTest {
+    private static final int MAGIC_COOKIE = 0x2112A442;
+    private static final int BINDING_REQUEST = 0x0001;
+    private static final int BINDING_RESPONSE = 0x0101;
+    private static final int XOR_MAPPED_ADDRESS = 0x0020;
+
+    private EventLoopGroup group;
+    private Channel channel;
+
+    @Before
+    public void setUp() {
+        group = new NioEventLoopGroup(1);
+    }
+
+    @After
+    public void tearDown() {
+        if (channel != null) {
+            channel.close().syncUninterruptibly();
+        }
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    @Test
+    public void defaultBindIsTheWildcard() {
+        InetSocketAddress[] addresses = new ServerSockets(null, 3478, null, 3479).bindAddresses();
+
+        assertEquals(1, addresses.length);
+        assertTrue(addresses[0].getAddress().isAnyLocalAddress());
+    }
+
+    @Test
+    public void wildcardBindAnswersIpv6Clients() throws Exception {
+        assumeTrue("::1 cannot be bound", ipv6LoopbackAvailable());
+        int port = bind(new ServerSockets(null, 0, null, 0));
+
+        assertMappedToItself(InetAddress.getByName("::1"), port);
+    }
+
+    @Test
+    public void wildcardBindAnswersIpv4Clients() throws Exception {
+        int port = bind(new ServerSockets(null, 0, null, 0));
+
+        assertMappedToItself(InetAddress.getByName("127.0.0.1"), port);
+    }
+
+    @Test
+    public void eachFamilyDiscoversBehaviorOnItsOwnPair() throws UnknownHostException {
+        ServerSockets ipv4 = new ServerSockets(InetAddress.getByName("127.0.0.1"), 3478,
+                InetAddress.getByName("127.0.0.2"), 3479);
+        ServerSockets ipv6 = new ServerSockets(InetAddress.getByName("::1"), 3478,
+                InetAddress.getByName("fd00::2"), 3479);
+
+        assertEquals(new InetSocketAddress("127.0.0.2", 3479),
+                ipv4.otherAddress(new InetSocketAddress("127.0.0.1", 3478)));
+        assertEquals(new InetSocketAddress("fd00::2", 3479),
+                ipv6.otherAddress(new InetSocketAddress("::1", 3478)));
+        for (InetSocketAddress address : ipv6.bindAddresses()) {
+            assertEquals(16, address.getAddress().getAddress().length);
+        }
+    }
+
+    private int bind(ServerSockets sockets) throws InterruptedException {
+        channel = new Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel.class)
+                .handler(new ChannelInitializer<NioDatagramChannel>() {
+                    @Override
+                    protected void initChannel(NioDatagramChannel ch) {
+                        ch.pipeline().addLast(new CombinedServerHandler(sockets, Collections.emptyMap()));
+                    }
+                })
+                .bind(sockets.bindAddresses()[0])
+                .sync()
+                .channel();
+        sockets.register(channel);
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    private static void assertMappedToItself(InetAddress loopback, int port) throws Exception {
+        try (DatagramSocket client = new DatagramSocket(new InetSocketAddress(loopback, 0))) {
+            client.setSoTimeout(5000);
+            byte[] request = new byte[20];
+            ByteBuffer.wrap(request).putShort((short) BINDING_REQUEST).putShort((short) 0)
+                    .putInt(MAGIC_COOKIE).putInt(ThreadLocalRandom.current().nextInt())
+                    .putLong(ThreadLocalRandom.current().nextLong());
+            client.send(new DatagramPacket(request, request.length, new InetSocketAddress(loopback, port)));
+
+            DatagramPacket response = new DatagramPacket(new byte[512], 512);
+            client.receive(response);
+            ByteBuffer message = ByteBuffer.wrap(response.getData(), 0, response.getLength());
+            assertEquals(BINDING_RESPONSE, message.getShort(0));
+            for (int i = 8; i < 20; i++) {
+                assertEquals(request[i], message.get(i));
+            }
+
+            assertEquals(client.getLocalSocketAddress(), xorMappedAddress(message));
+        }
+    }
+
+    /**
+     * Decodes XOR-MAPPED-ADDRESS, XORed with the magic cookie and, for IPv6, the transaction id
+     */
+    private static InetSocketAddress xorMappedAddress(ByteBuffer message) throws UnknownHostException {
+        int end = 20 + message.getShort(2);
+        for (int pos = 20; pos + 4 <= end; pos += 4 + ((message.getShort(pos + 2) + 3) & ~3)) {
+            if (message.getShort(pos) != XOR_MAPPED_ADDRESS) {
+                continue;
+            }
+            int port = (message.getShort(pos + 6) ^ (MAGIC_COOKIE >>> 16)) & 0xFFFF;
+            byte[] ip = new byte[message.get(pos + 5) == 0x02 ? 16 : 4];
+            assertEquals(4 + ip.length, message.getShort(pos + 2));
+            for (int i = 0; i < ip.length; i++) {
+                ip[i] = (byte) (message.get(pos + 8 + i) ^ message.get(4 + i));
+            }
+            return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+        }
+        throw new AssertionError("no XOR-MAPPED-ADDRESS");
+    }
+
+    private static boolean ipv6LoopbackAvailable() {
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress("::1", 0))) {
+            return true;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks MESSAGE-INTEGRITY and FINGERPRINT against the sample messages of RFC 5769, on
+ * both heap and direct buffers.
+ */
+public class StunIntegrityTest {
+    private static final String USERNAME = "evtj:h6vY";
+    private static final byte[] PASSWORD = "VOkJxbRl1RmTxUk/WvJxBt".getBytes(StandardCharsets.UTF_8);
+
+    /** RFC 5769 2.1, a Binding request with SOFTWARE, PRIORITY, ICE-CONTROLLED and USERNAME. */
+    static final byte[] REQUEST = hex(
+        "000100582112a442b7e7a701bc34d686fa87dfae"
+            + "802200105354554e20746573742063" + "6c69656e74"
+            + "002400046e0001ff"
+            + "80290008932ff9b151263b36"
+            + "000600096576746a3a68367659202020"
+            + "000800149aeaa70cbfd8cb56781ef2b5b2d3f249c1b571a2"
+            + "80280004e57a3bcf");
+
+    /** RFC 5769 2.2, a Binding success response with an IPv4 XOR-MAPPED-ADDRESS. */
+    static final byte[] IPV4_RESPONSE = hex(
+        "0101003c2112a442b7e7a701bc34d686fa87dfae"
+            + "8022000b7465737420766563746f7220"
+            + "002000080001a147e112a643"
+            + "000800142b91f599fd9e90c38c7489f92af9ba53f06be7d7"
+            + "80280004c07d4c96");
+
+    /** RFC 5769 2.3, a Binding success response with an IPv6 XOR-MAPPED-ADDRESS. */
+    static final byte[] IPV6_RESPONSE = hex(
+        "010100482112a442b7e7a701bc34d686fa87dfae"
+            + "8022000b7465737420766563746f7220"
+            + "002000140002a1470113a9faa5d3f179bc25f4b5bed2b9d9"
+            + "00080014a382954e4be67bf11784c97c8292c275bfe3ed41"
+            + "80280004c8fb0b4c");
+
+    private static final int INTEGRITY_FROM_END = 24 + 8;
+    private static final int FINGERPRINT_FROM_END = 8;
+
+    @Test
+    public void verifiesTheSampleMessages() {
+        for (byte[] vector : new byte[][] {REQUEST, IPV4_RESPONSE, IPV6_RESPONSE}) {
+            for (ByteBuf message : new ByteBuf[] {Unpooled.wrappedBuffer(vector), direct(vector)}) {
+                assertTrue(StunIntegrity.verifyFingerprint(message, vector.length - FINGERPRINT_FROM_END));
+                assertTrue(StunIntegrity.verifyIntegrity(message, vector.length - INTEGRITY_FROM_END, mac()));
+                message.release();
+            }
+        }
+    }
+
+    @Test
+    public void verifiesAMessageThatDoesNotStartAtIndexZero() {
+        ByteBuf message = Unpooled.directBuffer(REQUEST.length + 7);
+        message.writeZero(7);
+        message.writeBytes(REQUEST);
+        message.readerIndex(7);
+
+        assertTrue(StunIntegrity.verifyFingerprint(message, message.writerIndex() - FINGERPRINT_FROM_END));
+        assertTrue(StunIntegrity.verifyIntegrity(message, message.writerIndex() - INTEGRITY_FROM_END, mac()));
+        message.release();
+    }
+
+    @Test
+    public void rejectsATamperedMessage() {
+        byte[] tampered = IPV4_RESPONSE.clone();
+        // flip a bit of the XOR-MAPPED-ADDRESS port
+        tampered[26] ^= 1;
+        ByteBuf message = Unpooled.wrappedBuffer(tampered);
+
+        assertFalse(StunIntegrity.verifyFingerprint(message, tampered.length - FINGERPRINT_FROM_END));
+        assertFalse(StunIntegrity.verifyIntegrity(message, tampered.length - INTEGRITY_FROM_END, mac()));
+    }
+
+    @Test
+    public void rejectsTheWrongPassword() {
+        ByteBuf message = Unpooled.wrappedBuffer(REQUEST);
+        Mac wrong = StunIntegrity.mac("someone-else", "not the password".getBytes(StandardCharsets.UTF_8));
+
+        assertFalse(StunIntegrity.verifyIntegrity(message, REQUEST.length - INTEGRITY_FROM_END, wrong));
+    }
+
+    @Test
+    public void signsTheSampleMessagesByteForByte() {
+        for (byte[] vector : new byte[][] {REQUEST, IPV4_RESPONSE, IPV6_RESPONSE}) {
+            ByteBuf message = Unpooled.directBuffer(vector.length);
+            message.writeBytes(vector, 0, vector.length - INTEGRITY_FROM_END);
+
+            StunIntegrity.appendIntegrity(message, mac());
+            StunIntegrity.appendFingerprint(message);
+
+            byte[] signed = new byte[message.readableBytes()];
+            message.getBytes(message.readerIndex(), signed);
+            assertArrayEquals(vector, signed);
+            message.release();
+        }
+    }
+
+    @Test
+    public void keysEachCredentialOncePerThread() {
+        assertSame(mac(), mac());
+    }
+
+    private static Mac mac() {
+        return StunIntegrity.mac(USERNAME, PASSWORD);
+    }
+
+    private static ByteBuf direct(byte[] bytes) {
+        ByteBuf buffer = Unpooled.directBuffer(bytes.length);
+        buffer.writeBytes(bytes);
+        return buffer;
+    }
+
+    static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}